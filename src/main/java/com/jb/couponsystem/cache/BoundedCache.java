@@ -0,0 +1,426 @@
+package com.jb.couponsystem.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+/**
+ * This class is a read-through cache of a bounded size.
+ * <p>
+ * A value missing from the cache is loaded by the loader given to get, and kept for the time to live.
+ * Above the maximal size the least recently used value of a sample of the values is evicted,
+ * so the reads of the cache do not share a lock. Every sample continues the iteration of the values
+ * where the previous sample stopped, so all the values are sampled in turn, not only the first ones of the map.
+ * When several threads miss the same key at the same time, only one of them loads the value
+ * and the others wait for it, so a popular key that expires does not send a burst of queries to the database.
+ * <p>
+ * A value whose key was invalidated while it was loaded is returned to its callers but not kept,
+ * so an invalidation is never undone by a load that read the database before the change.
+ * The loads of the other keys are not affected.
+ * The hits, misses, loads and evictions are counted.
+ *
+ * @author Alexander Zablotsky
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public class BoundedCache<K, V> {
+
+	/**
+	 * This interface loads a value missing from the cache.
+	 *
+	 * @param <V> type of the value
+	 */
+	public interface Loader<V> {
+
+		/**
+		 * @return the value, or null if there is no value - null is not kept in the cache
+		 * @throws InterruptedException if the thread was interrupted while loading
+		 */
+		V load() throws InterruptedException;
+	}
+
+	/**
+	 * This interface loads several values missing from the cache together, for example with one query.
+	 *
+	 * @param <K> type of the keys
+	 * @param <V> type of the values
+	 */
+	public interface BulkLoader<K, V> {
+
+		/**
+		 * @param keys the missing keys
+		 * @return the values found, by their keys - a key without a value is left out
+		 * @throws InterruptedException if the thread was interrupted while loading
+		 */
+		Map<K, V> load(Collection<K> keys) throws InterruptedException;
+	}
+
+	//Attributes
+	// number of values checked to find the least recently used one
+	private static final int EVICTION_SAMPLE = 32;
+
+	private final String name;
+
+	private final int maxSize;
+
+	private final long ttlMs;
+
+	// key -> value
+	private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+	// key -> load in progress, removed by an invalidation of the key so the load is not kept
+	private final ConcurrentHashMap<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+
+	// increased on every use of a value, orders the uses for the eviction
+	private final AtomicLong uses = new AtomicLong();
+
+	// the iteration of the values the samples of the eviction continue, guarded by the lock of the cache
+	private Iterator<Map.Entry<K, Entry<V>>> evictionCursor;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong loads = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	//CTOR
+	/**
+	 * Constructor
+	 *
+	 * @param name name of the cache, for the statistics
+	 * @param maxSize maximal number of values
+	 * @param ttlMs time a value is kept in milliseconds
+	 */
+	public BoundedCache(String name, int maxSize, long ttlMs) {
+		this.name = name;
+		this.maxSize = maxSize;
+		this.ttlMs = ttlMs;
+	}
+
+	//Methods
+	/**
+	 * This method returns the value of a key from the cache, or loads it if it is missing or has expired.
+	 * If another thread is already loading the key, this method waits for its value.
+	 *
+	 * @param key the key
+	 * @param loader loads the value if it is missing
+	 * @return the value, or null if the loader found no value
+	 * @throws InterruptedException if the thread was interrupted while loading or waiting for the value
+	 */
+	public V get(K key, Loader<V> loader) throws InterruptedException {
+		V cached = lookUp(key);
+		if (cached != null) {
+			hits.incrementAndGet();
+			return cached;
+		}
+		misses.incrementAndGet();
+
+		FutureTask<V> task = new FutureTask<>(loader::load);
+		FutureTask<V> running = loading.putIfAbsent(key, task);
+		if (running != null) {
+			return await(running);
+		}
+
+		try {
+			loads.incrementAndGet();
+			task.run();
+			V value = await(task);
+			keep(key, task, value);
+			return value;
+		}
+		finally {
+			loading.remove(key, task);
+		}
+	}
+
+	/**
+	 * This method returns the values of several keys, loading all the missing ones with one call of the loader.
+	 * A key that another thread is already loading is not loaded again, its value is waited for.
+	 *
+	 * @param keys the keys
+	 * @param loader loads the missing values
+	 * @return the values found, by their keys, in the order of the keys
+	 * @throws InterruptedException if the thread was interrupted while loading
+	 */
+	public Map<K, V> getAll(Collection<K> keys, BulkLoader<K, V> loader) throws InterruptedException {
+		Map<K, V> values = new LinkedHashMap<>();
+		List<K> missing = new ArrayList<>();
+		for (K key : keys) {
+			V value = lookUp(key);
+			values.put(key, value);
+			if (value == null) {
+				missing.add(key);
+			}
+		}
+		hits.addAndGet(keys.size() - missing.size());
+		misses.addAndGet(missing.size());
+
+		if (!missing.isEmpty()) {
+			//Every missing key gets a load of its own, which takes its value from the one bulk load
+			List<K> loaded = new ArrayList<>();
+			FutureTask<Map<K, V>> bulk = new FutureTask<>(() -> loader.load(loaded));
+			Map<K, FutureTask<V>> tasks = new LinkedHashMap<>();
+			Map<K, FutureTask<V>> running = new LinkedHashMap<>();
+			for (K key : missing) {
+				FutureTask<V> task = new FutureTask<>(() -> await(bulk).get(key));
+				FutureTask<V> other = loading.putIfAbsent(key, task);
+				if (other == null) {
+					loaded.add(key);
+					tasks.put(key, task);
+				}
+				else {
+					running.put(key, other);
+				}
+			}
+
+			try {
+				if (!loaded.isEmpty()) {
+					loads.addAndGet(loaded.size());
+					bulk.run();
+				}
+				//All the loads are completed before any is awaited, since other threads may wait for them
+				for (FutureTask<V> task : tasks.values()) {
+					task.run();
+				}
+				for (Map.Entry<K, FutureTask<V>> task : tasks.entrySet()) {
+					V value = await(task.getValue());
+					keep(task.getKey(), task.getValue(), value);
+					values.put(task.getKey(), value);
+				}
+				for (Map.Entry<K, FutureTask<V>> task : running.entrySet()) {
+					values.put(task.getKey(), await(task.getValue()));
+				}
+			}
+			finally {
+				for (Map.Entry<K, FutureTask<V>> task : tasks.entrySet()) {
+					loading.remove(task.getKey(), task.getValue());
+				}
+			}
+		}
+		values.values().removeIf(value -> value == null);
+		return values;
+	}
+
+	/**
+	 * This method returns the value of a key if it is in the cache, without loading it.
+	 * It is meant for updating a cached value in place, so it is not counted as a hit or a miss.
+	 *
+	 * @param key the key
+	 * @return the value, or null if it is not in the cache or has expired
+	 */
+	public V getIfPresent(K key) {
+		Entry<V> entry = entries.get(key);
+		return entry != null && entry.expires > System.currentTimeMillis() ? entry.value : null;
+	}
+
+	/**
+	 * This method calls an action for every value in the cache.
+	 * It is meant for updating the cached values in place, so the action has to lock the value it updates.
+	 *
+	 * @param action the action
+	 */
+	public void forEachValue(Consumer<V> action) {
+		for (Entry<V> entry : entries.values()) {
+			action.accept(entry.value);
+		}
+	}
+
+	/**
+	 * This method removes the value of a key, so the next get loads it again.
+	 *
+	 * @param key the key
+	 */
+	public void invalidate(K key) {
+		//The load in progress is removed first, so it cannot keep its value after the value is removed
+		loading.remove(key);
+		entries.remove(key);
+	}
+
+	/**
+	 * This method removes the values of the keys matching a condition.
+	 * None of the loads in progress is kept, since their values are not known yet.
+	 *
+	 * @param condition checks a key and its value
+	 * @return the number of values removed
+	 */
+	public int invalidateIf(BiPredicate<K, V> condition) {
+		loading.clear();
+		int removed = 0;
+		for (Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<K, Entry<V>> entry = iterator.next();
+			if (condition.test(entry.getKey(), entry.getValue().value)) {
+				iterator.remove();
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * This method removes all the values.
+	 */
+	public void clear() {
+		loading.clear();
+		entries.clear();
+	}
+
+	/**
+	 * @return the number of values in the cache, including the expired ones not removed yet
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of gets answered from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of gets not answered from the cache
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of values loaded - lower than the misses when loads were shared
+	 */
+	public long getLoads() {
+		return loads.get();
+	}
+
+	/**
+	 * @return the number of values removed because the cache was full or they had expired
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "BoundedCache [name=" + name + ", size=" + size() + ", maxSize=" + maxSize + ", hits=" + hits
+				+ ", misses=" + misses + ", loads=" + loads + ", evictions=" + evictions + "]";
+	}
+
+	// returns a value that has not expired and marks it as used, or removes it if it has expired
+	private V lookUp(K key) {
+		Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expires > System.currentTimeMillis()) {
+			entry.lastUse = uses.incrementAndGet();
+			return entry.value;
+		}
+		if (entries.remove(key, entry)) {
+			evictions.incrementAndGet();
+		}
+		return null;
+	}
+
+	// keeps a loaded value, unless its key was invalidated and its load removed while it was loaded
+	private void keep(K key, FutureTask<V> task, V value) {
+		if (value == null) {
+			return;
+		}
+		loading.computeIfPresent(key, (k, running) -> {
+			if (running == task) {
+				entries.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMs, uses.incrementAndGet()));
+			}
+			return running;
+		});
+
+		//Above the maximal size, values are evicted until the size is kept, or no value is left to evict
+		while (entries.size() > maxSize) {
+			if (!evictLeastRecentlyUsed()) {
+				break;
+			}
+		}
+	}
+
+	// removes the least recently used value of the next sample of the values, returns false if there is none
+	private synchronized boolean evictLeastRecentlyUsed() {
+		Map.Entry<K, Entry<V>> eldest = null;
+		boolean restarted = false;
+		for (int sampled = 0; sampled < EVICTION_SAMPLE; sampled++) {
+
+			//At the end of the values the iteration starts again, once per sample
+			if (evictionCursor == null || !evictionCursor.hasNext()) {
+				if (restarted) {
+					break;
+				}
+				evictionCursor = entries.entrySet().iterator();
+				restarted = true;
+				if (!evictionCursor.hasNext()) {
+					break;
+				}
+			}
+			Map.Entry<K, Entry<V>> entry = evictionCursor.next();
+			if (eldest == null || entry.getValue().lastUse < eldest.getValue().lastUse) {
+				eldest = entry;
+			}
+		}
+		if (eldest == null) {
+			return false;
+		}
+		if (entries.remove(eldest.getKey(), eldest.getValue())) {
+			evictions.incrementAndGet();
+		}
+		return true;
+	}
+
+	// waits for a load, throwing the exception of the loader
+	private static <V> V await(FutureTask<V> task) throws InterruptedException {
+		try {
+			return task.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			throw new IllegalStateException("Cache load failed: " + cause.getMessage(), cause);
+		}
+	}
+
+	// A value, the time it expires and its last use
+	private static class Entry<V> {
+
+		final V value;
+
+		final long expires;
+
+		volatile long lastUse;
+
+		Entry(V value, long expires, long lastUse) {
+			this.value = value;
+			this.expires = expires;
+			this.lastUse = lastUse;
+		}
+	}
+
+}
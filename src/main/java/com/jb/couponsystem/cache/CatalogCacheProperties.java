@@ -0,0 +1,131 @@
+package com.jb.couponsystem.cache;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class holds the settings of the coupon catalog cache, of the purchased coupon index and of the purchase filter,
+ * bound from the coupon.cache.* entries of application.properties.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+@ConfigurationProperties(prefix = "coupon.cache")
+public class CatalogCacheProperties {
+
+	//Attributes
+	// maximal number of coupons kept by id
+	private int maxCoupons = 10000;
+
+	// maximal number of companies the coupons of which are kept
+	private int maxCompanies = 1000;
+
+	// maximal number of customers the purchased coupon ids of which are kept
+	private int maxCustomers = 10000;
+
+	// time a coupon, the coupons of a company or the purchased coupon ids of a customer are kept in milliseconds
+	private long ttlMs = 60000;
+
+	// number of purchases the purchase filter is sized for, before it grows on a rebuild
+	private long filterExpectedPurchases = 1000000;
+
+	// rate of false positives of the purchase filter at its expected number of purchases
+	private double filterFalsePositiveRate = 0.01;
+
+	//Getters and setters
+	/**
+	 * @return the maxCoupons
+	 */
+	public int getMaxCoupons() {
+		return maxCoupons;
+	}
+
+	/**
+	 * @param maxCoupons the maxCoupons to set
+	 */
+	public void setMaxCoupons(int maxCoupons) {
+		this.maxCoupons = maxCoupons;
+	}
+
+	/**
+	 * @return the maxCompanies
+	 */
+	public int getMaxCompanies() {
+		return maxCompanies;
+	}
+
+	/**
+	 * @param maxCompanies the maxCompanies to set
+	 */
+	public void setMaxCompanies(int maxCompanies) {
+		this.maxCompanies = maxCompanies;
+	}
+
+	/**
+	 * @return the maxCustomers
+	 */
+	public int getMaxCustomers() {
+		return maxCustomers;
+	}
+
+	/**
+	 * @param maxCustomers the maxCustomers to set
+	 */
+	public void setMaxCustomers(int maxCustomers) {
+		this.maxCustomers = maxCustomers;
+	}
+
+	/**
+	 * @return the ttlMs
+	 */
+	public long getTtlMs() {
+		return ttlMs;
+	}
+
+	/**
+	 * @param ttlMs the ttlMs to set
+	 */
+	public void setTtlMs(long ttlMs) {
+		this.ttlMs = ttlMs;
+	}
+
+	/**
+	 * @return the filterExpectedPurchases
+	 */
+	public long getFilterExpectedPurchases() {
+		return filterExpectedPurchases;
+	}
+
+	/**
+	 * @param filterExpectedPurchases the filterExpectedPurchases to set
+	 */
+	public void setFilterExpectedPurchases(long filterExpectedPurchases) {
+		this.filterExpectedPurchases = filterExpectedPurchases;
+	}
+
+	/**
+	 * @return the filterFalsePositiveRate
+	 */
+	public double getFilterFalsePositiveRate() {
+		return filterFalsePositiveRate;
+	}
+
+	/**
+	 * @param filterFalsePositiveRate the filterFalsePositiveRate to set
+	 */
+	public void setFilterFalsePositiveRate(double filterFalsePositiveRate) {
+		this.filterFalsePositiveRate = filterFalsePositiveRate;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CatalogCacheProperties [maxCoupons=" + maxCoupons + ", maxCompanies=" + maxCompanies
+				+ ", maxCustomers=" + maxCustomers + ", ttlMs=" + ttlMs + ", filterExpectedPurchases=" + filterExpectedPurchases
+				+ ", filterFalsePositiveRate=" + filterFalsePositiveRate + "]";
+	}
+
+}
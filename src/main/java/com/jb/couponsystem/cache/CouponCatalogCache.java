@@ -0,0 +1,233 @@
+package com.jb.couponsystem.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.jb.couponsystem.entities.Coupon;
+
+/**
+ * This class caches the coupon definitions read by the companies, in front of CouponRepo.
+ * It keeps two bounded caches: the coupons by their id, and the lists of coupons of the companies by the company id.
+ * <p>
+ * Every change of a coupon invalidates exactly the keys it affects: the coupon itself and the list of its company.
+ * A purchase knows only the coupon, so its company is taken from the cached coupon,
+ * or, if the coupon is not cached, the cached lists containing the coupon are invalidated.
+ * Nothing is remembered outside the two bounded caches.
+ * <p>
+ * The cached coupons are never given to the callers: every get returns copies,
+ * so a caller changing a coupon it received cannot change the cache.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+public class CouponCatalogCache {
+
+	//Attributes
+	private final BoundedCache<Long, OwnedCoupon> coupons;
+
+	private final BoundedCache<Long, List<Coupon>> companies;
+
+	//CTOR
+	@Autowired
+	public CouponCatalogCache(CatalogCacheProperties properties) {
+		this.coupons = new BoundedCache<>("coupons", properties.getMaxCoupons(), properties.getTtlMs());
+		this.companies = new BoundedCache<>("companies", properties.getMaxCompanies(), properties.getTtlMs());
+	}
+
+	//Getters
+	/**
+	 * @return the cache of the coupons by id, with its statistics
+	 */
+	public BoundedCache<Long, OwnedCoupon> getCoupons() {
+		return coupons;
+	}
+
+	/**
+	 * @return the cache of the coupons of the companies, with its statistics
+	 */
+	public BoundedCache<Long, List<Coupon>> getCompanies() {
+		return companies;
+	}
+
+	//Methods
+	/**
+	 * This method returns a coupon of a company, loading it if it is not cached.
+	 *
+	 * @param id id of the coupon
+	 * @param companyId id of the company
+	 * @param loader loads the coupon of the company, or returns null if the company has no such coupon
+	 * @return a copy of the coupon, or null if the company has no such coupon
+	 * @throws InterruptedException if the thread was interrupted while loading
+	 */
+	public Coupon getCoupon(long id, long companyId, BoundedCache.Loader<Coupon> loader) throws InterruptedException {
+		OwnedCoupon owned = coupons.get(id, () -> {
+			Coupon c = loader.load();
+			return c == null ? null : new OwnedCoupon(companyId, c);
+		});
+
+		//A coupon cached for another company is not found
+		if (owned == null || owned.companyId != companyId) {
+			return null;
+		}
+		return copy(owned.coupon);
+	}
+
+	/**
+	 * This method returns the coupons of the given ids, of any company, loading all the coupons
+	 * which are not cached with one call of the loader. It resolves the purchased coupons of a customer.
+	 * The loader has to return the coupons with their company, which is kept with the cached coupons for the invalidations.
+	 *
+	 * @param ids ids of the coupons
+	 * @param loader loads the missing coupons with their company
+	 * @return copies of the coupons found, in the order of the ids - an id of a removed coupon is skipped
+	 * @throws InterruptedException if the thread was interrupted while loading
+	 */
+	public List<Coupon> getCoupons(Collection<Long> ids, BoundedCache.BulkLoader<Long, Coupon> loader)
+			throws InterruptedException {
+		Map<Long, OwnedCoupon> found = coupons.getAll(ids, missing -> {
+			Map<Long, OwnedCoupon> loaded = new LinkedHashMap<>();
+			for (Map.Entry<Long, Coupon> entry : loader.load(missing).entrySet()) {
+				Coupon c = entry.getValue();
+				long companyId = c.getCompany() == null ? 0 : c.getCompany().getId();
+				loaded.put(entry.getKey(), new OwnedCoupon(companyId, c));
+			}
+			return loaded;
+		});
+
+		List<Coupon> result = new ArrayList<>(found.size());
+		for (OwnedCoupon owned : found.values()) {
+			result.add(copy(owned.coupon));
+		}
+		return result;
+	}
+
+	/**
+	 * This method returns all the coupons of a company, loading them if they are not cached.
+	 *
+	 * @param companyId id of the company
+	 * @param loader loads the coupons of the company
+	 * @return copies of the coupons
+	 * @throws InterruptedException if the thread was interrupted while loading
+	 */
+	public List<Coupon> getCompanyCoupons(long companyId, BoundedCache.Loader<List<Coupon>> loader)
+			throws InterruptedException {
+		List<Coupon> cached = companies.get(companyId, loader);
+		List<Coupon> result = new ArrayList<>(cached.size());
+		for (Coupon c : cached) {
+			result.add(copy(c));
+		}
+		return result;
+	}
+
+	/**
+	 * This method invalidates a coupon that was changed or purchased, and the list of its company.
+	 *
+	 * @param couponId id of the coupon
+	 */
+	public void invalidateCoupon(long couponId) {
+		OwnedCoupon owned = coupons.getIfPresent(couponId);
+		coupons.invalidate(couponId);
+		if (owned != null) {
+			companies.invalidate(owned.companyId);
+		} else {
+			//The coupon is not cached, so every cached list containing it is invalidated
+			companies.invalidateIf((companyId, list) -> contains(list, couponId));
+		}
+	}
+
+	/**
+	 * This method invalidates a coupon that was removed, and the list of its company.
+	 *
+	 * @param couponId id of the coupon
+	 * @param companyId id of the company
+	 */
+	public void removeCoupon(long couponId, long companyId) {
+		coupons.invalidate(couponId);
+		companies.invalidate(companyId);
+	}
+
+	/**
+	 * This method invalidates the list of coupons of a company, after a coupon was added to it.
+	 *
+	 * @param companyId id of the company
+	 */
+	public void invalidateCompany(long companyId) {
+		companies.invalidate(companyId);
+	}
+
+	/**
+	 * This method invalidates a company that was removed together with its coupons.
+	 *
+	 * @param companyId id of the company
+	 */
+	public void removeCompany(long companyId) {
+		companies.invalidate(companyId);
+		coupons.invalidateIf((id, owned) -> owned.companyId == companyId);
+	}
+
+	/**
+	 * This method empties the caches.
+	 */
+	public void clear() {
+		coupons.clear();
+		companies.clear();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CouponCatalogCache [coupons=" + coupons + ", companies=" + companies + "]";
+	}
+
+	// checks if a cached list of coupons contains a coupon
+	private static boolean contains(List<Coupon> list, long couponId) {
+		for (Coupon c : list) {
+			if (c.getId() == couponId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// copies the attributes of a coupon, sharing its company and its (not loaded) customers
+	private static Coupon copy(Coupon c) {
+		Coupon copy = new Coupon();
+		copy.setId(c.getId());
+		copy.setTitle(c.getTitle());
+		copy.setStartDate(c.getStartDate());
+		copy.setEndDate(c.getEndDate());
+		copy.setAmount(c.getAmount());
+		copy.setType(c.getType());
+		copy.setMessage(c.getMessage());
+		copy.setPrice(c.getPrice());
+		copy.setImage(c.getImage());
+		copy.setCompany(c.getCompany());
+		copy.setCustomers(c.getCustomers());
+		return copy;
+	}
+
+	/**
+	 * This class holds a cached coupon with the id of its company.
+	 */
+	public static class OwnedCoupon {
+
+		final long companyId;
+
+		final Coupon coupon;
+
+		OwnedCoupon(long companyId, Coupon coupon) {
+			this.companyId = companyId;
+			this.coupon = coupon;
+		}
+	}
+
+}
@@ -0,0 +1,549 @@
+package com.jb.couponsystem.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import com.jb.couponsystem.connection.ConnectionLease;
+import com.jb.couponsystem.connection.ConnectionPool;
+import com.jb.couponsystem.dao.CouponQuery;
+import com.jb.couponsystem.dao.KeysetPage;
+import com.jb.couponsystem.entities.Coupon;
+import com.jb.couponsystem.enums.CouponType;
+
+/**
+ * This class is an inverted index of the words of the coupon titles and messages, kept in memory,
+ * so the coupons are found by keywords and not only by their exact title.
+ * <p>
+ * Every word (letters and digits, in lower case) points to the ids of the coupons with the word in the title
+ * and to the ids of the coupons with the word in the message. A keyword matches a word exactly,
+ * as the beginning of a longer word, or with a spelling mistake - one for keywords of 4 letters or more,
+ * two for keywords of 8 letters or more. The words which may be close to a keyword are found by their trigrams
+ * (pieces of 3 letters), so only those are compared with it.
+ * <p>
+ * Every keyword has to match a coupon. The coupons are ranked by the sum of the best match of each keyword:
+ * a word of the title counts twice a word of the message, an exact word counts more than a beginning or a mistake,
+ * and a rare word counts more than a common one. The coupons of the keyword with the fewest coupons are read,
+ * and only those are checked against the other keywords and the filters (types, price range and company).
+ * <p>
+ * Rules between the index and the database:
+ * - The index is built from COUPONS when the system starts.
+ * - The DBDAO classes update it after every change they wrote: a created or updated coupon is put,
+ *   and a removed or expired coupon, or a removed company with its coupons, is removed.
+ * - A change written by another process is seen only after a rebuild.
+ * The searches share the read lock, and the changes take the write lock.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+@DependsOn("entityManagerFactory")
+@SuppressWarnings("try") // the connection leases are held, not referenced (see ConnectionLease)
+public class CouponTextIndex implements InitializingBean {
+
+	//Attributes
+	// most words a keyword is expanded to, by beginning and by spelling mistakes each
+	public static final int MAX_EXPANSIONS = 64;
+
+	// weights of the fields and of the matches
+	private static final double TITLE = 2;
+
+	private static final double MESSAGE = 1;
+
+	private static final double EXACT = 1;
+
+	private static final double PREFIX = 0.5;
+
+	private static final double FUZZY = 0.4;
+
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// word -> coupons, sorted so the words beginning with a keyword are next to each other
+	private final TreeMap<String, Postings> words = new TreeMap<>();
+
+	// trigram -> words containing it
+	private final Map<String, Set<String>> trigrams = new HashMap<>();
+
+	// coupon id -> its words and filter attributes, for the filters and the updates
+	private final Map<Long, Document> documents = new HashMap<>();
+
+	//Methods
+	/**
+	 * This method builds the index from the database when the bean is created.
+	 *
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() throws InterruptedException {
+		rebuild();
+	}
+
+	/**
+	 * This method builds the index again from all the coupons, read with one query.
+	 * The searches and changes made while the index is built wait for it.
+	 *
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	public void rebuild() throws InterruptedException {
+		long start = System.nanoTime();
+		lock.writeLock().lock();
+		try {
+			words.clear();
+			trigrams.clear();
+			documents.clear();
+
+			//Ask for connection from the connection pool - it is returned when the try block ends
+			try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+				jdbcTemplate.query("SELECT id, title, message, type, price, company_id FROM coupons",
+						rs -> {
+							add(new Document(rs.getLong(1), rs.getString(2), rs.getString(3),
+									CouponType.values()[rs.getInt(4)], rs.getDouble(5), rs.getLong(6)));
+						});
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+		System.out.println("Coupon text index built in " + (System.nanoTime() - start) / 1000000 + " ms: " + this);
+	}
+
+	/**
+	 * This method finds the coupons which match all the keywords, ranked by relevance - the most relevant first,
+	 * and by id between coupons of the same relevance.
+	 * The filters of the query that are used: types, price range and company; the size of the query limits the result.
+	 *
+	 * @param keywords the keywords, separated by spaces or punctuation; letter case does not matter
+	 * @param query the filters and the number of coupons
+	 * @return ids of the coupons, empty if no coupon matches or no keyword was given
+	 */
+	public List<Long> search(String keywords, CouponQuery query) {
+		List<Long> result = new ArrayList<>();
+		List<String> terms = terms(keywords);
+		if (terms.isEmpty()) {
+			return result;
+		}
+
+		lock.readLock().lock();
+		try {
+			//The words matched by every keyword
+			List<List<Match>> keywordMatches = new ArrayList<>();
+			for (String term : terms) {
+				List<Match> matches = expand(term);
+				if (matches.isEmpty()) {
+					return result;
+				}
+				keywordMatches.add(matches);
+			}
+			keywordMatches.sort(Comparator.comparingLong(CouponTextIndex::count));
+
+			//The coupons of the rarest keyword which pass the filters
+			Map<Long, Double> scores = new HashMap<>();
+			for (Match match : keywordMatches.get(0)) {
+				for (LongHashSet ids : new LongHashSet[] {match.postings.title, match.postings.message}) {
+					for (long id : ids.toArray()) {
+						if (!scores.containsKey(id) && matches(documents.get(id), query)) {
+							scores.put(id, score(keywordMatches.get(0), id));
+						}
+					}
+				}
+			}
+
+			//Only those are checked against the other keywords
+			for (List<Match> matches : keywordMatches.subList(1, keywordMatches.size())) {
+				Iterator<Map.Entry<Long, Double>> it = scores.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<Long, Double> entry = it.next();
+					double score = score(matches, entry.getKey());
+					if (score == 0) {
+						it.remove();
+					}
+					else {
+						entry.setValue(entry.getValue() + score);
+					}
+				}
+			}
+
+			List<Map.Entry<Long, Double>> ranked = new ArrayList<>(scores.entrySet());
+			ranked.sort(Map.Entry.<Long, Double>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+			int size = KeysetPage.size(query.getSize());
+			for (Map.Entry<Long, Double> entry : ranked.subList(0, Math.min(size, ranked.size()))) {
+				result.add(entry.getKey());
+			}
+			return result;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * This method puts a coupon which was created or updated in the database, replacing its former words.
+	 *
+	 * @param c the coupon as written to the database
+	 * @param companyId id of the company of the coupon
+	 */
+	public void put(Coupon c, long companyId) {
+		Document document = new Document(c.getId(), c.getTitle(), c.getMessage(), c.getType(), c.getPrice(), companyId);
+		lock.writeLock().lock();
+		try {
+			delete(c.getId());
+			add(document);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * This method removes a coupon which was removed from the database.
+	 *
+	 * @param couponId id of the coupon
+	 */
+	public void remove(long couponId) {
+		lock.writeLock().lock();
+		try {
+			delete(couponId);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * This method removes coupons which were removed from the database, or expired.
+	 *
+	 * @param couponIds ids of the coupons
+	 */
+	public void removeAll(Collection<Long> couponIds) {
+		lock.writeLock().lock();
+		try {
+			for (Long id : couponIds) {
+				delete(id);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * This method removes the coupons of a company which was removed from the database.
+	 *
+	 * @param companyId id of the company
+	 */
+	public void removeCompany(long companyId) {
+		lock.writeLock().lock();
+		try {
+			List<Long> ids = new ArrayList<>();
+			for (Document document : documents.values()) {
+				if (document.companyId == companyId) {
+					ids.add(document.id);
+				}
+			}
+			for (Long id : ids) {
+				delete(id);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of coupons kept
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return documents.size();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		lock.readLock().lock();
+		try {
+			return "CouponTextIndex [coupons=" + documents.size() + ", words=" + words.size()
+					+ ", trigrams=" + trigrams.size() + "]";
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// the words of a text: letters and digits in lower case, each once, in the order of the text
+	static List<String> terms(String text) {
+		Set<String> terms = new LinkedHashSet<>();
+		if (text != null) {
+			for (String term : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{Nd}]+")) {
+				if (!term.isEmpty()) {
+					terms.add(term);
+				}
+			}
+		}
+		return new ArrayList<>(terms);
+	}
+
+	// the trigrams of a word, with its beginning and end marked, each once
+	static Set<String> trigrams(String word) {
+		String marked = "$" + word + "$";
+		Set<String> grams = new HashSet<>();
+		for (int i = 0; i + 3 <= marked.length(); i++) {
+			grams.add(marked.substring(i, i + 3));
+		}
+		return grams;
+	}
+
+	// the edit distance of two words, or more than max once it is known to be more
+	static int distance(String a, String b, int max) {
+		int[] previous = new int[b.length() + 1];
+		int[] current = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); j++) {
+			previous[j] = j;
+		}
+		for (int i = 1; i <= a.length(); i++) {
+			current[0] = i;
+			int best = current[0];
+			for (int j = 1; j <= b.length(); j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+				best = Math.min(best, current[j]);
+			}
+			if (best > max) {
+				return max + 1;
+			}
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[b.length()];
+	}
+
+	// the words matched by a keyword: the word itself, the words it begins, and the words with spelling mistakes
+	private List<Match> expand(String term) {
+		List<Match> matches = new ArrayList<>();
+		double all = documents.size();
+		Postings exact = words.get(term);
+		if (exact != null) {
+			matches.add(new Match(exact, EXACT, all));
+		}
+		int prefixes = 0;
+		for (Postings postings : words.subMap(term, false, term + Character.MAX_VALUE, false).values()) {
+			if (prefixes++ == MAX_EXPANSIONS) {
+				break;
+			}
+			matches.add(new Match(postings, PREFIX, all));
+		}
+
+		int edits = term.length() >= 8 ? 2 : term.length() >= 4 ? 1 : 0;
+		if (edits > 0) {
+			//An edit changes at most 3 trigrams, so a close word shares the others
+			Set<String> grams = trigrams(term);
+			Map<String, Integer> shared = new HashMap<>();
+			for (String gram : grams) {
+				Set<String> candidates = trigrams.get(gram);
+				if (candidates != null) {
+					for (String candidate : candidates) {
+						shared.merge(candidate, 1, Integer::sum);
+					}
+				}
+			}
+			int needed = grams.size() - 3 * edits;
+			int fuzzy = 0;
+			for (Map.Entry<String, Integer> entry : shared.entrySet()) {
+				String word = entry.getKey();
+				if (entry.getValue() >= needed && !word.startsWith(term)
+						&& Math.abs(word.length() - term.length()) <= edits && distance(term, word, edits) <= edits) {
+					matches.add(new Match(words.get(word), FUZZY, all));
+					if (++fuzzy == MAX_EXPANSIONS) {
+						break;
+					}
+				}
+			}
+		}
+		return matches;
+	}
+
+	// the number of coupons of a keyword, counted more than once if it matches several of their words
+	private static long count(List<Match> matches) {
+		long count = 0;
+		for (Match match : matches) {
+			count += match.postings.count;
+		}
+		return count;
+	}
+
+	// the best match of a keyword in a coupon, 0 if it does not match
+	private static double score(List<Match> matches, long id) {
+		double best = 0;
+		for (Match match : matches) {
+			best = Math.max(best, match.score(id));
+		}
+		return best;
+	}
+
+	// the filters which are kept with the coupons
+	private static boolean matches(Document document, CouponQuery query) {
+		return (query.getTypes() == null || query.getTypes().isEmpty() || query.getTypes().contains(document.type))
+				&& (query.getMinPrice() == null || document.price >= query.getMinPrice())
+				&& (query.getMaxPrice() == null || document.price <= query.getMaxPrice())
+				&& (query.getCompanyId() == null || document.companyId == query.getCompanyId());
+	}
+
+	private void add(Document document) {
+		documents.put(document.id, document);
+		for (int i = 0; i < document.words.length; i++) {
+			String word = document.words[i];
+			Postings postings = words.get(word);
+			if (postings == null) {
+				postings = new Postings();
+				words.put(word, postings);
+				for (String gram : trigrams(word)) {
+					trigrams.computeIfAbsent(gram, g -> new HashSet<>()).add(word);
+				}
+			}
+			postings.add(document.id, (document.fields[i] & Document.IN_TITLE) != 0, (document.fields[i] & Document.IN_MESSAGE) != 0);
+		}
+	}
+
+	private void delete(long id) {
+		Document document = documents.remove(id);
+		if (document == null) {
+			return;
+		}
+		for (String word : document.words) {
+			Postings postings = words.get(word);
+			postings.remove(id);
+			if (postings.count == 0) {
+				words.remove(word);
+				for (String gram : trigrams(word)) {
+					Set<String> gramWords = trigrams.get(gram);
+					gramWords.remove(word);
+					if (gramWords.isEmpty()) {
+						trigrams.remove(gram);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The coupons of a word: those with the word in the title and those with the word in the message.
+	 */
+	private static final class Postings {
+
+		final LongHashSet title = new LongHashSet();
+
+		final LongHashSet message = new LongHashSet();
+
+		// number of coupons with the word
+		int count;
+
+		void add(long id, boolean inTitle, boolean inMessage) {
+			if (inTitle) {
+				title.add(id);
+			}
+			if (inMessage) {
+				message.add(id);
+			}
+			count++;
+		}
+
+		void remove(long id) {
+			boolean inTitle = title.remove(id);
+			boolean inMessage = message.remove(id);
+			if (inTitle || inMessage) {
+				count--;
+			}
+		}
+	}
+
+	/**
+	 * A word matched by a keyword, with the weight of the match and of the rarity of the word.
+	 */
+	private static final class Match {
+
+		final Postings postings;
+
+		final double weight;
+
+		Match(Postings postings, double weight, double all) {
+			this.postings = postings;
+			this.weight = weight * Math.log(1 + all / postings.count);
+		}
+
+		double score(long id) {
+			return weight * ((postings.title.contains(id) ? TITLE : 0) + (postings.message.contains(id) ? MESSAGE : 0));
+		}
+	}
+
+	/**
+	 * The words of a coupon and the attributes it is filtered by.
+	 */
+	private static final class Document {
+
+		// in the title, in the message - the bits of the fields
+		static final byte IN_TITLE = 1;
+
+		static final byte IN_MESSAGE = 2;
+
+		final long id;
+
+		final String[] words;
+
+		// the fields of every word
+		final byte[] fields;
+
+		final CouponType type;
+
+		final double price;
+
+		final long companyId;
+
+		Document(long id, String title, String message, CouponType type, double price, long companyId) {
+			this.id = id;
+			Map<String, Byte> found = new LinkedHashMap<>();
+			for (String word : terms(title)) {
+				found.put(word, IN_TITLE);
+			}
+			for (String word : terms(message)) {
+				found.merge(word, IN_MESSAGE, (a, b) -> (byte) (a | b));
+			}
+			this.words = found.keySet().toArray(new String[found.size()]);
+			this.fields = new byte[words.length];
+			for (int i = 0; i < words.length; i++) {
+				fields[i] = found.get(words[i]);
+			}
+			this.type = type;
+			this.price = price;
+			this.companyId = companyId;
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+package com.jb.couponsystem.cache;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * This class is a set of primitive long values, kept in one array with open addressing and linear probing.
+ * It stores ids without boxing them, so a set of ids takes about 8 to 16 bytes per id
+ * instead of the about 50 bytes of a HashSet of Long.
+ * <p>
+ * The class is not thread safe: the callers synchronize on the set.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class LongHashSet {
+
+	//Attributes
+	// marks an empty slot - the value 0 itself is kept by the hasZero flag
+	private static final long EMPTY = 0;
+
+	private long[] slots;
+
+	private int size;
+
+	private boolean hasZero;
+
+	//CTORS
+	/**
+	 * Constructor of an empty set
+	 */
+	public LongHashSet() {
+		this(8);
+	}
+
+	/**
+	 * Constructor of an empty set for the given number of values
+	 *
+	 * @param expectedSize number of values the set holds without growing
+	 */
+	public LongHashSet(int expectedSize) {
+		slots = new long[capacityFor(expectedSize)];
+	}
+
+	/**
+	 * Constructor of a set of the given values
+	 *
+	 * @param values the values
+	 */
+	public LongHashSet(Collection<Long> values) {
+		this(values.size());
+		for (Long value : values) {
+			add(value);
+		}
+	}
+
+	//Methods
+	/**
+	 * This method adds a value to the set.
+	 *
+	 * @param value the value
+	 * @return true if the value was added, false if it was already in the set
+	 */
+	public boolean add(long value) {
+		if (value == EMPTY) {
+			if (hasZero) {
+				return false;
+			}
+			hasZero = true;
+			size++;
+			return true;
+		}
+		int index = indexOf(value);
+		if (slots[index] == value) {
+			return false;
+		}
+		slots[index] = value;
+		size++;
+		//Grow when the array is more than half full, so the probes stay short
+		if ((size - (hasZero ? 1 : 0)) * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		return true;
+	}
+
+	/**
+	 * This method checks if a value is in the set.
+	 *
+	 * @param value the value
+	 * @return true if the value is in the set
+	 */
+	public boolean contains(long value) {
+		if (value == EMPTY) {
+			return hasZero;
+		}
+		return slots[indexOf(value)] == value;
+	}
+
+	/**
+	 * This method removes a value from the set.
+	 * The values after it in the same probe sequence are moved back, so no deleted marks are needed.
+	 *
+	 * @param value the value
+	 * @return true if the value was removed, false if it was not in the set
+	 */
+	public boolean remove(long value) {
+		if (value == EMPTY) {
+			if (!hasZero) {
+				return false;
+			}
+			hasZero = false;
+			size--;
+			return true;
+		}
+		int index = indexOf(value);
+		if (slots[index] != value) {
+			return false;
+		}
+		slots[index] = EMPTY;
+		size--;
+
+		//Move back the values that would not be found across the emptied slot
+		int mask = slots.length - 1;
+		int empty = index;
+		for (int i = (index + 1) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+			int home = hash(slots[i]) & mask;
+			if (((i - home) & mask) >= ((i - empty) & mask)) {
+				slots[empty] = slots[i];
+				slots[i] = EMPTY;
+				empty = i;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of values in the set
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the set has no values
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * This method copies the values of the set, in no particular order.
+	 *
+	 * @return a new array of the values
+	 */
+	public long[] toArray() {
+		long[] values = new long[size];
+		int i = 0;
+		if (hasZero) {
+			values[i++] = 0;
+		}
+		for (long slot : slots) {
+			if (slot != EMPTY) {
+				values[i++] = slot;
+			}
+		}
+		return values;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		long[] values = toArray();
+		Arrays.sort(values);
+		return Arrays.toString(values);
+	}
+
+	// returns the slot of the value, or the empty slot where it would be added
+	private int indexOf(long value) {
+		int mask = slots.length - 1;
+		int index = hash(value) & mask;
+		while (slots[index] != EMPTY && slots[index] != value) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	// moves the values to a new array of the given length
+	private void rehash(int capacity) {
+		long[] old = slots;
+		slots = new long[capacity];
+		for (long value : old) {
+			if (value != EMPTY) {
+				slots[indexOf(value)] = value;
+			}
+		}
+	}
+
+	// spreads the bits of ids which are close to each other
+	private static int hash(long value) {
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	// the smallest power of two with room for the values at half load
+	private static int capacityFor(int expectedSize) {
+		int capacity = 8;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+}
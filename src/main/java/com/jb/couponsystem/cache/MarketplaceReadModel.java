@@ -0,0 +1,501 @@
+package com.jb.couponsystem.cache;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import com.jb.couponsystem.connection.ConnectionLease;
+import com.jb.couponsystem.connection.ConnectionPool;
+import com.jb.couponsystem.dao.CouponQuery;
+import com.jb.couponsystem.dao.KeysetPage;
+import com.jb.couponsystem.entities.Company;
+import com.jb.couponsystem.entities.Coupon;
+import com.jb.couponsystem.enums.CouponType;
+
+/**
+ * This class keeps in memory the coupons which can be purchased - not expired and in stock - of all the companies,
+ * so the customers browse the marketplace without SQL.
+ * <p>
+ * Every coupon is kept as a listing: its attributes together with the id and name of its company, so nothing
+ * is joined when the coupons are browsed. The listings are partitioned by coupon type, and each partition
+ * keeps them in an array sorted by price (and id) with a parallel array of the prices,
+ * so a price range of a type is found by binary search and read in order. The arrays of a partition are replaced,
+ * never changed, so the coupons are browsed without locks.
+ * <p>
+ * Rules between the read model and the database:
+ * - The model is built from COUPONS and COMPANIES when the system starts.
+ * - The DBDAO classes update it after every change they wrote: a created or updated coupon is put,
+ *   a purchase decreases the amount of the listing (a sold out coupon is removed), and a removed or expired coupon,
+ *   or a removed company with its coupons, is removed.
+ * - A coupon which expired since it was put is not returned, until the removal of expired coupons removes it.
+ * - The purchases of a hot coupon (HotCouponStock class) decrease the amount when they are written to the database.
+ * - A change written by another process is seen only after a rebuild.
+ * - The coupons put or removed while the model is built wait for it. The purchases made meanwhile decrease
+ *   the current listings and are queued, and the queue is applied to the new listings when they replace them.
+ *   A purchase written just before the coupons are read, but reported after the queue was started,
+ *   is counted twice, so its listing may show fewer units until it is put again - the purchase itself
+ *   always checks the amount in the database.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+@DependsOn("entityManagerFactory")
+@SuppressWarnings("try") // the connection leases are held, not referenced (see ConnectionLease)
+public class MarketplaceReadModel implements InitializingBean {
+
+	//Attributes
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
+	private final Map<CouponType, Partition> partitions = new EnumMap<>(CouponType.class);
+
+	// coupon id -> listing, for the updates
+	private final ConcurrentHashMap<Long, Listing> listings = new ConcurrentHashMap<>();
+
+	// coupon id -> units purchased while the model is built, applied to the new listings
+	private volatile Map<Long, Integer> building;
+
+	//CTOR
+	public MarketplaceReadModel() {
+		for (CouponType type : CouponType.values()) {
+			partitions.put(type, new Partition());
+		}
+	}
+
+	//Methods
+	/**
+	 * This method builds the model from the database when the bean is created.
+	 *
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() throws InterruptedException {
+		rebuild();
+	}
+
+	/**
+	 * This method builds the model again from all the coupons which can be purchased, read with one query.
+	 * The coupons put or removed meanwhile wait for it, and the purchases made meanwhile are queued
+	 * and applied to the new listings, so none of them is lost by the replacement.
+	 *
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	public synchronized void rebuild() throws InterruptedException {
+		long start = System.nanoTime();
+		Map<CouponType, List<Listing>> byType = new EnumMap<>(CouponType.class);
+		for (CouponType type : CouponType.values()) {
+			byType.put(type, new ArrayList<>());
+		}
+
+		//The purchases are queued before the rows are read, so a purchase is in the rows or in the queue
+		Map<Long, Integer> changes = new HashMap<>();
+		building = changes;
+
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+			jdbcTemplate.query("SELECT c.id, c.title, c.start_date, c.end_date, c.amount, c.type, c.message, c.price, c.image,"
+					+ " c.company_id, co.company_name FROM coupons c JOIN companies co ON co.id = c.company_id"
+					+ " WHERE c.end_date >= ? AND c.amount > 0",
+					rs -> {
+						Listing listing = new Listing(rs.getLong(1), rs.getString(2), rs.getTimestamp(3), rs.getTimestamp(4),
+								rs.getInt(5), CouponType.values()[rs.getInt(6)], rs.getString(7), rs.getDouble(8), rs.getString(9),
+								rs.getLong(10), rs.getString(11));
+						byType.get(listing.type).add(listing);
+					},
+					new Timestamp(today()));
+		}
+		catch (RuntimeException | InterruptedException e) {
+			building = null;
+			throw e;
+		}
+
+		//The queue is applied and the listings are replaced under its lock, so a purchase is queued or applied to them
+		synchronized (changes) {
+			listings.clear();
+			for (Map.Entry<CouponType, List<Listing>> entry : byType.entrySet()) {
+				List<Listing> list = new ArrayList<>(entry.getValue().size());
+				for (Listing listing : entry.getValue()) {
+					Integer purchased = changes.get(listing.id);
+					if (purchased == null || listing.amount.addAndGet(-purchased) > 0) {
+						list.add(listing);
+					}
+				}
+				list.sort((a, b) -> compare(a, b.price, b.id));
+				partitions.get(entry.getKey()).snapshot = new Snapshot(list.toArray(new Listing[list.size()]));
+				for (Listing listing : list) {
+					listings.put(listing.id, listing);
+				}
+			}
+			building = null;
+		}
+		System.out.println("Marketplace read model built in "
+				+ (System.nanoTime() - start) / 1000000 + " ms: " + this);
+	}
+
+	/**
+	 * This method returns a page of the coupons which can be purchased, of all the companies,
+	 * in the order of price and id - ascending, or descending if the query is descending.
+	 * The filters of the query that are used: types, price range, end date range, beginning of the title and company.
+	 * The coupons are always in stock, so in stock only does not change the result, and the sort attribute is ignored.
+	 * The next page is found by setting after of the query to the last coupon of the page.
+	 *
+	 * @param query the filters and the page
+	 * @return copies of the coupons of the page, with a company holding its id and name
+	 */
+	public List<Coupon> browse(CouponQuery query) {
+		Set<CouponType> types = query.getTypes() == null || query.getTypes().isEmpty() ? partitions.keySet() : query.getTypes();
+		double minPrice = query.getMinPrice() == null ? Double.NEGATIVE_INFINITY : query.getMinPrice();
+		double maxPrice = query.getMaxPrice() == null ? Double.POSITIVE_INFINITY : query.getMaxPrice();
+		boolean descending = query.isDescending();
+		Coupon after = query.getAfter();
+		long today = today();
+		int size = KeysetPage.size(query.getSize());
+
+		//The range of every partition: its listings in the price range, after the last coupon of the previous page
+		List<Listing[]> arrays = new ArrayList<>();
+		List<int[]> ranges = new ArrayList<>();
+		for (CouponType type : types) {
+			Snapshot snapshot = partitions.get(type).snapshot;
+			int from = snapshot.lowerBound(minPrice);
+			int to = snapshot.upperBound(maxPrice);
+			if (after != null) {
+				int position = snapshot.position(after.getPrice(), after.getId());
+				if (descending) {
+					to = Math.min(to, position);
+				}
+				else {
+					from = Math.max(from, position < snapshot.listings.length && snapshot.listings[position].id == after.getId()
+							? position + 1 : position);
+				}
+			}
+			if (from < to) {
+				arrays.add(snapshot.listings);
+				ranges.add(descending ? new int[] {to - 1, from} : new int[] {from, to});
+			}
+		}
+
+		//Merge the ranges in the order of price and id, and keep the listings which pass the other filters
+		List<Coupon> page = new ArrayList<>(Math.min(size, 64));
+		while (page.size() < size) {
+			int next = -1;
+			for (int i = 0; i < arrays.size(); i++) {
+				int[] range = ranges.get(i);
+				if (descending ? range[0] < range[1] : range[0] >= range[1]) {
+					continue;
+				}
+				if (next < 0) {
+					next = i;
+					continue;
+				}
+				Listing candidate = arrays.get(i)[ranges.get(i)[0]];
+				Listing best = arrays.get(next)[ranges.get(next)[0]];
+				int order = compare(candidate, best.price, best.id);
+				if (descending ? order > 0 : order < 0) {
+					next = i;
+				}
+			}
+			if (next < 0) {
+				break;
+			}
+			int[] range = ranges.get(next);
+			Listing listing = arrays.get(next)[range[0]];
+			range[0] += descending ? -1 : 1;
+			if (matches(listing, query, today)) {
+				page.add(listing.toCoupon());
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * This method puts a coupon which was created or updated in the database, replacing its former listing.
+	 * A coupon which cannot be purchased - expired or out of stock - is removed instead.
+	 *
+	 * @param c the coupon as written to the database
+	 * @param company the company of the coupon, with its id and name
+	 */
+	public synchronized void put(Coupon c, Company company) {
+		remove(c.getId());
+		if (c.getEndDate() == null || c.getEndDate().getTime() < today() || c.getAmount() <= 0 || c.getType() == null) {
+			return;
+		}
+		Listing listing = new Listing(c.getId(), c.getTitle(), c.getStartDate(), c.getEndDate(), c.getAmount(), c.getType(),
+				c.getMessage(), c.getPrice(), c.getImage(), company.getId(), company.getCompanyName());
+		partitions.get(listing.type).insert(listing);
+		listings.put(listing.id, listing);
+	}
+
+	/**
+	 * This method decreases the amount of a coupon which was purchased in the database.
+	 * A coupon which was sold out is removed. While the model is built, the purchase is also queued for the new listings.
+	 *
+	 * @param couponId id of the coupon
+	 * @param count number of units purchased
+	 */
+	public void purchased(long couponId, int count) {
+		Listing listing;
+		Map<Long, Integer> changes = building;
+		if (changes == null) {
+			listing = listings.get(couponId);
+		}
+		else {
+			//Under the lock of the queue, the purchase is queued for the new listings or they are already in place
+			synchronized (changes) {
+				listing = listings.get(couponId);
+				if (building == changes) {
+					changes.merge(couponId, count, Integer::sum);
+				}
+			}
+		}
+		if (listing != null && listing.amount.addAndGet(-count) <= 0) {
+			synchronized (this) {
+				if (listings.get(couponId) == listing) {
+					remove(couponId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method removes a coupon which was removed from the database, or expired.
+	 *
+	 * @param couponId id of the coupon
+	 */
+	public synchronized void remove(long couponId) {
+		Listing listing = listings.remove(couponId);
+		if (listing != null) {
+			partitions.get(listing.type).delete(listing);
+		}
+	}
+
+	/**
+	 * This method removes coupons which were removed from the database, or expired.
+	 *
+	 * @param couponIds ids of the coupons
+	 */
+	public synchronized void removeAll(Collection<Long> couponIds) {
+		for (Long id : couponIds) {
+			remove(id);
+		}
+	}
+
+	/**
+	 * This method removes the coupons of a company which was removed from the database.
+	 *
+	 * @param companyId id of the company
+	 */
+	public synchronized void removeCompany(long companyId) {
+		List<Long> ids = new ArrayList<>();
+		for (Listing listing : listings.values()) {
+			if (listing.companyId == companyId) {
+				ids.add(listing.id);
+			}
+		}
+		removeAll(ids);
+	}
+
+	/**
+	 * @return the number of coupons kept
+	 */
+	public int size() {
+		return listings.size();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder types = new StringBuilder();
+		for (Map.Entry<CouponType, Partition> entry : partitions.entrySet()) {
+			types.append(types.length() == 0 ? "" : ", ").append(entry.getKey()).append('=')
+					.append(entry.getValue().snapshot.listings.length);
+		}
+		return "MarketplaceReadModel [coupons=" + listings.size() + ", types={" + types + "}]";
+	}
+
+	// the filters of the query which are not served by the arrays
+	private static boolean matches(Listing listing, CouponQuery query, long today) {
+		long endDate = listing.endDate.getTime();
+		return endDate >= today
+				&& listing.amount.get() > 0
+				&& (query.getMinEndDate() == null || endDate >= query.getMinEndDate().getTime())
+				&& (query.getMaxEndDate() == null || endDate <= query.getMaxEndDate().getTime())
+				&& (query.getTitlePrefix() == null || (listing.title != null && listing.title.startsWith(query.getTitlePrefix())))
+				&& (query.getCompanyId() == null || listing.companyId == query.getCompanyId());
+	}
+
+	// the order of the listings: by price, then by id
+	private static int compare(Listing listing, double price, long id) {
+		int order = Double.compare(listing.price, price);
+		return order != 0 ? order : Long.compare(listing.id, id);
+	}
+
+	// the present time - a coupon the end date of which is before it has expired, as in the purchase
+	private static long today() {
+		return System.currentTimeMillis();
+	}
+
+	// The coupons of one type, replaced as a whole by the changes
+	private static class Partition {
+
+		volatile Snapshot snapshot = new Snapshot(new Listing[0]);
+
+		// called while the model is locked
+		void insert(Listing listing) {
+			Listing[] old = snapshot.listings;
+			int position = snapshot.position(listing.price, listing.id);
+			Listing[] next = new Listing[old.length + 1];
+			System.arraycopy(old, 0, next, 0, position);
+			next[position] = listing;
+			System.arraycopy(old, position, next, position + 1, old.length - position);
+			snapshot = new Snapshot(next);
+		}
+
+		// called while the model is locked
+		void delete(Listing listing) {
+			Listing[] old = snapshot.listings;
+			int position = snapshot.position(listing.price, listing.id);
+			if (position >= old.length || old[position] != listing) {
+				return;
+			}
+			Listing[] next = new Listing[old.length - 1];
+			System.arraycopy(old, 0, next, 0, position);
+			System.arraycopy(old, position + 1, next, position, old.length - position - 1);
+			snapshot = new Snapshot(next);
+		}
+	}
+
+	// The listings of a partition sorted by price and id, with their prices
+	private static class Snapshot {
+
+		final Listing[] listings;
+
+		final double[] prices;
+
+		Snapshot(Listing[] listings) {
+			this.listings = listings;
+			this.prices = new double[listings.length];
+			for (int i = 0; i < listings.length; i++) {
+				prices[i] = listings[i].price;
+			}
+		}
+
+		// the first position the price of which is not below the given price
+		int lowerBound(double price) {
+			int low = 0;
+			int high = prices.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (prices[middle] < price) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		// the first position the price of which is above the given price
+		int upperBound(double price) {
+			int low = 0;
+			int high = prices.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (prices[middle] <= price) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		// the first position which is not before the given price and id
+		int position(double price, long id) {
+			int low = 0;
+			int high = listings.length;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (compare(listings[middle], price, id) < 0) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * This class holds a coupon which can be purchased, with the id and name of its company.
+	 * Only its amount changes, by the purchases.
+	 */
+	public static class Listing {
+
+		final long id;
+		final String title;
+		final Date startDate;
+		final Date endDate;
+		final AtomicInteger amount;
+		final CouponType type;
+		final String message;
+		final double price;
+		final String image;
+		final long companyId;
+		final String companyName;
+
+		Listing(long id, String title, Date startDate, Date endDate, int amount, CouponType type, String message,
+				double price, String image, long companyId, String companyName) {
+			this.id = id;
+			this.title = title;
+			this.startDate = startDate;
+			this.endDate = endDate;
+			this.amount = new AtomicInteger(amount);
+			this.type = type;
+			this.message = message;
+			this.price = price;
+			this.image = image;
+			this.companyId = companyId;
+			this.companyName = companyName;
+		}
+
+		// a new coupon with the attributes of the listing and a company holding its id and name
+		Coupon toCoupon() {
+			Company company = new Company();
+			company.setId(companyId);
+			company.setCompanyName(companyName);
+			Coupon c = new Coupon();
+			c.setId(id);
+			c.setTitle(title);
+			c.setStartDate(startDate);
+			c.setEndDate(endDate);
+			c.setAmount(amount.get());
+			c.setType(type);
+			c.setMessage(message);
+			c.setPrice(price);
+			c.setImage(image);
+			c.setCompany(company);
+			return c;
+		}
+	}
+
+}
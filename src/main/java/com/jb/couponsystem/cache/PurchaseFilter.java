@@ -0,0 +1,201 @@
+package com.jb.couponsystem.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import com.jb.couponsystem.connection.ConnectionLease;
+import com.jb.couponsystem.connection.ConnectionPool;
+
+/**
+ * This class is a Bloom filter of the purchases (pairs of coupon id and customer id) in customer_coupon.
+ * It answers "this customer has certainly not purchased this coupon" from memory, without SQL,
+ * so only a purchase the filter cannot rule out is checked against the database before it is made.
+ * <p>
+ * Rules between the filter and the database:
+ * - The filter is built from customer_coupon when the system starts, and rebuilt after the removal of expired coupons.
+ *   A rebuild sizes the filter for twice the purchases found, so it grows with the data.
+ * - Every purchase written by the system is added to the filter after its transaction.
+ *   Purchases added while the filter is rebuilt are added to the new filter too.
+ * - A purchase removed from the database stays in the filter until the next rebuild:
+ *   it only causes a check that finds nothing.
+ * - The filter never decides a purchase by itself: the database still refuses a purchase made twice,
+ *   so a purchase written by another process is only found later, by the database.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+@DependsOn("entityManagerFactory")
+@SuppressWarnings("try") // the connection leases are held, not referenced (see ConnectionLease)
+public class PurchaseFilter implements InitializingBean {
+
+	//Attributes
+	private final CatalogCacheProperties properties;
+
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
+	private volatile Bits bits;
+
+	// the filter being built by a rebuild, which also receives the new purchases
+	private volatile Bits building;
+
+	//CTOR
+	@Autowired
+	public PurchaseFilter(CatalogCacheProperties properties) {
+		this.properties = properties;
+		this.bits = new Bits(properties.getFilterExpectedPurchases(), properties.getFilterFalsePositiveRate());
+	}
+
+	//Methods
+	/**
+	 * This method builds the filter from the database when the bean is created.
+	 *
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() throws InterruptedException {
+		rebuild();
+	}
+
+	/**
+	 * This method checks if a customer may have purchased a coupon.
+	 *
+	 * @param couponId id of the coupon
+	 * @param customerId id of the customer
+	 * @return false if the customer has certainly not purchased the coupon, true if it may have
+	 */
+	public boolean mightContain(long couponId, long customerId) {
+		return bits.mightContain(couponId, customerId);
+	}
+
+	/**
+	 * This method adds a purchase written to the database.
+	 *
+	 * @param couponId id of the coupon
+	 * @param customerId id of the customer
+	 */
+	public void add(long couponId, long customerId) {
+		bits.add(couponId, customerId);
+		Bits next = building;
+		if (next != null) {
+			next.add(couponId, customerId);
+		}
+	}
+
+	/**
+	 * This method builds a new filter from all the rows of customer_coupon, read with one query,
+	 * and replaces the filter with it. The purchases added meanwhile are added to both filters,
+	 * so none of them is lost by the replacement.
+	 *
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	public synchronized void rebuild() throws InterruptedException {
+		long start = System.nanoTime();
+
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+			long count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM customer_coupon", Long.class);
+			Bits next = new Bits(Math.max(properties.getFilterExpectedPurchases(), count * 2),
+					properties.getFilterFalsePositiveRate());
+
+			//The new filter receives the purchases before the rows are read, so a purchase is in the rows or added
+			building = next;
+			try {
+				jdbcTemplate.query("SELECT coupon_id, customer_id FROM customer_coupon",
+						rs -> {
+							next.add(rs.getLong(1), rs.getLong(2));
+						});
+				bits = next;
+			}
+			finally {
+				building = null;
+			}
+		}
+		System.out.println("Purchase filter built in "
+				+ (System.nanoTime() - start) / 1000000 + " ms: " + this);
+	}
+
+	/**
+	 * @return the number of purchases added since the last rebuild, including the ones read by it
+	 */
+	public long getCount() {
+		return bits.count.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		Bits current = bits;
+		return "PurchaseFilter [purchases=" + current.count + ", expectedPurchases=" + current.expected
+				+ ", bits=" + current.size + ", hashes=" + current.hashes + "]";
+	}
+
+	// The bit array of a filter, set without locks
+	private static class Bits {
+
+		final AtomicLongArray words;
+		final long size;
+		final int hashes;
+		final long expected;
+		final AtomicLong count = new AtomicLong();
+
+		// sizes the array for the expected number of purchases and the wanted rate of false positives
+		Bits(long expected, double falsePositiveRate) {
+			this.expected = Math.max(1, expected);
+			long bits = (long) Math.ceil(-this.expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+			this.words = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64));
+			this.size = words.length() * 64L;
+			this.hashes = Math.max(1, (int) Math.round((double) size / this.expected * Math.log(2)));
+		}
+
+		void add(long couponId, long customerId) {
+			long hash = hash(couponId, customerId);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32) | 1;
+			for (int i = 0; i < hashes; i++) {
+				long bit = Math.floorMod(h1 + (long) i * h2, size);
+				int word = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				long old;
+				do {
+					old = words.get(word);
+				} while ((old & mask) == 0 && !words.compareAndSet(word, old, old | mask));
+			}
+			count.incrementAndGet();
+		}
+
+		boolean mightContain(long couponId, long customerId) {
+			long hash = hash(couponId, customerId);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32) | 1;
+			for (int i = 0; i < hashes; i++) {
+				long bit = Math.floorMod(h1 + (long) i * h2, size);
+				if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// mixes the two ids into 64 well spread bits, split into the two hashes of the double hashing
+		private static long hash(long couponId, long customerId) {
+			long h = couponId * 0x9E3779B97F4A7C15L + customerId;
+			h ^= h >>> 33;
+			h *= 0xFF51AFD7ED558CCDL;
+			h ^= h >>> 33;
+			h *= 0xC4CEB9FE1A85EC53L;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.jb.couponsystem.cache;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class keeps in memory the ids of the coupons purchased by the logged in customers,
+ * so the purchased coupons of a customer are resolved against the catalog cache instead of
+ * with a subquery over customer_coupon.
+ * <p>
+ * The ids of a customer are loaded on login, or by the first read after they were evicted,
+ * and kept in a primitive LongHashSet. They are updated in place:
+ * a purchase written to the database adds its id, and the removal of expired coupons removes theirs.
+ * An id of a coupon removed in another way may stay in the set until it expires:
+ * such an id is not found in the catalog, so it is skipped when the coupons are resolved.
+ * <p>
+ * The sets are bounded like the catalog cache: the least recently used customers are evicted,
+ * and a set is reloaded from the database after the time to live.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+public class PurchasedCouponIndex {
+
+	//Attributes
+	// customer id -> ids of the coupons purchased by the customer
+	private final BoundedCache<Long, LongHashSet> customers;
+
+	//CTOR
+	@Autowired
+	public PurchasedCouponIndex(CatalogCacheProperties properties) {
+		this.customers = new BoundedCache<>("purchased", properties.getMaxCustomers(), properties.getTtlMs());
+	}
+
+	//Getters
+	/**
+	 * @return the cache of the purchased coupon ids by customer, with its statistics
+	 */
+	public BoundedCache<Long, LongHashSet> getCustomers() {
+		return customers;
+	}
+
+	//Methods
+	/**
+	 * This method returns the ids of the coupons purchased by a customer, loading them if they are not kept.
+	 *
+	 * @param customerId id of the customer
+	 * @param loader loads the ids of the coupons purchased by the customer
+	 * @return a copy of the ids
+	 * @throws InterruptedException if the thread was interrupted while loading
+	 */
+	public long[] getCouponIds(long customerId, BoundedCache.Loader<List<Long>> loader) throws InterruptedException {
+		LongHashSet ids = customers.get(customerId, () -> new LongHashSet(loader.load()));
+		synchronized (ids) {
+			return ids.toArray();
+		}
+	}
+
+	/**
+	 * This method checks from memory if a customer has purchased a coupon, when the ids of the customer are kept.
+	 *
+	 * @param customerId id of the customer
+	 * @param couponId id of the coupon
+	 * @return true or false if the ids of the customer are kept, null if they are not and the database has to be asked
+	 */
+	public Boolean isPurchased(long customerId, long couponId) {
+		LongHashSet ids = customers.getIfPresent(customerId);
+		if (ids == null) {
+			return null;
+		}
+		synchronized (ids) {
+			return ids.contains(couponId);
+		}
+	}
+
+	/**
+	 * This method adds a purchase written to the database to the coupons of the customer.
+	 * If the ids of the customer are not kept, a load in progress is invalidated instead,
+	 * since it may have read the database before the purchase.
+	 *
+	 * @param customerId id of the customer
+	 * @param couponId id of the purchased coupon
+	 */
+	public void addPurchase(long customerId, long couponId) {
+		LongHashSet ids = customers.getIfPresent(customerId);
+		if (ids == null) {
+			customers.invalidate(customerId);
+			return;
+		}
+		synchronized (ids) {
+			ids.add(couponId);
+		}
+	}
+
+	/**
+	 * This method removes coupons which were removed from the database from the coupons of all the customers.
+	 *
+	 * @param couponIds ids of the removed coupons
+	 */
+	public void removeCoupons(Collection<Long> couponIds) {
+		if (couponIds.isEmpty()) {
+			return;
+		}
+		customers.forEachValue(ids -> {
+			synchronized (ids) {
+				for (Long couponId : couponIds) {
+					ids.remove(couponId);
+				}
+			}
+		});
+	}
+
+	/**
+	 * This method forgets the coupons of a customer that was removed.
+	 *
+	 * @param customerId id of the customer
+	 */
+	public void removeCustomer(long customerId) {
+		customers.invalidate(customerId);
+	}
+
+	/**
+	 * This method forgets the coupons of all the customers.
+	 */
+	public void clear() {
+		customers.clear();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PurchasedCouponIndex [customers=" + customers + "]";
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.jb.couponsystem.connection;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class represents a connection taken from the connection pool for the duration of a block.
+ * It is used in a try-with-resources statement, so that the connection is returned to the pool
+ * when the block ends, whether it ends normally or with an exception.
+ * Closing the lease more than once returns the connection only once.
+ * <p>
+ * The block usually does not reference the lease - it only holds a slot of the pool while the repositories run -
+ * so the classes using the lease suppress the "try" lint warning about an unreferenced resource.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class ConnectionLease implements AutoCloseable {
+
+	//Attributes
+	private final ConnectionPool pool;
+
+	private final DbConnection connection;
+
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	//CTOR
+	/**
+	 * Constructor
+	 *
+	 * @param pool the pool the connection was taken from
+	 * @param connection the connection given to the current thread
+	 */
+	ConnectionLease(ConnectionPool pool, DbConnection connection) {
+		this.pool = pool;
+		this.connection = connection;
+	}
+
+	//Getters
+	/**
+	 * Getter for the connection
+	 *
+	 * @return the connection given to the current thread
+	 */
+	public DbConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Getter for the closed flag
+	 *
+	 * @return true if the connection was returned to the pool
+	 */
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	//Methods
+	/**
+	 * This method returns the connection to the pool, unless it was already returned.
+	 */
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			pool.returnConnection(connection);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ConnectionLease [connection=" + connection + ", closed=" + closed + "]";
+	}
+
+}
@@ -1,13 +1,45 @@
 package com.jb.couponsystem.connection;
 
-import java.util.ArrayList;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import com.jb.couponsystem.enums.PoolOverflowPolicy;
+import com.jb.couponsystem.exceptions.ConnectionFailedException;
+import com.jb.couponsystem.exceptions.ConnectionPoolExhaustedException;
 
 /**
  * This class represents a pool of connections to the database that are given to the system users.
  * The number of connections is limited. Therefore, he class is of the Singleton pattern,
  * in order to prevent making simultaneous connections by several users beyond the limit
- * defined by the pool.  
- *  
+ * defined by the pool.
+ *
+ * The pool does not use a monitor lock. The idle connections are kept in a lock-free queue,
+ * and the right to take one of them is given by a fair semaphore holding one permit per connection,
+ * so that waiting threads receive the returned connections in the order of their arrival.
+ * Nothing is printed while a connection is being given or returned.
+ *
+ * The size of the pool, the number of connections created in advance, the acquire timeout
+ * and the behaviour when all the connections are in use are set by the configure method,
+ * which is called with the coupon.pool.* settings when the application starts.
+ *
+ * When the pool is configured with a data source, each connection wraps a physical JDBC connection,
+ * and the pool is the only pool of physical connections of the system: the data source used by Hibernate
+ * (PooledDataSource) gives the thread the physical connection of the DbConnection it holds.
+ * A connection that was idle for a while is validated before it is given, idle connections above
+ * the minimal number are closed after the idle timeout, and a connection held longer than
+ * the leak detection threshold is reported together with the stack trace of the thread that took it.
+ *
  * @author Alexander Zablotsky
  *
  */
@@ -18,27 +50,111 @@ public class ConnectionPool {
 	// maximum number of connections
 	private static final int NUMBER_OF_CONNECTIONS = 5;
 
-	//instance for the class - initially is null
-	private static ConnectionPool _instance = null;
+	// maximal time to wait for the database to answer the validation of a connection
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+	// a connection returned more recently than this is given without validation
+	private static final long VALIDATION_BYPASS_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+	// maximal period of the idle eviction and leak detection
+	private static final long HOUSEKEEPING_PERIOD_MILLIS = 30000;
+
+	//instance for the class - initially is null; volatile, so it is read without a lock
+	private static volatile ConnectionPool _instance = null;
+
+	// queue of idle connections
+	private final ConcurrentLinkedQueue<DbConnection> connections;
+
+	// one permit for each connection that is not in use, handed out in FIFO order
+	private final Semaphore permits;
+
+	// maximum number of connections, not counting extra connections
+	private final int maxSize;
+
+	// maximal time to wait for a connection in nanoseconds, 0 - wait forever
+	private final long acquireTimeoutNanos;
+
+	// behaviour when all the connections are in use
+	private final PoolOverflowPolicy overflowPolicy;
+
+	// source of the physical connections, null if the connections have no physical connection
+	private final DataSource dataSource;
+
+	// number of idle connections that are not closed by the idle eviction
+	private final int minIdle;
+
+	// idle time after which a connection above minIdle is closed in nanoseconds, 0 - never
+	private final long idleTimeoutNanos;
+
+	// time after which a held connection is reported as a possible leak in nanoseconds, 0 - never
+	private final long leakDetectionThresholdNanos;
 
-	// list of connections
-	private ArrayList<DbConnection> connections = null;
+	// connections given to users, tracked only for leak detection
+	private final Set<DbConnection> leased = ConcurrentHashMap.newKeySet();
 
-	// Private CTOR - creates the allowed number of connections and adds them to the list
+	// connection held by each thread, used by PooledDataSource
+	private final ThreadLocal<DbConnection> current = new ThreadLocal<>();
+
+	// runs the idle eviction and the leak detection, null if both are off
+	private final ScheduledExecutorService housekeeper;
+
+	// gauges
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final AtomicInteger idle = new AtomicInteger();
+	private final AtomicInteger overflow = new AtomicInteger();
+	private final AtomicLong leaks = new AtomicLong();
+	private final AtomicLong discards = new AtomicLong();
+
+	// discards already reported by the housekeeping, used only by its thread
+	private long reportedDiscards;
+
+	// Private CTOR - creates the allowed number of connections and adds them to the queue
 	private ConnectionPool() {
+		this(NUMBER_OF_CONNECTIONS);
+	}
 
-		// create new list of connections
-		this.connections = new ArrayList<>();
+	// Package-private CTOR - creates a blocking pool of the given size
+	ConnectionPool(int numberOfConnections) {
+		this(numberOfConnections, numberOfConnections, 0, PoolOverflowPolicy.BLOCK);
+	}
 
-		// add the allowed number of connections to the list
-		for (int i = 0; i < NUMBER_OF_CONNECTIONS; i++)
-		{
-			// create DB connection
-			DbConnection dbConnection = new DbConnection();
+	// Package-private CTOR - creates a pool with the given settings, without physical connections
+	ConnectionPool(int maxSize, int minIdle, long acquireTimeoutMillis, PoolOverflowPolicy overflowPolicy) {
+		this(maxSize, minIdle, acquireTimeoutMillis, overflowPolicy, 0, 0, null);
+	}
+
+	// Package-private CTOR - creates a pool with the given settings and source of physical connections
+	ConnectionPool(int maxSize, int minIdle, long acquireTimeoutMillis, PoolOverflowPolicy overflowPolicy,
+			long idleTimeoutMillis, long leakDetectionThresholdMillis, DataSource dataSource) {
 
-			// add DBConnection to the list
-			this.connections.add( dbConnection );
+		if (maxSize < 1 || minIdle < 0 || minIdle > maxSize || acquireTimeoutMillis < 0 || overflowPolicy == null
+				|| idleTimeoutMillis < 0 || leakDetectionThresholdMillis < 0) {
+			throw new IllegalArgumentException("Invalid connection pool settings: maxSize=" + maxSize
+					+ ", minIdle=" + minIdle + ", acquireTimeoutMs=" + acquireTimeoutMillis
+					+ ", overflow=" + overflowPolicy + ", idleTimeoutMs=" + idleTimeoutMillis
+					+ ", leakDetectionThresholdMs=" + leakDetectionThresholdMillis);
 		}
+
+		this.maxSize = maxSize;
+		this.minIdle = minIdle;
+		this.permits = new Semaphore(maxSize, true);
+		this.acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+		this.overflowPolicy = overflowPolicy;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		this.leakDetectionThresholdNanos = TimeUnit.MILLISECONDS.toNanos(leakDetectionThresholdMillis);
+		this.dataSource = dataSource;
+
+		// create new queue of connections
+		this.connections = new ConcurrentLinkedQueue<>();
+
+		// create the minimal number of idle connections, the rest are created on demand
+		for (int i = 0; i < minIdle; i++)
+		{
+			this.connections.add(open());
+		}
+		this.idle.set(minIdle);
+
+		this.housekeeper = startHousekeeper(idleTimeoutMillis, leakDetectionThresholdMillis);
 	}
 
 
@@ -47,64 +163,424 @@ public class ConnectionPool {
 	 * This method returns the instance of the class, so that only one instance can be created.
 	 * First it checks that there are no other instances, if this is true it creates the new instance.
 	 * If not - no new instance is created. Finally the created instance is returned.
-	 * 
-	 * 
+	 * An existing instance is returned without a lock, so the threads asking for connections do not wait for each other.
+	 *
+	 *
 	 * @return instance of the  ConnectionPull class
 	 */
-	public static synchronized ConnectionPool getInstance()
+	public static ConnectionPool getInstance()
 	{
-		if (_instance == null)
-		{
-			_instance = new ConnectionPool();
+		ConnectionPool instance = _instance;
+		if (instance != null) {
+			return instance;
+		}
+		synchronized (ConnectionPool.class) {
+			if (_instance == null)
+			{
+				_instance = new ConnectionPool();
+			}
+			return _instance;
+		}
+	}
+
+	/**
+	 * This method replaces the instance of the class by a pool with the given settings,
+	 * whose connections are opened by the given data source.
+	 * It is called once, when the application starts, before the pool is used.
+	 *
+	 * @param properties the settings of the pool
+	 * @param dataSource source of the physical connections
+	 * @return the new instance of the ConnectionPool class
+	 */
+	public static synchronized ConnectionPool configure(ConnectionPoolProperties properties, DataSource dataSource) {
+		ConnectionPool previous = _instance;
+		_instance = new ConnectionPool(properties.getMaxSize(), properties.getMinIdle(),
+				properties.getAcquireTimeoutMs(), properties.getOverflow(), properties.getIdleTimeoutMs(),
+				properties.getLeakDetectionThresholdMs(), dataSource);
+		if (previous != null) {
+			previous.close();
 		}
 		return _instance;
 	}
 
 
 	/**
-	 * This method gives the connection to the database from the list of allowed connections
-	 * to the current thread (user).
-	 * First it checks if the connections list is empty, in which case the thread is told to wait.
-	 * If the list is not empty - the first connection is discarded from the list and returned, i.e. given to the thread (user).
-	 *    
+	 * This method gives the connection to the database to the current thread (user).
+	 * If all the connections are in use, the overflow policy of the pool is applied:
+	 * BLOCK - the thread waits until one of them is returned, but not longer than the acquire timeout,
+	 * FAIL_FAST - the thread does not wait,
+	 * GROW - an extra connection is created for the thread.
+	 * Waiting threads are served in the order of their arrival.
+	 * Until the connection is returned, the physical connection used by Hibernate in this thread
+	 * is the physical connection of the given connection.
+	 *
 	 * @return connection connection object
+	 * @throws ConnectionPoolExhaustedException if no connection could be given according to the overflow policy
+	 * @throws ConnectionFailedException if a physical connection could not be opened
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public DbConnection getConnection() throws InterruptedException {
+		return lease(acquire(), true);
+	}
+
+	/**
+	 * This method gives the connection to the database to the current thread (user)
+	 * wrapped in a lease, which returns the connection to the pool when it is closed.
+	 * It is used in a try-with-resources statement, so that the connection is not lost
+	 * when the code using it throws an exception.
+	 * The connection is given as by the getConnection method.
+	 *
+	 * @return lease of the connection
+	 * @throws ConnectionPoolExhaustedException if no connection could be given according to the overflow policy
+	 * @throws ConnectionFailedException if a physical connection could not be opened
 	 * @throws InterruptedException if the thread is interrupted
 	 */
-	public synchronized DbConnection getConnection() throws InterruptedException {
-		while (this.connections.size() == 0) {
-			System.err.println("Thread " + Thread.currentThread().getName() + " is waiting now since there are no available connections.");
-			wait();
+	public ConnectionLease lease() throws InterruptedException {
+		return new ConnectionLease(this, getConnection());
+	}
+
+	/**
+	 * This method gives the connection to the database to the current thread (user),
+	 * waiting for an idle connection not longer than the given timeout.
+	 * Waiting threads are served in the order of their arrival.
+	 * The overflow policy of the pool is not applied.
+	 *
+	 * @param timeout maximal time to wait for a connection
+	 * @return connection object, or null if no connection became idle within the timeout
+	 * @throws ConnectionFailedException if a physical connection could not be opened
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public DbConnection tryAcquire(Duration timeout) throws InterruptedException {
+		if (!this.permits.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+			return null;
+		}
+		return lease(take(), true);
+	}
+
+	// Takes a connection according to the overflow policy
+	private DbConnection acquire() throws InterruptedException {
+
+		switch (this.overflowPolicy)
+		{
+		case FAIL_FAST:
+			if (this.permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+				return take();
+			}
+			throw new ConnectionPoolExhaustedException("All " + getMaxSize()
+					+ " connections are in use.");
+
+		case GROW:
+			if (this.permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+				return take();
+			}
+			DbConnection extra = open();
+			extra.setOverflow(true);
+			this.overflow.incrementAndGet();
+			this.inUse.incrementAndGet();
+			return extra;
+
+		default:
+			if (this.acquireTimeoutNanos == 0) {
+				this.permits.acquire();
+				return take();
+			}
+			if (this.permits.tryAcquire(this.acquireTimeoutNanos, TimeUnit.NANOSECONDS)) {
+				return take();
+			}
+			throw new ConnectionPoolExhaustedException("No connection was returned within "
+					+ TimeUnit.NANOSECONDS.toMillis(this.acquireTimeoutNanos) + " ms.");
+		}
+	}
+
+	// Takes an idle connection after a permit was acquired, or creates it if the pool has not reached its size yet.
+	// An idle connection that was not used recently is validated, and replaced if it is broken.
+	private DbConnection take() {
+		DbConnection connection;
+		while ((connection = this.connections.poll()) != null) {
+			this.idle.decrementAndGet();
+			if (System.nanoTime() - connection.getLastReturnedNanos() < VALIDATION_BYPASS_NANOS
+					|| connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+				break;
+			}
+			// counted here and reported by the housekeeping, so nothing is printed while the permit is held
+			this.discards.incrementAndGet();
+			connection.closeQuietly();
+		}
+
+		if (connection == null) {
+			try {
+				connection = open();
+			}
+			catch (ConnectionFailedException e) {
+				this.permits.release();
+				throw e;
+			}
+		}
+		this.inUse.incrementAndGet();
+		return connection;
+	}
+
+	// Creates a connection, with a new physical connection if the pool has a data source
+	private DbConnection open() {
+		if (this.dataSource == null) {
+			return new DbConnection();
+		}
+		try {
+			return new DbConnection(this.dataSource.getConnection());
+		}
+		catch (SQLException e) {
+			throw new ConnectionFailedException("Cannot open a connection to the database: " + e.getMessage());
+		}
+	}
+
+	// Takes a connection for PooledDataSource, without binding it to the thread
+	DbConnection getUnboundConnection() throws InterruptedException {
+		return lease(acquire(), false);
+	}
+
+	// Marks the connection as held by the current thread, and binds it to the thread if requested
+	private DbConnection lease(DbConnection connection, boolean bindToThread) {
+		if (bindToThread) {
+			connection.leased(this.current.get(), this.leakDetectionThresholdNanos > 0);
+			this.current.set(connection);
+		}
+		else {
+			connection.leased(null, this.leakDetectionThresholdNanos > 0);
+		}
+		if (this.leakDetectionThresholdNanos > 0) {
+			this.leased.add(connection);
 		}
-		
-		DbConnection connection = this.connections.get(0);
-		this.connections.remove(0);
-		System.out.println("Giving connection : " + connection + " to thread " + Thread.currentThread().getName());
-		
 		return connection;
+	}
 
+	/**
+	 * This method returns the connection held by the current thread.
+	 * If the thread holds several connections, the last one taken is returned.
+	 *
+	 * @return the connection held by the current thread, or null if it holds none
+	 */
+	DbConnection getCurrentConnection() {
+		DbConnection connection = this.current.get();
+		// skip connections returned by another thread
+		while (connection != null && connection.getHolder() != Thread.currentThread()) {
+			connection = connection.getPrevious();
+		}
+		if (connection == null) {
+			this.current.remove();
+		}
+		return connection;
 	}
 
 	/**
 	 * This method adds the connection that the thread finished to use to the pool of connections.
-	 * If there is a waiting thread - it is notified.
-	 * 
+	 * If there is a waiting thread - the connection is handed over to the longest waiting one.
+	 * An extra connection created by the GROW policy is discarded.
+	 *
 	 * @param connection connection object
 	 */
-	public synchronized void returnConnection(DbConnection connection)
+	public void returnConnection(DbConnection connection)
 	{
-		this.connections.add(connection);
-		System.out.println("Returning connection "  + connection +   ". Thread " + Thread.currentThread().getName() + " is calling notify.");
-		notify();
+		if (this.current.get() == connection) {
+			this.current.set(connection.getPrevious());
+		}
+		if (this.leakDetectionThresholdNanos > 0) {
+			this.leased.remove(connection);
+		}
+		connection.released();
+		this.inUse.decrementAndGet();
+
+		if (connection.isOverflow()) {
+			this.overflow.decrementAndGet();
+			connection.closeQuietly();
+			return;
+		}
+
+		// the connection must be in the queue before the permit is released,
+		// so that a thread which gets the permit always finds an idle connection
+		this.connections.offer(connection);
+		this.idle.incrementAndGet();
+		this.permits.release();
+	}
+
+	/**
+	 * This method returns the number of connections that can be given without waiting,
+	 * including connections that are not created yet.
+	 *
+	 * @return number of available connections
+	 */
+	public int getAvailableConnections() {
+		return this.permits.availablePermits();
+	}
+
+	/**
+	 * This method returns the number of connections that are given to users now,
+	 * including extra connections created by the GROW policy.
+	 *
+	 * @return number of connections in use
+	 */
+	public int getInUseCount() {
+		return this.inUse.get();
+	}
+
+	/**
+	 * This method returns the number of created connections that are waiting in the pool.
+	 *
+	 * @return number of idle connections
+	 */
+	public int getIdleCount() {
+		return this.idle.get();
 	}
-	
+
+	/**
+	 * This method returns the number of threads waiting for a connection.
+	 * The number is an estimate, since threads may start or stop waiting while it is counted.
+	 *
+	 * @return number of waiting threads
+	 */
+	public int getWaitingCount() {
+		return this.permits.getQueueLength();
+	}
+
+	/**
+	 * This method returns the number of extra connections created by the GROW policy that are in use now.
+	 *
+	 * @return number of extra connections
+	 */
+	public int getOverflowCount() {
+		return this.overflow.get();
+	}
+
+	/**
+	 * This method returns the number of connections reported as possible leaks since the pool was created,
+	 * that is, connections held longer than the leak detection threshold.
+	 *
+	 * @return number of reported leaks
+	 */
+	public long getLeakCount() {
+		return this.leaks.get();
+	}
+
+	/**
+	 * This method returns the number of idle connections which were found broken and discarded
+	 * since the pool was created.
+	 *
+	 * @return number of discarded connections
+	 */
+	public long getDiscardCount() {
+		return this.discards.get();
+	}
+
+	/**
+	 * This method returns the maximum number of connections of the pool, not counting extra connections.
+	 *
+	 * @return maximum number of connections
+	 */
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
 	/**
 	 * This method removes all connections from the pool
 	 * in order to close the system for the users.
-	 * 
+	 *
 	 */
-	public synchronized void closeAllConnections() {
-		this.connections.clear();
+	public void closeAllConnections() {
+		close();
 		System.out.println("All connections are closed.");
 	}
 
-}
\ No newline at end of file
+	// Stops the housekeeping and closes the idle connections
+	private void close() {
+		if (this.housekeeper != null) {
+			this.housekeeper.shutdownNow();
+		}
+		this.permits.drainPermits();
+		DbConnection connection;
+		while ((connection = this.connections.poll()) != null) {
+			this.idle.decrementAndGet();
+			connection.closeQuietly();
+		}
+	}
+
+	// Schedules the housekeeping if the pool has physical connections and eviction or leak detection is on
+	private ScheduledExecutorService startHousekeeper(long idleTimeoutMillis, long leakDetectionThresholdMillis) {
+		if (this.dataSource == null || (idleTimeoutMillis == 0 && leakDetectionThresholdMillis == 0)) {
+			return null;
+		}
+		long period = HOUSEKEEPING_PERIOD_MILLIS;
+		if (idleTimeoutMillis > 0) {
+			period = Math.min(period, idleTimeoutMillis / 2);
+		}
+		if (leakDetectionThresholdMillis > 0) {
+			period = Math.min(period, leakDetectionThresholdMillis / 2);
+		}
+		period = Math.max(period, 1);
+
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "connection-pool-housekeeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+		return executor;
+	}
+
+	/**
+	 * This method closes the connections that were idle longer than the idle timeout,
+	 * as long as more than the minimal number of connections are idle,
+	 * and reports the connections held longer than the leak detection threshold
+	 * and the broken connections discarded since the last run.
+	 * It is run periodically by the housekeeping thread of the pool.
+	 */
+	void housekeep() {
+		long now = System.nanoTime();
+
+		long discarded = this.discards.get();
+		if (discarded > this.reportedDiscards) {
+			System.err.println("Discarded " + (discarded - this.reportedDiscards) + " broken database connections.");
+			this.reportedDiscards = discarded;
+		}
+
+		if (this.idleTimeoutNanos > 0) {
+			for (DbConnection connection : this.connections) {
+				if (this.idle.get() <= this.minIdle) {
+					break;
+				}
+				// a connection taken by a user in the meantime is not removed
+				if (now - connection.getLastReturnedNanos() > this.idleTimeoutNanos
+						&& this.connections.remove(connection)) {
+					this.idle.decrementAndGet();
+					connection.closeQuietly();
+				}
+			}
+		}
+
+		if (this.leakDetectionThresholdNanos > 0) {
+			for (DbConnection connection : this.leased) {
+				Thread holder = connection.getHolder();
+				if (holder != null && !connection.isLeakReported()
+						&& now - connection.getLeasedAtNanos() > this.leakDetectionThresholdNanos) {
+					connection.setLeakReported(true);
+					this.leaks.incrementAndGet();
+					System.err.println("Possible connection leak: a connection is held by thread " + holder.getName()
+							+ " for " + TimeUnit.NANOSECONDS.toMillis(now - connection.getLeasedAtNanos()) + " ms.");
+					Throwable trace = connection.getLeaseTrace();
+					if (trace != null) {
+						trace.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ConnectionPool [inUse=" + getInUseCount() + ", idle=" + getIdleCount() + ", waiting="
+				+ getWaitingCount() + ", overflow=" + getOverflowCount() + ", leaks=" + getLeakCount()
+				+ ", discards=" + getDiscardCount() + ", policy=" + overflowPolicy + "]";
+	}
+
+}
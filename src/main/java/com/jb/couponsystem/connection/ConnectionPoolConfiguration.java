@@ -0,0 +1,49 @@
+package com.jb.couponsystem.connection;
+
+import javax.sql.DataSource;
+
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+/**
+ * This class configures the connection pool singleton with the coupon.pool.* settings
+ * from application.properties when the application context starts,
+ * and makes it the data source of the application.
+ *
+ * The physical connections are opened with the spring.datasource.* settings, and only by the pool,
+ * so the number of physical connections is the size of the pool.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Configuration
+public class ConnectionPoolConfiguration {
+
+	//Methods
+	/**
+	 * This method replaces the default connection pool by a pool built from the configured settings,
+	 * and returns the data source that gives out its connections.
+	 *
+	 * @param dataSourceProperties the spring.datasource.* settings
+	 * @param poolProperties the coupon.pool.* settings
+	 * @return the data source of the application
+	 */
+	@Bean
+	public DataSource dataSource(DataSourceProperties dataSourceProperties, ConnectionPoolProperties poolProperties) {
+
+		DriverManagerDataSource physical = new DriverManagerDataSource(dataSourceProperties.determineUrl(),
+				dataSourceProperties.determineUsername(), dataSourceProperties.determinePassword());
+		String driverClassName = dataSourceProperties.determineDriverClassName();
+		if (driverClassName != null) {
+			physical.setDriverClassName(driverClassName);
+		}
+
+		ConnectionPool.configure(poolProperties, physical);
+		System.out.println("Connection pool configured: " + poolProperties);
+
+		return new PooledDataSource();
+	}
+
+}
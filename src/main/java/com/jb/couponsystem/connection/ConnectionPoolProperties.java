@@ -0,0 +1,133 @@
+package com.jb.couponsystem.connection;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import com.jb.couponsystem.enums.PoolOverflowPolicy;
+
+/**
+ * This class holds the settings of the connection pool,
+ * bound from the coupon.pool.* entries of application.properties.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+@ConfigurationProperties(prefix = "coupon.pool")
+public class ConnectionPoolProperties {
+
+	//Attributes
+	// maximum number of connections
+	private int maxSize = 5;
+
+	// number of connections created in advance
+	private int minIdle = 5;
+
+	// maximal time to wait for a connection in milliseconds, 0 - wait forever
+	private long acquireTimeoutMs = 30000;
+
+	// behaviour when all the connections are in use
+	private PoolOverflowPolicy overflow = PoolOverflowPolicy.BLOCK;
+
+	// idle time after which a connection above minIdle is closed in milliseconds, 0 - never
+	private long idleTimeoutMs = 600000;
+
+	// time after which a held connection is reported as a possible leak in milliseconds, 0 - never
+	private long leakDetectionThresholdMs = 60000;
+
+	//Getters and setters
+	/**
+	 * @return the maxSize
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize the maxSize to set
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the minIdle
+	 */
+	public int getMinIdle() {
+		return minIdle;
+	}
+
+	/**
+	 * @param minIdle the minIdle to set
+	 */
+	public void setMinIdle(int minIdle) {
+		this.minIdle = minIdle;
+	}
+
+	/**
+	 * @return the acquireTimeoutMs
+	 */
+	public long getAcquireTimeoutMs() {
+		return acquireTimeoutMs;
+	}
+
+	/**
+	 * @param acquireTimeoutMs the acquireTimeoutMs to set
+	 */
+	public void setAcquireTimeoutMs(long acquireTimeoutMs) {
+		this.acquireTimeoutMs = acquireTimeoutMs;
+	}
+
+	/**
+	 * @return the overflow
+	 */
+	public PoolOverflowPolicy getOverflow() {
+		return overflow;
+	}
+
+	/**
+	 * @param overflow the overflow to set
+	 */
+	public void setOverflow(PoolOverflowPolicy overflow) {
+		this.overflow = overflow;
+	}
+
+	/**
+	 * @return the idleTimeoutMs
+	 */
+	public long getIdleTimeoutMs() {
+		return idleTimeoutMs;
+	}
+
+	/**
+	 * @param idleTimeoutMs the idleTimeoutMs to set
+	 */
+	public void setIdleTimeoutMs(long idleTimeoutMs) {
+		this.idleTimeoutMs = idleTimeoutMs;
+	}
+
+	/**
+	 * @return the leakDetectionThresholdMs
+	 */
+	public long getLeakDetectionThresholdMs() {
+		return leakDetectionThresholdMs;
+	}
+
+	/**
+	 * @param leakDetectionThresholdMs the leakDetectionThresholdMs to set
+	 */
+	public void setLeakDetectionThresholdMs(long leakDetectionThresholdMs) {
+		this.leakDetectionThresholdMs = leakDetectionThresholdMs;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ConnectionPoolProperties [maxSize=" + maxSize + ", minIdle=" + minIdle + ", acquireTimeoutMs="
+				+ acquireTimeoutMs + ", overflow=" + overflow + ", idleTimeoutMs=" + idleTimeoutMs
+				+ ", leakDetectionThresholdMs=" + leakDetectionThresholdMs + "]";
+	}
+
+}
@@ -1,99 +1,225 @@
 package com.jb.couponsystem.connection;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+
 /**
- * This class represents a connection to the database
- * 
- * 
+ * This class represents a connection to the database.
+ * It wraps the physical JDBC connection used by Hibernate while the connection is given to a user,
+ * and keeps the information the connection pool needs in order to validate, evict
+ * and trace the connection.
+ * A connection created without a physical connection only represents a permit of the pool.
+ *
  * @author Alexander Zablotsky
  *
  */
 public class DbConnection {
 
 	//Attributes
-	private int port;
-	private String url;
-	
+	// the physical connection, null if the pool has no data source
+	private final Connection connection;
+
+	// true for an extra connection created by the GROW overflow policy of the pool
+	private boolean overflow;
+
+	// time the connection was last returned to the pool, in nanoseconds
+	private volatile long lastReturnedNanos = System.nanoTime();
+
+	// thread holding the connection, null while the connection is in the pool
+	private volatile Thread holder;
+
+	// time the connection was given to the holder, in nanoseconds
+	private volatile long leasedAtNanos;
+
+	// stack trace of the holder at the moment it took the connection, recorded only for leak detection
+	private volatile Throwable leaseTrace;
+
+	// true once a leak of the current lease was reported
+	private volatile boolean leakReported;
+
+	// connection the holder thread had before taking this one (the pool binds connections to threads)
+	private DbConnection previous;
+
 	//CTOR
 	/**
 	 *  Constructor
-	 *  
-	 * @param port connection port
-	 * @param url connection url
+	 *
+	 * @param connection the physical connection to the database
 	 */
-	public DbConnection(int port, String url) {
+	public DbConnection(Connection connection) {
 		super();
-		this.port = port;
-		this.url = url;
+		this.connection = connection;
 	}
-	
-	
 
 	/**
-	 * Default/empty constructor
-	 * 
+	 * Default/empty constructor - creates a connection without a physical connection
+	 *
 	 */
 	public DbConnection() {
-		super();
+		this(null);
 	}
 
 
 
 	////Getters and setters
 	/**
-	 * Getter for the port
-	 * 
-	 * @return the port
+	 * Getter for the physical connection
+	 *
+	 * @return the physical connection, or null if the pool has no data source
+	 */
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Getter for the overflow flag
+	 *
+	 * @return true if this is an extra connection created by the GROW overflow policy
+	 */
+	boolean isOverflow() {
+		return overflow;
+	}
+
+	/**
+	 * Setter for the overflow flag
+	 *
+	 * @param overflow the overflow to set
+	 */
+	void setOverflow(boolean overflow) {
+		this.overflow = overflow;
+	}
+
+	/**
+	 * Getter for the holder
+	 *
+	 * @return the thread holding the connection, or null if the connection is in the pool
+	 */
+	Thread getHolder() {
+		return holder;
+	}
+
+	/**
+	 * Getter for the previous connection of the holder thread
+	 *
+	 * @return the previous
 	 */
-	public int getPort() {
-		return port;
+	DbConnection getPrevious() {
+		return previous;
 	}
 
 	/**
-	 *  Setter for the port
-	 * 
-	 * @param port the port to set
+	 * Getter for the time the connection was last returned to the pool
+	 *
+	 * @return the lastReturnedNanos
 	 */
-	public void setPort(int port) {
-		this.port = port;
+	long getLastReturnedNanos() {
+		return lastReturnedNanos;
 	}
 
 	/**
-	 * Getter for the url
-	 * 
-	 * @return the url
+	 * Getter for the time the connection was given to the holder
+	 *
+	 * @return the leasedAtNanos
 	 */
-	public String getUrl() {
-		return url;
+	long getLeasedAtNanos() {
+		return leasedAtNanos;
 	}
 
 	/**
-	 *  Setter for the url
-	 * 
-	 * @param url the url to set
+	 * Getter for the stack trace of the holder at the moment it took the connection
+	 *
+	 * @return the leaseTrace, or null if leak detection is off
 	 */
-	public void setUrl(String url) {
-		this.url = url;
+	Throwable getLeaseTrace() {
+		return leaseTrace;
 	}
 
-	
+	/**
+	 * Getter for the leak reported flag
+	 *
+	 * @return true if a leak of the current lease was reported
+	 */
+	boolean isLeakReported() {
+		return leakReported;
+	}
+
+	/**
+	 * Setter for the leak reported flag
+	 *
+	 * @param leakReported the leakReported to set
+	 */
+	void setLeakReported(boolean leakReported) {
+		this.leakReported = leakReported;
+	}
+
+
+	//Methods
+	/**
+	 * This method marks the connection as given to the current thread.
+	 *
+	 * @param previous connection the thread had before, or null
+	 * @param traceLease true in order to record the stack trace of the current thread
+	 */
+	void leased(DbConnection previous, boolean traceLease) {
+		this.previous = previous;
+		this.leasedAtNanos = System.nanoTime();
+		this.leaseTrace = traceLease ? new Throwable("Connection taken here") : null;
+		this.leakReported = false;
+		this.holder = Thread.currentThread();
+	}
+
+	/**
+	 * This method marks the connection as returned to the pool.
+	 */
+	void released() {
+		this.holder = null;
+		this.previous = null;
+		this.leaseTrace = null;
+		this.lastReturnedNanos = System.nanoTime();
+	}
+
+	/**
+	 * This method checks that the physical connection is still usable.
+	 * A connection without a physical connection is always valid.
+	 *
+	 * @param timeoutSeconds maximal time to wait for the database to answer
+	 * @return true if the connection can be used
+	 */
+	boolean isValid(int timeoutSeconds) {
+		if (connection == null) {
+			return true;
+		}
+		try {
+			return connection.isValid(timeoutSeconds);
+		}
+		catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * This method closes the physical connection, ignoring errors.
+	 */
+	void closeQuietly() {
+		if (connection == null) {
+			return;
+		}
+		try {
+			connection.close();
+		}
+		catch (SQLException e) {
+			System.err.println("Failed to close a database connection: " + e.getMessage());
+		}
+	}
+
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
 	@Override
 	public String toString() {
-		return "DbConnection [port=" + port + ", url=" + url + "]";
-	}
-	
-	
-	
-	
-	
-	
-	
-	
-	
-	
-	
-	
+		return "DbConnection [connection=" + connection + ", overflow=" + overflow + ", holder="
+				+ (holder == null ? null : holder.getName()) + "]";
+	}
 
 }
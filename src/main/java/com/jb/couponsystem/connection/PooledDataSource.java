@@ -0,0 +1,145 @@
+package com.jb.couponsystem.connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import com.jb.couponsystem.exceptions.ConnectionFailedException;
+import com.jb.couponsystem.exceptions.ConnectionPoolExhaustedException;
+
+/**
+ * This class is the data source used by Hibernate and the repositories.
+ * It gives out the physical connections of the connection pool, so that the connections
+ * taken from the pool by the DBDAO methods are the connections that actually run their queries.
+ *
+ * If the current thread holds a connection of the pool, its physical connection is given,
+ * and closing it does not return it to the pool - the DBDAO method returns it.
+ * Otherwise (for example, while Hibernate creates the schema) a connection is taken from the pool
+ * for the caller, and closing it returns it to the pool.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class PooledDataSource extends AbstractDataSource {
+
+	//Methods
+	/* (non-Javadoc)
+	 * @see javax.sql.DataSource#getConnection()
+	 */
+	@Override
+	public Connection getConnection() throws SQLException {
+		ConnectionPool pool = ConnectionPool.getInstance();
+
+		DbConnection held = pool.getCurrentConnection();
+		if (held != null) {
+			return wrap(pool, held, false);
+		}
+
+		DbConnection own;
+		try {
+			own = pool.getUnboundConnection();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLTransientConnectionException("Interrupted while waiting for a connection.", e);
+		}
+		catch (ConnectionPoolExhaustedException | ConnectionFailedException e) {
+			throw new SQLTransientConnectionException(e.getMessage(), e);
+		}
+		return wrap(pool, own, true);
+	}
+
+	/* (non-Javadoc)
+	 * @see javax.sql.DataSource#getConnection(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		throw new SQLFeatureNotSupportedException("The connections of the pool are opened with the configured user.");
+	}
+
+	/**
+	 * This method closes the connection pool when the application context is closed.
+	 */
+	public void close() {
+		ConnectionPool.getInstance().closeAllConnections();
+	}
+
+	// Returns a proxy of the physical connection whose close does not close the physical connection.
+	// If the connection was taken for the caller, closing the proxy returns it to the pool.
+	private static Connection wrap(ConnectionPool pool, DbConnection connection, boolean owned) throws SQLException {
+		Connection physical = connection.getConnection();
+		if (physical == null) {
+			if (owned) {
+				pool.returnConnection(connection);
+			}
+			throw new SQLException("The connection pool was not configured with a data source.");
+		}
+		return (Connection) Proxy.newProxyInstance(PooledDataSource.class.getClassLoader(),
+				new Class<?>[] {Connection.class}, new Handle(pool, connection, physical, owned));
+	}
+
+	/**
+	 * The invocation handler of the connections given by the data source.
+	 */
+	private static class Handle implements InvocationHandler {
+
+		private final ConnectionPool pool;
+		private final DbConnection connection;
+		private final Connection physical;
+		private final boolean owned;
+		private boolean closed;
+
+		Handle(ConnectionPool pool, DbConnection connection, Connection physical, boolean owned) {
+			this.pool = pool;
+			this.connection = connection;
+			this.physical = physical;
+			this.owned = owned;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName())
+			{
+			case "close":
+				if (!closed) {
+					closed = true;
+					if (owned) {
+						pool.returnConnection(connection);
+					}
+				}
+				return null;
+
+			case "isClosed":
+				return closed || physical.isClosed();
+
+			case "equals":
+				return proxy == args[0];
+
+			case "hashCode":
+				return System.identityHashCode(proxy);
+
+			case "toString":
+				return "PooledConnection [" + physical + ", closed=" + closed + "]";
+
+			default:
+				if (closed) {
+					throw new SQLException("The connection is closed.");
+				}
+				try {
+					return method.invoke(physical, args);
+				}
+				catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		}
+	}
+
+}
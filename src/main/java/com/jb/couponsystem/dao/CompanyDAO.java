@@ -1,10 +1,12 @@
 package com.jb.couponsystem.dao;
 
 import java.util.Collection;
+import java.util.stream.Stream;
 
 
 import com.jb.couponsystem.entities.Company;
 import com.jb.couponsystem.exceptions.IllegalUpdateException;
+import com.jb.couponsystem.exceptions.LoginRejectedException;
 import com.jb.couponsystem.exceptions.UserAlreadyExistsException;
 import com.jb.couponsystem.exceptions.UserNotFoundException;
 import com.jb.couponsystem.exceptions.WrongPasswordException;
@@ -23,10 +25,11 @@ public interface CompanyDAO {
 	/**
 	 * This method creates company, received as an object from the outside,
 	 * as a parameter in the database.
-	 * First it checks if a company with the same ID or with the same name
-	 * already exists in the database, in which case the company cannot be created,
+	 * First it checks if a company with the same ID already exists in the database, in which case the company cannot be created,
 	 * and UserAlreadyExistsException is thrown.
-	 * Otherwise - it calls CompanyRepo class to save the company in the database. 
+	 * Otherwise - it replaces the password of the company by its hash and calls CompanyRepo class to save the company in the database.
+	 * The name is unique in the database: if a company with the same name already exists, or is created at the same time,
+	 * the database refuses the company and UserAlreadyExistsException is thrown.
 	 * 
 	 * @param c company object 
 	 * @throws UserAlreadyExistsException if a company with the same ID 
@@ -58,7 +61,7 @@ public interface CompanyDAO {
 	 * Then it checks if the the received company has the same name as
 	 * the company in the database, if not - IllegalUpdateException is thrown
 	 * since the company name cannot be changed.
-	 * Otherwise - it calls CompanyRepo class to  save the received
+	 * Otherwise - it replaces a new password by its hash and calls CompanyRepo class to save the received
 	 * company in the database. 
 	 *  
 	 * @param c company object
@@ -91,24 +94,49 @@ public interface CompanyDAO {
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */
 	Collection<Company> getAllCompanies() throws UserNotFoundException, InterruptedException;
+
+	/**
+	 * This method returns a keyset page of the companies in the database: the companies the ID of which is greater than the given ID,
+	 * ordered by ID. The first page starts after KeysetPage.FIRST, and the next page after the ID returned by getNextAfterId of the page.
+	 * The page is read with its own connection, in its own read-only transaction, so its companies are detached,
+	 * and their coupons are not loaded. An empty page is returned after the last company.
+	 *
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of companies of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page of companies
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	KeysetPage<Company> getCompaniesPage(long afterId, int size) throws InterruptedException;
+
+	/**
+	 * This method returns a stream of all the companies in the database, ordered by ID.
+	 * The companies are read by pages of KeysetPage.MAX_SIZE, as in getCompaniesPage, while the stream is consumed,
+	 * so only one page is kept in memory and no connection is held between the pages.
+	 * If the thread is interrupted while a page is read, the stream ends with CancellationException.
+	 *
+	 * @return stream of companies
+	 */
+	Stream<Company> streamAllCompanies();
 	
 	/**
 	 * This method executes login for a company using name and password received from the outside.
-	 * It returns boolean value which is true for successful login and false otherwise.
-	 * First it checks if the company with the received name exists in the database, if not - UserNotFoundException is thrown.
-	 * Then it checks if the received password is the password of the company in the database, if not - WrongPasswordExceptionis thrown.
-	 * Otherwise - the method calls CompanyRepo class to find the company with the received name and sets it as the logged in company.
-	 * Then it returns boolean value true.
+	 * It returns the logged in company, which the caller keeps for the session:
+	 * the DBDAO does not hold the logged in company, so that it can serve many sessions at the same time.
+	 * It reads only the id, name and password hash of the company by its unique name with one indexed query of CompanyRepo class.
+	 * If nothing is found - UserNotFoundException is thrown. Then the password is checked against the hash by CredentialVerifier class,
+	 * after the connection was returned to the pool. If it does not fit - WrongPasswordException is thrown.
+	 * Otherwise it returns a lightweight company holding only its id and name - its other attributes and coupons are not loaded.
 	 * 
 	 * @param companyName name of the company
 	 * @param password password of the company
-	 * @return boolean value true if the company's name and password are correct, false otherwise
+	 * @return the logged in company
 	 * @throws UserNotFoundException if the company with the received name does not exist in the database
 	 * @throws WrongPasswordException if the received password is different from the company's password in the database
-	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 * @throws LoginRejectedException if too many logins are waiting for the verification of their password
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection or for the verification
 	 */
-	boolean login (String companyName, String password) 
-			throws UserNotFoundException, WrongPasswordException, InterruptedException;
+	Company login (String companyName, String password) 
+			throws UserNotFoundException, WrongPasswordException, LoginRejectedException, InterruptedException;
 
 
 
@@ -2,9 +2,15 @@ package com.jb.couponsystem.dao;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
+import com.jb.couponsystem.entities.Company;
 import com.jb.couponsystem.entities.Coupon;
+import com.jb.couponsystem.entities.Customer;
 import com.jb.couponsystem.enums.CouponType;
+import com.jb.couponsystem.enums.PurchaseOutcome;
 import com.jb.couponsystem.exceptions.CouponAlreadyExistsException;
 import com.jb.couponsystem.exceptions.CouponAlreadyPurchasedException;
 import com.jb.couponsystem.exceptions.CouponExpiredException;
@@ -28,10 +34,11 @@ public interface CouponDAO {
 	/**
 	 * This method creates coupon, received as an object from the outside,
 	 * as a parameter in the database.
-	 * First it checks if a coupon with the same ID or with the same name
-	 * already exists in the database, in which case the coupon cannot be created,
+	 * First it checks if a coupon with the same ID already exists in the database, in which case the coupon cannot be created,
 	 * and CouponAlreadyExistsException is thrown.
-	 * Otherwise - it calls CouponRepo class to save the coupon in the database. 
+	 * Otherwise - it calls CouponRepo class to save the coupon in the database.
+	 * The title is unique in the database: if a coupon with the same title already exists, or is created at the same time,
+	 * the database refuses the coupon and CouponAlreadyExistsException is thrown.
 	 * 
 	 * @param c coupon object 
 	 * @throws CouponAlreadyExistsException if a coupon with the same ID 
@@ -48,11 +55,12 @@ public interface CouponDAO {
 	 * Otherwise - it calls CouponRepo class to delete the coupon from the database. 
 	 *  
 	 * @param c coupon object
+	 * @param company the logged in company
 	 * @throws CouponNotFoundException if the coupon with the given ID and with the logged in company ID
 	 * does not exist in the database
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */	
-	void removeCoupon(Coupon c) throws CouponNotFoundException, InterruptedException;
+	void removeCoupon(Coupon c, Company company) throws CouponNotFoundException, InterruptedException;
 	
 	
 	/**
@@ -66,135 +74,325 @@ public interface CouponDAO {
 	 * Otherwise - it calls CouponRepo class to save the received coupon in the database. 
 	 *  
 	 * @param c coupon object
+	 * @param company the logged in company
 	 * @throws CouponNotFoundException if the coupon with the given title and logged in company ID does not exist in the database
 	 * @throws IllegalUpdateException if one of the attributes, excluding PRICE and END DATE, of the received coupon is different
 	 * from the corresponding attribute of the coupon in the database
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */	
-	void updateCoupon(Coupon c) throws  CouponNotFoundException, IllegalUpdateException, InterruptedException;
+	void updateCoupon(Coupon c, Company company) throws  CouponNotFoundException, IllegalUpdateException, InterruptedException;
 
 	
 	/**
 	 * This method returns coupon from the database belonging to the logged in company . The coupon is found by the logged in company ID
 	 * and coupon ID which are received from the outside.
-	 * First it checks if the coupon with the received ID and the logged in company ID exists in the database, 
-	 * if not - CouponNotFoundException is thrown. Otherwise - it calls CouponRepo class to find the coupon with the received ID
-	 * and the logged in company ID in the database and returns this coupon as an object.
+	 * The coupon is read from the catalog cache (CouponCatalogCache class). If it is not cached, it calls CouponRepo class
+	 * to find the coupon with the received ID and the logged in company ID in the database.
+	 * If the coupon does not exist - CouponNotFoundException is thrown. Otherwise - a copy of the coupon is returned.
 	 *  
 	 * @param id coupon ID
+	 * @param company the logged in company
 	 * @return coupon object
 	 * @throws CouponNotFoundException if the coupon with the received ID and the logged in company ID does not exist in the database
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */
-	Coupon getCoupon(long id) throws CouponNotFoundException, InterruptedException;
+	Coupon getCoupon(long id, Company company) throws CouponNotFoundException, InterruptedException;
 
 	/**
 	 * This method returns all the coupons from the database belonging to the logged in company .
-	 * It calls CouponRepo class to find all coupons of the logged in company by its ID and saves them as a collection of objects.
+	 * The coupons are read from the catalog cache (CouponCatalogCache class). If they are not cached,
+	 * it calls CouponRepo class to find all coupons of the logged in company by its ID.
 	 * Then it checks if this collection is empty, if yes - CouponNotFoundException is thrown.
 	 * Otherwise - the collection is returned.
 	 *   
+	 * @param company the logged in company
 	 * @return logged in company's coupons as a collection of objects
 	 * @throws CouponNotFoundException if there is no coupons belonging to the logged in company in the database 
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */
-	Collection <Coupon> getAllCoupons() throws CouponNotFoundException, InterruptedException;
+	Collection <Coupon> getAllCoupons(Company company) throws CouponNotFoundException, InterruptedException;
 
 	/**
 	 * This method returns all the coupons from the database belonging to the logged in company of the given coupon type. 
 	 * The coupon type is received as a parameter from the outside. 
-	 * The method calls CouponRepo class to find all coupons by the given type and the logged in company ID and saves them as a collection of objects.
+	 * The method filters all the coupons of the logged in company, read as in getAllCoupons, by the given type and saves them as a collection of objects.
 	 * Then it checks if this collection is empty, if yes - CouponNotFoundException is thrown.
 	 * Otherwise - the collection is returned.
 	 *   
 	 * @param type coupon type
+	 * @param company the logged in company
 	 * @return logged in company's coupons as a collection of objects
 	 * @throws CouponNotFoundException if there is no coupons belonging to the logged in company of the given type in the database 
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */
-	Collection <Coupon> getCouponsByType(CouponType type)throws CouponNotFoundException, InterruptedException;
+	Collection <Coupon> getCouponsByType(CouponType type, Company company)throws CouponNotFoundException, InterruptedException;
 	
 	/**
 	 * This method returns all the coupons from the database belonging to the logged in company the price of which is lower than the given price. 
 	 * The price is received as a parameter from the outside. 
-	 * The method calls CouponRepo class to find all coupons by the given price and the logged in company ID and saves them as a collection of objects.
+	 * The method filters all the coupons of the logged in company, read as in getAllCoupons, by the given price and saves them as a collection of objects.
 	 * Then it checks if this collection is empty, if yes - CouponNotFoundException is thrown.
 	 * Otherwise - the collection is returned.
 	 *   
 	 * @param price coupon's price
+	 * @param company the logged in company
 	 * @return logged in company's coupons under the given price as a collection of objects
 	 * @throws CouponNotFoundException if there is no coupons belonging to the logged in company the price of which is lower than the given price
 	 * in the database 
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */	
-	Collection<Coupon> getCouponsByPrice(double price) throws CouponNotFoundException, InterruptedException;
+	Collection<Coupon> getCouponsByPrice(double price, Company company) throws CouponNotFoundException, InterruptedException;
 
 	/**
 	 * This method returns all the coupons from the database belonging to the logged in company the end date of which is earlier than the given end date. 
 	 * The end date is received as a parameter from the outside. 
-	 * The method calls CouponRepo class to find all coupons by the given end date and the logged in company ID and saves them as a collection of objects.
+	 * The method filters all the coupons of the logged in company, read as in getAllCoupons, by the given end date and saves them as a collection of objects.
 	 * Then it checks if this collection is empty, if yes - CouponNotFoundException is thrown.
 	 * Otherwise - the collection is returned.
 	 *   
 	 * @param endDate coupon's end date
+	 * @param company the logged in company
 	 * @return logged in company's coupons the end date of which is later than the given end date as a collection of objects
 	 * @throws CouponNotFoundException if there is no coupons belonging to the logged in company with end date earlier than the given end date in the database 
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */	
-	Collection<Coupon> getCouponsByEndDate(Date endDate) throws CouponNotFoundException, InterruptedException;
+	Collection<Coupon> getCouponsByEndDate(Date endDate, Company company) throws CouponNotFoundException, InterruptedException;
 
 	
+	/**
+	 * This method returns a keyset page of the coupons of the logged in company: the coupons the ID of which is greater
+	 * than the given ID, ordered by ID. The first page starts after KeysetPage.FIRST, and the next page after
+	 * the ID returned by getNextAfterId of the page.
+	 * Unlike getAllCoupons, the page is read from the database and not from the catalog cache, so a company with
+	 * many coupons is read without keeping all its coupons in memory. The page is read with its own connection, in its own
+	 * read-only transaction, so its coupons are detached. An empty page is returned after the last coupon.
+	 *
+	 * @param company the logged in company
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of coupons of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page of coupons
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	KeysetPage<Coupon> getCouponsPage(Company company, long afterId, int size) throws InterruptedException;
+
+	/**
+	 * This method returns a keyset page of the coupons of the logged in company of the given coupon type,
+	 * read as in getCouponsPage.
+	 *
+	 * @param type coupon type
+	 * @param company the logged in company
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of coupons of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page of coupons
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	KeysetPage<Coupon> getCouponsByTypePage(CouponType type, Company company, long afterId, int size) throws InterruptedException;
+
+	/**
+	 * This method returns a keyset page of the coupons of the logged in company the price of which is lower than the given price,
+	 * read as in getCouponsPage.
+	 *
+	 * @param price coupon's price
+	 * @param company the logged in company
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of coupons of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page of coupons
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	KeysetPage<Coupon> getCouponsByPricePage(double price, Company company, long afterId, int size) throws InterruptedException;
+
+	/**
+	 * This method returns a keyset page of the coupons of the logged in company the end date of which is earlier than
+	 * the given end date, read as in getCouponsPage.
+	 *
+	 * @param endDate coupon's end date
+	 * @param company the logged in company
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of coupons of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page of coupons
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	KeysetPage<Coupon> getCouponsByEndDatePage(Date endDate, Company company, long afterId, int size) throws InterruptedException;
+
+	/**
+	 * This method returns a stream of all the coupons of the logged in company, ordered by ID.
+	 * The coupons are read by pages of KeysetPage.MAX_SIZE, as in getCouponsPage, while the stream is consumed,
+	 * so only one page is kept in memory and no connection is held between the pages.
+	 * If the thread is interrupted while a page is read, the stream ends with CancellationException.
+	 *
+	 * @param company the logged in company
+	 * @return stream of coupons
+	 */
+	Stream<Coupon> streamAllCoupons(Company company);
+
+	/**
+	 * This method returns a stream of all the coupons of the logged in company of the given coupon type,
+	 * read by pages as in streamAllCoupons.
+	 *
+	 * @param type coupon type
+	 * @param company the logged in company
+	 * @return stream of coupons
+	 */
+	Stream<Coupon> streamCouponsByType(CouponType type, Company company);
+
+	/**
+	 * This method returns a stream of all the coupons of the logged in company the price of which is lower than the given price,
+	 * read by pages as in streamAllCoupons.
+	 *
+	 * @param price coupon's price
+	 * @param company the logged in company
+	 * @return stream of coupons
+	 */
+	Stream<Coupon> streamCouponsByPrice(double price, Company company);
+
+	/**
+	 * This method returns a stream of all the coupons of the logged in company the end date of which is earlier than
+	 * the given end date, read by pages as in streamAllCoupons.
+	 *
+	 * @param endDate coupon's end date
+	 * @param company the logged in company
+	 * @return stream of coupons
+	 */
+	Stream<Coupon> streamCouponsByEndDate(Date endDate, Company company);
+
+
+	/**
+	 * This method searches the coupons with a combination of filters: types, price range, end date range, beginning of the title,
+	 * in stock only, and the scope of a company and/or a customer (CouponQuery class).
+	 * The search is compiled into one query, with the conditions of the filters that are set, the order of the sort attribute
+	 * and the keyset of the page, so only the coupons of the page are read from the database.
+	 * The coupons are read with their own connection, in a read-only transaction, so they are detached.
+	 * An empty list is returned if no coupon fits, or after the last page.
+	 *
+	 * @param query the coupon search
+	 * @return the coupons of the page, in the order of the sort attribute and the ID
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 * @throws IllegalArgumentException if the search is sorted by title or end date
+	 * and the last coupon of the previous page has none
+	 */
+	List<Coupon> searchCoupons(CouponQuery query) throws InterruptedException;
+
+
+	/**
+	 * This method browses the coupons of all the companies which can be purchased - not expired and in stock -
+	 * with the filters of the query (types, price range, end date range, beginning of the title, company),
+	 * in the order of price, ascending or descending, by keyset pages.
+	 * The coupons are read from the marketplace read model (MarketplaceReadModel class) kept in memory, without SQL.
+	 *
+	 * @param query the filters and the page
+	 * @return the coupons of the page, each with a company holding its id and name
+	 */
+	List<Coupon> browseCoupons(CouponQuery query);
+
+
+	/**
+	 * This method searches the coupons by keywords of their title and message, with the filters of the query
+	 * (types, price range, company). Every keyword has to match a word of the coupon exactly, as its beginning,
+	 * or with a spelling mistake, and the coupons are ranked by relevance (CouponTextIndex class).
+	 * The ids are found in memory, and only the coupons found are read from the database, with one query.
+	 *
+	 * @param keywords the keywords; letter case does not matter
+	 * @param query the filters, and the size of the query as the most coupons returned
+	 * @return the coupons, the most relevant first
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	List<Coupon> searchCouponsByKeywords(String keywords, CouponQuery query) throws InterruptedException;
+
+
 	/**
 	 * This method allows the logged in customer to purchase coupon given as an object from the outside.
-	 * First it checks if the given coupon exists in the database, if not - CouponNotFoundException is thrown. 
-	 * Then it checks whether the given coupon was already purchased by the logged in customer,
-	 * in which case CouponAlreadyPurchasedException is thrown.
-	 * Then it checks whether the amount of the coupon is zero, in which case CouponOutOfStockException is thrown.
-	 * Then it checks whether the end date of the coupon is before the present date, in which case CouponExpiredException is thrown.
-	 * Otherwise, it adds the logged in customer to the list of customers  that purchased the coupon,
-	 * Then it updated the amount of coupon in the stock by decreasing it by one,
-	 * Finally it saves the coupon details in the database.	 
-	 * 
+	 * In one transaction it decreases the amount of the coupon in the database by one, 
+	 * if the coupon exists, is in stock and has not expired, and adds the coupon to the customer's coupons,
+	 * if the customer has not purchased it before. The stock is checked by the update statement itself,
+	 * so concurrent purchases never sell more coupons than the amount in stock.
+	 * The coupon is invalidated in the catalog cache, since its amount was changed,
+	 * and added to the customer's coupons in the purchased coupon index and to the purchase filter.
+	 * Only a purchase the purchase filter (PurchaseFilter class) cannot rule out is checked for being purchased before,
+	 * so a coupon purchased again is refused without a transaction.
+	 * If the coupon cannot be purchased, the transaction is rolled back and the reason is checked in this order:
+	 * if the coupon does not exist - CouponNotFoundException is thrown,
+	 * if it was already purchased by the logged in customer - CouponAlreadyPurchasedException is thrown,
+	 * if its end date is before the present date - CouponExpiredException is thrown,
+	 * otherwise it is out of stock and CouponOutOfStockException is thrown.
+	 * A coupon activated as hot is sold from memory, with the same checks, and written to the database later.
+	 *
 	 * @param c coupon object
+	 * @param customer the logged in customer
 	 * @throws CouponNotFoundException if the coupon does not exist in the database
 	 * @throws CouponAlreadyPurchasedException if the coupon was already purchased by the logged in customer
 	 * @throws CouponOutOfStockException if the coupon amount is zero
 	 * @throws CouponExpiredException if the coupon end date is before the present date
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */
-	void purchaseCoupon(Coupon c) throws CouponNotFoundException, CouponAlreadyPurchasedException,
+	void purchaseCoupon(Coupon c, Customer customer) throws CouponNotFoundException, CouponAlreadyPurchasedException,
 			CouponOutOfStockException, CouponExpiredException, InterruptedException;
-	
+
+
+	/**
+	 * This method allows the logged in customer to purchase several coupons at once (a cart checkout).
+	 * In one transaction, the coupons are locked in the order of their ids and checked with one query
+	 * for their existence, amount and end date, and one query for the coupons the customer already owns,
+	 * which is skipped if the purchase filter rules out all of them. Then the amounts are decreased with one
+	 * statement and the coupons are added to the customer's coupons with a JDBC batch, so concurrent purchases
+	 * never oversell. A transaction rolled back by a deadlock or a concurrent purchase is tried again.
+	 * Instead of throwing on the first coupon that cannot be purchased,
+	 * the outcome of every coupon is returned. A coupon given twice is purchased once.
+	 *
+	 * @param coupons coupon objects
+	 * @param customer the logged in customer
+	 * @return the outcome of each coupon, in the order of the coupons
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	Map<Coupon, PurchaseOutcome> purchaseCoupons(Collection<Coupon> coupons, Customer customer) throws InterruptedException;
+
 	
+	/**
+	 * This method returns all the coupons purchased by the logged in customer.
+	 * The ids of the customer's coupons are read from the purchased coupon index (PurchasedCouponIndex class),
+	 * which loads them with one query if they are not kept, and the coupons are read from the catalog cache,
+	 * which loads the coupons that are not cached with one query.
+	 * If the customer has no coupons - CouponNotFoundException is thrown.
+	 * Otherwise - the collection is returned.
+	 *
+	 * @param customer the logged in customer
+	 * @return collection of coupon objects
+	 * @throws CouponNotFoundException if the customer does not have any coupons
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	Collection<Coupon> getAllPurchasedCoupons(Customer customer) throws CouponNotFoundException, InterruptedException;
+
+
 	/**
 	 * This method returns from the database all the coupons of the given type purchased by the logged in customer. 
 	 * The coupon type is received as a parameter from the outside. 
-	 * The method calls CouponRepo class to find all coupons of the given type and
-	 * customer ID and saves them as a collection of objects.
+	 * The method filters all the coupons of the logged in customer, read as in getAllPurchasedCoupons, by the given type
+	 * and saves them as a collection of objects.
 	 * Then it checks if this collection is empty, if yes - CouponNotFoundException is thrown.
 	 * Otherwise - the collection is returned.
 	 * 
 	 * @param type coupon type
+	 * @param customer the logged in customer
 	 * @return collection of coupon objects
 	 * @throws CouponNotFoundException if the customer's coupons of the given type do not exist in the database
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */
-	Collection<Coupon> getAllPurchasedCouponsByType(CouponType type) throws CouponNotFoundException, InterruptedException;
+	Collection<Coupon> getAllPurchasedCouponsByType(CouponType type, Customer customer) throws CouponNotFoundException, InterruptedException;
 
 	
 	/**
 	 * This method returns from the database all the coupons purchased by the logged in customer
 	 * the price of which is lower than the given price. This price is received as a parameter from the outside. 
-	 * The method calls CouponRepo class to find all coupons under the given price with the given customer ID
+	 * The method filters all the coupons of the logged in customer, read as in getAllPurchasedCoupons, by the given price
 	 * and saves them as a collection of objects.
 	 * Then it checks if this collection is empty, if yes - CouponNotFoundException is thrown.
 	 * Otherwise - the collection is returned.
 	 * 
 	 * @param price coupon price
+	 * @param customer the logged in customer
 	 * @return collection of coupon objects
 	 * @throws CouponNotFoundException if the customer's coupons under the given price do not exist in the database
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */
-	Collection<Coupon> getAllPurchasedCouponsByPrice(double price) throws CouponNotFoundException, InterruptedException;
+	Collection<Coupon> getAllPurchasedCouponsByPrice(double price, Customer customer) throws CouponNotFoundException, InterruptedException;
 
 }
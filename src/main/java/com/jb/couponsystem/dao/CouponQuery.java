@@ -0,0 +1,282 @@
+package com.jb.couponsystem.dao;
+
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+import com.jb.couponsystem.entities.Coupon;
+import com.jb.couponsystem.enums.CouponSort;
+import com.jb.couponsystem.enums.CouponType;
+
+/**
+ * This class describes a coupon search: the filters the coupons have to pass, their order and the page to return.
+ * All the filters that are set are combined, and a filter that is not set (null) does not filter.
+ * The search is run as one SQL query by CouponDAO.searchCoupons.
+ * <p>
+ * The scope of the search is the coupons of a company, the coupons purchased by a customer, or both.
+ * The facades set the scope to the logged in client, so a client never searches the coupons of another.
+ * <p>
+ * The coupons are returned by pages of at most size coupons, in the order of the sort attribute and then the ID.
+ * The next page is found by setting after to the last coupon of the previous page (keyset paging),
+ * so the pages do not skip or repeat coupons added or removed meanwhile.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class CouponQuery {
+
+	//Attributes
+	// coupon types, null or empty - any type
+	private Set<CouponType> types;
+
+	private Double minPrice;
+
+	private Double maxPrice;
+
+	private Date minEndDate;
+
+	private Date maxEndDate;
+
+	// beginning of the title, matched as written (with the same letter case)
+	private String titlePrefix;
+
+	// true - only coupons with amount above zero
+	private boolean inStockOnly;
+
+	// scope: id of the company which issued the coupons
+	private Long companyId;
+
+	// scope: id of the customer who purchased the coupons
+	private Long customerId;
+
+	private CouponSort sort = CouponSort.ID;
+
+	private boolean descending;
+
+	private int size = KeysetPage.MAX_SIZE;
+
+	// the last coupon of the previous page, null - the first page
+	private Coupon after;
+
+	//CTORS
+	public CouponQuery() {
+		super();
+	}
+
+	/**
+	 * This constructor copies a query, so its scope can be changed without changing the original.
+	 *
+	 * @param other the query to copy
+	 */
+	public CouponQuery(CouponQuery other) {
+		super();
+		this.types = other.types == null ? null : (other.types.isEmpty() ? EnumSet.noneOf(CouponType.class) : EnumSet.copyOf(other.types));
+		this.minPrice = other.minPrice;
+		this.maxPrice = other.maxPrice;
+		this.minEndDate = other.minEndDate;
+		this.maxEndDate = other.maxEndDate;
+		this.titlePrefix = other.titlePrefix;
+		this.inStockOnly = other.inStockOnly;
+		this.companyId = other.companyId;
+		this.customerId = other.customerId;
+		this.sort = other.sort;
+		this.descending = other.descending;
+		this.size = other.size;
+		this.after = other.after;
+	}
+
+	//Getters and setters
+	/**
+	 * @return the coupon types, null or empty - any type
+	 */
+	public Set<CouponType> getTypes() {
+		return types;
+	}
+
+	/**
+	 * @param types the coupon types, null or empty - any type
+	 */
+	public void setTypes(Set<CouponType> types) {
+		this.types = types;
+	}
+
+	/**
+	 * @return the lowest price, included
+	 */
+	public Double getMinPrice() {
+		return minPrice;
+	}
+
+	/**
+	 * @param minPrice the lowest price, included
+	 */
+	public void setMinPrice(Double minPrice) {
+		this.minPrice = minPrice;
+	}
+
+	/**
+	 * @return the highest price, included
+	 */
+	public Double getMaxPrice() {
+		return maxPrice;
+	}
+
+	/**
+	 * @param maxPrice the highest price, included
+	 */
+	public void setMaxPrice(Double maxPrice) {
+		this.maxPrice = maxPrice;
+	}
+
+	/**
+	 * @return the earliest end date, included
+	 */
+	public Date getMinEndDate() {
+		return minEndDate;
+	}
+
+	/**
+	 * @param minEndDate the earliest end date, included
+	 */
+	public void setMinEndDate(Date minEndDate) {
+		this.minEndDate = minEndDate;
+	}
+
+	/**
+	 * @return the latest end date, included
+	 */
+	public Date getMaxEndDate() {
+		return maxEndDate;
+	}
+
+	/**
+	 * @param maxEndDate the latest end date, included
+	 */
+	public void setMaxEndDate(Date maxEndDate) {
+		this.maxEndDate = maxEndDate;
+	}
+
+	/**
+	 * @return the beginning of the title
+	 */
+	public String getTitlePrefix() {
+		return titlePrefix;
+	}
+
+	/**
+	 * @param titlePrefix the beginning of the title, matched with the same letter case
+	 */
+	public void setTitlePrefix(String titlePrefix) {
+		this.titlePrefix = titlePrefix;
+	}
+
+	/**
+	 * @return true if only coupons in stock are found
+	 */
+	public boolean isInStockOnly() {
+		return inStockOnly;
+	}
+
+	/**
+	 * @param inStockOnly true to find only coupons in stock
+	 */
+	public void setInStockOnly(boolean inStockOnly) {
+		this.inStockOnly = inStockOnly;
+	}
+
+	/**
+	 * @return the id of the company which issued the coupons
+	 */
+	public Long getCompanyId() {
+		return companyId;
+	}
+
+	/**
+	 * @param companyId the id of the company which issued the coupons
+	 */
+	public void setCompanyId(Long companyId) {
+		this.companyId = companyId;
+	}
+
+	/**
+	 * @return the id of the customer who purchased the coupons
+	 */
+	public Long getCustomerId() {
+		return customerId;
+	}
+
+	/**
+	 * @param customerId the id of the customer who purchased the coupons
+	 */
+	public void setCustomerId(Long customerId) {
+		this.customerId = customerId;
+	}
+
+	/**
+	 * @return the attribute the coupons are sorted by
+	 */
+	public CouponSort getSort() {
+		return sort;
+	}
+
+	/**
+	 * @param sort the attribute the coupons are sorted by
+	 */
+	public void setSort(CouponSort sort) {
+		this.sort = sort;
+	}
+
+	/**
+	 * @return true if the coupons are sorted in descending order
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
+	/**
+	 * @param descending true to sort the coupons in descending order
+	 */
+	public void setDescending(boolean descending) {
+		this.descending = descending;
+	}
+
+	/**
+	 * @return the number of coupons of a page
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @param size the number of coupons of a page, at most KeysetPage.MAX_SIZE
+	 */
+	public void setSize(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * @return the last coupon of the previous page, null for the first page
+	 */
+	public Coupon getAfter() {
+		return after;
+	}
+
+	/**
+	 * @param after the last coupon of the previous page, null for the first page
+	 */
+	public void setAfter(Coupon after) {
+		this.after = after;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CouponQuery [types=" + types + ", minPrice=" + minPrice + ", maxPrice=" + maxPrice + ", minEndDate="
+				+ minEndDate + ", maxEndDate=" + maxEndDate + ", titlePrefix=" + titlePrefix + ", inStockOnly="
+				+ inStockOnly + ", companyId=" + companyId + ", customerId=" + customerId + ", sort=" + sort
+				+ ", descending=" + descending + ", size=" + size + ", after=" + (after == null ? null : after.getId()) + "]";
+	}
+
+}
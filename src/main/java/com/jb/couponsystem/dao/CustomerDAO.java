@@ -1,11 +1,13 @@
 package com.jb.couponsystem.dao;
 
 import java.util.Collection;
+import java.util.stream.Stream;
 
 import com.jb.couponsystem.entities.Coupon;
 import com.jb.couponsystem.entities.Customer;
 import com.jb.couponsystem.exceptions.CouponNotFoundException;
 import com.jb.couponsystem.exceptions.IllegalUpdateException;
+import com.jb.couponsystem.exceptions.LoginRejectedException;
 import com.jb.couponsystem.exceptions.UserAlreadyExistsException;
 import com.jb.couponsystem.exceptions.UserNotFoundException;
 import com.jb.couponsystem.exceptions.WrongPasswordException;
@@ -22,10 +24,11 @@ public interface CustomerDAO {
 	/**
 	 * This method creates customer, received as an object from the outside,
 	 * as a parameter in the database.
-	 * First it checks if a customer with the same ID or with the same name
-	 * already exists in the database, in which case the customer cannot be created,
+	 * First it checks if a customer with the same ID already exists in the database, in which case the customer cannot be created,
 	 * and UserAlreadyExistsException is thrown.
-	 * Otherwise - it calls CustomerRepo class to save the customer in the database. 
+	 * Otherwise - it replaces the password of the customer by its hash and calls CustomerRepo class to save the customer in the database.
+	 * The name is unique in the database: if a customer with the same name already exists, or is created at the same time,
+	 * the database refuses the customer and UserAlreadyExistsException is thrown.
 	 * 
 	 * @param c customer object 
 	 * @throws UserAlreadyExistsException if a customer with the same ID 
@@ -57,7 +60,7 @@ public interface CustomerDAO {
 	 * Then it checks if the the received customer has the same name as
 	 * the customer in the database, if not - IllegalUpdateException is thrown
 	 * since the customer name cannot be changed.
-	 * Otherwise - it calls CustomerRepo class to save the received
+	 * Otherwise - it replaces a new password by its hash and calls CustomerRepo class to save the received
 	 * customer in the database. 
 	 *  
 	 * @param c customer object
@@ -89,40 +92,66 @@ public interface CustomerDAO {
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */
 	Collection <Customer> getAllCustomers() throws UserNotFoundException, InterruptedException;
+
+	/**
+	 * This method returns a keyset page of the customers in the database: the customers the ID of which is greater than the given ID,
+	 * ordered by ID. The first page starts after KeysetPage.FIRST, and the next page after the ID returned by getNextAfterId of the page.
+	 * The page is read with its own connection, in its own read-only transaction, so its customers are detached,
+	 * and their coupons are not loaded. An empty page is returned after the last customer.
+	 *
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of customers of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page of customers
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	KeysetPage<Customer> getCustomersPage(long afterId, int size) throws InterruptedException;
+
+	/**
+	 * This method returns a stream of all the customers in the database, ordered by ID.
+	 * The customers are read by pages of KeysetPage.MAX_SIZE, as in getCustomersPage, while the stream is consumed,
+	 * so only one page is kept in memory and no connection is held between the pages.
+	 * If the thread is interrupted while a page is read, the stream ends with CancellationException.
+	 *
+	 * @return stream of customers
+	 */
+	Stream<Customer> streamAllCustomers();
 	
 	
 	/**
 	 * 
 	 * This method returns all coupons from the database purchased by the customer logged in the coupon system.
 	 * It defines all coupons of the logged in customer as a collection of objects.
-	 * First it checks if the customer has any coupons. If not - UserNotFoundException is thrown.
+	 * The coupons are loaded from the database with the customer, in one statement. If the customer has no coupons - CouponNotFoundException is thrown.
 	 * Otherwise - it returns the collection of customer's coupons.
 	 *  
+	 * @param customer the logged in customer
 	 * @return logged in customer's coupons as a collection of objects
 	 * @throws CouponNotFoundException if the customer has no coupons
 	 * @throws InterruptedException if the thread was interrupted while waiting for connection
 	 */
-	Collection <Coupon> getCoupons() throws CouponNotFoundException, InterruptedException;
+	Collection <Coupon> getCoupons(Customer customer) throws CouponNotFoundException, InterruptedException;
 
 
 	/**
 	 * This method executes login for a customer using name and password received from the outside.
-	 * It returns boolean value which is true for successful login and false otherwise.
-	 * First it checks if the customer with the received name exists in the database, if not - UserNotFoundException is thrown.
-	 * Then it checks if the received password is the password of the customer in the database, if not - WrongPasswordExceptionis thrown.
-	 * Otherwise - the method calls CustomerRepo class to find the customer with the received name and sets him as the logged in customer.
-	 * Then it returns boolean value true.
+	 * It returns the logged in customer, which the caller keeps for the session:
+	 * the DBDAO does not hold the logged in customer, so that it can serve many sessions at the same time.
+	 * It reads only the id, name and password hash of the customer by its unique name with one indexed query of CustomerRepo class.
+	 * If nothing is found - UserNotFoundException is thrown. Then the password is checked against the hash by CredentialVerifier class,
+	 * after the connection was returned to the pool. If it does not fit - WrongPasswordException is thrown.
+	 * Otherwise it returns a lightweight customer holding only its id and name - its other attributes and coupons are not loaded.
 	 * 
 	 * @param customerName name of the customer
 	 * @param password password of the customer
-	 * @return boolean value true if the customer's name and password are correct, false otherwise
+	 * @return the logged in customer
 	 * @throws UserNotFoundException if the customer with the received name does not exist in the database
 	 * @throws WrongPasswordException if the received password is different from the customer's password in the database
-	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 * @throws LoginRejectedException if too many logins are waiting for the verification of their password
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection or for the verification
 	 */	
 
-	boolean login (String customerName, String password) 
-			throws UserNotFoundException, WrongPasswordException, InterruptedException;
+	Customer login (String customerName, String password) 
+			throws UserNotFoundException, WrongPasswordException, LoginRejectedException, InterruptedException;
 	
 	
 	
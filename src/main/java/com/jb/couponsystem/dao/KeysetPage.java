@@ -0,0 +1,163 @@
+package com.jb.couponsystem.dao;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * This class represents one page of a list read from the database by keyset (cursor-based) paging.
+ * The rows are ordered by their id, and a page holds the rows the id of which is greater than the id
+ * after which the page starts, so the next page starts after the id of the last row of this page.
+ * Unlike a page found by its offset, a page is found by the index of the id, no matter how far in the list it is,
+ * and rows added or removed meanwhile do not cause rows to be skipped or repeated.
+ * <p>
+ * A stream of all the rows (see stream) reads the pages one after the other while it is consumed,
+ * so only one page is kept in memory, and no connection is held between the pages.
+ *
+ * @param <T> type of the rows
+ * @author Alexander Zablotsky
+ *
+ */
+public class KeysetPage<T> {
+
+	//Attributes
+	/**
+	 * The id after which the first page starts: all ids in the database are greater
+	 */
+	public static final long FIRST = 0;
+
+	/**
+	 * Maximal number of rows in a page
+	 */
+	public static final int MAX_SIZE = 500;
+
+	/**
+	 * Number of rows fetched from the database in one round trip, given to the queries of the pages
+	 */
+	public static final String FETCH_SIZE = "" + MAX_SIZE;
+
+	private final List<T> items;
+
+	private final long nextAfterId;
+
+	private final boolean hasNext;
+
+	//CTOR
+	/**
+	 * @param items the rows of the page, ordered by their id
+	 * @param afterId the id after which the page starts
+	 * @param size the number of rows asked for
+	 * @param idOf returns the id of a row
+	 */
+	public KeysetPage(List<T> items, long afterId, int size, ToLongFunction<T> idOf) {
+		this.items = Collections.unmodifiableList(items);
+		this.nextAfterId = items.isEmpty() ? afterId : idOf.applyAsLong(items.get(items.size() - 1));
+		this.hasNext = items.size() >= size;
+	}
+
+	//Getters
+	/**
+	 * @return the rows of the page, ordered by their id
+	 */
+	public List<T> getItems() {
+		return items;
+	}
+
+	/**
+	 * @return the id after which the next page starts
+	 */
+	public long getNextAfterId() {
+		return nextAfterId;
+	}
+
+	/**
+	 * @return true if there may be a next page, false if this page is the last one
+	 */
+	public boolean hasNext() {
+		return hasNext;
+	}
+
+	//Methods
+	/**
+	 * This method returns the size of a page that can be read: at least 1 and at most MAX_SIZE.
+	 *
+	 * @param size the size asked for
+	 * @return the size of the page
+	 */
+	public static int size(int size) {
+		return Math.max(1, Math.min(MAX_SIZE, size));
+	}
+
+	/**
+	 * This method returns a stream of all the rows of the pages read by the given reader, starting with the first page.
+	 * A page is read only when the rows of the previous one were consumed.
+	 * If the thread is interrupted while a page is read, the stream ends with CancellationException
+	 * and the interrupt status of the thread is set again.
+	 *
+	 * @param reader reads the page after the given id
+	 * @param <T> type of the rows
+	 * @return stream of the rows, ordered by their id
+	 */
+	public static <T> Stream<T> stream(Reader<T> reader) {
+		Iterator<T> rows = new Iterator<T>() {
+
+			private Iterator<T> page = Collections.emptyIterator();
+			private long afterId = FIRST;
+			private boolean last;
+
+			@Override
+			public boolean hasNext() {
+				while (!page.hasNext() && !last) {
+					KeysetPage<T> next;
+					try {
+						next = reader.read(afterId);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new CancellationException("Reading of the page after id=" + afterId + " was interrupted.");
+					}
+					page = next.getItems().iterator();
+					afterId = next.getNextAfterId();
+					last = !next.hasNext();
+				}
+				return page.hasNext();
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return page.next();
+			}
+		};
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows,
+				Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT), false);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "KeysetPage [items=" + items.size() + ", nextAfterId=" + nextAfterId + ", hasNext=" + hasNext + "]";
+	}
+
+	/**
+	 * This interface reads the page of rows after the given id.
+	 *
+	 * @param <T> type of the rows
+	 */
+	@FunctionalInterface
+	public interface Reader<T> {
+		KeysetPage<T> read(long afterId) throws InterruptedException;
+	}
+
+}
@@ -3,60 +3,72 @@ package com.jb.couponsystem.dbdao;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
 
+import com.jb.couponsystem.cache.CouponCatalogCache;
+import com.jb.couponsystem.cache.CouponTextIndex;
+import com.jb.couponsystem.cache.MarketplaceReadModel;
 import com.jb.couponsystem.connection.ConnectionPool;
-import com.jb.couponsystem.connection.DbConnection;
+import com.jb.couponsystem.connection.ConnectionLease;
 import com.jb.couponsystem.dao.CompanyDAO;
+import com.jb.couponsystem.dao.KeysetPage;
 import com.jb.couponsystem.entities.Company;
+import com.jb.couponsystem.enums.ClientType;
 import com.jb.couponsystem.exceptions.IllegalUpdateException;
+import com.jb.couponsystem.exceptions.LoginRejectedException;
 import com.jb.couponsystem.exceptions.UserAlreadyExistsException;
 import com.jb.couponsystem.exceptions.UserNotFoundException;
 import com.jb.couponsystem.exceptions.WrongPasswordException;
 import com.jb.couponsystem.repo.CompanyRepo;
+import com.jb.couponsystem.security.CredentialVerifier;
+import com.jb.couponsystem.security.LoginPrincipal;
+import com.jb.couponsystem.security.PasswordHasher;
+import com.jb.couponsystem.stock.HotCouponStock;
 
 /**
  * This class contains methods that call the instance of CompanyRepo interface in order to 
  * perform operations on company objects in the database.
  * Since the number of connections to the system is limited, each method begins with sending  
  * a request for connection from the pool of connections.
- * Also, at the end of each method the connection is returned back to the connection pool.  
+ * The connection is taken in a try-with-resources block, so it is returned back to the connection pool
+ * at the end of each method, also when the repository throws an exception.
  *   
  * @author Alexander Zablotsky
  *
  */
 @Component
+@SuppressWarnings("try") // the connection leases are held, not referenced (see ConnectionLease)
 public class CompanyDBDAO implements CompanyDAO{
 
 	//Attributes
 	@Autowired
 	CompanyRepo companyRepo;
 
-	private Company loginCompany;
+	@Autowired
+	PasswordHasher passwordHasher;
 
-//Getters and setters - for loginCompany 
-	/** 
-	 * 
-	 * Getter for the logged in company attribute
-	 * 
-	 * @return the loginCompany
-	 */
-	public Company getLoginCompany() {
-		return loginCompany;
-	}
+	@Autowired
+	PlatformTransactionManager transactionManager;
 
+	@Autowired
+	CredentialVerifier credentialVerifier;
 
-	/**
-	 * 
-	 * Setter for the logged in company attribute
-	 * 
-	 * @param loginCompany the loginCompany to set
-	 */
-	public void setLoginCompany(Company loginCompany) {
-		this.loginCompany = loginCompany;
-	}
+	@Autowired
+	CouponCatalogCache catalogCache;
+
+	@Autowired
+	MarketplaceReadModel marketplace;
+
+	@Autowired
+	CouponTextIndex textIndex;
+
+	@Autowired
+	HotCouponStock hotCouponStock;
 
 	//Methods
 
@@ -70,33 +82,29 @@ public class CompanyDBDAO implements CompanyDAO{
 	@Override
 	public void createCompany(Company c) throws UserAlreadyExistsException, InterruptedException {
 		
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 		
-		//If a company with this ID already exists - return connection and throw exception
-		if (companyRepo.exists(c.getId())) {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
-			throw new UserAlreadyExistsException ("Cannot create new company. Company id=" + c.getId() + " already exists.");
-			
-		}
-
-		//If a company with this name already exists - - return connection and throw exception
-		if (companyRepo.existsByCompanyName(c.getCompanyName())) {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
+			//If a company with this ID already exists - throw exception
+			if (companyRepo.exists(c.getId())) {
 			
-			throw new UserAlreadyExistsException ("Cannot create new company. Company name " + c.getCompanyName() + " already exists.");
-			
-		}
-		// Otherwise - create company and return connection	
-		else {
-			companyRepo.save(c);
+				throw new UserAlreadyExistsException ("Cannot create new company. Company id=" + c.getId() + " already exists.");
 			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-		}
+			}
+
+			// Otherwise - create company. If a company with this name already exists, the unique name is violated - throw exception
+			hashPassword(c, null);
+			try {
+				companyRepo.save(c);
+			}
+			catch (DataIntegrityViolationException e) {
+				if (ConstraintViolations.isViolated(e, Company.NAME_CONSTRAINT)) {
+					throw new UserAlreadyExistsException ("Cannot create new company. Company name " + c.getCompanyName() + " already exists.");
+				}
+				throw e;
+			}
 		
+		}
 	}
 	
 	
@@ -108,24 +116,26 @@ public class CompanyDBDAO implements CompanyDAO{
 	 */
 	@Override
 	public void removeCompany(Company c) throws UserNotFoundException, InterruptedException {
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 		
-		//If a company with this ID does not exist - return connection and throw exception
-		if (!companyRepo.exists(c.getId())) {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
+			//If a company with this ID does not exist - throw exception
+			if (!companyRepo.exists(c.getId())) {
 			
-			throw new UserNotFoundException ("Cannot remove company. Company "+ 
-					c + " does not exist.");
-		}
+				throw new UserNotFoundException ("Cannot remove company. Company "+ 
+						c + " does not exist.");
+			}
+
+			//Otherwise - remove company, after the purchases in progress of its hot coupons were written
+			else {
+				hotCouponStock.deactivateCompany(c.getId());
+				companyRepo.delete(c);
+				catalogCache.removeCompany(c.getId());
+				marketplace.removeCompany(c.getId());
+				textIndex.removeCompany(c.getId());
+			}
 
-		//Otherwise - remove company and return connection	
-		else {
-			companyRepo.delete(c);
-			ConnectionPool.getInstance().returnConnection(dbConnection);
 		}
-
 	}
 
 
@@ -138,38 +148,35 @@ public class CompanyDBDAO implements CompanyDAO{
 	@Override
 	public void updateCompany(Company c) throws UserNotFoundException, IllegalUpdateException, InterruptedException {
 		
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 		
-		//Compare to the company in DB
-		Company companyInDb = companyRepo.findOne(c.getId());
+			//Compare to the company in DB
+			Company companyInDb = companyRepo.findOne(c.getId());
 
-		//If a company with this ID does not exist in the DB - return connection and throw exception
-		if (companyInDb == null)	{
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
+			//If a company with this ID does not exist in the DB - throw exception
+			if (companyInDb == null)	{
 			
-			throw new UserNotFoundException ("Cannot update company. Company "+ 
-					c + " does not exist.");
-		}
+				throw new UserNotFoundException ("Cannot update company. Company "+ 
+						c + " does not exist.");
+			}
 		
-		//If the company's name is changed - return connection and throw exception
-		else if (!companyInDb.getCompanyName().equals(c.getCompanyName())) {
+			//If the company's name is changed - throw exception
+			else if (!companyInDb.getCompanyName().equals(c.getCompanyName())) {
 			
-			    ConnectionPool.getInstance().returnConnection(dbConnection);
-			    
-				throw new IllegalUpdateException ("Cannot update company "
-					+  companyInDb.getCompanyName() 
-					+  ". Company name cannot be changed."); 
-		}
-
-		//Otherwise - save the updated company and return connection
-		else {
-			companyRepo.save(c);
+					throw new IllegalUpdateException ("Cannot update company "
+						+  companyInDb.getCompanyName() 
+						+  ". Company name cannot be changed."); 
+			}
+
+			//Otherwise - save the updated company
+			else {
+				hashPassword(c, companyInDb.getPassword());
+				companyRepo.save(c);
 			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-		}
+			}
 		
+		}
 	}
 		
 
@@ -182,27 +189,25 @@ public class CompanyDBDAO implements CompanyDAO{
 @Override
 public Company getCompany(long id) throws UserNotFoundException, InterruptedException {
 
-	//Ask for connection from the connection pool
-	DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+	//Ask for connection from the connection pool - it is returned when the try block ends
+	try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 	
-	Company c = companyRepo.findOne(id);
+		//One query for the company and its coupons - a company which does not exist is not found
+		Company c = companyRepo.findWithCouponsById(id);
 	
-	//If a company with this ID does not exist - return connection and throw exception
-	if (!companyRepo.exists(id))  {
+		//If a company with this ID does not exist - throw exception
+		if (c == null)  {
 		
-		 ConnectionPool.getInstance().returnConnection(dbConnection);
-		
-		throw new UserNotFoundException ("Cannot display company details. "
-				+ "Company id=" + id + " does not exist.");
-	}
-	//Otherwise - return connection and return the company
-	else {
+			throw new UserNotFoundException ("Cannot display company details. "
+					+ "Company id=" + id + " does not exist.");
+		}
+		//Otherwise - return the company
+		else {
 	
-		ConnectionPool.getInstance().returnConnection(dbConnection);
-		
-		return c;
-	}
+			return c;
+		}
 
+	}
 }
 
 /*
@@ -214,28 +219,48 @@ public Company getCompany(long id) throws UserNotFoundException, InterruptedExce
 @Override
 public Collection<Company> getAllCompanies() throws UserNotFoundException, InterruptedException {
 
-	//Ask for connection from the connection pool
-	DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+	//Ask for connection from the connection pool - it is returned when the try block ends
+	try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 	
-	Collection<Company> comp = (Collection<Company>) companyRepo.findAll();
+		Collection<Company> comp = (Collection<Company>) companyRepo.findAll();
 
-	//If no companies exist - return connection and throw exception
-	if (comp.isEmpty())  {
+		//If no companies exist - throw exception
+		if (comp.isEmpty())  {
 
-		ConnectionPool.getInstance().returnConnection(dbConnection);	
-		
-		throw new UserNotFoundException ("No companies were found.");
-	}
+			throw new UserNotFoundException ("No companies were found.");
+		}
 
-	//Otherwise - return connection and return all the companies 
-	else {
+		//Otherwise - return all the companies 
+		else {
 
-		ConnectionPool.getInstance().returnConnection(dbConnection);
-		
-		return comp;
+			return comp;
+		}
 	}
 }
 
+/*
+ * Get a page of companies
+ * 
+ * (non-Javadoc)
+ * @see com.jb.couponsystem.dao.CompanyDAO#getCompaniesPage(long, int)
+ */
+@Override
+public KeysetPage<Company> getCompaniesPage(long afterId, int size) throws InterruptedException {
+	return KeysetPages.read(transactionManager, afterId, size, Company::getId,
+			page -> companyRepo.findPage(afterId, page));
+}
+
+/*
+ * Stream all companies
+ * 
+ * (non-Javadoc)
+ * @see com.jb.couponsystem.dao.CompanyDAO#streamAllCompanies()
+ */
+@Override
+public Stream<Company> streamAllCompanies() {
+	return KeysetPage.stream(afterId -> getCompaniesPage(afterId, KeysetPage.MAX_SIZE));
+}
+
 /*
  * Login as a company
  * 
@@ -243,42 +268,43 @@ public Collection<Company> getAllCompanies() throws UserNotFoundException, Inter
  * @see com.jb.couponsystem.dao.CompanyDAO#login(java.lang.String, java.lang.String)
  */
 @Override
-public boolean login (String companyName, String password) 
-		throws UserNotFoundException, WrongPasswordException, InterruptedException{
-	
-	//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+public Company login (String companyName, String password) 
+		throws UserNotFoundException, WrongPasswordException, LoginRejectedException, InterruptedException{
 	
-	//If a company with this name does not exist - return connection and throw exception
-	if (!companyRepo.existsByCompanyName(companyName)) {
+	LoginPrincipal principal;
 
-		ConnectionPool.getInstance().returnConnection(dbConnection);
-		
-		throw new UserNotFoundException ("Login failed. Company name " + companyName + " does not exist.");	
-	}
-
-	//If the password does not fit the name	- return connection and throw exception
-	else if (companyRepo.findByNameAndPwd(companyName, password)== null) {
+	//Ask for connection from the connection pool - it is returned when the try block ends
+	try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 
-		ConnectionPool.getInstance().returnConnection(dbConnection);
-				
-			throw new WrongPasswordException("Login failed. Wrong name + password: "
-					+ companyName + ", " + password);
-		}
-		//Otherwise -  set the logged in company, return connection and return true
-		else  {
-			this.setLoginCompany(companyRepo.findByNameAndPwd(companyName, password));
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
-			return true;
-		}
+		//Find the id, name and password hash of the company by its unique name - one indexed query
+		principal = companyRepo.findLoginPrincipal(companyName);
 	}
-}	
-
-
 
+	//If a company with this name does not exist - throw exception
+	//(an unknown name is checked against a hash too, so the time of the login does not reveal which names exist)
+	if (principal == null) {
+		credentialVerifier.verifyUnknown(ClientType.COMPANY, companyName, password);
+		throw new UserNotFoundException ("Login failed. Company name " + companyName + " does not exist.");
+	}
 
+	//If the password does not fit the hash - throw exception
+	//(verified after the connection was returned, so the slow hash does not hold a connection)
+	if (!credentialVerifier.verify(ClientType.COMPANY, companyName, password, principal.getPassword())) {
+		throw new WrongPasswordException("Login failed. Wrong password for company " + companyName);
+	}
 
+	//Otherwise - return the logged in company, holding only its id and name
+	Company company = new Company();
+	company.setId(principal.getId());
+	company.setCompanyName(principal.getName());
+	return company;
+}
 
+	// replaces the password of the company by its hash, unless it is the hash already stored for the company
+	private void hashPassword(Company c, String storedHash) {
+		if (c.getPassword() != null && !c.getPassword().equals(storedHash)) {
+			c.setPassword(passwordHasher.hash(c.getPassword()));
+		}
+	}
 
+}
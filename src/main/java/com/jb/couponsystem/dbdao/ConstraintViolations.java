@@ -0,0 +1,42 @@
+package com.jb.couponsystem.dbdao;
+
+import java.util.Locale;
+
+import org.springframework.dao.DataIntegrityViolationException;
+
+/**
+ * This class finds out which unique constraint of the schema a rejected statement violated,
+ * so the DBDAO classes can turn the violation into the exception of the Coupon System
+ * (and the hot coupon stock can tell a duplicate purchase from a removed customer).
+ * The name of the constraint is searched in the messages of the exception and its causes,
+ * since PostgreSQL and the other databases report it in the message in different forms.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public final class ConstraintViolations {
+
+	private ConstraintViolations() {
+	}
+
+	/**
+	 * This method checks if an exception was caused by the violation of the given constraint.
+	 *
+	 * @param e the exception thrown by the repository
+	 * @param constraint name of the constraint
+	 * @return true if the constraint was violated
+	 */
+	public static boolean isViolated(DataIntegrityViolationException e, String constraint) {
+		String name = constraint.toLowerCase(Locale.ROOT);
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause.getMessage() != null && cause.getMessage().toLowerCase(Locale.ROOT).contains(name)) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+}
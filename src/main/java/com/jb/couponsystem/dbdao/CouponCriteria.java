@@ -0,0 +1,189 @@
+package com.jb.couponsystem.dbdao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.ParameterExpression;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import com.jb.couponsystem.dao.CouponQuery;
+import com.jb.couponsystem.dao.KeysetPage;
+import com.jb.couponsystem.entities.Coupon;
+import com.jb.couponsystem.enums.CouponSort;
+
+/**
+ * This class compiles a coupon search (CouponQuery class) into one JPA criteria query.
+ * Only the filters that are set become conditions, and all the values are bound as parameters - the types as one
+ * collection parameter - so the text of the query depends only on the filters that are set, not on their values, and
+ * the database sees one query with the conditions of the search, served by the indexes of COUPONS
+ * (by company and type, price, end date or id) and by the unique pair of CUSTOMER_COUPON for the coupons of a customer.
+ * The page is found by keyset: the coupons after the last coupon of the previous page in the order of the sort attribute
+ * and the id, limited by the size of the page.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+final class CouponCriteria {
+
+	private CouponCriteria() {
+	}
+
+	/**
+	 * This method compiles a coupon search into a query.
+	 *
+	 * @param entityManager the entity manager of the current transaction
+	 * @param search the coupon search
+	 * @return the query, with its parameters, maximal number of results and fetch size
+	 * @throws IllegalArgumentException if the search is sorted by title or end date
+	 * and the last coupon of the previous page has none
+	 */
+	static TypedQuery<Coupon> compile(EntityManager entityManager, CouponQuery search) {
+		CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Coupon> criteria = cb.createQuery(Coupon.class);
+		Root<Coupon> coupon = criteria.from(Coupon.class);
+		Map<ParameterExpression<?>, Object> values = new LinkedHashMap<>();
+		List<Predicate> where = new ArrayList<>();
+
+		//Scope
+		if (search.getCompanyId() != null) {
+			where.add(cb.equal(coupon.get("company").get("id"), parameter(cb, values, Long.class, search.getCompanyId())));
+		}
+		if (search.getCustomerId() != null) {
+			where.add(cb.equal(coupon.join("customers").get("id"), parameter(cb, values, Long.class, search.getCustomerId())));
+		}
+
+		//Filters
+		if (search.getTypes() != null && !search.getTypes().isEmpty()) {
+			where.add(coupon.get("type").in(collectionParameter(cb, values, new ArrayList<>(search.getTypes()))));
+		}
+		Path<Double> price = coupon.get("price");
+		if (search.getMinPrice() != null) {
+			where.add(cb.greaterThanOrEqualTo(price, parameter(cb, values, Double.class, search.getMinPrice())));
+		}
+		if (search.getMaxPrice() != null) {
+			where.add(cb.lessThanOrEqualTo(price, parameter(cb, values, Double.class, search.getMaxPrice())));
+		}
+		Path<Date> endDate = coupon.get("endDate");
+		if (search.getMinEndDate() != null) {
+			where.add(cb.greaterThanOrEqualTo(endDate, parameter(cb, values, Date.class, search.getMinEndDate())));
+		}
+		if (search.getMaxEndDate() != null) {
+			where.add(cb.lessThanOrEqualTo(endDate, parameter(cb, values, Date.class, search.getMaxEndDate())));
+		}
+		Path<String> title = coupon.get("title");
+		if (search.getTitlePrefix() != null && !search.getTitlePrefix().isEmpty()) {
+			where.add(cb.like(title, parameter(cb, values, String.class, escapeLike(search.getTitlePrefix()) + "%"), '\\'));
+		}
+		if (search.isInStockOnly()) {
+			where.add(cb.greaterThan(coupon.<Integer>get("amount"), parameter(cb, values, Integer.class, 0)));
+		}
+
+		//Order and keyset of the page
+		Path<Long> id = coupon.get("id");
+		CouponSort sort = search.getSort() == null ? CouponSort.ID : search.getSort();
+		boolean descending = search.isDescending();
+		Coupon after = search.getAfter();
+		switch (sort) {
+		case TITLE:
+			if (after != null) {
+				requireKey(after.getTitle(), sort);
+				where.add(after(cb, title, parameter(cb, values, String.class, after.getTitle()),
+						id, parameter(cb, values, Long.class, after.getId()), descending));
+			}
+			break;
+		case PRICE:
+			if (after != null) {
+				where.add(after(cb, price, parameter(cb, values, Double.class, after.getPrice()),
+						id, parameter(cb, values, Long.class, after.getId()), descending));
+			}
+			break;
+		case END_DATE:
+			if (after != null) {
+				requireKey(after.getEndDate(), sort);
+				where.add(after(cb, endDate, parameter(cb, values, Date.class, after.getEndDate()),
+						id, parameter(cb, values, Long.class, after.getId()), descending));
+			}
+			break;
+		default:
+			if (after != null) {
+				ParameterExpression<Long> afterId = parameter(cb, values, Long.class, after.getId());
+				where.add(descending ? cb.lessThan(id, afterId) : cb.greaterThan(id, afterId));
+			}
+		}
+		Expression<?> key = sort == CouponSort.TITLE ? title : sort == CouponSort.PRICE ? price
+				: sort == CouponSort.END_DATE ? endDate : null;
+		if (key == null) {
+			criteria.orderBy(descending ? cb.desc(id) : cb.asc(id));
+		}
+		else {
+			criteria.orderBy(descending ? cb.desc(key) : cb.asc(key), descending ? cb.desc(id) : cb.asc(id));
+		}
+
+		criteria.select(coupon).where(where.toArray(new Predicate[where.size()]));
+		TypedQuery<Coupon> query = entityManager.createQuery(criteria);
+		for (Map.Entry<ParameterExpression<?>, Object> value : values.entrySet()) {
+			setParameter(query, value.getKey(), value.getValue());
+		}
+		int size = KeysetPage.size(search.getSize());
+		query.setMaxResults(size);
+		query.setHint("org.hibernate.fetchSize", size);
+		query.setHint("org.hibernate.readOnly", true);
+		return query;
+	}
+
+	// the coupons after the given coupon in the order of the key and the id
+	private static <Y extends Comparable<? super Y>> Predicate after(CriteriaBuilder cb, Expression<Y> key,
+			Expression<Y> value, Expression<Long> id, Expression<Long> afterId, boolean descending) {
+		if (descending) {
+			return cb.or(cb.lessThan(key, value), cb.and(cb.equal(key, value), cb.lessThan(id, afterId)));
+		}
+		return cb.or(cb.greaterThan(key, value), cb.and(cb.equal(key, value), cb.greaterThan(id, afterId)));
+	}
+
+	// a new parameter with its value
+	private static <T> ParameterExpression<T> parameter(CriteriaBuilder cb, Map<ParameterExpression<?>, Object> values,
+			Class<T> type, T value) {
+		ParameterExpression<T> parameter = cb.parameter(type);
+		values.put(parameter, value);
+		return parameter;
+	}
+
+	// a new parameter holding a collection of values, for an IN condition
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static ParameterExpression<Collection<?>> collectionParameter(CriteriaBuilder cb,
+			Map<ParameterExpression<?>, Object> values, Collection<?> value) {
+		ParameterExpression<Collection<?>> parameter = (ParameterExpression) cb.parameter(Collection.class);
+		values.put(parameter, value);
+		return parameter;
+	}
+
+	// a keyset cannot continue after a coupon without the sort attribute - it compares as NULL, so no coupon would follow it
+	private static void requireKey(Object key, CouponSort sort) {
+		if (key == null) {
+			throw new IllegalArgumentException("Illegal page: the last coupon of the previous page has no " + sort
+					+ " value to continue the order from");
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> void setParameter(TypedQuery<Coupon> query, ParameterExpression<T> parameter, Object value) {
+		query.setParameter(parameter, (T) value);
+	}
+
+	// escapes the wildcards of LIKE, so the prefix is matched as written
+	private static String escapeLike(String text) {
+		return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+}
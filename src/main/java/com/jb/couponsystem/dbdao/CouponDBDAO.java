@@ -1,20 +1,47 @@
 package com.jb.couponsystem.dbdao;
 
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Component;
-
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.jb.couponsystem.cache.CouponCatalogCache;
+import com.jb.couponsystem.cache.CouponTextIndex;
+import com.jb.couponsystem.cache.MarketplaceReadModel;
+import com.jb.couponsystem.cache.PurchaseFilter;
+import com.jb.couponsystem.cache.PurchasedCouponIndex;
 import com.jb.couponsystem.connection.ConnectionPool;
-import com.jb.couponsystem.connection.DbConnection;
+import com.jb.couponsystem.connection.ConnectionLease;
 import com.jb.couponsystem.dao.CouponDAO;
+import com.jb.couponsystem.dao.CouponQuery;
+import com.jb.couponsystem.dao.KeysetPage;
 import com.jb.couponsystem.entities.Company;
 import com.jb.couponsystem.entities.Coupon;
 import com.jb.couponsystem.entities.Customer;
 import com.jb.couponsystem.enums.CouponType;
+import com.jb.couponsystem.enums.PurchaseOutcome;
 import com.jb.couponsystem.exceptions.CouponAlreadyExistsException;
 import com.jb.couponsystem.exceptions.CouponAlreadyPurchasedException;
 import com.jb.couponsystem.exceptions.CouponExpiredException;
@@ -25,62 +52,59 @@ import com.jb.couponsystem.exceptions.UserAlreadyExistsException;
 import com.jb.couponsystem.exceptions.UserNotFoundException;
 import com.jb.couponsystem.facades.CompanyFacade;
 import com.jb.couponsystem.repo.CouponRepo;
+import com.jb.couponsystem.stock.HotCouponStock;
 
 /**
  * This class contains methods that call CouponRepo interface in order to 
  * perform operations on coupon objects in the database.
  * Since the number of connections to the system is limited, each method begins with sending  
  * a request for connection from the pool of connections.
- * Also, at the end of each method the connection is returned back to the connection pool.  
+ * The connection is taken in a try-with-resources block, so it is returned back to the connection pool
+ * at the end of each method, also when the repository throws an exception.
  *   
  * @author Alexander Zablotsky
  *
  */
 @Component
+@SuppressWarnings("try") // the connection leases are held, not referenced (see ConnectionLease)
 public class CouponDBDAO implements CouponDAO {
 
 	//Attributes
+	// maximal number of expired coupons removed in one transaction
+	private static final int PURGE_CHUNK_SIZE = 1000;
+
+	// number of times the transaction of a cart is tried when a concurrent purchase rolls it back
+	private static final int CART_ATTEMPTS = 3;
+
 	@Autowired
 	CouponRepo couponRepo;
 
-	private Company loginCompany;
+	@Autowired
+	PlatformTransactionManager transactionManager;
 
-	private Customer loginCustomer;
+	@Autowired
+	HotCouponStock hotCouponStock;
 
-	//Getters and setters for login company and login customer
+	@Autowired
+	JdbcTemplate jdbcTemplate;
 
-	/**
-	 * 
-	 * @return the loginCompany
-	 */
-	public Company getLoginCompany() {
-		return loginCompany;
-	}
+	@Autowired
+	CouponCatalogCache catalogCache;
 
-	/**
-	 * 
-	 * @param loginCompany the loginCompany to set
-	 */
-	public void setLoginCompany(Company loginCompany) {
-		this.loginCompany = loginCompany;
-	}
+	@Autowired
+	PurchasedCouponIndex purchasedIndex;
 
+	@Autowired
+	PurchaseFilter purchaseFilter;
 
-	/**
-	 * 
-	 * @return the loginCustomer
-	 */
-	public Customer getLoginCustomer() {
-		return loginCustomer;
-	}
+	@Autowired
+	MarketplaceReadModel marketplace;
 
-	/**
-	 *  
-	 * @param loginCustomer the loginCustomer to set
-	 */
-	public void setLoginCustomer(Customer loginCustomer) {
-		this.loginCustomer = loginCustomer;
-	}
+	@Autowired
+	CouponTextIndex textIndex;
+
+	@PersistenceContext
+	EntityManager entityManager;
 
 	//Methods
 
@@ -93,32 +117,32 @@ public class CouponDBDAO implements CouponDAO {
 	 */
 	@Override
 	public void createCoupon(Coupon c) throws CouponAlreadyExistsException, InterruptedException {
-		//Ask for connection from the connection pool
-				DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 		
-		//If a coupon with this ID already exists - return connection and throw exception
-		if (couponRepo.exists(c.getId())) {
+			//If a coupon with this ID already exists - throw exception
+			if (couponRepo.exists(c.getId())) {
 			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
-			throw new CouponAlreadyExistsException ("Cannot create new coupon. Coupon id=" + c.getId() + " already exists.");
-		}
+				throw new CouponAlreadyExistsException ("Cannot create new coupon. Coupon id=" + c.getId() + " already exists.");
+			}
 
-		//If a coupon with this name already exists - return connection and throw exception
-		if (couponRepo.existsByTitle(c.getTitle())) {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
-			throw new CouponAlreadyExistsException ("Cannot create new coupon. Coupon title " + c.getTitle() + " already exists.");
-		}
-		//Otherwise - create coupon and return connection	
-		else {
-			couponRepo.save(c);
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-	
-		}
+			//Otherwise - create coupon. If a coupon with this name already exists, the unique title is violated - throw exception
+			try {
+				couponRepo.save(c);
+			}
+			catch (DataIntegrityViolationException e) {
+				if (ConstraintViolations.isViolated(e, Coupon.TITLE_CONSTRAINT)) {
+					throw new CouponAlreadyExistsException ("Cannot create new coupon. Coupon title " + c.getTitle() + " already exists.");
+				}
+				throw e;
+			}
+			if (c.getCompany() != null) {
+				catalogCache.invalidateCompany(c.getCompany().getId());
+				marketplace.put(c, c.getCompany());
+				textIndex.put(c, c.getCompany().getId());
+			}
 
+		}
 	}
 	
 	
@@ -127,32 +151,33 @@ public class CouponDBDAO implements CouponDAO {
 	 * Remove coupon
 	 * 
 	 * (non-Javadoc)
-	 * @see com.jb.couponsystem.dao.CouponDAO#removeCoupon(com.jb.couponsystem.entities.Coupon)
+	 * @see com.jb.couponsystem.dao.CouponDAO#removeCoupon(com.jb.couponsystem.entities.Coupon, com.jb.couponsystem.entities.Company)
 	 */
 	@Override
-	public void removeCoupon(Coupon c) throws CouponNotFoundException, InterruptedException {
-		
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+	public void removeCoupon(Coupon c, Company company) throws CouponNotFoundException, InterruptedException {
 
-		//If a coupon with this ID of the company with this ID does not exist - return connection and throw exception
-		if (!couponRepo.existsByIdAndCompanyId(c.getId(), this.loginCompany.getId())) {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
-			throw new CouponNotFoundException ("Cannot remove coupon. "
-					+ "Coupon " + c + " of company " + this.loginCompany.getCompanyName()
-					+ " does not exist.");
-		}
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 
-		//Otherwise - remove coupon	and return connection
-		else {
-			couponRepo.removeCouponByIdAndCompanyId(c.getId(), this.loginCompany.getId());
+			//If a coupon with this ID of the company with this ID does not exist - throw exception
+			if (!couponRepo.existsByIdAndCompanyId(c.getId(), company.getId())) {
 			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
+				throw new CouponNotFoundException ("Cannot remove coupon. "
+						+ "Coupon " + c + " of company " + company.getCompanyName()
+						+ " does not exist.");
+			}
+
+			//Otherwise - remove coupon, after the purchases in progress of a hot coupon were written
+			else {
+				hotCouponStock.deactivate(c.getId());
+				couponRepo.removeCouponByIdAndCompanyId(c.getId(), company.getId());
+				catalogCache.removeCoupon(c.getId(), company.getId());
+				marketplace.remove(c.getId());
+				textIndex.remove(c.getId());
 			
-		}
+			}
 
+		}
 	}
 
 	/*
@@ -160,80 +185,75 @@ public class CouponDBDAO implements CouponDAO {
 	 * Update coupon
 	 * 
 	 * (non-Javadoc)
-	 * @see com.jb.couponsystem.dao.CouponDAO#updateCoupon(com.jb.couponsystem.entities.Coupon)
+	 * @see com.jb.couponsystem.dao.CouponDAO#updateCoupon(com.jb.couponsystem.entities.Coupon, com.jb.couponsystem.entities.Company)
 	 */
 	@Override
-	public void updateCoupon(Coupon c) throws CouponNotFoundException, IllegalUpdateException, InterruptedException {
+	public void updateCoupon(Coupon c, Company company) throws CouponNotFoundException, IllegalUpdateException, InterruptedException {
 
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 		
-		//Compare to the coupon in DB
-		Coupon couponInDb= couponRepo.findByTitleAndCompanyId(c.getTitle(),this.loginCompany.getId());
+			//Compare to the coupon in DB
+			Coupon couponInDb= couponRepo.findByTitleAndCompanyId(c.getTitle(),company.getId());
 
-		//If a coupon with this title of this company does not exist in DB - throw exception
-		if(couponInDb==null) {
+			//If a coupon with this title of this company does not exist in DB - throw exception
+			if(couponInDb==null) {
 			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
-			throw new CouponNotFoundException ("Cannot update coupon. "
-					+ "Coupon " + c + " of company " + this.loginCompany.getCompanyName()
-					+ " does not exist.");
-		}
+				throw new CouponNotFoundException ("Cannot update coupon. "
+						+ "Coupon " + c + " of company " + company.getCompanyName()
+						+ " does not exist.");
+			}
 
-		//If the coupon attributes other than END DATE and PRICE 
-		//are changed - return connection and throw exception:
+			//If the coupon attributes other than END DATE and PRICE 
+			//are changed - throw exception:
 
-		//1.ID
-		else if (couponInDb.getId()!=(c.getId())) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
-			+  ". Coupon id cannot be changed."); 
-		}
+			//1.ID
+			else if (couponInDb.getId()!=(c.getId())) {
+				throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
+				+  ". Coupon id cannot be changed."); 
+			}
 
-		//2. Start date
-		else if (!couponInDb.getStartDate().equals(c.getStartDate())) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
-			+  ". Start date cannot be changed."); 
-		}
+			//2. Start date
+			else if (!couponInDb.getStartDate().equals(c.getStartDate())) {
+				throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
+				+  ". Start date cannot be changed."); 
+			}
 
-		//3. Amount
-		else if (couponInDb.getAmount()!=(c.getAmount())) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
-			+  ". Amount cannot be changed."); 
-		}
+			//3. Amount
+			else if (couponInDb.getAmount()!=(c.getAmount())) {
+				throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
+				+  ". Amount cannot be changed."); 
+			}
 
-		//4. Type
-		else if (!couponInDb.getType().equals(c.getType())) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
-			+  ". Coupon type cannot be changed."); 
-		}
+			//4. Type
+			else if (!couponInDb.getType().equals(c.getType())) {
+				throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
+				+  ". Coupon type cannot be changed."); 
+			}
 
-		//5. Message
-		else if (!couponInDb.getMessage().equals(c.getMessage())) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
-			+  ". Message cannot be changed."); 
-		}
+			//5. Message
+			else if (!couponInDb.getMessage().equals(c.getMessage())) {
+				throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
+				+  ". Message cannot be changed."); 
+			}
 
 
-		//6. Image
-		else if (!couponInDb.getImage().equals(c.getImage())) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
-			+  ". Image cannot be changed."); 
-		}
+			//6. Image
+			else if (!couponInDb.getImage().equals(c.getImage())) {
+				throw new IllegalUpdateException ("Cannot update coupon "+ c.getTitle() 
+				+  ". Image cannot be changed."); 
+			}
 
-		//Otherwise - update coupon and return connection
+			//Otherwise - update coupon
 
-		else {
-			couponRepo.save(c);
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
+			else {
+				couponRepo.save(c);
+				catalogCache.invalidateCoupon(c.getId());
+				catalogCache.invalidateCompany(company.getId());
+				marketplace.put(c, company);
+				textIndex.put(c, company.getId());
 			
+			}
 		}
 	}
 
@@ -243,32 +263,31 @@ public class CouponDBDAO implements CouponDAO {
 	 * Get coupon by id 
 	 * 
 	 * (non-Javadoc)
-	 * @see com.jb.couponsystem.dao.CouponDAO#getCoupon(long)
+	 * @see com.jb.couponsystem.dao.CouponDAO#getCoupon(long, com.jb.couponsystem.entities.Company)
 	 */
 	@Override
-	public Coupon getCoupon(long id) throws CouponNotFoundException, InterruptedException {
+	public Coupon getCoupon(long id, Company company) throws CouponNotFoundException, InterruptedException {
 
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//The coupon is read from the catalog cache, and loaded with one query if it is not cached
+		Coupon c = catalogCache.getCoupon(id, company.getId(), () -> {
+
+			//Ask for connection from the connection pool - it is returned when the try block ends
+			try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+				return couponRepo.findByIdAndCompanyId(id, company.getId());
+			}
+		});
+
+		//If coupon with this ID of the company with this ID does not exist - throw exception
+		if (c == null)  {
 		
-		//If coupon with this ID of the company with this ID does not exist -  return connection and throw exception
-		if (!couponRepo.existsByIdAndCompanyId(id, this.loginCompany.getId()))  {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);	
-			
 			throw new CouponNotFoundException ("Cannot display coupon details. "
-					+ "Coupon id=" + id + " of company " + this.loginCompany.getCompanyName()
+					+ "Coupon id=" + id + " of company " + company.getCompanyName()
 					+ " does not exist.");
 		}
-		//Otherwise -   return connection and return coupon
+		//Otherwise -   return coupon
 		else {
-			Coupon c = couponRepo.findByIdAndCompanyId(id, this.loginCompany.getId());
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
 			return c;
 		}
-
 	}
 
 
@@ -276,31 +295,23 @@ public class CouponDBDAO implements CouponDAO {
 	 * Get all company's coupons
 	 * 
 	 * (non-Javadoc)
-	 * @see com.jb.couponsystem.dao.CouponDAO#getAllCoupons()
+	 * @see com.jb.couponsystem.dao.CouponDAO#getAllCoupons(com.jb.couponsystem.entities.Company)
 	 */
 	@Override
-	public Collection<Coupon> getAllCoupons() throws CouponNotFoundException, InterruptedException {
+	public Collection<Coupon> getAllCoupons(Company company) throws CouponNotFoundException, InterruptedException {
 
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
-		
-		Collection<Coupon> coupons =
-				(Collection<Coupon>) couponRepo.findCouponByCompanyId(this.loginCompany.getId());
+		Collection<Coupon> coupons = companyCoupons(company);
 
-		//If no coupons exist -  return connection and throw exception
+		//If no coupons exist - throw exception
 		if (coupons.isEmpty())  {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
+		
 			throw new CouponNotFoundException ("No coupons of company "
-					+ this.loginCompany.getCompanyName() + " were found.");
+					+ company.getCompanyName() + " were found.");
 		}
 
-		//Otherwise - return connection and return all the coupons 
+		//Otherwise - return all the coupons 
 		else {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
+		
 			return coupons;
 		}
 	}
@@ -313,27 +324,25 @@ public class CouponDBDAO implements CouponDAO {
 	 * @see com.jb.couponsystem.dao.CouponDAO#getCouponByType(com.jb.couponsystem.entities.CouponType)
 	 */
 	@Override
-	public Collection<Coupon> getCouponsByType(CouponType type) throws CouponNotFoundException, InterruptedException {
+	public Collection<Coupon> getCouponsByType(CouponType type, Company company) throws CouponNotFoundException, InterruptedException {
 		
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
-		
-		Collection<Coupon> coupons =
-				(Collection<Coupon>) couponRepo.findCouponByTypeAndCompanyId(type, this.loginCompany.getId());	
+		//The coupons are filtered from the coupons of the company, which are read from the catalog cache
+		Collection<Coupon> coupons = new ArrayList<>();
+		for (Coupon c : companyCoupons(company)) {
+			if (c.getType() == type) {
+				coupons.add(c);
+			}
+		}
 
-		//If no coupons exist - return connection and throw exception
+		//If no coupons exist - throw exception
 		if (coupons.isEmpty())  {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
+		
 			throw new CouponNotFoundException ("No coupons of type "+ type + " of company "
-					+ this.loginCompany.getCompanyName() + " were found.");
+					+ company.getCompanyName() + " were found.");
 		}
-		//Otherwise - return connection and return the coupons 
+		//Otherwise - return the coupons 
 		else {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
+		
 			return coupons;
 		}
 	}
@@ -346,27 +355,25 @@ public class CouponDBDAO implements CouponDAO {
 	 * @see com.jb.couponsystem.dao.CouponDAO#getCouponsUnderPrice(double)
 	 */
 	@Override
-	public Collection<Coupon> getCouponsByPrice(double price) throws CouponNotFoundException, InterruptedException {
-		
-		//Ask for connection from the connection pool
-				DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
-		
-		Collection<Coupon> coupons =
-				(Collection<Coupon>) couponRepo.findByMaxPriceAndCompanyId(price, this.loginCompany.getId());
+	public Collection<Coupon> getCouponsByPrice(double price, Company company) throws CouponNotFoundException, InterruptedException {
 		
-		//If no coupons exist - return connection and throw exception
+		//The coupons are filtered from the coupons of the company, which are read from the catalog cache
+		Collection<Coupon> coupons = new ArrayList<>();
+		for (Coupon c : companyCoupons(company)) {
+			if (c.getPrice() <= price) {
+				coupons.add(c);
+			}
+		}
+
+		//If no coupons exist - throw exception
 		if (coupons.isEmpty())  {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
+		
 			throw new CouponNotFoundException ("No coupons under price "+ price + " of company "
-					+ this.loginCompany.getCompanyName() + " were found.");
+					+ company.getCompanyName() + " were found.");
 		}
-		//Otherwise - return connection and return the coupons 
+		//Otherwise - return the coupons 
 		else {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
+		
 			return coupons;
 		}
 	}
@@ -380,27 +387,183 @@ public class CouponDBDAO implements CouponDAO {
 	 * @see com.jb.couponsystem.dao.CouponDAO#getCouponsBeforeEndDate(java.util.Date)
 	 */
 	@Override
-	public Collection<Coupon> getCouponsByEndDate(Date endDate) throws CouponNotFoundException, InterruptedException {
-		
-		//Ask for connection from the connection pool
-				DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
-		
-		Collection<Coupon> coupons =
-				(Collection<Coupon>) couponRepo.findByMaxEndDateAndCompanyId(endDate, this.loginCompany.getId());
+	public Collection<Coupon> getCouponsByEndDate(Date endDate, Company company) throws CouponNotFoundException, InterruptedException {
 		
-		//If no coupons exist - return connection and throw exception
+		//The coupons are filtered from the coupons of the company, which are read from the catalog cache
+		Collection<Coupon> coupons = new ArrayList<>();
+		for (Coupon c : companyCoupons(company)) {
+			if (c.getEndDate().getTime() <= endDate.getTime()) {
+				coupons.add(c);
+			}
+		}
+
+		//If no coupons exist - throw exception
 		if (coupons.isEmpty())  {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
+		
 			throw new CouponNotFoundException ("No coupons with end date before "+ endDate + " of company "
-					+ this.loginCompany.getCompanyName() + " were found.");
+					+ company.getCompanyName() + " were found.");
 		}
-		//Otherwise - return connection and return the coupons 
+		//Otherwise - return the coupons 
 		else {
-			
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			
+		
+			return coupons;
+		}
+	}
+
+
+	/*
+	 * Get a page of company's coupons
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#getCouponsPage(com.jb.couponsystem.entities.Company, long, int)
+	 */
+	@Override
+	public KeysetPage<Coupon> getCouponsPage(Company company, long afterId, int size) throws InterruptedException {
+		return KeysetPages.read(transactionManager, afterId, size, Coupon::getId,
+				page -> couponRepo.findPageByCompanyId(company.getId(), afterId, page));
+	}
+
+	/*
+	 * Get a page of company's coupons by type
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#getCouponsByTypePage(com.jb.couponsystem.enums.CouponType, com.jb.couponsystem.entities.Company, long, int)
+	 */
+	@Override
+	public KeysetPage<Coupon> getCouponsByTypePage(CouponType type, Company company, long afterId, int size) throws InterruptedException {
+		return KeysetPages.read(transactionManager, afterId, size, Coupon::getId,
+				page -> couponRepo.findPageByTypeAndCompanyId(type, company.getId(), afterId, page));
+	}
+
+	/*
+	 * Get a page of company's coupons under certain price
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#getCouponsByPricePage(double, com.jb.couponsystem.entities.Company, long, int)
+	 */
+	@Override
+	public KeysetPage<Coupon> getCouponsByPricePage(double price, Company company, long afterId, int size) throws InterruptedException {
+		return KeysetPages.read(transactionManager, afterId, size, Coupon::getId,
+				page -> couponRepo.findPageByMaxPriceAndCompanyId(price, company.getId(), afterId, page));
+	}
+
+	/*
+	 * Get a page of company's coupons before certain date
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#getCouponsByEndDatePage(java.util.Date, com.jb.couponsystem.entities.Company, long, int)
+	 */
+	@Override
+	public KeysetPage<Coupon> getCouponsByEndDatePage(Date endDate, Company company, long afterId, int size) throws InterruptedException {
+		return KeysetPages.read(transactionManager, afterId, size, Coupon::getId,
+				page -> couponRepo.findPageByMaxEndDateAndCompanyId(endDate, company.getId(), afterId, page));
+	}
+
+	/*
+	 * Stream all company's coupons
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#streamAllCoupons(com.jb.couponsystem.entities.Company)
+	 */
+	@Override
+	public Stream<Coupon> streamAllCoupons(Company company) {
+		return KeysetPage.stream(afterId -> getCouponsPage(company, afterId, KeysetPage.MAX_SIZE));
+	}
+
+	/*
+	 * Stream company's coupons by type
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#streamCouponsByType(com.jb.couponsystem.enums.CouponType, com.jb.couponsystem.entities.Company)
+	 */
+	@Override
+	public Stream<Coupon> streamCouponsByType(CouponType type, Company company) {
+		return KeysetPage.stream(afterId -> getCouponsByTypePage(type, company, afterId, KeysetPage.MAX_SIZE));
+	}
+
+	/*
+	 * Stream company's coupons under certain price
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#streamCouponsByPrice(double, com.jb.couponsystem.entities.Company)
+	 */
+	@Override
+	public Stream<Coupon> streamCouponsByPrice(double price, Company company) {
+		return KeysetPage.stream(afterId -> getCouponsByPricePage(price, company, afterId, KeysetPage.MAX_SIZE));
+	}
+
+	/*
+	 * Stream company's coupons before certain date
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#streamCouponsByEndDate(java.util.Date, com.jb.couponsystem.entities.Company)
+	 */
+	@Override
+	public Stream<Coupon> streamCouponsByEndDate(Date endDate, Company company) {
+		return KeysetPage.stream(afterId -> getCouponsByEndDatePage(endDate, company, afterId, KeysetPage.MAX_SIZE));
+	}
+
+
+	/*
+	 * Search coupons
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#searchCoupons(com.jb.couponsystem.dao.CouponQuery)
+	 */
+	@Override
+	public List<Coupon> searchCoupons(CouponQuery query) throws InterruptedException {
+
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+
+			//One query with the conditions of the search - the persistence context is closed with the transaction
+			TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+			transaction.setReadOnly(true);
+			return transaction.execute(status -> CouponCriteria.compile(entityManager, query).getResultList());
+		}
+	}
+
+
+	/*
+	 * Browse the marketplace
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#browseCoupons(com.jb.couponsystem.dao.CouponQuery)
+	 */
+	@Override
+	public List<Coupon> browseCoupons(CouponQuery query) {
+		//The coupons which can be purchased are kept in memory - no connection is needed
+		return marketplace.browse(query);
+	}
+
+
+	/*
+	 * Search coupons by keywords
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#searchCouponsByKeywords(java.lang.String, com.jb.couponsystem.dao.CouponQuery)
+	 */
+	@Override
+	public List<Coupon> searchCouponsByKeywords(String keywords, CouponQuery query) throws InterruptedException {
+
+		//The ids are ranked by the text index - only the coupons found are read, with one query
+		List<Long> ids = textIndex.search(keywords, query);
+		List<Coupon> coupons = new ArrayList<>();
+		if (ids.isEmpty()) {
+			return coupons;
+		}
+
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+			Map<Long, Coupon> found = new HashMap<>();
+			for (Coupon c : couponRepo.findWithCompanyByIdIn(ids)) {
+				found.put(c.getId(), c);
+			}
+			for (Long id : ids) {
+				if (found.containsKey(id)) {
+					coupons.add(found.get(id));
+				}
+			}
 			return coupons;
 		}
 	}
@@ -410,81 +573,365 @@ public class CouponDBDAO implements CouponDAO {
 	 * Purchase coupon
 	 * 
 	 * (non-Javadoc)
-	 * @see com.jb.couponsystem.dao.CouponDAO#purchaseCoupon(com.jb.couponsystem.entities.Coupon)
+	 * @see com.jb.couponsystem.dao.CouponDAO#purchaseCoupon(com.jb.couponsystem.entities.Coupon, com.jb.couponsystem.entities.Customer)
 	 */
 	@Override
-	public void purchaseCoupon (Coupon c) 
+	public void purchaseCoupon (Coupon c, Customer customer) 
 			throws CouponNotFoundException, CouponAlreadyPurchasedException, CouponOutOfStockException, CouponExpiredException, InterruptedException {
 
-		//Ask for connection from the connection pool
-				DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//A hot coupon is reserved in memory and written together with the purchases made at the same time.
+		//A coupon which became hot while it was purchased in the database is purchased again from memory.
+		while (!hotCouponStock.purchase(c, customer)) {
+			if (purchaseInDatabase(c, customer)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * This method purchases a coupon which is not hot in the database.
+	 *
+	 * @param c coupon object
+	 * @param customer the logged in customer
+	 * @return true if the coupon was purchased, false if it became hot meanwhile and has to be purchased from memory
+	 * @throws CouponNotFoundException if the coupon does not exist
+	 * @throws CouponAlreadyPurchasedException if the customer had already purchased the coupon
+	 * @throws CouponOutOfStockException if no unit of the coupon is left
+	 * @throws CouponExpiredException if the coupon has expired
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	private boolean purchaseInDatabase(Coupon c, Customer customer)
+			throws CouponNotFoundException, CouponAlreadyPurchasedException, CouponOutOfStockException, CouponExpiredException, InterruptedException {
+
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 		
-		Collection <Customer> couponCustomers = c.getCustomers();	
-		Date today= new Date();
+			Date today= new Date();
+
+			//A purchase the filter cannot rule out is checked first, so a coupon purchased twice does not lock its row.
+			//For a purchase it rules out, no query is needed before the purchase itself.
+			if (purchaseFilter.mightContain(c.getId(), customer.getId()) && isPurchased(customer, c.getId())) {
+				throw new CouponAlreadyPurchasedException("Customer "+customer.getCustomerName()
+				+" cannot purchase coupon. Coupon "+ c.getTitle()+ " has already been purchased by this customer.");
+			}
+
+			//Decrease the amount and add the coupon to the customer's coupons in one transaction.
+			//The stock is checked by the UPDATE statement itself, so concurrent purchases cannot oversell,
+			//and the coupon row is locked until the transaction ends.
+			Boolean purchased;
+			try {
+				purchased = new TransactionTemplate(transactionManager).execute(status -> {
+					if (couponRepo.decrementAmount(c.getId(), today) == 1) {
+						//The row is locked - a coupon made hot meanwhile has its stock in memory, without this purchase
+						if (hotCouponStock.isHot(c.getId())) {
+							status.setRollbackOnly();
+							return null;
+						}
+						if (couponRepo.addCustomerCoupon(c.getId(), customer.getId()) == 1) {
+							return true;
+						}
+					}
+					status.setRollbackOnly();
+					return false;
+				});
+			}
+			catch (DataIntegrityViolationException e) {
+				//The same purchase was added at the same time in another session - the transaction was rolled back
+				if (!ConstraintViolations.isViolated(e, Customer.PURCHASE_CONSTRAINT)) {
+					throw e;
+				}
+				purchased = false;
+			}
+
+			if (purchased == null) {
+				return false;
+			}
+			if (purchased) {
+				catalogCache.invalidateCoupon(c.getId());
+				purchasedIndex.addPurchase(customer.getId(), c.getId());
+				purchaseFilter.add(c.getId(), customer.getId());
+				marketplace.purchased(c.getId(), 1);
+				return true;
+			}
+
+			//Otherwise - find out why the coupon could not be purchased
+			Coupon couponInDb = couponRepo.findOne(c.getId());
+
+			//If the coupon does not exist - throw exception
+			if (couponInDb == null) {
+				throw new CouponNotFoundException("Customer "+customer.getCustomerName()
+				+" cannot purchase coupon. Coupon "+ c.getTitle()+ " does not exist.");	
+			}
+
+			//If the customer had already purchased this coupon - throw exception
+			else if(couponRepo.existsCustomerCoupon(customer.getId(), c.getId())) {
+				throw new CouponAlreadyPurchasedException("Customer "+customer.getCustomerName()
+				+" cannot purchase coupon. Coupon "+ c.getTitle()+ " has already been purchased by this customer.");		
+			}
+
+			//If the coupon has expired - throw exception
+			else if (couponInDb.getEndDate().before(today)) {
+				throw new CouponExpiredException("Customer "+customer.getCustomerName()
+				+" cannot purchase coupon. Coupon "+ c.getTitle()+ " has expired.");		
+			}
+
+			//Otherwise the coupon is out of stock - throw exception
+			else {
+				throw new CouponOutOfStockException("Customer "+customer.getCustomerName()
+				+" cannot purchase coupon. Coupon "+ c.getTitle()+ " is out of stock.");	
+			}
 
-		//If the coupon does not exist - return connection and throw exception
-		if (!couponRepo.exists(c.getId())) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new CouponNotFoundException("Customer "+this.loginCustomer.getCustomerName()
-			+" cannot purchase coupon. Coupon "+ c.getTitle()+ " does not exist.");	
 		}
+	}	
 
-		//If the customer had already purchased this coupon - return connection and throw exception
-		else if(couponRepo.findCustomerCoupon(this.loginCustomer.getId(), c.getId()) != null) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new CouponAlreadyPurchasedException("Customer "+this.loginCustomer.getCustomerName()
-			+" cannot purchase coupon. Coupon "+ c.getTitle()+ " has already been purchased by this customer.");		
+	/*
+	 * Purchase coupons
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#purchaseCoupons(java.util.Collection, com.jb.couponsystem.entities.Customer)
+	 */
+	@Override
+	public Map<Coupon, PurchaseOutcome> purchaseCoupons(Collection<Coupon> coupons, Customer customer) throws InterruptedException {
+
+		Map<Coupon, PurchaseOutcome> outcomes = new LinkedHashMap<>();
+		Map<Long, Coupon> toPurchase = new LinkedHashMap<>();
+
+		for (Coupon c : coupons) {
+			//A hot coupon is sold from memory, the others are purchased together in the database
+			PurchaseOutcome hotOutcome = purchaseHotCoupon(c, customer);
+			if (hotOutcome != null) {
+				outcomes.put(c, hotOutcome);
+			}
+			//The same coupon given twice is purchased once
+			else if (toPurchase.putIfAbsent(c.getId(), c) != null) {
+				outcomes.put(c, PurchaseOutcome.ALREADY_PURCHASED);
+			}
+			else {
+				outcomes.put(c, null);
+			}
 		}
 
-		//If the coupon is out of stock - return connection and throw exception
-		else if (c.getAmount()==0) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new CouponOutOfStockException("Customer "+this.loginCustomer.getCustomerName()
-			+" cannot purchase coupon. Coupon "+ c.getTitle()+ " is out of stock.");	
-		}	
+		if (toPurchase.isEmpty()) {
+			return outcomes;
+		}
 
-		//If the coupon has expired - return connection and throw exception
-		else if (c.getEndDate().before(today)) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new CouponExpiredException("Customer "+this.loginCustomer.getCustomerName()
-			+" cannot purchase coupon. Coupon "+ c.getTitle()+ " has expired.");		
+		List<Long> hotIds = new ArrayList<>();
+		List<Long> purchasedIds = new ArrayList<>();
+
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+
+			Date today = new Date();
+			NamedParameterJdbcTemplate namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+			MapSqlParameterSource params = new MapSqlParameterSource("ids", toPurchase.keySet())
+					.addValue("customerId", customer.getId());
+
+			//A transaction rolled back by a deadlock, or by the same purchase made meanwhile in another session, is tried again
+			for (int attempt = 1; ; attempt++) {
+				final boolean firstAttempt = attempt == 1;
+				hotIds.clear();
+				purchasedIds.clear();
+				try {
+					new TransactionTemplate(transactionManager).execute(status -> {
+
+						//Lock the coupons in the order of their ids, so carts with the same coupons wait for each other
+						//instead of deadlocking. While a coupon is locked no other purchase of it can start,
+						//so the checks below hold until the transaction ends.
+						Map<Long, Integer> amounts = new HashMap<>();
+						Map<Long, Date> endDates = new HashMap<>();
+						namedJdbcTemplate.query("SELECT id, amount, end_date FROM coupons WHERE id IN (:ids) ORDER BY id FOR UPDATE",
+								params, rs -> {
+									amounts.put(rs.getLong("id"), rs.getInt("amount"));
+									endDates.put(rs.getLong("id"), rs.getTimestamp("end_date"));
+								});
+						//The customer's coupons are queried only if the purchase filter cannot rule out all of them
+						//(the filter is not trusted again after a purchase of the same coupon was found meanwhile)
+						Set<Long> owned = new HashSet<>();
+						if (!firstAttempt || toPurchase.keySet().stream().anyMatch(id -> purchaseFilter.mightContain(id, customer.getId()))) {
+							owned.addAll(namedJdbcTemplate.queryForList(
+									"SELECT coupon_id FROM customer_coupon WHERE customer_id = :customerId AND coupon_id IN (:ids)",
+									params, Long.class));
+						}
+
+						List<Long> taken = new ArrayList<>();
+						for (Long id : toPurchase.keySet()) {
+							if (!amounts.containsKey(id)) {
+								outcomes.put(toPurchase.get(id), PurchaseOutcome.NOT_FOUND);
+							}
+							//A coupon made hot meanwhile has its stock in memory, without this purchase
+							else if (hotCouponStock.isHot(id)) {
+								outcomes.put(toPurchase.get(id), null);
+								hotIds.add(id);
+							}
+							else if (owned.contains(id)) {
+								outcomes.put(toPurchase.get(id), PurchaseOutcome.ALREADY_PURCHASED);
+							}
+							else if (endDates.get(id).before(today)) {
+								outcomes.put(toPurchase.get(id), PurchaseOutcome.EXPIRED);
+							}
+							else if (amounts.get(id) < 1) {
+								outcomes.put(toPurchase.get(id), PurchaseOutcome.OUT_OF_STOCK);
+							}
+							else {
+								taken.add(id);
+							}
+						}
+						if (taken.isEmpty()) {
+							return null;
+						}
+
+						//Decrease the amounts and add the coupons to the customer's coupons, with one statement each
+						namedJdbcTemplate.update("UPDATE coupons SET amount = amount - 1 WHERE id IN (:taken)",
+								new MapSqlParameterSource("taken", taken));
+						jdbcTemplate.batchUpdate("INSERT INTO customer_coupon (coupon_id, customer_id) VALUES (?, ?)",
+								taken, taken.size(), (ps, id) -> {
+									ps.setLong(1, id);
+									ps.setLong(2, customer.getId());
+								});
+						for (Long id : taken) {
+							outcomes.put(toPurchase.get(id), PurchaseOutcome.PURCHASED);
+						}
+						purchasedIds.addAll(taken);
+						return null;
+					});
+					break;
+				}
+				catch (ConcurrencyFailureException e) {
+					if (attempt == CART_ATTEMPTS) {
+						throw e;
+					}
+				}
+				catch (DataIntegrityViolationException e) {
+					if (attempt == CART_ATTEMPTS || !ConstraintViolations.isViolated(e, Customer.PURCHASE_CONSTRAINT)) {
+						throw e;
+					}
+				}
+			}
+
+			//The amounts of the purchased coupons were changed
+			for (Long id : purchasedIds) {
+				catalogCache.invalidateCoupon(id);
+				purchasedIndex.addPurchase(customer.getId(), id);
+				purchaseFilter.add(id, customer.getId());
+				marketplace.purchased(id, 1);
+			}
 		}
 
-		//Otherwise - add the customer to coupon customers, update amount and return connection
-		else {
+		//The coupons which became hot meanwhile are purchased again from memory, after the connection was returned
+		if (!hotIds.isEmpty()) {
+			List<Coupon> again = new ArrayList<>();
+			for (Long id : hotIds) {
+				again.add(toPurchase.get(id));
+			}
+			outcomes.putAll(purchaseCoupons(again, customer));
+		}
+		return outcomes;
+	}
+
+	/**
+	 * This method checks exactly if the logged in customer has purchased a coupon:
+	 * from the purchased coupon index if the ids of the customer are kept, otherwise with one query.
+	 *
+	 * @param customer the logged in customer
+	 * @param couponId id of the coupon
+	 * @return true if the customer has purchased the coupon
+	 */
+	private boolean isPurchased(Customer customer, long couponId) {
+		Boolean purchased = purchasedIndex.isPurchased(customer.getId(), couponId);
+		return purchased != null ? purchased : couponRepo.existsCustomerCoupon(customer.getId(), couponId);
+	}
+
+	/**
+	 * This method purchases a coupon sold from memory, turning the exceptions into outcomes.
+	 *
+	 * @param c coupon object
+	 * @param customer the logged in customer
+	 * @return the outcome, or null if the coupon is not hot
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection or for the deactivation
+	 */
+	private PurchaseOutcome purchaseHotCoupon(Coupon c, Customer customer) throws InterruptedException {
+		try {
+			return hotCouponStock.purchase(c, customer) ? PurchaseOutcome.PURCHASED : null;
+		}
+		catch (CouponNotFoundException e) {
+			return PurchaseOutcome.NOT_FOUND;
+		}
+		catch (CouponAlreadyPurchasedException e) {
+			return PurchaseOutcome.ALREADY_PURCHASED;
+		}
+		catch (CouponExpiredException e) {
+			return PurchaseOutcome.EXPIRED;
+		}
+		catch (CouponOutOfStockException e) {
+			return PurchaseOutcome.OUT_OF_STOCK;
+		}
+	}
+
+	/**
+	 * This method returns all the coupons of the logged in company from the catalog cache,
+	 * loading them with one query if they are not cached.
+	 *
+	 * @param company the logged in company
+	 * @return copies of the coupons of the company
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	private List<Coupon> companyCoupons(Company company) throws InterruptedException {
+		return catalogCache.getCompanyCoupons(company.getId(), () -> {
 
-			couponCustomers.add(this.loginCustomer);
-			c.setAmount(c.getAmount()-1);
-			couponRepo.save(c);
-			ConnectionPool.getInstance().returnConnection(dbConnection);
+			//Ask for connection from the connection pool - it is returned when the try block ends
+			try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+				return couponRepo.findCouponByCompanyId(company.getId());
 			}
+		});
+	}
 
-	}	
+	/*
+	 * Get all purchased coupons
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CouponDAO#getAllPurchasedCoupons(com.jb.couponsystem.entities.Customer)
+	 */
+	@Override
+	public Collection<Coupon> getAllPurchasedCoupons(Customer customer) throws CouponNotFoundException, InterruptedException {
+
+		Collection<Coupon> coupons = purchasedCoupons(customer);
+
+		//If the customer has no coupons - throw exception
+		if (coupons.isEmpty()) {
+			throw new CouponNotFoundException ("Customer "+ customer.getCustomerName()
+			+ " does not have any coupons.");
+		}
+
+		//Otherwise - return customer's coupons
+		else {
+			return coupons;
+		}
+	}
 
 	/*
 	 * Get all purchased coupons by type
 	 * 
 	 * (non-Javadoc)
-	 * @see com.jb.couponsystem.dao.CouponDAO#getAllPurchasedCouponsByType(com.jb.couponsystem.enums.CouponType)
+	 * @see com.jb.couponsystem.dao.CouponDAO#getAllPurchasedCouponsByType(com.jb.couponsystem.enums.CouponType, com.jb.couponsystem.entities.Customer)
 	 */
 	@Override
-	public Collection<Coupon> getAllPurchasedCouponsByType(CouponType type) throws CouponNotFoundException, InterruptedException {
+	public Collection<Coupon> getAllPurchasedCouponsByType(CouponType type, Customer customer) throws CouponNotFoundException, InterruptedException {
 
-		//Ask for connection from the connection pool
-				DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
-		
-		Collection<Coupon> coupons =
-				(Collection<Coupon>) couponRepo.findCustomerCouponsByType(this.loginCustomer.getId(), type);	
+		//Filter the purchased coupons in memory
+		Collection<Coupon> coupons = new ArrayList<>();
+		for (Coupon c : purchasedCoupons(customer)) {
+			if (c.getType() == type) {
+				coupons.add(c);
+			}
+		}
 
-		//If the customer does not have coupons of this type - return connection and throw exception
+		//If the customer does not have coupons of this type - throw exception
 		if (coupons.isEmpty())  {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new CouponNotFoundException ("Customer " + this.loginCustomer.getCustomerName() +
+			throw new CouponNotFoundException ("Customer " + customer.getCustomerName() +
 					" has not purchased coupons of type "+ type + ".");
 		}
-		//Otherwise - return connection and return the coupons 
+		//Otherwise - return the coupons 
 		else {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
 			return coupons;
 		}
 	}
@@ -493,61 +940,201 @@ public class CouponDBDAO implements CouponDAO {
 	 * Get all purchased coupons by price
 	 * 
 	 * (non-Javadoc)
-	 * @see com.jb.couponsystem.dao.CouponDAO#getAllPurchasedCouponsByPrice(double)
+	 * @see com.jb.couponsystem.dao.CouponDAO#getAllPurchasedCouponsByPrice(double, com.jb.couponsystem.entities.Customer)
 	 */
 	@Override
-	public Collection<Coupon> getAllPurchasedCouponsByPrice(double price) throws CouponNotFoundException, InterruptedException {
+	public Collection<Coupon> getAllPurchasedCouponsByPrice(double price, Customer customer) throws CouponNotFoundException, InterruptedException {
 
-		//Ask for connection from the connection pool
-				DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
-				
-				Collection<Coupon> coupons =
-				(Collection<Coupon>) couponRepo.findCustomerCouponsByMaxPrice(this.loginCustomer.getId(), price);
+		//Filter the purchased coupons in memory
+		Collection<Coupon> coupons = new ArrayList<>();
+		for (Coupon c : purchasedCoupons(customer)) {
+			if (c.getPrice() <= price) {
+				coupons.add(c);
+			}
+		}
 
-		//If the customer does not have coupons under this price - return connection and throw exception
+		//If the customer does not have coupons under this price - throw exception
 		if (coupons.isEmpty())  {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new CouponNotFoundException ("Customer " + this.loginCustomer.getCustomerName() +
+			throw new CouponNotFoundException ("Customer " + customer.getCustomerName() +
 					" has not purchased coupons under price "+ price + ".");
 		}
 
-		//Otherwise - return connection and return the coupons 
+		//Otherwise - return the coupons 
 		else {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
 			return coupons;
-		} 
+		}
+	}
+
+	/**
+	 * This method loads the ids of the coupons purchased by the logged in customer into the purchased coupon index,
+	 * if they are not kept there already, so the next reads of the customer's coupons need no subquery.
+	 * It is called when the customer logs in.
+	 *
+	 * @param customer the logged in customer
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	public void indexPurchasedCoupons(Customer customer) throws InterruptedException {
+		purchasedCouponIds(customer);
+	}
+
+	/**
+	 * This method returns the ids of the coupons purchased by the logged in customer from the purchased coupon index,
+	 * loading them with one query if they are not kept.
+	 *
+	 * @param customer the logged in customer
+	 * @return the ids of the customer's coupons
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	private long[] purchasedCouponIds(Customer customer) throws InterruptedException {
+		return purchasedIndex.getCouponIds(customer.getId(), () -> {
+
+			//Ask for connection from the connection pool - it is returned when the try block ends
+			try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+				return couponRepo.findCustomerCouponIds(customer.getId());
+			}
+		});
+	}
+
+	/**
+	 * This method returns the coupons purchased by the logged in customer: their ids are read from the purchased coupon index,
+	 * and the coupons from the catalog cache. The coupons which are not cached are loaded together with one query.
+	 *
+	 * @param customer the logged in customer
+	 * @return copies of the customer's coupons
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	private List<Coupon> purchasedCoupons(Customer customer) throws InterruptedException {
+		long[] ids = purchasedCouponIds(customer);
+		if (ids.length == 0) {
+			return new ArrayList<>();
+		}
+		Arrays.sort(ids);
+		List<Long> couponIds = new ArrayList<>(ids.length);
+		for (long id : ids) {
+			couponIds.add(id);
+		}
+		return catalogCache.getCoupons(couponIds, missing -> {
+			Map<Long, Coupon> loaded = new HashMap<>();
+
+			//Ask for connection from the connection pool - it is returned when the try block ends
+			try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+				for (Coupon c : couponRepo.findWithCompanyByIdIn(missing)) {
+					loaded.put(c.getId(), c);
+				}
+			}
+			return loaded;
+		});
 	}
 	
 	/**
-	 * This method removes all expired coupons from the database.
-	 * It creates a list of coupons and a today Date object.
-	 * Then in the for-each loop it calls the CouponRepo Interface
-	 * to remove those coupons the end date of which is before today from the database.
-	 * 
+	 * This method removes all expired coupons, and their purchases, from the database
+	 * in chunks of the default size.
+	 *
+	 * @return the report of the removal
 	 * @throws CouponNotFoundException if there is no coupons in the database
-	 * 
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 * @see #removeExpiredCoupons(int)
 	 */
-	public void removeExpiredCoupons () throws CouponNotFoundException {
+	public PurgeReport removeExpiredCoupons () throws CouponNotFoundException, InterruptedException {
+		return removeExpiredCoupons(PURGE_CHUNK_SIZE);
+	}
+
+	/**
+	 * This method removes all expired coupons, and their purchases, from the database.
+	 * The coupons are removed in chunks: each chunk finds the ids of at most chunkSize coupons
+	 * the end date of which is before today, and deletes their customer_coupon rows and the coupons
+	 * in its own transaction, with its own connection from the pool. No coupon is loaded as an entity.
+	 * A chunk that was committed stays removed, so a run that was stopped is continued by running it again.
+	 * If the thread is interrupted, the run stops before the next chunk with InterruptedException.
+	 * The number of removed rows and the time of each chunk are printed and returned in the report.
+	 *
+	 * @param chunkSize maximal number of coupons removed in one transaction
+	 * @return the report of the removal
+	 * @throws CouponNotFoundException if there is no coupons in the database
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	public PurgeReport removeExpiredCoupons (int chunkSize) throws CouponNotFoundException, InterruptedException {
 
 		System.out.println("Searching for expired coupons...");
 
+		PurgeReport report = new PurgeReport();
+		long start = System.nanoTime();
 		Date today= new Date();
+		NamedParameterJdbcTemplate namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+		List<Long> removedIds = new ArrayList<>();
 
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 			if (!couponRepo.anyCouponsExist()) {
-			throw new CouponNotFoundException ("No coupons found.");
+				throw new CouponNotFoundException ("No coupons found.");
+			}
 		}
-		else {
-			List<Coupon> coupons = (List<Coupon>) couponRepo.findAll();	
-			for (Coupon c : coupons) {
-				if (c.getEndDate().before(today)) {
 
-					couponRepo.removeCouponById(c.getId());
+		//The purchases in progress of a hot coupon are written before it is removed
+		hotCouponStock.deactivateExpired(today);
 
-					System.err.println("Coupon " + c.getTitle() + " has expired."
-							+ " It was removed from the database.");
+		int found;
+		do {
+			//A cancelled run stops between chunks - the committed chunks stay removed
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedException("Removal of expired coupons was cancelled after "
+						+ report.getChunks() + " chunks.");
+			}
+			long chunkStart = System.nanoTime();
+
+			//Ask for connection from the connection pool - it is returned when the try block ends
+			try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+
+				int[] removed = new TransactionTemplate(transactionManager).execute(status -> {
+					List<Long> ids = jdbcTemplate.queryForList(
+							"SELECT id FROM coupons WHERE end_date < ? ORDER BY id LIMIT ?", Long.class,
+							new Timestamp(today.getTime()), chunkSize);
+					if (ids.isEmpty()) {
+						return new int[] {0, 0, 0};
+					}
+
+					//The end date is checked again, in case a coupon was extended after it was found
+					MapSqlParameterSource params = new MapSqlParameterSource("ids", ids)
+							.addValue("today", new Timestamp(today.getTime()));
+					int purchases = namedJdbcTemplate.update("DELETE FROM customer_coupon WHERE coupon_id IN "
+							+ "(SELECT id FROM coupons WHERE id IN (:ids) AND end_date < :today)", params);
+					int coupons = namedJdbcTemplate.update(
+							"DELETE FROM coupons WHERE id IN (:ids) AND end_date < :today", params);
+
+					//Only the coupons actually deleted leave the caches - the extended ones are still in the table
+					removedIds.addAll(ids);
+					if (coupons < ids.size()) {
+						removedIds.removeAll(new HashSet<>(namedJdbcTemplate.queryForList(
+								"SELECT id FROM coupons WHERE id IN (:ids)", params, Long.class)));
+					}
+					return new int[] {ids.size(), coupons, purchases};
+				});
+				for (Long id : removedIds) {
+					catalogCache.invalidateCoupon(id);
+				}
+				purchasedIndex.removeCoupons(removedIds);
+				marketplace.removeAll(removedIds);
+				textIndex.removeAll(removedIds);
+				removedIds.clear();
+
+				found = removed[0];
+				if (found > 0) {
+					long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - chunkStart);
+					report.addChunk(removed[1], removed[2], millis);
+					System.out.println("Removed " + removed[1] + " expired coupons and " + removed[2]
+							+ " of their purchases in chunk " + report.getChunks() + " (" + millis + " ms).");
 				}
 			}
+		} while (found == chunkSize);
+
+		//The removed purchases are dropped from the purchase filter, which is resized for the purchases left
+		if (report.getPurchasesRemoved() > 0) {
+			purchaseFilter.rebuild();
 		}
+
+		report.setTotalMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		System.out.println("Expired coupons removed: " + report);
+		return report;
 	}
 
 }
@@ -3,64 +3,67 @@ package com.jb.couponsystem.dbdao;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
 
+import com.jb.couponsystem.cache.PurchasedCouponIndex;
 import com.jb.couponsystem.connection.ConnectionPool;
-import com.jb.couponsystem.connection.DbConnection;
+import com.jb.couponsystem.connection.ConnectionLease;
 import com.jb.couponsystem.dao.CustomerDAO;
+import com.jb.couponsystem.dao.KeysetPage;
 import com.jb.couponsystem.entities.Company;
 import com.jb.couponsystem.entities.Coupon;
 import com.jb.couponsystem.entities.Customer;
+import com.jb.couponsystem.enums.ClientType;
 import com.jb.couponsystem.exceptions.CouponAlreadyExistsException;
 import com.jb.couponsystem.exceptions.CouponAlreadyPurchasedException;
 import com.jb.couponsystem.exceptions.CouponExpiredException;
 import com.jb.couponsystem.exceptions.CouponNotFoundException;
 import com.jb.couponsystem.exceptions.CouponOutOfStockException;
 import com.jb.couponsystem.exceptions.IllegalUpdateException;
+import com.jb.couponsystem.exceptions.LoginRejectedException;
 import com.jb.couponsystem.exceptions.UserAlreadyExistsException;
 import com.jb.couponsystem.exceptions.UserNotFoundException;
 import com.jb.couponsystem.exceptions.WrongPasswordException;
 import com.jb.couponsystem.repo.CustomerRepo;
+import com.jb.couponsystem.security.CredentialVerifier;
+import com.jb.couponsystem.security.LoginPrincipal;
+import com.jb.couponsystem.security.PasswordHasher;
 
 /**
  * This class contains methods that call CustomerRepo interface in order
  * to perform operations on customer objects in the database.
   * Since the number of connections to the system is limited, each method begins with sending  
  * a request for connection from the pool of connections.
- * Also, at the end of each method the connection is returned back to the connection pool.
+ * The connection is taken in a try-with-resources block, so it is returned back to the connection pool
+ * at the end of each method, also when the repository throws an exception.
  *   
  * @author Alexander Zablotsky
  *
  */
 @Component
+@SuppressWarnings("try") // the connection leases are held, not referenced (see ConnectionLease)
 public class CustomerDBDAO implements CustomerDAO {
 
 	//Attributes
 	@Autowired
 	CustomerRepo customerRepo;
 
-	private Customer loginCustomer;
-
-	//Getters and setters - for login customer
+	@Autowired
+	PasswordHasher passwordHasher;
 
-	/**
-	 * 
-	 * @return the loginCustomer
-	 */
-	public Customer getLoginCustomer() {
-		return loginCustomer;
-	}
+	@Autowired
+	PlatformTransactionManager transactionManager;
 
+	@Autowired
+	CredentialVerifier credentialVerifier;
 
-	/**
-	 * 
-	 * @param loginCustomer the loginCustomer to set
-	 */
-	public void setLoginCustomer(Customer loginCustomer) {
-		this.loginCustomer = loginCustomer;
-	}
+	@Autowired
+	PurchasedCouponIndex purchasedIndex;
 
 //Methods
 	
@@ -74,26 +77,26 @@ public class CustomerDBDAO implements CustomerDAO {
 	@Override
 	public void createCustomer(Customer c) throws UserAlreadyExistsException, InterruptedException {
 
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 		
-		//If a customer with this ID already exists - return connection and throw exception
-		if (customerRepo.exists(c.getId())) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new UserAlreadyExistsException ("Cannot create new customer. Customer id=" + c.getId() + " already exists.");
-		}
+			//If a customer with this ID already exists - throw exception
+			if (customerRepo.exists(c.getId())) {
+				throw new UserAlreadyExistsException ("Cannot create new customer. Customer id=" + c.getId() + " already exists.");
+			}
 
-		//If a customer with this name already exists - return connection and throw exception
-//		if (this.customerNameExists(c.getCustomerName())) {
-		if (customerRepo.existsByCustomerName(c.getCustomerName())){
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new UserAlreadyExistsException ("Cannot create new customer. Customer name " + c.getCustomerName() + " already exists.");
-		}
-		//Otherwise - create a customer and return connection
-		else {
-			customerRepo.save(c);
-			ConnectionPool.getInstance().returnConnection(dbConnection);
+			//Otherwise - create a customer. If a customer with this name already exists, the unique name is violated - throw exception
+			hashPassword(c, null);
+			try {
+				customerRepo.save(c);
+			}
+			catch (DataIntegrityViolationException e) {
+				if (ConstraintViolations.isViolated(e, Customer.NAME_CONSTRAINT)) {
+					throw new UserAlreadyExistsException ("Cannot create new customer. Customer name " + c.getCustomerName() + " already exists.");
+				}
+				throw e;
 			}
+		}
 	}
 
 
@@ -107,22 +110,21 @@ public class CustomerDBDAO implements CustomerDAO {
 	@Override
 	public void removeCustomer(Customer c) throws UserNotFoundException, InterruptedException {
 
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 		
+			//If a customer with this ID does not exist - throw exception
+			if  (!customerRepo.exists(c.getId())) {
+				throw new UserNotFoundException ("Cannot remove customer. Customer " + c 
+						+ " does not exist.");
+			}
+			//Otherwise - remove customer
+			else {
+				customerRepo.delete(c);
+				purchasedIndex.removeCustomer(c.getId());
+			}
 
-		//If a customer with this ID does not exist - return connection and throw exception
-		if  (!customerRepo.exists(c.getId())) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new UserNotFoundException ("Cannot remove customer. Customer " + c 
-					+ " does not exist.");
-		}
-		//Otherwise - remove customer and return connection
-		else {
-			customerRepo.delete(c);
-			ConnectionPool.getInstance().returnConnection(dbConnection);
 		}
-
 	}
 
 	/*
@@ -135,31 +137,30 @@ public class CustomerDBDAO implements CustomerDAO {
 	@Override
 	public void updateCustomer(Customer c) throws UserNotFoundException, IllegalUpdateException, InterruptedException {
 
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 				
-		//Compare to the customer in DB
-		Customer customerInDb = customerRepo.findOne(c.getId());
-
-		//If a customer with this ID does not exist in the DB - return connection and throw exception 
-		if  (customerInDb==null) { 
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new UserNotFoundException ("Cannot update customer. Customer " + c 
-					+ " does not exist.");
-		}
+			//Compare to the customer in DB
+			Customer customerInDb = customerRepo.findOne(c.getId());
 
-		//If a customer name was changed - return connection and throw exception		
-		else if (!customerInDb.getCustomerName().equals(c.getCustomerName())) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new IllegalUpdateException ("Cannot update customer "
-					+ customerInDb.getCustomerName()
-					+ ". Customer name cannot be changed."); 
-		}
+			//If a customer with this ID does not exist in the DB - throw exception 
+			if  (customerInDb==null) { 
+				throw new UserNotFoundException ("Cannot update customer. Customer " + c 
+						+ " does not exist.");
+			}
+
+			//If a customer name was changed - throw exception		
+			else if (!customerInDb.getCustomerName().equals(c.getCustomerName())) {
+				throw new IllegalUpdateException ("Cannot update customer "
+						+ customerInDb.getCustomerName()
+						+ ". Customer name cannot be changed."); 
+			}
 
-		//Otherwise - update customer and return connection
-		else {
-			customerRepo.save(c);
-			ConnectionPool.getInstance().returnConnection(dbConnection);
+			//Otherwise - update customer
+			else {
+				hashPassword(c, customerInDb.getPassword());
+				customerRepo.save(c);
+			}
 		}
 	}
 
@@ -173,20 +174,21 @@ public class CustomerDBDAO implements CustomerDAO {
 	@Override
 	public Customer getCustomer(long id) throws UserNotFoundException, InterruptedException {
 
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 				
-		//If the customer with this ID does not exist - return connection and throw exception
-		if  (!customerRepo.exists(id))  {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new UserNotFoundException ("Cannot display customer details. "
-					+ "Customer id=" + id + " does not exist.");
-		}
-		//Otherwise - return connection and return customer
-		else {
-			Customer c= customerRepo.findOne(id);
-			ConnectionPool.getInstance().returnConnection(dbConnection);			
-			return c;
+			//One query for the customer and his/her coupons - a customer who does not exist is not found
+			Customer c = customerRepo.findWithCouponsById(id);
+
+			//If the customer with this ID does not exist - throw exception
+			if  (c == null)  {
+				throw new UserNotFoundException ("Cannot display customer details. "
+						+ "Customer id=" + id + " does not exist.");
+			}
+			//Otherwise - return customer
+			else {
+				return c;
+			}
 		}
 	}
 
@@ -198,50 +200,73 @@ public class CustomerDBDAO implements CustomerDAO {
 	 */
 	@Override
 	public Collection<Customer> getAllCustomers() throws UserNotFoundException, InterruptedException {
-		//Ask for connection from the connection pool
-		DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 		
-		Collection<Customer> cust = (Collection<Customer>) customerRepo.findAll();
+			Collection<Customer> cust = (Collection<Customer>) customerRepo.findAll();
 
-		//If no customers exist - return connection and throw exception
-		if (cust.isEmpty())  {
-			ConnectionPool.getInstance().returnConnection(dbConnection);	
-			throw new UserNotFoundException ("No customers were found.");
-		}
-		//Otherwise - return connection and return all the customers 
-		else {
-			ConnectionPool.getInstance().returnConnection(dbConnection);	
-			return cust;
+			//If no customers exist - throw exception
+			if (cust.isEmpty())  {
+				throw new UserNotFoundException ("No customers were found.");
+			}
+			//Otherwise - return all the customers 
+			else {
+				return cust;
+			}
 		}
 	}
 
 
+	/*
+	 * Get a page of customers
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CustomerDAO#getCustomersPage(long, int)
+	 */
+	@Override
+	public KeysetPage<Customer> getCustomersPage(long afterId, int size) throws InterruptedException {
+		return KeysetPages.read(transactionManager, afterId, size, Customer::getId,
+				page -> customerRepo.findPage(afterId, page));
+	}
+
+	/*
+	 * Stream all customers
+	 * 
+	 * (non-Javadoc)
+	 * @see com.jb.couponsystem.dao.CustomerDAO#streamAllCustomers()
+	 */
+	@Override
+	public Stream<Customer> streamAllCustomers() {
+		return KeysetPage.stream(afterId -> getCustomersPage(afterId, KeysetPage.MAX_SIZE));
+	}
+
 	/*
 	 * 
 	 * Get all customer's coupons
 	 * 
 	 * (non-Javadoc)
-	 * @see com.jb.couponsystem.dao.CustomerDAO#getCoupons()
+	 * @see com.jb.couponsystem.dao.CustomerDAO#getCoupons(com.jb.couponsystem.entities.Customer)
 	 */
 	@Override
-	public Collection<Coupon> getCoupons() throws CouponNotFoundException, InterruptedException {
+	public Collection<Coupon> getCoupons(Customer customer) throws CouponNotFoundException, InterruptedException {
 		
-		//Ask for connection from the connection pool
-				DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
 				
-		Collection<Coupon> coupons = this.loginCustomer.getCoupons();
-
-		//If the customer has no coupons - return connection and throw exception
-		if (coupons.isEmpty()) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new CouponNotFoundException ("Customer "+ this.loginCustomer.getCustomerName()
-			+ " does not have any coupons.");
-		}
+			//Load the customer's coupons with one statement - the logged in customer does not hold them
+			Customer customerInDb = customerRepo.findWithCouponsById(customer.getId());
+			Collection<Coupon> coupons = customerInDb == null ? null : customerInDb.getCoupons();
+
+			//If the customer has no coupons - throw exception
+			if (coupons == null || coupons.isEmpty()) {
+				throw new CouponNotFoundException ("Customer "+ customer.getCustomerName()
+				+ " does not have any coupons.");
+			}
 
-		//Otherwise - return connection and return customer's coupons
-		else {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			return coupons;
+			//Otherwise - return customer's coupons
+			else {
+				return coupons;
+			}
 		}
 	}
 
@@ -254,35 +279,43 @@ public class CustomerDBDAO implements CustomerDAO {
 	 * @see com.jb.couponsystem.dao.CustomerDAO#login(java.lang.String, java.lang.String)
 	 */
 	@Override
-	public boolean login(String customerName, String password) 
-			throws UserNotFoundException, WrongPasswordException, InterruptedException {
+	public Customer login(String customerName, String password) 
+			throws UserNotFoundException, WrongPasswordException, LoginRejectedException, InterruptedException {
 
-		//Ask for connection from the connection pool
-				DbConnection dbConnection = ConnectionPool.getInstance().getConnection();
-				
-		//If a customer with this name does not exist - return connection and throw exception
-		if (!customerRepo.existsByCustomerName(customerName)) {
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new UserNotFoundException ("Login failed. Customer name " 
-					+ customerName + " does not exist.");
+		LoginPrincipal principal;
+
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+
+			//Find the id, name and password hash of the customer by its unique name - one indexed query
+			principal = customerRepo.findLoginPrincipal(customerName);
 		}
 
-		//If the password does not fit the name	- return connection and throw exception
-		else if (customerRepo.findByNameAndPwd(customerName, password)==null){	
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			throw new WrongPasswordException("Login failed. Wrong name + password: "
-					+ customerName + ", " + password);
+		//If a customer with this name does not exist - throw exception
+		//(an unknown name is checked against a hash too, so the time of the login does not reveal which names exist)
+		if (principal == null) {
+			credentialVerifier.verifyUnknown(ClientType.CUSTOMER, customerName, password);
+			throw new UserNotFoundException ("Login failed. Customer name " + customerName + " does not exist.");
 		}
 
-		//Otherwise -  set the logged in customer, return connection and return true
-		else {
-			this.setLoginCustomer(customerRepo.findByNameAndPwd(customerName, password));
-			ConnectionPool.getInstance().returnConnection(dbConnection);
-			return true;
+		//If the password does not fit the hash - throw exception
+		//(verified after the connection was returned, so the slow hash does not hold a connection)
+		if (!credentialVerifier.verify(ClientType.CUSTOMER, customerName, password, principal.getPassword())) {
+			throw new WrongPasswordException("Login failed. Wrong password for customer " + customerName);
 		}
 
+		//Otherwise - return the logged in customer, holding only its id and name
+		Customer customer = new Customer();
+		customer.setId(principal.getId());
+		customer.setCustomerName(principal.getName());
+		return customer;
 	}
 
-
+	// replaces the password of the customer by its hash, unless it is the hash already stored for the customer
+	private void hashPassword(Customer c, String storedHash) {
+		if (c.getPassword() != null && !c.getPassword().equals(storedHash)) {
+			c.setPassword(passwordHasher.hash(c.getPassword()));
+		}
+	}
 
 }
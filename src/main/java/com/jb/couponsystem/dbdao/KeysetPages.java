@@ -0,0 +1,58 @@
+package com.jb.couponsystem.dbdao;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.jb.couponsystem.connection.ConnectionLease;
+import com.jb.couponsystem.connection.ConnectionPool;
+import com.jb.couponsystem.dao.KeysetPage;
+
+/**
+ * This class reads the keyset pages of the DBDAO classes.
+ * Each page is read with its own connection from the pool, in its own read-only transaction:
+ * the persistence context of the transaction is closed when the page is returned, so the entities of the page
+ * are detached and nothing of the previous pages is kept by Hibernate, however many pages are read.
+ * The transaction also lets the JDBC driver fetch the rows by the fetch size of the query, instead of all at once.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@SuppressWarnings("try") // the connection leases are held, not referenced (see ConnectionLease)
+final class KeysetPages {
+
+	private KeysetPages() {
+	}
+
+	/**
+	 * This method reads one page.
+	 *
+	 * @param transactionManager the transaction manager of the system
+	 * @param afterId the id after which the page starts
+	 * @param size the number of rows asked for, limited by KeysetPage.size
+	 * @param idOf returns the id of a row
+	 * @param query finds the rows after the id, ordered by id, limited by the given Pageable
+	 * @param <T> type of the rows
+	 * @return the page
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	static <T> KeysetPage<T> read(PlatformTransactionManager transactionManager, long afterId, int size,
+			ToLongFunction<T> idOf, Function<Pageable, List<T>> query) throws InterruptedException {
+
+		int pageSize = KeysetPage.size(size);
+
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+			TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+			transaction.setReadOnly(true);
+			List<T> items = transaction.execute(status -> query.apply(new PageRequest(0, pageSize)));
+			return new KeysetPage<>(items, afterId, pageSize, idOf);
+		}
+	}
+
+}
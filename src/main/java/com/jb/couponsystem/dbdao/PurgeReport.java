@@ -0,0 +1,92 @@
+package com.jb.couponsystem.dbdao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class describes one run of the removal of expired coupons:
+ * how many coupons and purchases were removed, and how long each chunk took.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class PurgeReport {
+
+	//Attributes
+	private int couponsRemoved;
+
+	private int purchasesRemoved;
+
+	// time each chunk took in milliseconds, in the order of the chunks
+	private final List<Long> chunkMillis = new ArrayList<>();
+
+	private long totalMillis;
+
+	//Getters and setters
+	/**
+	 * @return the number of coupons removed
+	 */
+	public int getCouponsRemoved() {
+		return couponsRemoved;
+	}
+
+	/**
+	 * @return the number of purchases (customer_coupon rows) removed
+	 */
+	public int getPurchasesRemoved() {
+		return purchasesRemoved;
+	}
+
+	/**
+	 * @return the number of chunks
+	 */
+	public int getChunks() {
+		return chunkMillis.size();
+	}
+
+	/**
+	 * @return the time each chunk took in milliseconds
+	 */
+	public List<Long> getChunkMillis() {
+		return Collections.unmodifiableList(chunkMillis);
+	}
+
+	/**
+	 * @return the time the whole run took in milliseconds
+	 */
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+
+	/**
+	 * @param totalMillis the totalMillis to set
+	 */
+	void setTotalMillis(long totalMillis) {
+		this.totalMillis = totalMillis;
+	}
+
+	//Methods
+	/**
+	 * This method adds a committed chunk to the report.
+	 *
+	 * @param coupons number of coupons removed by the chunk
+	 * @param purchases number of purchases removed by the chunk
+	 * @param millis time the chunk took in milliseconds
+	 */
+	void addChunk(int coupons, int purchases, long millis) {
+		couponsRemoved += coupons;
+		purchasesRemoved += purchases;
+		chunkMillis.add(millis);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PurgeReport [couponsRemoved=" + couponsRemoved + ", purchasesRemoved=" + purchasesRemoved
+				+ ", chunks=" + getChunks() + ", totalMillis=" + totalMillis + "]";
+	}
+
+}
@@ -10,7 +10,13 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
+import javax.persistence.NamedAttributeNode;
+import javax.persistence.NamedEntityGraph;
 import javax.persistence.OneToMany;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.Hibernate;
 
 /**
  * This class represents the company entity object.
@@ -21,9 +27,15 @@ import javax.persistence.OneToMany;
  *
  */
 @Entity(name="COMPANIES")
+@NamedEntityGraph(name = "Company.coupons", attributeNodes = @NamedAttributeNode("coupons"))
+@Table(uniqueConstraints = @UniqueConstraint(name = Company.NAME_CONSTRAINT, columnNames = "companyName"))
 public class Company implements Serializable {
 	
 //Attributes
+	/**
+	 * Name of the unique constraint of the company name, which also serves the lookups by name
+	 */
+	public static final String NAME_CONSTRAINT = "uk_companies_company_name";
 	
 	//Primary key of the table, generated automatically
 	@Id @GeneratedValue (strategy = GenerationType.IDENTITY)
@@ -44,11 +56,12 @@ public class Company implements Serializable {
 	 * The Coupons attribute is connected to the COUPONS table.
 	 * The connection is one-to-many: one company can issue many coupons, but each coupon is associated with only one company.
 	 * This connection creates the join column COMPANY_ID in COUPONS table.
-	 * Fetch type EAGER: when a company is loaded from the database, all its coupons are loaded with it.
+	 * Fetch type LAZY: the coupons are loaded only when they are used inside a transaction,
+	 * or with the company when it is found with the "Company.coupons" entity graph.
 	 * Cascade type ALL: any change in company entity (save, delete etc.) is also cascaded to all coupons entities associated with it. 
 	 * 
 	 */
-	@OneToMany(fetch = FetchType.EAGER, cascade = CascadeType.ALL)
+	@OneToMany(fetch = FetchType.LAZY, cascade = CascadeType.ALL)
 	@JoinColumn(name="company_id")
 	private Collection<Coupon> coupons;
 	
@@ -167,7 +180,7 @@ public Company(String companyName, String password, String email) {
 	@Override
 	public String toString() {
 		return "Company [id=" + id + ", companyName=" + companyName + ", password=" + password + ", email=" + email
-				+ ", coupons=" + coupons + "]";
+				+ ", coupons=" + (Hibernate.isInitialized(coupons) ? coupons : "[not loaded]") + "]";
 	}
 
 		
@@ -12,11 +12,14 @@ import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 import org.hibernate.annotations.OnDelete;
 import org.hibernate.annotations.OnDeleteAction;
@@ -27,14 +30,29 @@ import com.jb.couponsystem.enums.CouponType;
  * This class represents the coupon entity object.
  * The COUPONS table in the database is generated from this entity, 
  * while its attributes form the columns of the table.
+ * The title is unique, and the lookups of CouponRepo by company (with type, price or end date)
+ * and by end date (removal of expired coupons) are served by indexes.
+ * The keyset pages of the coupons of a company are read in the order of the index by company and id.
  * 
  * @author Alexander Zablotsky
  * 
  */
 @Entity(name="COUPONS")
+@Table(uniqueConstraints = @UniqueConstraint(name = Coupon.TITLE_CONSTRAINT, columnNames = "title"),
+	indexes = {
+		@Index(name = "ix_coupons_company_id", columnList = "company_id, id"),
+		@Index(name = "ix_coupons_company_type", columnList = "company_id, type"),
+		@Index(name = "ix_coupons_company_price", columnList = "company_id, price"),
+		@Index(name = "ix_coupons_company_end_date", columnList = "company_id, endDate"),
+		@Index(name = "ix_coupons_end_date", columnList = "endDate")})
 public class Coupon  implements Serializable {
 
 	//Attributes
+	/**
+	 * Name of the unique constraint of the title
+	 */
+	public static final String TITLE_CONSTRAINT = "uk_coupons_title";
+
 	//Primary key of the table, generated automatically
 	@Id @GeneratedValue (strategy = GenerationType.IDENTITY)
 	private long id;
@@ -68,8 +86,10 @@ public class Coupon  implements Serializable {
 	 * The connection is many-to-one: one company can issue many coupons, but each coupon is associated with only one company.
 	 * This connection creates the join column COMPANY_ID in COUPONS table.
 	 * On delete action CASCADE: when a company is deleted from the database, all its coupons are also deleted.
+	 * Fetch type LAZY: the company is loaded only when it is used, so lists of coupons do not load their companies.
+	 * The queries of CouponRepo whose coupons leave the DAO fetch the company with the coupons.
 	 */
-	@ManyToOne
+	@ManyToOne(fetch = FetchType.LAZY)
 	@JoinColumn(name = "company_id", nullable = false)
 	@OnDelete(action = OnDeleteAction.CASCADE)
 	private Company company;
@@ -79,11 +99,11 @@ public class Coupon  implements Serializable {
 	 * The connection is many-to-many: one customer can own many coupons, and  one coupon also can be owned by many customers.
 	 * This connection creates the join table CUSTOMER_COUPON which contains two columns:
 	 * COUPON_ID (join column, the owning side) and CUSTOMER_ID (inverse join column, the other side).
-	 * Fetch type EAGER: when a coupon is loaded from the database, all its customers are loaded with it.
+	 * Fetch type LAZY: the customers are loaded only when they are used inside a transaction.
 	 * Cascade type DETACH, MERGE, REFRESH: only the changes of the detach, merge or refresh type in the coupon entity
 	 * are cascaded to the customers entities associated with it. 
 	 */
-	@ManyToMany(fetch=FetchType.EAGER, cascade = {CascadeType.DETACH , CascadeType.MERGE, CascadeType.REFRESH})
+	@ManyToMany(fetch=FetchType.LAZY, cascade = {CascadeType.DETACH , CascadeType.MERGE, CascadeType.REFRESH})
 	@JoinTable(name = "customer_coupon",
 	joinColumns = @JoinColumn(name = "coupon_id"),
 	inverseJoinColumns = @JoinColumn(name = "customer_id"))
@@ -9,10 +9,18 @@ import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
+import javax.persistence.NamedAttributeNode;
+import javax.persistence.NamedEntityGraph;
+import javax.persistence.NamedSubgraph;
 import javax.persistence.OneToMany;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.hibernate.Hibernate;
 
 /**
  * This class represents the customer entity object.
@@ -23,9 +31,22 @@ import javax.persistence.OneToMany;
  *
  */
 @Entity(name="CUSTOMERS")
+@NamedEntityGraph(name = "Customer.coupons", attributeNodes = @NamedAttributeNode(value = "coupons", subgraph = "coupons"),
+	subgraphs = @NamedSubgraph(name = "coupons", attributeNodes = @NamedAttributeNode("company")))
+@Table(uniqueConstraints = @UniqueConstraint(name = Customer.NAME_CONSTRAINT, columnNames = "customerName"))
 public class Customer  implements Serializable {
 
 	//Attributes
+	/**
+	 * Name of the unique constraint of the customer name, which also serves the lookups by name
+	 */
+	public static final String NAME_CONSTRAINT = "uk_customers_customer_name";
+
+	/**
+	 * Name of the unique constraint of the purchases in CUSTOMER_COUPON: a customer owns a coupon once
+	 */
+	public static final String PURCHASE_CONSTRAINT = "uk_customer_coupon";
+
 	@Id @GeneratedValue (strategy = GenerationType.IDENTITY)
 	private long id;
 
@@ -40,14 +61,19 @@ public class Customer  implements Serializable {
 	 * The connection is many-to-many: one customer can own many coupons, and one coupon also can be owned by many customers.
 	 * This connection creates the join table CUSTOMER_COUPON which contains two columns:
 	 * CUSTOMER_ID (join column, the owning side) and COUPON_ID (inverse join column, the other side).
-	 * Fetch type EAGER: when a customer is loaded from the database, all his coupons are loaded with it.
+	 * The pair of columns is unique, which also serves the lookups by customer, and COUPON_ID is indexed
+	 * for the lookups and removals by coupon.
+	 * Fetch type LAZY: the coupons are loaded only when they are used inside a transaction,
+	 * or with the customer when he/she is found with the "Customer.coupons" entity graph (with the company of each coupon).
 	 * Cascade type DETACH, MERGE, REFRESH: only the changes of the detach, merge or refresh type in the customer entity
 	 * are cascaded to the coupons entities associated with it. 
 	 */
-	@ManyToMany(fetch=FetchType.EAGER, cascade = {CascadeType.DETACH , CascadeType.MERGE, CascadeType.REFRESH})
+	@ManyToMany(fetch=FetchType.LAZY, cascade = {CascadeType.DETACH , CascadeType.MERGE, CascadeType.REFRESH})
 	@JoinTable(name = "customer_coupon",
 	joinColumns = @JoinColumn(name = "customer_id"),
-	inverseJoinColumns = @JoinColumn(name = "coupon_id"))
+	inverseJoinColumns = @JoinColumn(name = "coupon_id"),
+	uniqueConstraints = @UniqueConstraint(name = Customer.PURCHASE_CONSTRAINT, columnNames = {"customer_id", "coupon_id"}),
+	indexes = @Index(name = "ix_customer_coupon_coupon", columnList = "coupon_id"))
 	private Collection<Coupon> coupons;
 
 
@@ -155,7 +181,7 @@ public class Customer  implements Serializable {
 	@Override
 	public String toString() {
 		return "Customer [id=" + id + ", customerName=" + customerName + ", password=" + password + ", coupons="
-				+ coupons + "]";
+				+ (Hibernate.isInitialized(coupons) ? coupons : "[not loaded]") + "]";
 	}
 
 
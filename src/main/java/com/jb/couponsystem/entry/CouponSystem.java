@@ -6,20 +6,27 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
 import com.jb.couponsystem.connection.ConnectionPool;
+import com.jb.couponsystem.entities.Company;
+import com.jb.couponsystem.entities.Customer;
 import com.jb.couponsystem.enums.ClientType;
+import com.jb.couponsystem.exceptions.LoginRejectedException;
+import com.jb.couponsystem.exceptions.SessionNotFoundException;
 import com.jb.couponsystem.exceptions.UserNotFoundException;
 import com.jb.couponsystem.exceptions.WrongPasswordException;
 import com.jb.couponsystem.facades.AdminFacade;
 import com.jb.couponsystem.facades.CompanyFacade;
 import com.jb.couponsystem.facades.CouponClientFacade;
 import com.jb.couponsystem.facades.CustomerFacade;
+import com.jb.couponsystem.security.ClientContext;
+import com.jb.couponsystem.security.SessionStore;
 import com.jb.couponsystem.tasks.DailyExpirationTask;
+import com.jb.couponsystem.tasks.ExpirationScheduler;
 
 /**
  * This class manages the Coupon System.
  * It allows the users of all types to log in the system,
- * performs daily task of cleaning the expired coupons 
- * (in its constructor), and executes the system shutdown.
+ * keeps their sessions, gives access to the daily task of cleaning the expired coupons
+ * (scheduled by ExpirationScheduler), and executes the system shutdown.
  * This class can generate only one instance in order to provide for 
  * the exclusive management of the system (Singleton design pattern). 
  *  
@@ -39,6 +46,10 @@ public class CouponSystem {
 	private CustomerFacade customerFacade;
 	
 	private DailyExpirationTask dailyExpirationTask;
+
+	private ExpirationScheduler expirationScheduler;
+
+	private SessionStore sessionStore;
 	
 	//CTORS
 	public CouponSystem() {
@@ -53,12 +64,13 @@ public class CouponSystem {
 		
 		customerFacade = new CustomerFacade (ctx);
 				
-		dailyExpirationTask = new DailyExpirationTask(ctx);
-		
-		//Note - the daily expiration task is not for the application tests.
-		//Its thread should not run when the tests are running
-		Thread t = new Thread(dailyExpirationTask);
-		//t.start();
+		//The daily expiration task runs on the thread of the scheduler.
+		//It is disabled in the application tests by coupon.expiration.enabled=false
+		expirationScheduler = ctx.getBean(ExpirationScheduler.class);
+
+		dailyExpirationTask = expirationScheduler.getTask();
+
+		sessionStore = ctx.getBean(SessionStore.class);
 	}
 	
 	//Getters and setters
@@ -130,7 +142,7 @@ public class CouponSystem {
 	 * If the method succeeds, the instance of the user's facade class
 	 * is returned, otherwise it returns null.
 	 * The method catches all exceptions of the login methods of the facades.
-	 * UserNotFoundException and WrongPasswordException are re-thrown.
+	 * UserNotFoundException, WrongPasswordException and LoginRejectedException are re-thrown.
 	 *  
 	 * @param name username
 	 * @param password user's password
@@ -165,6 +177,11 @@ public class CouponSystem {
 			throw e;
 		}
 
+		catch (LoginRejectedException e) {
+			System.err.println(e.getMessage());
+			throw e;
+		}
+
 		catch (InterruptedException e) {
 			System.err.println(e.getMessage());
 		}
@@ -174,16 +191,83 @@ public class CouponSystem {
 	
 	
 	
+	/**
+	 * This method logs in a user and opens a session for it.
+	 * The returned token is given to getFacade instead of logging in again on every request,
+	 * so the database is not asked for the credentials again.
+	 *
+	 * @param name username
+	 * @param password user's password
+	 * @param clientType user's client type
+	 * @return the token of the session if the login succeeds, otherwise null.
+	 */
+	public String openSession(String name, String password, ClientType clientType) {
+		CouponClientFacade facade = login(name, password, clientType);
+		if (facade == null) {
+			return null;
+		}
+
+		ClientContext context;
+		switch (clientType) {
+		case COMPANY:
+			Company company = ((CompanyFacade) facade).getLoginCompany();
+			context = new ClientContext(clientType, company.getId(), company.getCompanyName());
+			break;
+		case CUSTOMER:
+			Customer customer = ((CustomerFacade) facade).getLoginCustomer();
+			context = new ClientContext(clientType, customer.getId(), customer.getCustomerName());
+			break;
+		default:
+			context = new ClientContext(clientType, 0, name);
+		}
+		return sessionStore.open(context);
+	}
+
+	/**
+	 * This method returns the facade of the user of an open session.
+	 * The facade is made from the identity kept by the session, without asking the database.
+	 *
+	 * @param token the token of the session
+	 * @return the facade of the logged in user
+	 * @throws SessionNotFoundException if the session does not exist, has expired or was closed
+	 */
+	public CouponClientFacade getFacade(String token) throws SessionNotFoundException {
+		ClientContext context = sessionStore.resolve(token);
+
+		//If there is no open session with this token - throw exception
+		if (context == null) {
+			throw new SessionNotFoundException("Session not found. Please log in again.");
+		}
+
+		switch (context.getClientType()) {
+		case COMPANY:
+			return companyFacade.resume(context);
+		case CUSTOMER:
+			return customerFacade.resume(context);
+		default:
+			return adminFacade;
+		}
+	}
+
+	/**
+	 * This method closes a session (logout).
+	 *
+	 * @param token the token of the session
+	 * @return true if the session was open
+	 */
+	public boolean logout(String token) {
+		return sessionStore.invalidate(token);
+	}
+
 	/**
 	 * This method executes shutdown of the coupon system.
-	 * It closes all the connections in the connection pool
-	 * and terminates running of the daily expiration task
-	 * by setting the quit variable as true.	 
+	 * It cancels the daily expiration task, interrupting it if it is running,
+	 * and then closes all the connections in the connection pool.
 	 */
 	public void shutdown() {
 		
+		expirationScheduler.shutdown();
 		ConnectionPool.getInstance().closeAllConnections();
-		dailyExpirationTask.setQuit(true);
 		
 	}
 
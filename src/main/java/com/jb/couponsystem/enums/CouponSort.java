@@ -0,0 +1,18 @@
+package com.jb.couponsystem.enums;
+
+/**
+ * This enum contains the attributes by which the coupons found by a coupon search can be sorted.
+ * Coupons with the same value of the attribute are sorted by their ID.
+ * 
+ * @author Alexander Zablotsky
+ *
+ */
+
+public enum CouponSort {
+
+	ID,
+	TITLE,
+	PRICE,
+	END_DATE
+
+}
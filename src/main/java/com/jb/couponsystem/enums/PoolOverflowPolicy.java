@@ -0,0 +1,21 @@
+package com.jb.couponsystem.enums;
+
+/**
+ * This enum contains the behaviours of the connection pool
+ * when all its connections are in use.
+ * 
+ * BLOCK: the user waits for a returned connection, but not longer than the acquire timeout.
+ * FAIL_FAST: the user does not wait, ConnectionPoolExhaustedException is thrown at once.
+ * GROW: an extra connection is created for the user and discarded when it is returned.
+ * 
+ * @author Alexander Zablotsky
+ *
+ */
+
+public enum PoolOverflowPolicy {
+	
+	BLOCK,
+	FAIL_FAST,
+	GROW
+
+}
@@ -0,0 +1,18 @@
+package com.jb.couponsystem.enums;
+
+/**
+ * This enum contains the outcomes of purchasing one coupon of a batch purchase.
+ * 
+ * @author Alexander Zablotsky
+ *
+ */
+
+public enum PurchaseOutcome {
+
+	PURCHASED,
+	NOT_FOUND,
+	ALREADY_PURCHASED,
+	EXPIRED,
+	OUT_OF_STOCK
+
+}
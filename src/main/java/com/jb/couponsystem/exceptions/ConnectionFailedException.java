@@ -0,0 +1,16 @@
+package com.jb.couponsystem.exceptions;
+
+/**
+ * This exception is thrown when a physical connection to the database cannot be opened.
+ * 
+ * @author Alexander Zablotsky
+ *
+ */
+public class ConnectionFailedException extends RuntimeException {
+	
+	public ConnectionFailedException(String message){
+		super(message);
+	}
+
+
+}
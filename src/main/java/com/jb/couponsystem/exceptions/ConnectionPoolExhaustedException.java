@@ -0,0 +1,16 @@
+package com.jb.couponsystem.exceptions;
+
+/**
+ * This exception is thrown when no connection to the database could be given to the user
+ * according to the overflow policy of the connection pool.
+ * 
+ * @author Alexander Zablotsky
+ *
+ */
+public class ConnectionPoolExhaustedException extends RuntimeException {
+
+	public ConnectionPoolExhaustedException (String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,18 @@
+package com.jb.couponsystem.exceptions;
+
+/**
+ * This exception is thrown when a login cannot be verified now
+ * because too many logins are already waiting for verification.
+ * 
+ * @author Alexander Zablotsky
+ *
+ */
+public class LoginRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public LoginRejectedException (String message) {
+		super(message);
+	}
+
+}
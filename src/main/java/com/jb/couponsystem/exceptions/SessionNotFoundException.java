@@ -0,0 +1,18 @@
+package com.jb.couponsystem.exceptions;
+
+/**
+ * This exception is thrown when the token of a session is unknown,
+ * or the session has expired or was closed.
+ * 
+ * @author Alexander Zablotsky
+ *
+ */
+public class SessionNotFoundException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public SessionNotFoundException (String message) {
+		super(message);
+	}
+
+}
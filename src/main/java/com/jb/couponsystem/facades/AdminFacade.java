@@ -3,21 +3,29 @@ package com.jb.couponsystem.facades;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
 
 import com.jb.couponsystem.*;
+import com.jb.couponsystem.dao.KeysetPage;
 import com.jb.couponsystem.dbdao.CompanyDBDAO;
 import com.jb.couponsystem.dbdao.CouponDBDAO;
 import com.jb.couponsystem.dbdao.CustomerDBDAO;
 import com.jb.couponsystem.entities.Company;
 import com.jb.couponsystem.entities.Customer;
+import com.jb.couponsystem.enums.ClientType;
+import com.jb.couponsystem.exceptions.CouponNotFoundException;
 import com.jb.couponsystem.exceptions.IllegalUpdateException;
 import com.jb.couponsystem.exceptions.UserAlreadyExistsException;
 import com.jb.couponsystem.exceptions.UserNotFoundException;
 import com.jb.couponsystem.exceptions.WrongPasswordException;
+import com.jb.couponsystem.security.AdminCredentialStore;
+import com.jb.couponsystem.security.CredentialVerifier;
+import com.jb.couponsystem.security.SessionStore;
+import com.jb.couponsystem.stock.HotCouponStock;
 
 
 /**
@@ -41,6 +49,14 @@ public class AdminFacade implements CouponClientFacade {
 	//@Autowired
 	private CustomerDBDAO customerDBDAO;
 
+	private HotCouponStock hotCouponStock;
+
+	private SessionStore sessionStore;
+
+	private AdminCredentialStore adminCredentialStore;
+
+	private CredentialVerifier credentialVerifier;
+
 
 	/**
 	 * @return the companyDBDAO
@@ -75,6 +91,10 @@ public class AdminFacade implements CouponClientFacade {
 		this.ctx = ctx;
 		this.companyDBDAO = ctx.getBean(CompanyDBDAO.class);
 		this.customerDBDAO = ctx.getBean(CustomerDBDAO.class);
+		this.hotCouponStock = ctx.getBean(HotCouponStock.class);
+		this.sessionStore = ctx.getBean(SessionStore.class);
+		this.adminCredentialStore = ctx.getBean(AdminCredentialStore.class);
+		this.credentialVerifier = ctx.getBean(CredentialVerifier.class);
 	}
 
 	//Methods
@@ -88,16 +108,20 @@ public class AdminFacade implements CouponClientFacade {
 	 * @see com.jb.couponsystem.facades.CouponClientFacade#login(java.lang.String, java.lang.String)
 	 */
 	@Override
-	public CouponClientFacade login(String name, String password) throws WrongPasswordException {
+	public CouponClientFacade login(String name, String password) 
+			throws WrongPasswordException, UserNotFoundException, InterruptedException {
 
-		if (!name.toLowerCase().equals("admin")) {
+		String passwordHash = adminCredentialStore.findPasswordHash(name);
+
+		//An unknown name is checked against a hash too, so the time of the login does not reveal the names of the operators
+		if (passwordHash == null) {
+			credentialVerifier.verifyUnknown(ClientType.ADMIN, name, password);
 			throw new UserNotFoundException ("Login failed. User " 
 					+ name + " not found.");
 		}
 
-		else if (!password.equals("1234")) {
-			throw new WrongPasswordException("Login failed. Wrong password: "
-					+ password);
+		else if (!credentialVerifier.verify(ClientType.ADMIN, name, password, passwordHash)) {
+			throw new WrongPasswordException("Login failed. Wrong password for user " + name);
 		}
 		else return this;
 	}
@@ -142,6 +166,7 @@ public class AdminFacade implements CouponClientFacade {
 		// call company DBDAO to remove company...
 		try {
 			companyDBDAO.removeCompany(c);
+			sessionStore.invalidateAll(ClientType.COMPANY, c.getId());
 			System.out.println("Company "+ c.getCompanyName() +" was successfully removed.");
 
 		} 
@@ -237,6 +262,38 @@ public class AdminFacade implements CouponClientFacade {
 		return null;
 	}
 
+	/**
+	 * This method returns a keyset page of all the companies: the ones the ID of which is greater than the given ID, ordered by ID.
+	 * The first page starts after KeysetPage.FIRST, and the next page after the ID returned by getNextAfterId of the page.
+	 * It calls the instance of companyDBDAO class to read the page, while catching the exceptions existing in its method.
+	 * 
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of objects of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page
+	 */
+	public KeysetPage<Company> getCompaniesPage(long afterId, int size) {
+		// call companyDBDAO to read the page
+		try {
+			return companyDBDAO.getCompaniesPage(afterId, size);
+		} 
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * This method returns a stream of all the companies, ordered by ID.
+	 * It calls the instance of companyDBDAO class, which reads the objects by keyset pages while the stream is consumed,
+	 * so they are never all kept in memory.
+	 * 
+	 * @return stream of company objects
+	 */
+	public Stream<Company> streamAllCompanies() {
+		// call companyDBDAO to stream the objects
+		return companyDBDAO.streamAllCompanies();
+	}
+
 
 	/**
 	 * This method creates customer object send as a parameter from the outside in the database.
@@ -273,6 +330,7 @@ public class AdminFacade implements CouponClientFacade {
 		// call customer DBDAO to remove customer	
 		try {
 			customerDBDAO.removeCustomer(c);
+			sessionStore.invalidateAll(ClientType.CUSTOMER, c.getId());
 			System.out.println("Customer "+ c.getCustomerName() +" was successfully removed.");
 
 		} 
@@ -363,6 +421,73 @@ public class AdminFacade implements CouponClientFacade {
 		return null;
 	}
 
+	/**
+	 * This method returns a keyset page of all the customers: the ones the ID of which is greater than the given ID, ordered by ID.
+	 * The first page starts after KeysetPage.FIRST, and the next page after the ID returned by getNextAfterId of the page.
+	 * It calls the instance of customerDBDAO class to read the page, while catching the exceptions existing in its method.
+	 * 
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of objects of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page
+	 */
+	public KeysetPage<Customer> getCustomersPage(long afterId, int size) {
+		// call customerDBDAO to read the page
+		try {
+			return customerDBDAO.getCustomersPage(afterId, size);
+		} 
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * This method returns a stream of all the customers, ordered by ID.
+	 * It calls the instance of customerDBDAO class, which reads the objects by keyset pages while the stream is consumed,
+	 * so they are never all kept in memory.
+	 * 
+	 * @return stream of customer objects
+	 */
+	public Stream<Customer> streamAllCustomers() {
+		// call customerDBDAO to stream the objects
+		return customerDBDAO.streamAllCustomers();
+	}
+
+
+	/**
+	 * This method starts a flash sale: the coupon with the id send as a parameter is sold from memory
+	 * and its purchases are written to the database in batches, each purchase before it returns.
+	 * It calls the instance of HotCouponStock class, while catching the exceptions
+	 * existing in its method. CouponNotFoundException is re-thrown.
+	 *
+	 * @param couponId id of the coupon
+	 */
+	public void startHotSale(long couponId) {
+
+		// call hot coupon stock to sell the coupon from memory
+		try {
+			hotCouponStock.activate(couponId);
+		}
+		catch (CouponNotFoundException e) {
+			System.err.println( e.getMessage());
+			throw e;
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
 
+	/**
+	 * This method ends a flash sale: the purchases of the coupon in progress are written to the database
+	 * and the coupon is sold from the database again.
+	 *
+	 * @param couponId id of the coupon
+	 */
+	public void endHotSale(long couponId) {
+
+		// call hot coupon stock to write the purchases and sell the coupon from the database
+		hotCouponStock.deactivate(couponId);
+	}
 
 }
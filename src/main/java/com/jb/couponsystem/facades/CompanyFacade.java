@@ -2,11 +2,15 @@ package com.jb.couponsystem.facades;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
 
+import com.jb.couponsystem.dao.CouponQuery;
+import com.jb.couponsystem.dao.KeysetPage;
 import com.jb.couponsystem.dbdao.CompanyDBDAO;
 import com.jb.couponsystem.dbdao.CouponDBDAO;
 import com.jb.couponsystem.dbdao.CustomerDBDAO;
@@ -19,12 +23,16 @@ import com.jb.couponsystem.exceptions.IllegalUpdateException;
 import com.jb.couponsystem.exceptions.UserAlreadyExistsException;
 import com.jb.couponsystem.exceptions.UserNotFoundException;
 import com.jb.couponsystem.exceptions.WrongPasswordException;
+import com.jb.couponsystem.security.ClientContext;
 
 
 /**
  * This class contains methods that allow the company which is the client of the Coupon System
  * to log in, to obtain data from and to make changes in the database
  * by calling instances of DBDAO classes.
+ * The login method returns a new instance of the class for the logged in company (a session),
+ * which passes the company to the DBDAO methods. The logged in company of an instance cannot be changed,
+ * so any number of companies can be logged in at the same time.
  *  
  * @author Alexander Zablotsky
  *
@@ -40,13 +48,20 @@ public class CompanyFacade implements CouponClientFacade {
 
 	private CouponDBDAO couponDBDAO;
 
-	private Company loginCompany;
+	private final Company loginCompany;
 
-	//CTOR
+	//CTORS
+	@Autowired
 	public CompanyFacade(ApplicationContext ctx) {
+		this(ctx, null);
+	}
+
+	// creates the facade of a logged in company
+	private CompanyFacade(ApplicationContext ctx, Company loginCompany) {
 		this.ctx = ctx;
 		this.companyDBDAO = ctx.getBean(CompanyDBDAO.class);
 		this.couponDBDAO = ctx.getBean(CouponDBDAO.class);
+		this.loginCompany = loginCompany;
 	}
 
 	//Getters and setters
@@ -83,19 +98,12 @@ public class CompanyFacade implements CouponClientFacade {
 	}
 
 	/**
-	 * @return the loginCompany
+	 * @return the loginCompany, null if this is not the facade of a logged in company
 	 */
 	public Company getLoginCompany() {
 		return loginCompany;
 	}
 
-	/**
-	 * @param loginCompany the loginCompany to set
-	 */
-	public void setLoginCompany(Company loginCompany) {
-		this.loginCompany = loginCompany;
-	}
-
 	//Methods
 	/*
 	 * Login as company
@@ -107,19 +115,25 @@ public class CompanyFacade implements CouponClientFacade {
 	public CouponClientFacade login(String companyName, String password) 
 			throws WrongPasswordException, UserNotFoundException, InterruptedException {
 
-		// check if company DBDAO can login...
-		if(companyDBDAO.login(companyName, password)){
-
-			//Set company in this class	
-			this.loginCompany = companyDBDAO.getLoginCompany();
-
-			//Set company in coupon DBDAO
-			couponDBDAO.setLoginCompany(this.loginCompany);
+		// company DBDAO returns the company if the login succeeds
+		Company company = companyDBDAO.login(companyName, password);
 
-			return this;
-		}
+		// create the facade of the logged in company
+		return new CompanyFacade(ctx, company);
+	}
 
-		else return null;
+	/**
+	 * This method returns the facade of a company logged in before, from the identity kept by its session.
+	 * Nothing is read from the database.
+	 *
+	 * @param context identity of the logged in company
+	 * @return the facade of the logged in company
+	 */
+	public CompanyFacade resume(ClientContext context) {
+		Company company = new Company();
+		company.setId(context.getId());
+		company.setCompanyName(context.getName());
+		return new CompanyFacade(ctx, company);
 	}
 
 
@@ -161,7 +175,7 @@ public class CompanyFacade implements CouponClientFacade {
 	public void removeCoupon(Coupon c) 	{
 		// call coupon DBDAO to remove coupon
 		try {
-			couponDBDAO.removeCoupon(c);
+			couponDBDAO.removeCoupon(c, this.loginCompany);
 			System.out.println("Coupon "+ c.getTitle() +" was successfully removed.");
 
 		} 
@@ -186,7 +200,7 @@ public class CompanyFacade implements CouponClientFacade {
 	public void updateCoupon(Coupon c) 	{
 
 		try {
-			couponDBDAO.updateCoupon(c);
+			couponDBDAO.updateCoupon(c, this.loginCompany);
 			System.out.println("Coupon "+ c.getTitle() +" was successfully updated.");
 		} 
 		catch (CouponNotFoundException e) {
@@ -215,7 +229,7 @@ public class CompanyFacade implements CouponClientFacade {
 	public Coupon getCoupon(long id) 	{
 		// call coupon DBDAO to get coupon
 		try {
-			return couponDBDAO.getCoupon(id);
+			return couponDBDAO.getCoupon(id, this.loginCompany);
 
 		} 
 		catch (CouponNotFoundException e) {
@@ -238,7 +252,7 @@ public class CompanyFacade implements CouponClientFacade {
 	public Collection <Coupon> getAllCoupons() {
 		// call coupon DBDAO to get all coupons
 		try {
-			return  couponDBDAO.getAllCoupons();
+			return  couponDBDAO.getAllCoupons(this.loginCompany);
 		} 
 		catch (CouponNotFoundException e) {
 			System.err.println( e.getMessage());
@@ -262,7 +276,7 @@ public class CompanyFacade implements CouponClientFacade {
 	public Collection <Coupon> getCouponsByType(CouponType type) {
 		// call coupon DBDAO to get coupons by type
 		try {
-			return  couponDBDAO.getCouponsByType(type);
+			return  couponDBDAO.getCouponsByType(type, this.loginCompany);
 		} 
 		catch (CouponNotFoundException e) {
 			System.err.println( e.getMessage());
@@ -286,7 +300,7 @@ public class CompanyFacade implements CouponClientFacade {
 	public Collection <Coupon> getCouponsByPrice(double price) {
 		// call coupon DBDAO to get coupons under this price
 		try {
-			return  couponDBDAO.getCouponsByPrice(price);
+			return  couponDBDAO.getCouponsByPrice(price, this.loginCompany);
 		} 
 		catch (CouponNotFoundException e) {
 			System.err.println( e.getMessage());
@@ -310,7 +324,7 @@ public class CompanyFacade implements CouponClientFacade {
 	public Collection <Coupon> getCouponsByEndDate(Date endDate) {
 		// call coupon DBDAO to get coupons before this end date
 		try {
-			return  couponDBDAO.getCouponsByEndDate(endDate);
+			return  couponDBDAO.getCouponsByEndDate(endDate, this.loginCompany);
 		} 
 		catch (CouponNotFoundException e) {
 			System.err.println( e.getMessage());
@@ -321,13 +335,186 @@ public class CompanyFacade implements CouponClientFacade {
 		}
 		return null;
 	}
-}
 
+	/**
+	 * This method returns a keyset page of all the coupons of the logged in company: the ones the ID of which is greater than the given ID, ordered by ID.
+	 * The first page starts after KeysetPage.FIRST, and the next page after the ID returned by getNextAfterId of the page.
+	 * It calls the instance of couponDBDAO class to read the page, while catching the exceptions existing in its method.
+	 * 
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of objects of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page
+	 */
+	public KeysetPage<Coupon> getCouponsPage(long afterId, int size) {
+		// call couponDBDAO to read the page
+		try {
+			return couponDBDAO.getCouponsPage(this.loginCompany, afterId, size);
+		} 
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
 
+	/**
+	 * This method returns a keyset page of the coupons of the logged in company of the given type: the ones the ID of which is greater than the given ID, ordered by ID.
+	 * The first page starts after KeysetPage.FIRST, and the next page after the ID returned by getNextAfterId of the page.
+	 * It calls the instance of couponDBDAO class to read the page, while catching the exceptions existing in its method.
+	 * 
+	 * @param type coupon type
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of objects of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page
+	 */
+	public KeysetPage<Coupon> getCouponsByTypePage(CouponType type, long afterId, int size) {
+		// call couponDBDAO to read the page
+		try {
+			return couponDBDAO.getCouponsByTypePage(type, this.loginCompany, afterId, size);
+		} 
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
 
+	/**
+	 * This method returns a keyset page of the coupons of the logged in company the price of which is lower than the given price: the ones the ID of which is greater than the given ID, ordered by ID.
+	 * The first page starts after KeysetPage.FIRST, and the next page after the ID returned by getNextAfterId of the page.
+	 * It calls the instance of couponDBDAO class to read the page, while catching the exceptions existing in its method.
+	 * 
+	 * @param price coupon price
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of objects of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page
+	 */
+	public KeysetPage<Coupon> getCouponsByPricePage(double price, long afterId, int size) {
+		// call couponDBDAO to read the page
+		try {
+			return couponDBDAO.getCouponsByPricePage(price, this.loginCompany, afterId, size);
+		} 
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
 
+	/**
+	 * This method returns a keyset page of the coupons of the logged in company the end date of which is before the given end date: the ones the ID of which is greater than the given ID, ordered by ID.
+	 * The first page starts after KeysetPage.FIRST, and the next page after the ID returned by getNextAfterId of the page.
+	 * It calls the instance of couponDBDAO class to read the page, while catching the exceptions existing in its method.
+	 * 
+	 * @param endDate coupon end date
+	 * @param afterId the ID after which the page starts
+	 * @param size the number of objects of the page, at most KeysetPage.MAX_SIZE
+	 * @return the page
+	 */
+	public KeysetPage<Coupon> getCouponsByEndDatePage(Date endDate, long afterId, int size) {
+		// call couponDBDAO to read the page
+		try {
+			return couponDBDAO.getCouponsByEndDatePage(endDate, this.loginCompany, afterId, size);
+		} 
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
 
+	/**
+	 * This method returns a stream of all the coupons of the logged in company, ordered by ID.
+	 * It calls the instance of couponDBDAO class, which reads the objects by keyset pages while the stream is consumed,
+	 * so they are never all kept in memory.
+	 * 
+	 * @return stream of coupon objects
+	 */
+	public Stream<Coupon> streamAllCoupons() {
+		// call couponDBDAO to stream the objects
+		return couponDBDAO.streamAllCoupons(this.loginCompany);
+	}
 
+	/**
+	 * This method returns a stream of the coupons of the logged in company of the given type, ordered by ID.
+	 * It calls the instance of couponDBDAO class, which reads the objects by keyset pages while the stream is consumed,
+	 * so they are never all kept in memory.
+	 * 
+	 * @param type coupon type
+	 * @return stream of coupon objects
+	 */
+	public Stream<Coupon> streamCouponsByType(CouponType type) {
+		// call couponDBDAO to stream the objects
+		return couponDBDAO.streamCouponsByType(type, this.loginCompany);
+	}
 
+	/**
+	 * This method returns a stream of the coupons of the logged in company the price of which is lower than the given price, ordered by ID.
+	 * It calls the instance of couponDBDAO class, which reads the objects by keyset pages while the stream is consumed,
+	 * so they are never all kept in memory.
+	 * 
+	 * @param price coupon price
+	 * @return stream of coupon objects
+	 */
+	public Stream<Coupon> streamCouponsByPrice(double price) {
+		// call couponDBDAO to stream the objects
+		return couponDBDAO.streamCouponsByPrice(price, this.loginCompany);
+	}
 
+	/**
+	 * This method returns a stream of the coupons of the logged in company the end date of which is before the given end date, ordered by ID.
+	 * It calls the instance of couponDBDAO class, which reads the objects by keyset pages while the stream is consumed,
+	 * so they are never all kept in memory.
+	 * 
+	 * @param endDate coupon end date
+	 * @return stream of coupon objects
+	 */
+	public Stream<Coupon> streamCouponsByEndDate(Date endDate) {
+		// call couponDBDAO to stream the objects
+		return couponDBDAO.streamCouponsByEndDate(endDate, this.loginCompany);
+	}
+
+	/**
+	 * This method searches the coupons of the logged in company with the combined filters of the query
+	 * send as a parameter from the outside (types, price range, end date range, beginning of the title, in stock only),
+	 * in the order and page of the query.
+	 * The scope of the search is set to the logged in company; the query itself is not changed.
+	 * It calls the instance of couponDBDAO class, which finds the coupons with one query.
+	 * 
+	 * @param query the coupon search
+	 * @return the coupons of the page
+	 */
+	public List<Coupon> searchCoupons(CouponQuery query) {
+		// call coupon DBDAO to search the coupons of the logged in company
+		CouponQuery scoped = new CouponQuery(query);
+		scoped.setCompanyId(this.loginCompany.getId());
+		scoped.setCustomerId(null);
+		try {
+			return couponDBDAO.searchCoupons(scoped);
+		} 
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
 
+	/**
+	 * This method searches the coupons of the logged in company by keywords of their title and message,
+	 * with the filters of the query send as a parameter from the outside (types, price range).
+	 * The scope of the search is set to the logged in company; the query itself is not changed.
+	 * It calls the instance of couponDBDAO class, which ranks the coupons by the text index kept in memory.
+	 * 
+	 * @param keywords the keywords; letter case does not matter
+	 * @param query the filters, and the most coupons returned
+	 * @return the coupons, the most relevant first
+	 */
+	public List<Coupon> searchCouponsByKeywords(String keywords, CouponQuery query) {
+		// call coupon DBDAO to search the coupons of the logged in company
+		CouponQuery scoped = new CouponQuery(query);
+		scoped.setCompanyId(this.loginCompany.getId());
+		scoped.setCustomerId(null);
+		try {
+			return couponDBDAO.searchCouponsByKeywords(keywords, scoped);
+		} 
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+}
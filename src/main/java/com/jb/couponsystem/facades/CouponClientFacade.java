@@ -15,10 +15,10 @@ public interface CouponClientFacade {
 	/**
 	 * This method executes the login in the coupon system for the user's facade class,
 	 * with the username and password sent as parameters from the outside.
-	 * In case of AdminFacade it checks whether the username and password are correct,
-	 * If they are correct, the facade object is return, otherwise null is returned.
+	 * In case of AdminFacade it checks the username and password against the credentials of AdminCredentialStore class.
+	 * If they are correct, the facade object is returned.
 	 * In case of CompanyFacade and CustomerFacade, it calls the user's DBDAO to execute its login method.
-	 * If the DBDAO returns true, the facade object is return, otherwise null is returned.
+	 * If the login succeeds, a new facade object of the logged in user is returned.
 	 * All the exceptions thrown by the DBDAO login method are thrown by this method. 
 	 * 
 	 * @param name username
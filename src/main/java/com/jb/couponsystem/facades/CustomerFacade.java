@@ -2,12 +2,15 @@ package com.jb.couponsystem.facades;
 
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
 
 import com.jb.couponsystem.*;
+import com.jb.couponsystem.dao.CouponQuery;
 import com.jb.couponsystem.dbdao.CompanyDBDAO;
 import com.jb.couponsystem.dbdao.CouponDBDAO;
 import com.jb.couponsystem.dbdao.CustomerDBDAO;
@@ -15,6 +18,7 @@ import com.jb.couponsystem.entities.Company;
 import com.jb.couponsystem.entities.Coupon;
 import com.jb.couponsystem.entities.Customer;
 import com.jb.couponsystem.enums.CouponType;
+import com.jb.couponsystem.enums.PurchaseOutcome;
 import com.jb.couponsystem.exceptions.CouponAlreadyExistsException;
 import com.jb.couponsystem.exceptions.CouponAlreadyPurchasedException;
 import com.jb.couponsystem.exceptions.CouponExpiredException;
@@ -23,11 +27,15 @@ import com.jb.couponsystem.exceptions.CouponOutOfStockException;
 import com.jb.couponsystem.exceptions.IllegalUpdateException;
 import com.jb.couponsystem.exceptions.UserNotFoundException;
 import com.jb.couponsystem.exceptions.WrongPasswordException;
+import com.jb.couponsystem.security.ClientContext;
 
 /**
  * This class contains methods that allow the customer who is the client of the Coupon System
  * to log in, to obtain data from and to make changes in the database
  * by calling instances of DBDAO classes.
+ * The login method returns a new instance of the class for the logged in customer (a session),
+ * which passes the customer to the DBDAO methods. The logged in customer of an instance cannot be changed,
+ * so any number of customers can be logged in at the same time.
  *  
  * @author Alexander Zablotsky
  *
@@ -42,13 +50,20 @@ public class CustomerFacade implements CouponClientFacade {
 
 	private CouponDBDAO couponDBDAO;
 
-	private Customer loginCustomer;
+	private final Customer loginCustomer;
 
-	//CTOR
+	//CTORS
+	@Autowired
 	public CustomerFacade(ApplicationContext ctx) {
+		this(ctx, null);
+	}
+
+	// creates the facade of a logged in customer
+	private CustomerFacade(ApplicationContext ctx, Customer loginCustomer) {
 		this.ctx = ctx;
 		this.customerDBDAO = ctx.getBean(CustomerDBDAO.class);
 		this.couponDBDAO = ctx.getBean(CouponDBDAO.class);
+		this.loginCustomer = loginCustomer;
 	}
 
 	//Getters and setters 
@@ -82,19 +97,12 @@ public class CustomerFacade implements CouponClientFacade {
 
 
 	/**
-	 * @return the loginCustomer
+	 * @return the loginCustomer, null if this is not the facade of a logged in customer
 	 */
 	public Customer getLoginCustomer() {
 		return loginCustomer;
 	}
 
-	/**
-	 * @param loginCustomer the loginCustomer to set
-	 */
-	public void setLoginCustomer(Customer loginCustomer) {
-		this.loginCustomer = loginCustomer;
-	}
-
 
 	//Methods
 	/*
@@ -108,18 +116,28 @@ public class CustomerFacade implements CouponClientFacade {
 	public CouponClientFacade login(String name, String password) 
 			throws WrongPasswordException, UserNotFoundException, InterruptedException {
 
-		//If customer DBDAO returns true - set the customer and return this class
-		if (customerDBDAO.login(name, password)) {
+		//Customer DBDAO returns the customer if the login succeeds
+		Customer customer = customerDBDAO.login(name, password);
 
-			//Set login customer here and in coupon DBDAO
-			setLoginCustomer(customerDBDAO.getLoginCustomer());
-			couponDBDAO.setLoginCustomer(this.loginCustomer);
+		//Load the ids of the customer's coupons, so the reads of its coupons need no subquery
+		couponDBDAO.indexPurchasedCoupons(customer);
 
-			return this;
-		}
+		//Create the facade of the logged in customer
+		return new CustomerFacade(ctx, customer);
+	}
 
-		//Otherwise - return null
-		else return null;
+	/**
+	 * This method returns the facade of a customer logged in before, from the identity kept by its session.
+	 * Nothing is read from the database.
+	 *
+	 * @param context identity of the logged in customer
+	 * @return the facade of the logged in customer
+	 */
+	public CustomerFacade resume(ClientContext context) {
+		Customer customer = new Customer();
+		customer.setId(context.getId());
+		customer.setCustomerName(context.getName());
+		return new CustomerFacade(ctx, customer);
 	}
 
 	/**
@@ -135,7 +153,7 @@ public class CustomerFacade implements CouponClientFacade {
 
 		//Call coupon DBDAO  to purchase coupon
 		try {
-			couponDBDAO.purchaseCoupon(c);
+			couponDBDAO.purchaseCoupon(c, this.loginCustomer);
 
 			System.out.println("Coupon "+c.getTitle() +" was successfully purchased by customer " + loginCustomer.getCustomerName());
 
@@ -161,17 +179,50 @@ public class CustomerFacade implements CouponClientFacade {
 		}
 	}
 
+
+	/**
+	 * This method allows the logged in customer to purchase several coupons at once (a cart checkout).
+	 * It calls the instance of couponDBDAO class to purchase all the coupons together.
+	 * A coupon which cannot be purchased does not stop the purchase of the others:
+	 * the outcome of every coupon is returned instead of an exception.
+	 *
+	 * @param coupons coupon objects
+	 * @return the outcome of each coupon, in the order of the coupons
+	 */
+	public Map<Coupon, PurchaseOutcome> purchaseCoupons (Collection<Coupon> coupons) {
+
+		//Call coupon DBDAO to purchase the coupons
+		try {
+			Map<Coupon, PurchaseOutcome> outcomes = couponDBDAO.purchaseCoupons(coupons, this.loginCustomer);
+
+			for (Map.Entry<Coupon, PurchaseOutcome> outcome : outcomes.entrySet()) {
+				if (outcome.getValue() == PurchaseOutcome.PURCHASED) {
+					System.out.println("Coupon "+outcome.getKey().getTitle() +" was successfully purchased by customer " + loginCustomer.getCustomerName());
+				}
+				else {
+					System.err.println("Customer "+loginCustomer.getCustomerName()
+					+" cannot purchase coupon "+ outcome.getKey().getTitle()+ ": " + outcome.getValue());
+				}
+			}
+			return outcomes;
+		} 
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
 	/**
 	 * This method displays all coupon objects of the logged in customer existing in the database,
-	 * It calls the instance of customerDBDAO class to get all customer's coupons, while catching the exceptions
+	 * It calls the instance of couponDBDAO class to get all customer's coupons, while catching the exceptions
 	 * existing in its method. CouponNotFoundException is re-thrown.
 	 * 
 	 * @return collection of coupon objects
 	 */
 	public Collection<Coupon> getAllPurchasedCoupons() {
-		//Call customer DBDAO to get all purchased coupons
+		//Call coupon DBDAO to get all purchased coupons
 		try {
-			return customerDBDAO.getCoupons();
+			return couponDBDAO.getAllPurchasedCoupons(this.loginCustomer);
 		} 
 		catch (CouponNotFoundException e) {
 			System.err.println( e.getMessage());
@@ -195,7 +246,7 @@ public class CustomerFacade implements CouponClientFacade {
 	public Collection<Coupon> getAllPurchasedCouponsByType(CouponType type) {
 		//Call coupon DBDAO to get all purchased coupons by type	
 		try {
-			return couponDBDAO.getAllPurchasedCouponsByType(type);
+			return couponDBDAO.getAllPurchasedCouponsByType(type, this.loginCustomer);
 		} 
 		catch (CouponNotFoundException e) {
 			System.err.println( e.getMessage());
@@ -219,7 +270,7 @@ public class CustomerFacade implements CouponClientFacade {
 	public Collection<Coupon> getAllPurchasedCouponsByPrice(double price) {
 		//Call coupon DBDAO to get all purchased coupons by price	
 		try {
-			return couponDBDAO.getAllPurchasedCouponsByPrice(price);
+			return couponDBDAO.getAllPurchasedCouponsByPrice(price, this.loginCustomer);
 		} 
 		catch (CouponNotFoundException e) {
 			System.err.println( e.getMessage());
@@ -231,5 +282,64 @@ public class CustomerFacade implements CouponClientFacade {
 		return null;
 	}
 
+	/**
+	 * This method searches the coupons purchased by the logged in customer with the combined filters of the query
+	 * send as a parameter from the outside (types, price range, end date range, beginning of the title, in stock only,
+	 * company which issued the coupons), in the order and page of the query.
+	 * The scope of the search is set to the logged in customer; the query itself is not changed.
+	 * It calls the instance of couponDBDAO class, which finds the coupons with one query.
+	 * 
+	 * @param query the coupon search
+	 * @return the coupons of the page
+	 */
+	public List<Coupon> searchPurchasedCoupons(CouponQuery query) {
+		//Call coupon DBDAO to search the coupons of the logged in customer
+		CouponQuery scoped = new CouponQuery(query);
+		scoped.setCustomerId(this.loginCustomer.getId());
+		try {
+			return couponDBDAO.searchCoupons(scoped);
+		} 
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * This method browses the coupons of all the companies which the logged in customer can purchase - not expired and in stock -
+	 * with the filters of the query send as a parameter from the outside (types, price range, end date range,
+	 * beginning of the title, company), in the order of price, by pages of the query.
+	 * It calls the instance of couponDBDAO class, which reads the coupons from the marketplace kept in memory.
+	 * 
+	 * @param query the filters and the page
+	 * @return the coupons of the page
+	 */
+	public List<Coupon> browseCoupons(CouponQuery query) {
+		//Call coupon DBDAO to browse the marketplace - the coupons of all the companies, not only the purchased ones
+		CouponQuery scoped = new CouponQuery(query);
+		scoped.setCustomerId(null);
+		return couponDBDAO.browseCoupons(scoped);
+	}
 
+	/**
+	 * This method searches the coupons of all the companies by keywords of their title and message,
+	 * with the filters of the query send as a parameter from the outside (types, price range, company).
+	 * It calls the instance of couponDBDAO class, which ranks the coupons by the text index kept in memory.
+	 * 
+	 * @param keywords the keywords; letter case does not matter
+	 * @param query the filters, and the most coupons returned
+	 * @return the coupons, the most relevant first
+	 */
+	public List<Coupon> searchCouponsByKeywords(String keywords, CouponQuery query) {
+		//Call coupon DBDAO to search the coupons of all the companies, not only the purchased ones
+		CouponQuery scoped = new CouponQuery(query);
+		scoped.setCustomerId(null);
+		try {
+			return couponDBDAO.searchCouponsByKeywords(keywords, scoped);
+		} 
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
 }
@@ -2,11 +2,18 @@ package com.jb.couponsystem.repo;
 
 import java.util.List;
 
+import javax.persistence.QueryHint;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 
+import com.jb.couponsystem.dao.KeysetPage;
 import com.jb.couponsystem.entities.*;
+import com.jb.couponsystem.security.LoginPrincipal;
 
 /**
  * This interface contains query methods that refer to the company objects in the database.
@@ -34,7 +41,7 @@ public interface CompanyRepo extends CrudRepository<Company, Long> {
 	 * @param companyName company name
 	 * @return true if a company with a given name exists, false otherwise 
 	 */
-	@Query("SELECT CASE WHEN COUNT(c) > 0 THEN 'true' ELSE 'false' END FROM COMPANIES c WHERE c.companyName = :companyName") 
+	@Query(value = "SELECT EXISTS (SELECT 1 FROM COMPANIES WHERE COMPANY_NAME = :companyName)", nativeQuery = true)
 	public boolean existsByCompanyName(@Param("companyName") String companyName);
 
 	
@@ -49,13 +56,37 @@ public interface CompanyRepo extends CrudRepository<Company, Long> {
 
 	
 	/**
-	 * This method finds and returns company object in the database by its name and password received as parameters from the outside.
-	 *  
+	 * This method finds and returns company object in the database by its ID, together with its coupons,
+	 * in one statement (the "Company.coupons" entity graph).
+	 *
+	 * @param id company ID
+	 * @return company object with its coupons, or null if it does not exist
+	 */
+	@EntityGraph("Company.coupons")
+	Company findWithCouponsById(long id);
+
+	/**
+	 * This method finds what the login of a company needs - its id, name and password hash -
+	 * by the unique company name received as a parameter from the outside, without loading the company entity.
+	 *
 	 * @param companyName company name
-	 * @param password company's password
-	 * @return company object
+	 * @return the login principal, or null if there is no company with this name
+	 */
+	@Query("SELECT new com.jb.couponsystem.security.LoginPrincipal(c.id, c.companyName, c.password) FROM COMPANIES c WHERE c.companyName = :companyName")
+	LoginPrincipal findLoginPrincipal(@Param("companyName") String companyName);
+
+	/**
+	 * This method finds and returns a keyset page of companies in the database: the companies the ID of which
+	 * is greater than the given ID, ordered by ID. The size of the page is given by the Pageable.
+	 * The coupons of the companies are not loaded.
+	 *
+	 * @param afterId the ID after which the page starts
+	 * @param page the size of the page
+	 * @return list of companies
 	 */
-	@Query("SELECT c FROM COMPANIES c WHERE c.companyName = :companyName AND c.password = :password") 
-	Company findByNameAndPwd(@Param("companyName") String companyName, @Param ("password") String password);
+	@QueryHints({@QueryHint(name = "org.hibernate.fetchSize", value = KeysetPage.FETCH_SIZE),
+		@QueryHint(name = "org.hibernate.readOnly", value = "true")})
+	@Query("SELECT c FROM COMPANIES c WHERE c.id > :afterId ORDER BY c.id")
+	List<Company> findPage(@Param("afterId") long afterId, Pageable page);
 
 }
@@ -4,12 +4,17 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
+import javax.persistence.QueryHint;
+
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.jb.couponsystem.dao.KeysetPage;
 import com.jb.couponsystem.entities.*;
 import com.jb.couponsystem.enums.CouponType;
 
@@ -30,11 +35,17 @@ public interface CouponRepo extends CrudRepository<Coupon, Long>{
 	 * @param title coupon title
 	 * @return true if a coupon with a given title exists, false otherwise 
 	 */
-	@Query("SELECT CASE WHEN COUNT(c) > 0 THEN 'true' ELSE 'false' END FROM COUPONS c WHERE c.title = :title") 
+	@Query(value = "SELECT EXISTS (SELECT 1 FROM COUPONS WHERE TITLE = :title)", nativeQuery = true)
 	boolean existsByTitle(@Param("title") String title);
 
 
-	@Query("SELECT CASE WHEN COUNT(c) > 0 THEN 'true' ELSE 'false' END FROM COUPONS c") 
+	/**
+	 * This method checks if there is any coupon in the database.
+	 * The database stops at the first coupon it finds, instead of counting them all.
+	 * 
+	 * @return true if there is a coupon, false otherwise
+	 */
+	@Query(value = "SELECT EXISTS (SELECT 1 FROM COUPONS)", nativeQuery = true)
 	boolean anyCouponsExist();
 	
 	/**
@@ -46,7 +57,7 @@ public interface CouponRepo extends CrudRepository<Coupon, Long>{
 	 * @param companyId company ID
 	 * @return if a coupon with a given id and company id exists, false otherwise 
 	 */
-	@Query("SELECT CASE WHEN COUNT(c) > 0 THEN 'true' ELSE 'false' END FROM COUPONS c WHERE c.id = :id AND  c.company.id = :companyId") 
+	@Query(value = "SELECT EXISTS (SELECT 1 FROM COUPONS WHERE ID = :id AND COMPANY_ID = :companyId)", nativeQuery = true)
 	boolean existsByIdAndCompanyId(@Param("id") long id, @Param("companyId") long companyId);
 
 
@@ -75,6 +86,37 @@ public interface CouponRepo extends CrudRepository<Coupon, Long>{
 
 	
 	
+	/**
+	 * This method decreases by one the amount of the coupon with the given ID,
+	 * if the coupon is in stock and has not expired at the given date.
+	 * The check and the update are done by a single statement, so that concurrent purchases
+	 * cannot sell more coupons than the amount in stock.
+	 * 
+	 * @param id coupon ID
+	 * @param today the present date
+	 * @return 1 if the amount was decreased, 0 if the coupon does not exist, is out of stock or has expired
+	 */
+	@Transactional
+	@Modifying
+	@Query(value = "UPDATE coupons SET amount = amount - 1 WHERE id = :id AND amount > 0 AND end_date >= :today", nativeQuery = true)
+	int decrementAmount(@Param("id") long id, @Param("today") Date today);
+
+	/**
+	 * This method adds the coupon with the given ID to the coupons of the customer with the given ID,
+	 * unless the customer already has this coupon.
+	 * 
+	 * @param couponId coupon ID
+	 * @param customerId customer ID
+	 * @return 1 if the coupon was added, 0 if the customer already has this coupon
+	 */
+	@Transactional
+	@Modifying
+	@Query(value = "INSERT INTO customer_coupon (coupon_id, customer_id) SELECT :couponId, :customerId"
+			+ " WHERE NOT EXISTS (SELECT 1 FROM customer_coupon WHERE coupon_id = :couponId AND customer_id = :customerId)",
+			nativeQuery = true)
+	int addCustomerCoupon(@Param("couponId") long couponId, @Param("customerId") long customerId);
+
+
 	/**
 	 * This method finds and returns company's coupon in the database by its title and company ID received as parameters from the outside. 
 	 * 
@@ -88,22 +130,25 @@ public interface CouponRepo extends CrudRepository<Coupon, Long>{
 
 	/**
 	 * This method finds and returns company's coupon in the database by its ID and company ID received as parameters from the outside.
+	 * The company is fetched with the coupon, so it can be read after the session is closed.
 	 * 
 	 * @param id coupon ID
 	 * @param companyId company ID
-	 * @return coupon object
+	 * @return coupon object with its company
 	 */
-	@Query("SELECT c FROM COUPONS c WHERE c.id = :id AND  c.company.id = :companyId") 
+	@Query("SELECT c FROM COUPONS c JOIN FETCH c.company WHERE c.id = :id AND  c.company.id = :companyId") 
 	Coupon findByIdAndCompanyId(@Param("id") long id, @Param("companyId") long companyId);
 
 
 	/**
 	 * This method finds and returns company's coupons in the database by their company ID received as a parameter from the outside.
+	 * The company is fetched with the coupons, so it can be read after the session is closed.
 	 * 
 	 * @param companyId company ID
-	 * @return list of coupons
+	 * @return list of coupons with their company
 	 */
-	List<Coupon> findCouponByCompanyId(long companyId);
+	@Query("SELECT c FROM COUPONS c JOIN FETCH c.company WHERE c.company.id = :companyId")
+	List<Coupon> findCouponByCompanyId(@Param("companyId") long companyId);
 
 
 	/**
@@ -143,6 +188,76 @@ public interface CouponRepo extends CrudRepository<Coupon, Long>{
 
 
 
+	/**
+	 * This method finds and returns a keyset page of company's coupons in the database: the coupons of the given company
+	 * the ID of which is greater than the given ID, ordered by ID. The size of the page is given by the Pageable.
+	 * The company is fetched with the coupons.
+	 *
+	 * @param companyId company ID
+	 * @param afterId the ID after which the page starts
+	 * @param page the size of the page
+	 * @return list of coupons
+	 */
+	@QueryHints({@QueryHint(name = "org.hibernate.fetchSize", value = KeysetPage.FETCH_SIZE),
+		@QueryHint(name = "org.hibernate.readOnly", value = "true")})
+	@Query("SELECT c FROM COUPONS c JOIN FETCH c.company WHERE c.company.id = :companyId AND c.id > :afterId ORDER BY c.id")
+	List<Coupon> findPageByCompanyId(@Param("companyId") long companyId, @Param("afterId") long afterId, Pageable page);
+
+
+	/**
+	 * This method finds and returns a keyset page of company's coupons of the given type in the database,
+	 * the ID of which is greater than the given ID, ordered by ID. The size of the page is given by the Pageable.
+	 * The company is fetched with the coupons.
+	 *
+	 * @param type coupon type
+	 * @param companyId company ID
+	 * @param afterId the ID after which the page starts
+	 * @param page the size of the page
+	 * @return list of coupons
+	 */
+	@QueryHints({@QueryHint(name = "org.hibernate.fetchSize", value = KeysetPage.FETCH_SIZE),
+		@QueryHint(name = "org.hibernate.readOnly", value = "true")})
+	@Query("SELECT c FROM COUPONS c JOIN FETCH c.company WHERE c.type = :type AND c.company.id = :companyId AND c.id > :afterId ORDER BY c.id")
+	List<Coupon> findPageByTypeAndCompanyId(@Param("type") CouponType type, @Param("companyId") long companyId,
+			@Param("afterId") long afterId, Pageable page);
+
+
+	/**
+	 * This method finds and returns a keyset page of company's coupons in the database the price of which is
+	 * lower than the given price, the ID of which is greater than the given ID, ordered by ID.
+	 * The size of the page is given by the Pageable.
+	 *
+	 * @param price maximal price of the coupon
+	 * @param companyId company ID
+	 * @param afterId the ID after which the page starts
+	 * @param page the size of the page
+	 * @return list of coupons
+	 */
+	@QueryHints({@QueryHint(name = "org.hibernate.fetchSize", value = KeysetPage.FETCH_SIZE),
+		@QueryHint(name = "org.hibernate.readOnly", value = "true")})
+	@Query("SELECT c FROM COUPONS c JOIN FETCH c.company WHERE c.price <= :price AND c.company.id = :companyId AND c.id > :afterId ORDER BY c.id")
+	List<Coupon> findPageByMaxPriceAndCompanyId(@Param("price") double price, @Param("companyId") long companyId,
+			@Param("afterId") long afterId, Pageable page);
+
+
+	/**
+	 * This method finds and returns a keyset page of company's coupons in the database the end date of which is
+	 * before the given end date, the ID of which is greater than the given ID, ordered by ID.
+	 * The size of the page is given by the Pageable.
+	 *
+	 * @param endDate maximal end date
+	 * @param companyId company ID
+	 * @param afterId the ID after which the page starts
+	 * @param page the size of the page
+	 * @return list of coupons
+	 */
+	@QueryHints({@QueryHint(name = "org.hibernate.fetchSize", value = KeysetPage.FETCH_SIZE),
+		@QueryHint(name = "org.hibernate.readOnly", value = "true")})
+	@Query("SELECT c FROM COUPONS c JOIN FETCH c.company WHERE c.endDate <= :endDate AND c.company.id = :companyId AND c.id > :afterId ORDER BY c.id")
+	List<Coupon> findPageByMaxEndDateAndCompanyId(@Param("endDate") Date endDate, @Param("companyId") long companyId,
+			@Param("afterId") long afterId, Pageable page);
+
+
 	/**
 	 * This method finds and returns customer's coupon in the database by coupon ID
 	 * and customer ID received as parameters from the outside.
@@ -155,6 +270,19 @@ public interface CouponRepo extends CrudRepository<Coupon, Long>{
 	Coupon findCustomerCoupon(@Param("customerId") long customerId, @Param("couponId") long couponId);
 
 
+	/**
+	 * This method checks if the customer with the given ID has purchased the coupon with the given ID,
+	 * without loading the coupon.
+	 *
+	 * @param customerId customer ID
+	 * @param couponId coupon ID
+	 * @return true if the customer has purchased the coupon
+	 */
+	@Query(value = "SELECT EXISTS (SELECT 1 FROM CUSTOMER_COUPON WHERE CUSTOMER_ID = :customerId AND COUPON_ID = :couponId)",
+			nativeQuery = true)
+	boolean existsCustomerCoupon(@Param("customerId") long customerId, @Param("couponId") long couponId);
+
+
 	/**
 	 * 
 	 * This method finds and returns all customer's coupons of the given type in the database.
@@ -180,6 +308,28 @@ public interface CouponRepo extends CrudRepository<Coupon, Long>{
 	Collection <Coupon> findCustomerCouponsByMaxPrice(@Param("customerId") long customerId, @Param("price") double price);
 
 
+	/**
+	 * This method finds and returns the IDs of all customer's coupons in the database by customer ID
+	 * received as a parameter from the outside. No coupon is loaded as an entity.
+	 *
+	 * @param customerId customer ID
+	 * @return list of coupon IDs
+	 */
+	@Query("SELECT coup.id FROM COUPONS coup JOIN coup.customers c WHERE c.id = :customerId")
+	List<Long> findCustomerCouponIds(@Param("customerId") long customerId);
+
+
+	/**
+	 * This method finds and returns the coupons of the given IDs, together with their companies, in one statement.
+	 * A coupon without a company is also returned.
+	 *
+	 * @param ids coupon IDs
+	 * @return list of coupons with their companies
+	 */
+	@Query("SELECT c FROM COUPONS c LEFT JOIN FETCH c.company WHERE c.id IN :ids")
+	List<Coupon> findWithCompanyByIdIn(@Param("ids") Collection<Long> ids);
+
+
 	/**
 	 * This method finds and returns coupons in the database by their title received as a parameter from the outside.
 	 * 
@@ -208,11 +358,6 @@ public interface CouponRepo extends CrudRepository<Coupon, Long>{
 	 * @return collection of coupons
 	 */
 	@Query("SELECT coup FROM COUPONS coup WHERE coup.id IN (SELECT coup.id FROM coup.customers c WHERE c.id = :customerId)") 
-	Collection <Coupon> findCustomerCoupons(@Param("customerId") long customerId);		
-
-
-
-
-
+	Collection <Coupon> findCustomerCoupons(@Param("customerId") long customerId);
 
-}
\ No newline at end of file
+}
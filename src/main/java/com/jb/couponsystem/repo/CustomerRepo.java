@@ -2,11 +2,18 @@ package com.jb.couponsystem.repo;
 
 import java.util.List;
 
+import javax.persistence.QueryHint;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 
+import com.jb.couponsystem.dao.KeysetPage;
 import com.jb.couponsystem.entities.*;
+import com.jb.couponsystem.security.LoginPrincipal;
 
 /**
  * This interface contains query methods that refer to the customer objects in the database.
@@ -33,7 +40,7 @@ public interface CustomerRepo extends CrudRepository<Customer, Long> {
 	 * @param customerName customer name
 	 * @return true if a customer with a given name exists, false otherwise 
 	 */
-	@Query("SELECT CASE WHEN COUNT(c) > 0 THEN 'true' ELSE 'false' END FROM CUSTOMERS c WHERE c.customerName = :customerName") 
+	@Query(value = "SELECT EXISTS (SELECT 1 FROM CUSTOMERS WHERE CUSTOMER_NAME = :customerName)", nativeQuery = true)
 	public boolean existsByCustomerName(@Param("customerName") String customerName);
 	
 		
@@ -46,16 +53,39 @@ public interface CustomerRepo extends CrudRepository<Customer, Long> {
 	@Query("SELECT c FROM CUSTOMERS c WHERE c.customerName = :customerName") 
 	Customer findByName(@Param("customerName") String customerName);
 
-	
+
 	/**
-	 * This method finds and returns customer object in the database by his/her name and password
-	 * received as parameters from the outside.
-	 * 
-	 * @param customerName customer nmae
-	 * @param password password
-	 * @return customer object
+	 * This method finds and returns customer object in the database by his/her ID, together with his/her coupons
+	 * and their companies, in one statement (the "Customer.coupons" entity graph).
+	 *
+	 * @param id customer ID
+	 * @return customer object with his/her coupons, or null if it does not exist
+	 */
+	@EntityGraph("Customer.coupons")
+	Customer findWithCouponsById(long id);
+
+	/**
+	 * This method finds what the login of a customer needs - its id, name and password hash -
+	 * by the unique customer name received as a parameter from the outside, without loading the customer entity.
+	 *
+	 * @param customerName customer name
+	 * @return the login principal, or null if there is no customer with this name
+	 */
+	@Query("SELECT new com.jb.couponsystem.security.LoginPrincipal(c.id, c.customerName, c.password) FROM CUSTOMERS c WHERE c.customerName = :customerName")
+	LoginPrincipal findLoginPrincipal(@Param("customerName") String customerName);
+
+	/**
+	 * This method finds and returns a keyset page of customers in the database: the customers the ID of which
+	 * is greater than the given ID, ordered by ID. The size of the page is given by the Pageable.
+	 * The coupons of the customers are not loaded.
+	 *
+	 * @param afterId the ID after which the page starts
+	 * @param page the size of the page
+	 * @return list of customers
 	 */
-	@Query(value = "SELECT * FROM CUSTOMERS WHERE CUSTOMER_NAME = :customerName AND PASSWORD = :password", nativeQuery = true) 
-	Customer findByNameAndPwd(@Param("customerName") String customerName, @Param("password") String password);
+	@QueryHints({@QueryHint(name = "org.hibernate.fetchSize", value = KeysetPage.FETCH_SIZE),
+		@QueryHint(name = "org.hibernate.readOnly", value = "true")})
+	@Query("SELECT c FROM CUSTOMERS c WHERE c.id > :afterId ORDER BY c.id")
+	List<Customer> findPage(@Param("afterId") long afterId, Pageable page);
 
 }
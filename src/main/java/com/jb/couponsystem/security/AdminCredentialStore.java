@@ -0,0 +1,184 @@
+package com.jb.couponsystem.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class holds the names and password hashes of the administrators (operators) of the Coupon System.
+ * <p>
+ * The credentials are loaded when the system starts from the file of the coupon.admin.credentials-file setting,
+ * or from the bundled admin-credentials.properties while that file does not exist.
+ * They are kept in an unmodifiable map which is replaced as a whole on a reload,
+ * so a login reads them without locking. The names are compared ignoring case, without creating new strings.
+ * <p>
+ * The directory of the file is watched by a thread of its own, and the credentials are reloaded when the file changes.
+ * A line without a valid hash is skipped, and a file that cannot be read leaves the credentials loaded before.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+public class AdminCredentialStore implements InitializingBean, DisposableBean {
+
+	//Attributes
+	private static final String BUNDLED_CREDENTIALS = "/admin-credentials.properties";
+
+	private final AdminProperties properties;
+
+	private final PasswordHasher passwordHasher;
+
+	// name -> password hash, replaced as a whole on a reload
+	private volatile Map<String, String> credentials = Collections.emptyMap();
+
+	private WatchService watchService;
+
+	private Thread watcher;
+
+	//CTOR
+	@Autowired
+	public AdminCredentialStore(AdminProperties properties, PasswordHasher passwordHasher) {
+		this.properties = properties;
+		this.passwordHasher = passwordHasher;
+	}
+
+	//Methods
+	/**
+	 * This method loads the credentials and starts watching their file when the bean is created.
+	 *
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() throws IOException {
+		reload();
+		if (properties.isWatch()) {
+			startWatcher();
+		}
+	}
+
+	/**
+	 * This method returns the password hash of an administrator.
+	 *
+	 * @param name name of the administrator, in any case
+	 * @return the password hash, or null if there is no administrator with this name
+	 */
+	public String findPasswordHash(String name) {
+		return name == null ? null : credentials.get(name);
+	}
+
+	/**
+	 * @return the number of administrators
+	 */
+	public int size() {
+		return credentials.size();
+	}
+
+	/**
+	 * This method loads the credentials again from their file, or from the bundled file if it does not exist.
+	 * If the file cannot be read, the credentials loaded before are kept.
+	 */
+	public void reload() {
+		Path file = credentialsFile();
+		Properties loaded = new Properties();
+		try (InputStream in = Files.exists(file) ? Files.newInputStream(file)
+				: AdminCredentialStore.class.getResourceAsStream(BUNDLED_CREDENTIALS)) {
+			if (in == null) {
+				System.err.println("No admin credentials found in " + file.toAbsolutePath() + " or " + BUNDLED_CREDENTIALS);
+				return;
+			}
+			loaded.load(in);
+		}
+		catch (IOException e) {
+			System.err.println("Admin credentials were not reloaded: " + e.getMessage());
+			return;
+		}
+
+		Map<String, String> next = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		for (String name : loaded.stringPropertyNames()) {
+			String hash = loaded.getProperty(name).trim();
+
+			//A password that is not hashed is not accepted
+			if (!passwordHasher.isHash(hash)) {
+				System.err.println("Admin " + name + " skipped - its password is not a hash.");
+				continue;
+			}
+			next.put(name, hash);
+		}
+		credentials = Collections.unmodifiableMap(next);
+		System.out.println("Admin credentials loaded: " + next.size() + " operators.");
+	}
+
+	/**
+	 * This method stops watching the file of the credentials when the application context is closed.
+	 *
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	@Override
+	public void destroy() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+		}
+		if (watcher != null) {
+			watcher.interrupt();
+		}
+	}
+
+	// the file of the credentials
+	private Path credentialsFile() {
+		return Paths.get(properties.getCredentialsFile()).toAbsolutePath();
+	}
+
+	// starts the thread reloading the credentials when their file is created, changed or deleted
+	private void startWatcher() throws IOException {
+		Path file = credentialsFile();
+		Path directory = file.getParent();
+		if (directory == null || !Files.isDirectory(directory)) {
+			System.err.println("Admin credentials are not watched - no directory " + directory);
+			return;
+		}
+		watchService = FileSystems.getDefault().newWatchService();
+		directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+		watcher = new Thread(() -> {
+			try {
+				while (true) {
+					WatchKey key = watchService.take();
+					boolean changed = false;
+					for (WatchEvent<?> event : key.pollEvents()) {
+						changed |= file.getFileName().equals(event.context());
+					}
+					if (changed) {
+						reload();
+					}
+					if (!key.reset()) {
+						return;
+					}
+				}
+			}
+			catch (InterruptedException | ClosedWatchServiceException e) {
+				//The store was destroyed
+			}
+		}, "admin-credentials-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+}
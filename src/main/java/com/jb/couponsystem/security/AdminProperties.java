@@ -0,0 +1,61 @@
+package com.jb.couponsystem.security;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class holds the settings of the credentials of the administrators,
+ * bound from the coupon.admin.* entries of application.properties.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+@ConfigurationProperties(prefix = "coupon.admin")
+public class AdminProperties {
+
+	//Attributes
+	// file of the credentials, the bundled admin-credentials.properties is used while it does not exist
+	private String credentialsFile = "admin-credentials.properties";
+
+	// true - the file is watched and reloaded when it changes
+	private boolean watch = true;
+
+	//Getters and setters
+	/**
+	 * @return the credentialsFile
+	 */
+	public String getCredentialsFile() {
+		return credentialsFile;
+	}
+
+	/**
+	 * @param credentialsFile the credentialsFile to set
+	 */
+	public void setCredentialsFile(String credentialsFile) {
+		this.credentialsFile = credentialsFile;
+	}
+
+	/**
+	 * @return the watch
+	 */
+	public boolean isWatch() {
+		return watch;
+	}
+
+	/**
+	 * @param watch the watch to set
+	 */
+	public void setWatch(boolean watch) {
+		this.watch = watch;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "AdminProperties [credentialsFile=" + credentialsFile + ", watch=" + watch + "]";
+	}
+
+}
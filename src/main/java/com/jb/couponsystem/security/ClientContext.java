@@ -0,0 +1,66 @@
+package com.jb.couponsystem.security;
+
+import com.jb.couponsystem.enums.ClientType;
+
+/**
+ * This class holds the identity of a logged in client, kept by SessionStore class for the token of its session.
+ * It cannot be changed after it was created, so it can be shared by any number of threads.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public final class ClientContext {
+
+	//Attributes
+	private final ClientType clientType;
+
+	// id of the company or customer, 0 for the administrator
+	private final long id;
+
+	private final String name;
+
+	//CTOR
+	/**
+	 * Constructor
+	 *
+	 * @param clientType type of the client
+	 * @param id id of the company or customer, 0 for the administrator
+	 * @param name name of the client
+	 */
+	public ClientContext(ClientType clientType, long id, String name) {
+		this.clientType = clientType;
+		this.id = id;
+		this.name = name;
+	}
+
+	//Getters
+	/**
+	 * @return the clientType
+	 */
+	public ClientType getClientType() {
+		return clientType;
+	}
+
+	/**
+	 * @return the id
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ClientContext [clientType=" + clientType + ", id=" + id + ", name=" + name + "]";
+	}
+
+}
@@ -0,0 +1,205 @@
+package com.jb.couponsystem.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.jb.couponsystem.enums.ClientType;
+import com.jb.couponsystem.exceptions.LoginRejectedException;
+
+/**
+ * This class verifies the passwords of the logins of companies and customers against their stored hashes.
+ * <p>
+ * The hashes are checked on a small pool of threads of its own with a bounded queue,
+ * so a storm of logins cannot take the processors needed by the purchases:
+ * when the queue is full the login is rejected with LoginRejectedException.
+ * <p>
+ * A successful verification is remembered for a short time in a bounded cache (the least recently used
+ * entry is removed first), so repeated logins of the same user do not pay for the hash again.
+ * The key of the cache is an HMAC of the client type, name, password and stored hash with a random key
+ * of this process, so the cache holds no password, and a changed password does not hit the old entry.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+public class CredentialVerifier implements DisposableBean {
+
+	//Attributes
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private final PasswordHasher passwordHasher;
+
+	private final SecurityProperties properties;
+
+	private final ThreadPoolExecutor executor;
+
+	// key of the digests of the cache, new in every run of the system
+	private final SecretKeySpec cacheKey;
+
+	// digest of the credentials -> time the entry expires, in access order
+	private final Map<String, Long> verified;
+
+	// hash of a random password, checked for the logins of unknown users - made on first use
+	private volatile String unknownUserHash;
+
+	//CTOR
+	@Autowired
+	public CredentialVerifier(PasswordHasher passwordHasher, SecurityProperties properties) {
+		this.passwordHasher = passwordHasher;
+		this.properties = properties;
+
+		int threads = properties.getVerifyThreads() > 0 ? properties.getVerifyThreads()
+				: Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(properties.getVerifyQueueSize()), runnable -> {
+					Thread thread = new Thread(runnable, "password-verifier-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		this.cacheKey = new SecretKeySpec(key, MAC_ALGORITHM);
+
+		int cacheSize = properties.getCacheSize();
+		this.verified = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	//Methods
+	/**
+	 * This method checks the password of a login against the stored hash of the user.
+	 * A recent successful verification of the same credentials is taken from the cache,
+	 * otherwise the hash is checked on a verifying thread. A failed verification is never cached.
+	 *
+	 * @param clientType the type of the user
+	 * @param name the name of the user
+	 * @param password the password given to the login
+	 * @param storedHash the hash of the password stored in the database
+	 * @return true if the password is right
+	 * @throws LoginRejectedException if too many logins are waiting for verification
+	 * @throws InterruptedException if the thread was interrupted while waiting for the verification
+	 */
+	public boolean verify(ClientType clientType, String name, String password, String storedHash)
+			throws InterruptedException {
+		if (password == null || storedHash == null) {
+			return false;
+		}
+
+		String digest = digest(clientType, name, password, storedHash);
+		long now = System.currentTimeMillis();
+		synchronized (verified) {
+			Long expires = verified.get(digest);
+			if (expires != null && expires > now) {
+				return true;
+			}
+		}
+
+		Future<Boolean> result;
+		try {
+			result = executor.submit(() -> passwordHasher.matches(password, storedHash));
+		}
+		catch (RejectedExecutionException e) {
+			throw new LoginRejectedException("Login of " + name + " rejected - too many logins in progress, try again later.");
+		}
+
+		boolean matches;
+		try {
+			matches = result.get();
+		}
+		catch (InterruptedException e) {
+			result.cancel(true);
+			throw e;
+		}
+		catch (ExecutionException e) {
+			throw new IllegalStateException("Password verification failed: " + e.getCause().getMessage());
+		}
+
+		if (matches && properties.getCacheTtlMs() > 0) {
+			synchronized (verified) {
+				verified.put(digest, System.currentTimeMillis() + properties.getCacheTtlMs());
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * This method checks the password of a login of an unknown user against a hash no user has,
+	 * so the login of an unknown user takes as long as the login of a known user with a wrong password,
+	 * and the time of the login does not reveal which users exist.
+	 *
+	 * @param clientType the type of the user
+	 * @param name the name given to the login
+	 * @param password the password given to the login
+	 * @throws LoginRejectedException if too many logins are waiting for verification
+	 * @throws InterruptedException if the thread was interrupted while waiting for the verification
+	 */
+	public void verifyUnknown(ClientType clientType, String name, String password) throws InterruptedException {
+		String hash = unknownUserHash;
+		if (hash == null) {
+			byte[] random = new byte[32];
+			new SecureRandom().nextBytes(random);
+			hash = passwordHasher.hash(Base64.getEncoder().encodeToString(random));
+			unknownUserHash = hash;
+		}
+		verify(clientType, name, password == null ? "" : password, hash);
+	}
+
+	/**
+	 * This method empties the cache of verified credentials.
+	 */
+	public void clearCache() {
+		synchronized (verified) {
+			verified.clear();
+		}
+	}
+
+	/**
+	 * This method stops the verifying threads when the application context is closed.
+	 *
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	@Override
+	public void destroy() {
+		executor.shutdownNow();
+	}
+
+	// keyed digest of the credentials, used as the key of the cache
+	private String digest(ClientType clientType, String name, String password, String storedHash) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(cacheKey);
+			String credentials = clientType + "\u0000" + name + "\u0000" + password + "\u0000" + storedHash;
+			return Base64.getEncoder().encodeToString(mac.doFinal(credentials.getBytes(StandardCharsets.UTF_8)));
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Credential digest is not available: " + e.getMessage());
+		}
+	}
+
+}
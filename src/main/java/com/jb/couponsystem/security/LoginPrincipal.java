@@ -0,0 +1,64 @@
+package com.jb.couponsystem.security;
+
+/**
+ * This class holds what the login of a company or a customer needs from the database:
+ * the id, the name and the password hash, read by one query by name
+ * without loading the company or customer entity.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class LoginPrincipal {
+
+	//Attributes
+	private final long id;
+
+	private final String name;
+
+	private final String password;
+
+	//CTOR
+	/**
+	 *  Constructor - used by the constructor expressions of the login queries
+	 *
+	 * @param id id of the company or customer
+	 * @param name name of the company or customer
+	 * @param password the stored password hash
+	 */
+	public LoginPrincipal(long id, String name, String password) {
+		this.id = id;
+		this.name = name;
+		this.password = password;
+	}
+
+	//Getters
+	/**
+	 * @return the id
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the stored password hash
+	 */
+	public String getPassword() {
+		return password;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "LoginPrincipal [id=" + id + ", name=" + name + "]";
+	}
+
+}
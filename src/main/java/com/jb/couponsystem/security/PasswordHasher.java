@@ -0,0 +1,129 @@
+package com.jb.couponsystem.security;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class hashes the passwords of the companies and customers with PBKDF2 (HMAC-SHA256) and a random salt.
+ * A hash is stored as pbkdf2-sha256$iterations$salt$hash, so the number of iterations can be raised
+ * without breaking the passwords hashed before.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+public class PasswordHasher {
+
+	//Attributes
+	private static final String PREFIX = "pbkdf2-sha256$";
+
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+	private static final int SALT_BYTES = 16;
+
+	private static final int HASH_BITS = 256;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final int iterations;
+
+	//CTORS
+	@Autowired
+	public PasswordHasher(SecurityProperties properties) {
+		this(properties.getHashIterations());
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param iterations number of PBKDF2 iterations of a new hash
+	 */
+	public PasswordHasher(int iterations) {
+		this.iterations = iterations;
+	}
+
+	//Methods
+	/**
+	 * This method hashes a password with a new random salt.
+	 *
+	 * @param password the password
+	 * @return the hash to store instead of the password
+	 */
+	public String hash(String password) {
+		byte[] salt = new byte[SALT_BYTES];
+		RANDOM.nextBytes(salt);
+		Base64.Encoder encoder = Base64.getEncoder();
+		return PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$"
+				+ encoder.encodeToString(pbkdf2(password, salt, iterations));
+	}
+
+	/**
+	 * This method checks if a value has the form of a hash made by this class.
+	 *
+	 * @param value the stored value
+	 * @return true if the value is a hash
+	 */
+	public boolean isHash(String value) {
+		return value != null && value.startsWith(PREFIX) && value.split("\\$").length == 4;
+	}
+
+	/**
+	 * This method checks a password against a stored hash, comparing the hashes in constant time.
+	 * This is the slow part of a login.
+	 *
+	 * @param password the password
+	 * @param storedHash the stored hash
+	 * @return true if the password fits the hash, false otherwise or if the stored value is not a valid hash
+	 */
+	public boolean matches(String password, String storedHash) {
+		if (password == null || !isHash(storedHash)) {
+			return false;
+		}
+		String[] parts = storedHash.split("\\$");
+		Base64.Decoder decoder = Base64.getDecoder();
+		try {
+			byte[] expected = decoder.decode(parts[3]);
+			return MessageDigest.isEqual(expected, pbkdf2(password, decoder.decode(parts[2]), Integer.parseInt(parts[1])));
+		}
+		//A malformed stored value (iterations, salt or hash) matches no password
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * This method prints the hash of a password, to be written in the file of the admin credentials.
+	 *
+	 * @param args the password
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: java " + PasswordHasher.class.getName() + " <password>");
+			return;
+		}
+		System.out.println(new PasswordHasher(new SecurityProperties().getHashIterations()).hash(args[0]));
+	}
+
+	// derives the hash of a password
+	private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Password hashing is not available: " + e.getMessage());
+		}
+		finally {
+			spec.clearPassword();
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+package com.jb.couponsystem.security;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class holds the settings of the password hashing and of the login verification,
+ * bound from the coupon.security.* entries of application.properties.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+@ConfigurationProperties(prefix = "coupon.security")
+public class SecurityProperties {
+
+	//Attributes
+	// number of PBKDF2 iterations of a new password hash
+	private int hashIterations = 210000;
+
+	// number of threads verifying passwords, 0 - half of the processors
+	private int verifyThreads = 0;
+
+	// maximal number of logins waiting for a verifying thread, further logins are rejected
+	private int verifyQueueSize = 1000;
+
+	// maximal number of verified credentials kept in the cache
+	private int cacheSize = 10000;
+
+	// time a verified credential is kept in the cache in milliseconds, 0 - no cache
+	private long cacheTtlMs = 60000;
+
+	//Getters and setters
+	/**
+	 * @return the hashIterations
+	 */
+	public int getHashIterations() {
+		return hashIterations;
+	}
+
+	/**
+	 * @param hashIterations the hashIterations to set
+	 */
+	public void setHashIterations(int hashIterations) {
+		this.hashIterations = hashIterations;
+	}
+
+	/**
+	 * @return the verifyThreads
+	 */
+	public int getVerifyThreads() {
+		return verifyThreads;
+	}
+
+	/**
+	 * @param verifyThreads the verifyThreads to set
+	 */
+	public void setVerifyThreads(int verifyThreads) {
+		this.verifyThreads = verifyThreads;
+	}
+
+	/**
+	 * @return the verifyQueueSize
+	 */
+	public int getVerifyQueueSize() {
+		return verifyQueueSize;
+	}
+
+	/**
+	 * @param verifyQueueSize the verifyQueueSize to set
+	 */
+	public void setVerifyQueueSize(int verifyQueueSize) {
+		this.verifyQueueSize = verifyQueueSize;
+	}
+
+	/**
+	 * @return the cacheSize
+	 */
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * @param cacheSize the cacheSize to set
+	 */
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * @return the cacheTtlMs
+	 */
+	public long getCacheTtlMs() {
+		return cacheTtlMs;
+	}
+
+	/**
+	 * @param cacheTtlMs the cacheTtlMs to set
+	 */
+	public void setCacheTtlMs(long cacheTtlMs) {
+		this.cacheTtlMs = cacheTtlMs;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "SecurityProperties [hashIterations=" + hashIterations + ", verifyThreads=" + verifyThreads
+				+ ", verifyQueueSize=" + verifyQueueSize + ", cacheSize=" + cacheSize + ", cacheTtlMs=" + cacheTtlMs + "]";
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.jb.couponsystem.security;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class holds the settings of the sessions of the logged in clients,
+ * bound from the coupon.session.* entries of application.properties.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+@ConfigurationProperties(prefix = "coupon.session")
+public class SessionProperties {
+
+	//Attributes
+	// maximal number of open sessions, the least recently used session is closed above it
+	private int maxSessions = 10000;
+
+	// time without requests after which a session expires in milliseconds
+	private long idleTimeoutMs = 1800000;
+
+	// time after the login after which a session expires in any case in milliseconds
+	private long absoluteTimeoutMs = 43200000;
+
+	// time between two removals of the expired sessions in milliseconds
+	private long cleanupIntervalMs = 60000;
+
+	//Getters and setters
+	/**
+	 * @return the maxSessions
+	 */
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	/**
+	 * @param maxSessions the maxSessions to set
+	 */
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * @return the idleTimeoutMs
+	 */
+	public long getIdleTimeoutMs() {
+		return idleTimeoutMs;
+	}
+
+	/**
+	 * @param idleTimeoutMs the idleTimeoutMs to set
+	 */
+	public void setIdleTimeoutMs(long idleTimeoutMs) {
+		this.idleTimeoutMs = idleTimeoutMs;
+	}
+
+	/**
+	 * @return the absoluteTimeoutMs
+	 */
+	public long getAbsoluteTimeoutMs() {
+		return absoluteTimeoutMs;
+	}
+
+	/**
+	 * @param absoluteTimeoutMs the absoluteTimeoutMs to set
+	 */
+	public void setAbsoluteTimeoutMs(long absoluteTimeoutMs) {
+		this.absoluteTimeoutMs = absoluteTimeoutMs;
+	}
+
+	public long getCleanupIntervalMs() {
+		return cleanupIntervalMs;
+	}
+
+	public void setCleanupIntervalMs(long cleanupIntervalMs) {
+		this.cleanupIntervalMs = cleanupIntervalMs;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "SessionProperties [maxSessions=" + maxSessions + ", idleTimeoutMs=" + idleTimeoutMs
+				+ ", absoluteTimeoutMs=" + absoluteTimeoutMs + ", cleanupIntervalMs=" + cleanupIntervalMs + "]";
+	}
+
+}
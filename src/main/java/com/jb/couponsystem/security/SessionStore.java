@@ -0,0 +1,263 @@
+package com.jb.couponsystem.security;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.jb.couponsystem.enums.ClientType;
+
+/**
+ * This class keeps the sessions of the logged in clients in memory.
+ * A login opens a session and receives a random opaque token, which is resolved later
+ * to the identity of the client (ClientContext) without asking the database.
+ * <p>
+ * A session expires when it was not used for the idle timeout, or in any case after the absolute timeout.
+ * The expired sessions are removed by a background thread every cleanup interval.
+ * The number of sessions is limited: above the limit an approximately least recently used session is closed -
+ * the least recently used one of a sample of the sessions. Every sample continues the iteration of the sessions
+ * where the previous sample stopped, so all the sessions are sampled in turn, not only the first ones of the map.
+ * The sessions are kept in a concurrent map, so resolving sessions does not take a lock,
+ * and looking up, opening and closing a session take constant time.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+public class SessionStore implements InitializingBean, DisposableBean {
+
+	//Attributes
+	private static final int TOKEN_BYTES = 32;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	// number of sessions among which the least recently used one is closed above the limit
+	private static final int EVICTION_SAMPLE = 32;
+
+	private final SessionProperties properties;
+
+	// returns the present time in milliseconds
+	private final LongSupplier clock;
+
+	// token -> session
+	private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+	// increased on every use of a session, orders the uses for the eviction
+	private final AtomicLong uses = new AtomicLong();
+
+	// the iteration of the sessions the samples of the eviction continue, guarded by the lock of the store
+	private Iterator<Map.Entry<String, Session>> evictionCursor;
+
+	private ScheduledExecutorService cleaner;
+
+	//CTORS
+	@Autowired
+	public SessionStore(SessionProperties properties) {
+		this(properties, System::currentTimeMillis);
+	}
+
+	// creates the store with the given clock
+	SessionStore(SessionProperties properties, LongSupplier clock) {
+		this.properties = properties;
+		this.clock = clock;
+	}
+
+	//Methods
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() {
+		cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "session-cleaner");
+			thread.setDaemon(true);
+			return thread;
+		});
+		cleaner.scheduleWithFixedDelay(this::removeExpired, properties.getCleanupIntervalMs(),
+				properties.getCleanupIntervalMs(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * This method stops the background thread.
+	 *
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	@Override
+	public void destroy() {
+		cleaner.shutdownNow();
+	}
+
+	/**
+	 * This method opens a session of a logged in client.
+	 *
+	 * @param context the identity of the client
+	 * @return the token of the session
+	 */
+	public String open(ClientContext context) {
+		byte[] bytes = new byte[TOKEN_BYTES];
+		RANDOM.nextBytes(bytes);
+		String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		Session session = new Session(context, clock.getAsLong(), uses.incrementAndGet());
+		sessions.put(token, session);
+
+		//Above the limit, sessions are closed until the limit is kept, or no session is left to close
+		while (sessions.size() > properties.getMaxSessions()) {
+			if (!evictLeastRecentlyUsed()) {
+				break;
+			}
+		}
+		return token;
+	}
+
+	/**
+	 * This method returns the identity of the client of a session and marks the session as used.
+	 * An expired session is closed.
+	 *
+	 * @param token the token of the session
+	 * @return the identity of the client, or null if the session does not exist or has expired
+	 */
+	public ClientContext resolve(String token) {
+		if (token == null) {
+			return null;
+		}
+		long now = clock.getAsLong();
+		Session session = sessions.get(token);
+		if (session == null) {
+			return null;
+		}
+		if (isExpired(session, now)) {
+			sessions.remove(token, session);
+			return null;
+		}
+		session.lastUsed = now;
+		session.lastUse = uses.incrementAndGet();
+		return session.context;
+	}
+
+	/**
+	 * This method closes a session (logout).
+	 *
+	 * @param token the token of the session
+	 * @return true if the session was open
+	 */
+	public boolean invalidate(String token) {
+		if (token == null) {
+			return false;
+		}
+		return sessions.remove(token) != null;
+	}
+
+	/**
+	 * This method closes all the sessions of a client, for example when it was removed.
+	 *
+	 * @param clientType type of the client
+	 * @param id id of the company or customer, 0 for the administrator
+	 * @return the number of sessions closed
+	 */
+	public int invalidateAll(ClientType clientType, long id) {
+		int closed = 0;
+		Iterator<Session> iterator = sessions.values().iterator();
+		while (iterator.hasNext()) {
+			ClientContext context = iterator.next().context;
+			if (context.getClientType() == clientType && context.getId() == id) {
+				iterator.remove();
+				closed++;
+			}
+		}
+		return closed;
+	}
+
+	/**
+	 * This method closes all the expired sessions.
+	 * It is called by the background thread every cleanup interval.
+	 *
+	 * @return the number of sessions closed
+	 */
+	public int removeExpired() {
+		long now = clock.getAsLong();
+		int closed = 0;
+		Iterator<Session> iterator = sessions.values().iterator();
+		while (iterator.hasNext()) {
+			if (isExpired(iterator.next(), now)) {
+				iterator.remove();
+				closed++;
+			}
+		}
+		return closed;
+	}
+
+	/**
+	 * @return the number of open sessions, including the expired ones not closed yet
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	// closes the least recently used session of the next sample of the sessions, returns false if there is none
+	private synchronized boolean evictLeastRecentlyUsed() {
+		Map.Entry<String, Session> eldest = null;
+		boolean restarted = false;
+		for (int sampled = 0; sampled < EVICTION_SAMPLE; sampled++) {
+
+			//At the end of the sessions the iteration starts again, once per sample
+			if (evictionCursor == null || !evictionCursor.hasNext()) {
+				if (restarted) {
+					break;
+				}
+				evictionCursor = sessions.entrySet().iterator();
+				restarted = true;
+				if (!evictionCursor.hasNext()) {
+					break;
+				}
+			}
+			Map.Entry<String, Session> entry = evictionCursor.next();
+			if (eldest == null || entry.getValue().lastUse < eldest.getValue().lastUse) {
+				eldest = entry;
+			}
+		}
+		if (eldest == null) {
+			return false;
+		}
+		sessions.remove(eldest.getKey(), eldest.getValue());
+		return true;
+	}
+
+	// checks both timeouts of a session
+	private boolean isExpired(Session session, long now) {
+		return now - session.lastUsed > properties.getIdleTimeoutMs()
+				|| now - session.created > properties.getAbsoluteTimeoutMs();
+	}
+
+	// One open session
+	private static class Session {
+
+		final ClientContext context;
+
+		final long created;
+
+		// time of the last use
+		volatile long lastUsed;
+
+		// number of the last use, among the uses of all the sessions
+		volatile long lastUse;
+
+		Session(ClientContext context, long created, long lastUse) {
+			this.context = context;
+			this.created = created;
+			this.lastUsed = created;
+			this.lastUse = lastUse;
+		}
+	}
+
+}
@@ -0,0 +1,61 @@
+package com.jb.couponsystem.stock;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class holds the settings of the hot coupon mode,
+ * bound from the coupon.hot.* entries of application.properties.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+@ConfigurationProperties(prefix = "coupon.hot")
+public class HotCouponProperties {
+
+	//Attributes
+	// maximal number of purchases written to the database in one transaction
+	private int batchSize = 500;
+
+	// number of stripes the amount of a hot coupon is divided into
+	private int stripes = 16;
+
+	//Getters and setters
+	/**
+	 * @return the batchSize
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize the batchSize to set
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the stripes
+	 */
+	public int getStripes() {
+		return stripes;
+	}
+
+	/**
+	 * @param stripes the stripes to set
+	 */
+	public void setStripes(int stripes) {
+		this.stripes = stripes;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "HotCouponProperties [batchSize=" + batchSize + ", stripes=" + stripes + "]";
+	}
+
+}
@@ -0,0 +1,592 @@
+package com.jb.couponsystem.stock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.jb.couponsystem.cache.CouponCatalogCache;
+import com.jb.couponsystem.cache.MarketplaceReadModel;
+import com.jb.couponsystem.cache.PurchaseFilter;
+import com.jb.couponsystem.cache.PurchasedCouponIndex;
+import com.jb.couponsystem.connection.ConnectionLease;
+import com.jb.couponsystem.connection.ConnectionPool;
+import com.jb.couponsystem.dbdao.ConstraintViolations;
+import com.jb.couponsystem.entities.Coupon;
+import com.jb.couponsystem.entities.Customer;
+import com.jb.couponsystem.exceptions.CouponAlreadyPurchasedException;
+import com.jb.couponsystem.exceptions.CouponExpiredException;
+import com.jb.couponsystem.exceptions.CouponNotFoundException;
+import com.jb.couponsystem.exceptions.CouponOutOfStockException;
+
+/**
+ * This class sells coupons marked as hot (flash sales) from memory instead of from the database.
+ * When a coupon is activated, its amount, end date and buyers are loaded from the database,
+ * while the coupon row is locked: a purchase in the database either ended before and is counted,
+ * or locks the row after the coupon became hot, finds it hot and is made from memory instead (CouponDBDAO).
+ * A purchase reserves one unit of the in-memory stock and remembers the buyer, without locking the coupon row.
+ * The reserved purchases are then written to the database in batches (group commit): while one thread writes a batch,
+ * the purchases made meanwhile wait and are written together by the next batch.
+ * A purchase returns only after its batch was committed.
+ *
+ * Rules between the memory and the database:
+ * - Each batch decreases COUPONS.amount and inserts the CUSTOMER_COUPON rows in the same transaction,
+ *   so the database is always consistent: amount plus sold rows stays the same.
+ * - A purchase is confirmed to the customer only after it was committed, so a crash loses no confirmed purchase.
+ *   The purchases reserved but not yet committed were not confirmed: their customers do not own the coupon
+ *   and the database amount was not decreased, so nothing has to be repaired.
+ *   The coupon is activated again and the stock is reloaded from the database.
+ * - A purchase the database rejects is not confirmed, and its customer gets the reason as an exception.
+ *   The unit goes back to the in-memory stock, since the rolled back transaction left it in the database,
+ *   unless the database has no unit for it (the coupon was removed or its amount was lowered meanwhile).
+ * - On deactivation and on shutdown the purchases in progress are waited for,
+ *   so every confirmed purchase is in the database before the coupon leaves memory.
+ *   Purchases made meanwhile wait until the coupon left memory, and are then made in the database.
+ * - While a coupon is hot it is sold only through this class, and the database amount is behind the memory
+ *   by the purchases reserved and not committed yet.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+@SuppressWarnings("try") // the connection leases are held, not referenced (see ConnectionLease)
+public class HotCouponStock implements DisposableBean {
+
+	//Attributes
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Autowired
+	HotCouponProperties properties;
+
+	@Autowired
+	CouponCatalogCache catalogCache;
+
+	@Autowired
+	PurchasedCouponIndex purchasedIndex;
+
+	@Autowired
+	PurchaseFilter purchaseFilter;
+
+	@Autowired
+	MarketplaceReadModel marketplace;
+
+	private final Map<Long, HotCoupon> hotCoupons = new ConcurrentHashMap<>();
+
+	//Methods
+	/**
+	 * This method waits for the purchases in progress of all the hot coupons and takes the coupons out of memory.
+	 *
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	@Override
+	public void destroy() {
+		for (Long couponId : new ArrayList<>(hotCoupons.keySet())) {
+			deactivate(couponId);
+		}
+	}
+
+	/**
+	 * This method starts selling a coupon from memory.
+	 * The remaining amount, end date and buyers of the coupon are loaded from the database in one transaction,
+	 * which locks the coupon row and makes the coupon hot before the lock is released.
+	 *
+	 * @param couponId id of the coupon
+	 * @throws CouponNotFoundException if the coupon does not exist
+	 * @throws InterruptedException if the thread was interrupted while waiting for a connection
+	 */
+	public synchronized void activate(long couponId) throws CouponNotFoundException, InterruptedException {
+		if (hotCoupons.containsKey(couponId)) {
+			return;
+		}
+
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+
+			HotCoupon hot;
+			try {
+				hot = new TransactionTemplate(transactionManager).execute(status -> {
+
+					//The purchases in the database holding the row are waited for, and the later ones find the coupon hot
+					List<HotCoupon> found = jdbcTemplate.query(
+							"SELECT company_id, amount, end_date FROM coupons WHERE id = ? FOR UPDATE",
+							(rs, row) -> new HotCoupon(couponId, rs.getLong("company_id"), new StripedStock(
+									Math.max(0, rs.getInt("amount")), properties.getStripes()), rs.getTimestamp("end_date"),
+									properties.getStripes()), couponId);
+					if (found.isEmpty()) {
+						return null;
+					}
+
+					HotCoupon loaded = found.get(0);
+					loaded.buyers.addAll(jdbcTemplate.queryForList(
+							"SELECT customer_id FROM customer_coupon WHERE coupon_id = ?", Long.class, couponId));
+					hotCoupons.put(couponId, loaded);
+					return loaded;
+				});
+			}
+			catch (RuntimeException e) {
+				//The lock may have been released without the stock - the coupon is sold from the database
+				hotCoupons.remove(couponId);
+				throw e;
+			}
+
+			//If the coupon does not exist - throw exception
+			if (hot == null) {
+				throw new CouponNotFoundException("Cannot activate hot coupon. Coupon id=" + couponId + " does not exist.");
+			}
+
+			System.out.println("Coupon id=" + couponId + " is sold from memory: " + hot.stock);
+		}
+	}
+
+	/**
+	 * This method stops selling a coupon from memory, after the purchases in progress were written.
+	 * Does nothing if the coupon is not hot, and waits for another thread which is deactivating the coupon.
+	 * It takes no connection of the pool - the purchases in progress write with connections of their own.
+	 *
+	 * @param couponId id of the coupon
+	 */
+	public void deactivate(long couponId) {
+		HotCoupon hot = hotCoupons.get(couponId);
+		if (hot == null) {
+			return;
+		}
+
+		//Deactivated meanwhile by another thread
+		if (!hot.closed.compareAndSet(false, true)) {
+			awaitDeactivated(hot);
+			return;
+		}
+
+		//New purchases see the flag and wait, the ones already started write themselves and are waited for
+		awaitInFlight(hot);
+
+		hotCoupons.remove(couponId);
+		hot.deactivated.countDown();
+		System.out.println("Coupon id=" + couponId + " is sold from the database again.");
+	}
+
+	/**
+	 * This method stops selling from memory the coupons of a company, after their purchases in progress were written.
+	 *
+	 * @param companyId id of the company
+	 */
+	public void deactivateCompany(long companyId) {
+		for (HotCoupon hot : new ArrayList<>(hotCoupons.values())) {
+			if (hot.companyId == companyId) {
+				deactivate(hot.couponId);
+			}
+		}
+	}
+
+	/**
+	 * This method stops selling from memory the coupons the end date of which is before the given date.
+	 *
+	 * @param today the present date
+	 */
+	public void deactivateExpired(Date today) {
+		for (HotCoupon hot : new ArrayList<>(hotCoupons.values())) {
+			if (hot.endDate.before(today)) {
+				deactivate(hot.couponId);
+			}
+		}
+	}
+
+	/**
+	 * This method checks whether a coupon is sold from memory.
+	 *
+	 * @param couponId id of the coupon
+	 * @return true if the coupon is hot
+	 */
+	public boolean isHot(long couponId) {
+		return hotCoupons.containsKey(couponId);
+	}
+
+	/**
+	 * This method purchases a hot coupon for a customer from memory,
+	 * and returns after the purchase was written to the database together with the purchases made at the same time.
+	 * It takes a connection of the pool to write the purchases, so it must not be called while holding one.
+	 * If the coupon is being deactivated, the purchase waits until the coupon left memory.
+	 *
+	 * @param c coupon object
+	 * @param customer customer object
+	 * @return true if the coupon was purchased, false if the coupon is not hot and has to be purchased in the database
+	 * @throws CouponNotFoundException if the coupon was removed from the database
+	 * @throws CouponAlreadyPurchasedException if the customer had already purchased the coupon
+	 * @throws CouponExpiredException if the coupon has expired
+	 * @throws CouponOutOfStockException if no unit of the coupon is left
+	 * @throws InterruptedException if the thread was interrupted while waiting for a connection or for the deactivation
+	 */
+	public boolean purchase(Coupon c, Customer customer) throws CouponNotFoundException, CouponAlreadyPurchasedException,
+			CouponExpiredException, CouponOutOfStockException, InterruptedException {
+		HotCoupon hot = hotCoupons.get(c.getId());
+		if (hot == null) {
+			return false;
+		}
+
+		//The purchase is counted on the stripe of its thread until it was written, and the deactivation waits for it.
+		//The count is raised before the flag is read and the flag is set before the count is read,
+		//so either the purchase sees the flag or the deactivation sees the purchase.
+		hot.inFlight.enter();
+		try {
+			if (!hot.closed.get()) {
+
+				//If the coupon has expired - throw exception
+				if (hot.endDate.before(new Date())) {
+					throw new CouponExpiredException("Customer "+customer.getCustomerName()
+					+" cannot purchase coupon. Coupon "+ c.getTitle()+ " has expired.");
+				}
+
+				//If the customer had already purchased this coupon - throw exception
+				if (!hot.buyers.add(customer.getId())) {
+					throw new CouponAlreadyPurchasedException("Customer "+customer.getCustomerName()
+					+" cannot purchase coupon. Coupon "+ c.getTitle()+ " has already been purchased by this customer.");
+				}
+
+				//If no unit is left - throw exception
+				if (!hot.stock.tryReserve()) {
+					hot.buyers.remove(customer.getId());
+					throw new CouponOutOfStockException("Customer "+customer.getCustomerName()
+					+" cannot purchase coupon. Coupon "+ c.getTitle()+ " is out of stock.");
+				}
+
+				Purchase purchase = new Purchase(customer, c);
+				hot.pending.add(purchase);
+				commit(hot, purchase);
+				return true;
+			}
+		}
+		finally {
+			hot.inFlight.exit();
+		}
+
+		//The coupon is being deactivated
+		hot.deactivated.await();
+		return false;
+	}
+
+	/**
+	 * This method returns the amount of a hot coupon left in memory.
+	 *
+	 * @param couponId id of the coupon
+	 * @return the remaining amount, or -1 if the coupon is not hot
+	 */
+	public long getRemaining(long couponId) {
+		HotCoupon hot = hotCoupons.get(couponId);
+		return hot == null ? -1 : hot.stock.remaining();
+	}
+
+	/**
+	 * This method waits until a purchase was written to the database, and throws the reason if it was rejected.
+	 * The thread which holds the lock of the coupon writes the pending purchases of all the threads,
+	 * so the purchases which arrive while a batch is written are written together by the next batch.
+	 *
+	 * @param hot the hot coupon
+	 * @param purchase the reserved purchase, pending
+	 * @throws InterruptedException if the thread was interrupted while waiting for a connection - the purchase is cancelled
+	 */
+	private void commit(HotCoupon hot, Purchase purchase) throws InterruptedException {
+		synchronized (hot) {
+			while (!purchase.done) {
+				if (!flushBatch(hot)) {
+					//No other thread writes while the lock is held, so the purchase is still pending
+					hot.pending.remove(purchase);
+					cancel(hot, purchase, null);
+					throw new InterruptedException("Purchase of coupon " + purchase.title + " by customer "
+							+ purchase.customerName + " was cancelled.");
+				}
+			}
+		}
+		if (purchase.failure != null) {
+			throw purchase.failure;
+		}
+	}
+
+	/**
+	 * This method writes one batch of the pending purchases of a coupon in one transaction, and completes them.
+	 * If the batch is rejected, its purchases are written one by one, so one bad purchase does not fail the others.
+	 * It is called while holding the lock of the coupon.
+	 *
+	 * @param hot the hot coupon
+	 * @return false if the thread was interrupted while waiting for a connection - the batch is pending again
+	 */
+	private boolean flushBatch(HotCoupon hot) {
+		List<Purchase> batch = new ArrayList<>();
+		Purchase purchase;
+		while (batch.size() < properties.getBatchSize() && (purchase = hot.pending.poll()) != null) {
+			batch.add(purchase);
+		}
+		if (batch.isEmpty()) {
+			return true;
+		}
+
+		//Ask for connection from the connection pool - it is returned when the try block ends
+		try (ConnectionLease lease = ConnectionPool.getInstance().lease()) {
+			try {
+				List<Long> customerIds = new ArrayList<>();
+				for (Purchase written : batch) {
+					customerIds.add(written.customerId);
+				}
+				write(hot.couponId, customerIds);
+				for (Purchase written : batch) {
+					written.done = true;
+				}
+			}
+			catch (DataIntegrityViolationException | StockMismatchException e) {
+				for (Purchase one : batch) {
+					writeOne(hot, one);
+				}
+			}
+			//The database could not be reached - none of the purchases was written
+			catch (RuntimeException e) {
+				for (Purchase failed : batch) {
+					cancel(hot, failed, e);
+				}
+			}
+			return true;
+		}
+		catch (InterruptedException e) {
+			hot.pending.addAll(batch);
+			return false;
+		}
+	}
+
+	/**
+	 * This method writes purchases of a coupon in one transaction.
+	 * The amount is decreased only if it does not go below zero.
+	 *
+	 * @param couponId id of the coupon
+	 * @param customerIds ids of the buyers
+	 * @throws DataAccessException if the database rejected the purchases, nothing was written
+	 */
+	private void write(long couponId, List<Long> customerIds) throws DataAccessException {
+		new TransactionTemplate(transactionManager).execute(status -> {
+			if (jdbcTemplate.update("UPDATE coupons SET amount = amount - ? WHERE id = ? AND amount >= ?",
+					customerIds.size(), couponId, customerIds.size()) != 1) {
+				boolean removed = jdbcTemplate.queryForList("SELECT id FROM coupons WHERE id = ?", Long.class, couponId).isEmpty();
+				throw new StockMismatchException("Coupon id=" + couponId + (removed ? " was removed." : " has less than "
+						+ customerIds.size() + " units in the database."), removed);
+			}
+			jdbcTemplate.batchUpdate("INSERT INTO customer_coupon (coupon_id, customer_id) VALUES (?, ?)",
+					customerIds, customerIds.size(), (ps, customerId) -> {
+						ps.setLong(1, couponId);
+						ps.setLong(2, customerId);
+					});
+			return null;
+		});
+
+		//The amount in the database was changed, and the buyers own the coupon from now on
+		catalogCache.invalidateCoupon(couponId);
+		marketplace.purchased(couponId, customerIds.size());
+		for (Long customerId : customerIds) {
+			purchasedIndex.addPurchase(customerId, couponId);
+			purchaseFilter.add(couponId, customerId);
+		}
+	}
+
+	/**
+	 * This method writes a single purchase and completes it, failing it with the reason if the database rejects it.
+	 *
+	 * @param hot the hot coupon
+	 * @param purchase the purchase
+	 */
+	private void writeOne(HotCoupon hot, Purchase purchase) {
+		try {
+			write(hot.couponId, Collections.singletonList(purchase.customerId));
+			purchase.done = true;
+		}
+		catch (StockMismatchException e) {
+			//The database has no unit for the purchase, so the unit is not given back to the in-memory stock
+			hot.buyers.remove(purchase.customerId);
+			purchase.fail(e.removed
+					? new CouponNotFoundException("Customer " + purchase.customerName
+							+ " cannot purchase coupon. Coupon " + purchase.title + " does not exist.")
+					: new CouponOutOfStockException("Customer " + purchase.customerName
+							+ " cannot purchase coupon. Coupon " + purchase.title + " is out of stock."));
+		}
+		catch (DataIntegrityViolationException e) {
+			//The customer already owns the coupon in the database - the rolled back transaction left the unit there
+			if (ConstraintViolations.isViolated(e, Customer.PURCHASE_CONSTRAINT)) {
+				hot.stock.release();
+				purchase.fail(new CouponAlreadyPurchasedException("Customer " + purchase.customerName
+						+ " cannot purchase coupon. Coupon " + purchase.title + " has already been purchased by this customer."));
+			}
+			//The customer was removed meanwhile
+			else {
+				cancel(hot, purchase, e);
+			}
+		}
+		catch (RuntimeException e) {
+			cancel(hot, purchase, e);
+		}
+	}
+
+	/**
+	 * This method gives back the unit and the buyer of a purchase which was not written,
+	 * since the database still has the unit, and fails the purchase.
+	 *
+	 * @param hot the hot coupon
+	 * @param purchase the purchase
+	 * @param failure the reason, or null if the purchase was cancelled by its own thread
+	 */
+	private static void cancel(HotCoupon hot, Purchase purchase, RuntimeException failure) {
+		hot.buyers.remove(purchase.customerId);
+		hot.stock.release();
+		purchase.fail(failure);
+	}
+
+	// waits until the purchases in progress of a coupon ended, keeping an interrupt for the caller
+	private static void awaitInFlight(HotCoupon hot) {
+		boolean interrupted = false;
+		while (!hot.inFlight.isEmpty()) {
+			try {
+				Thread.sleep(1);
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// waits for the deactivation of a coupon by another thread, keeping an interrupt for the caller
+	private static void awaitDeactivated(HotCoupon hot) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				hot.deactivated.await();
+				break;
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// The in-memory state of one hot coupon
+	private static class HotCoupon {
+
+		final long couponId;
+		// 0 if the coupon has no company
+		final long companyId;
+		final StripedStock stock;
+		final Date endDate;
+		final Set<Long> buyers = ConcurrentHashMap.newKeySet();
+		final Queue<Purchase> pending = new ConcurrentLinkedQueue<>();
+		// counts the purchases until they were written, so the deactivation can wait for them
+		final InFlight inFlight;
+		// counted down when the coupon left memory
+		final CountDownLatch deactivated = new CountDownLatch(1);
+		// set by the deactivation, turns the new purchases to the database
+		final AtomicBoolean closed = new AtomicBoolean();
+
+		HotCoupon(long couponId, long companyId, StripedStock stock, Date endDate, int stripes) {
+			this.couponId = couponId;
+			this.companyId = companyId;
+			this.stock = stock;
+			this.endDate = endDate;
+			this.inFlight = new InFlight(stripes);
+		}
+	}
+
+	// Counts the purchases in progress of a coupon, each thread on its own stripe like StripedStock,
+	// so the purchases of one coupon do not all update one counter.
+	// A thread enters and exits on the same stripe, so a stripe read as zero has no purchase in progress.
+	private static class InFlight {
+
+		// distance between two stripes in the array, so each stripe is on its own cache line
+		private static final int PADDING = 8;
+
+		private final AtomicLongArray stripes;
+
+		private final int stripeCount;
+
+		InFlight(int stripeCount) {
+			this.stripeCount = stripeCount;
+			this.stripes = new AtomicLongArray(stripeCount * PADDING);
+		}
+
+		void enter() {
+			stripes.incrementAndGet(stripe());
+		}
+
+		void exit() {
+			stripes.decrementAndGet(stripe());
+		}
+
+		boolean isEmpty() {
+			for (int i = 0; i < stripeCount; i++) {
+				if (stripes.get(i * PADDING) != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int stripe() {
+			return (int) (Thread.currentThread().getId() % stripeCount) * PADDING;
+		}
+	}
+
+	// One purchase reserved in memory, completed by the thread which wrote it while holding the lock of the coupon
+	private static class Purchase {
+
+		final long customerId;
+		final String customerName;
+		final String title;
+		boolean done;
+		// the reason the purchase was not written, null if it was
+		RuntimeException failure;
+
+		Purchase(Customer customer, Coupon c) {
+			this.customerId = customer.getId();
+			this.customerName = customer.getCustomerName();
+			this.title = c.getTitle();
+		}
+
+		void fail(RuntimeException failure) {
+			this.failure = failure;
+			this.done = true;
+		}
+	}
+
+	// Thrown inside the write transaction when the coupon row can not take the purchases, so the transaction is rolled back
+	private static class StockMismatchException extends DataAccessException {
+
+		private static final long serialVersionUID = 1L;
+
+		// true if the coupon is not in the database any more
+		final boolean removed;
+
+		StockMismatchException(String message, boolean removed) {
+			super(message);
+			this.removed = removed;
+		}
+	}
+
+}
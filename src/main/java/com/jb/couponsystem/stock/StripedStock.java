@@ -0,0 +1,91 @@
+package com.jb.couponsystem.stock;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class holds the remaining amount of one coupon in memory, split into several stripes.
+ * Each thread reserves from its own stripe first, so threads buying the same coupon
+ * do not all compete on one counter, and moves to the other stripes only when its stripe is empty.
+ * The amount never goes below zero, so the stock can not be oversold.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class StripedStock {
+
+	//Attributes
+	// distance between two stripes in the array, so each stripe is on its own cache line
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray stripes;
+
+	private final int stripeCount;
+
+	//CTOR
+	/**
+	 *  Constructor - divides the amount between the stripes as evenly as possible
+	 *
+	 * @param amount the amount available for purchase
+	 * @param stripeCount number of stripes
+	 */
+	public StripedStock(long amount, int stripeCount) {
+		if (amount < 0 || stripeCount < 1) {
+			throw new IllegalArgumentException("Illegal stock: amount=" + amount + ", stripes=" + stripeCount);
+		}
+		this.stripeCount = stripeCount;
+		this.stripes = new AtomicLongArray(stripeCount * PADDING);
+		for (int i = 0; i < stripeCount; i++) {
+			stripes.set(i * PADDING, amount / stripeCount + (i < amount % stripeCount ? 1 : 0));
+		}
+	}
+
+	//Methods
+	/**
+	 * This method takes one unit of the stock, without waiting for other threads.
+	 *
+	 * @return true if a unit was taken, false if the stock is empty
+	 */
+	public boolean tryReserve() {
+		int home = (int) (Thread.currentThread().getId() % stripeCount);
+		for (int i = 0; i < stripeCount; i++) {
+			int index = ((home + i) % stripeCount) * PADDING;
+			long left = stripes.get(index);
+			while (left > 0) {
+				if (stripes.compareAndSet(index, left, left - 1)) {
+					return true;
+				}
+				left = stripes.get(index);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * This method gives back one unit of the stock, for a reservation that was cancelled.
+	 */
+	public void release() {
+		stripes.incrementAndGet((int) (Thread.currentThread().getId() % stripeCount) * PADDING);
+	}
+
+	/**
+	 * This method sums the stripes. While other threads reserve, the result is only an estimate.
+	 *
+	 * @return the remaining amount
+	 */
+	public long remaining() {
+		long sum = 0;
+		for (int i = 0; i < stripeCount; i++) {
+			sum += stripes.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "StripedStock [remaining=" + remaining() + ", stripes=" + stripeCount + "]";
+	}
+
+}
@@ -1,15 +1,21 @@
 package com.jb.couponsystem.tasks;
 
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.springframework.context.ApplicationContext;
 
 import com.jb.couponsystem.dbdao.CouponDBDAO;
+import com.jb.couponsystem.dbdao.PurgeReport;
 import com.jb.couponsystem.exceptions.CouponNotFoundException;
 
 /**
- * This method runs the task of cleaning expired coupons once a day.
- * The run method calls the instance of couponDBDAO class to remove 
- * expired coupons from the database. The method runs in while loop
- * while the system did not quit.
+ * This class is the task of cleaning the expired coupons.
+ * Each call of the run method calls the instance of couponDBDAO class once to remove 
+ * expired coupons from the database, and records the metrics of the run:
+ * its duration, the number of removed rows and the errors.
+ * The task is run once a day by ExpirationScheduler.
  * 
  * @author Sasha Zablotsky
  *
@@ -17,33 +23,91 @@ import com.jb.couponsystem.exceptions.CouponNotFoundException;
 public class DailyExpirationTask implements Runnable {
 
 	//Attributes
-	private ApplicationContext ctx;
-	
-	private boolean quit = false;
+	private final CouponDBDAO couponDBDAO;
+
+	private final AtomicLong runs = new AtomicLong();
+
+	private final AtomicLong errors = new AtomicLong();
+
+	private final AtomicLong couponsRemoved = new AtomicLong();
+
+	private final AtomicLong purchasesRemoved = new AtomicLong();
+
+	private volatile Date lastRunAt;
+
+	private volatile long lastDurationMillis;
+
+	private volatile PurgeReport lastReport;
+
+	private volatile String lastError;
 	
 	
 //CTOR
 	public DailyExpirationTask(ApplicationContext ctx) {
-		this.ctx = ctx;
+		this(ctx.getBean(CouponDBDAO.class));
+	}
+
+	public DailyExpirationTask(CouponDBDAO couponDBDAO) {
+		this.couponDBDAO = couponDBDAO;
 	}
 
 
-	//Getters and setters
+	//Getters
 
 	/**
-	 * 
-	 * @return the quit
+	 * @return the number of runs
 	 */
-	public boolean isQuit() {
-		return quit;
+	public long getRuns() {
+		return runs.get();
 	}
 
 	/**
-	 * 
-	 * @param quit the quit to set
+	 * @return the number of runs that failed or were cancelled
 	 */
-	public void setQuit(boolean quit) {
-		this.quit = quit;
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * @return the number of coupons removed by all the runs
+	 */
+	public long getCouponsRemoved() {
+		return couponsRemoved.get();
+	}
+
+	/**
+	 * @return the number of purchases removed by all the runs
+	 */
+	public long getPurchasesRemoved() {
+		return purchasesRemoved.get();
+	}
+
+	/**
+	 * @return the time the last run started, or null if the task did not run yet
+	 */
+	public Date getLastRunAt() {
+		return lastRunAt;
+	}
+
+	/**
+	 * @return the duration of the last run in milliseconds
+	 */
+	public long getLastDurationMillis() {
+		return lastDurationMillis;
+	}
+
+	/**
+	 * @return the report of the last successful run, or null
+	 */
+	public PurgeReport getLastReport() {
+		return lastReport;
+	}
+
+	/**
+	 * @return the error of the last run, or null if it succeeded
+	 */
+	public String getLastError() {
+		return lastError;
 	}
 
 	//Methods
@@ -53,32 +117,54 @@ public class DailyExpirationTask implements Runnable {
 	 */
 	@Override
 	public void run() {
-		
-		while (!quit) {
-         try {
-        	 
-        CouponDBDAO couponDBDAO= ctx.getBean(CouponDBDAO.class);	 
-        	 
-        System.out.println("Thread id: "
+
+		long start = System.nanoTime();
+		lastRunAt = new Date();
+
+		System.out.println("Thread id: "
 				+ Thread.currentThread().getId() + " started."
 				+ " Performing expiration task...");
+		try {
+			PurgeReport report = couponDBDAO.removeExpiredCoupons();
+			couponsRemoved.addAndGet(report.getCouponsRemoved());
+			purchasesRemoved.addAndGet(report.getPurchasesRemoved());
+			lastReport = report;
+			lastError = null;
+		}
+		catch (CouponNotFoundException e) {
+			//No coupons at all - nothing to remove
+			System.err.println(e.getMessage());
+			lastError = null;
+		}
+		catch (InterruptedException e) {
+			System.err.println("Expiration task was cancelled: " + e.getMessage());
+			errors.incrementAndGet();
+			lastError = "cancelled";
+			Thread.currentThread().interrupt();
+		}
+		catch (RuntimeException e) {
+			System.err.println("Expiration task failed: " + e.getMessage());
+			e.printStackTrace();
+			errors.incrementAndGet();
+			lastError = e.toString();
+		}
+		finally {
+			lastDurationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			runs.incrementAndGet();
+		}
 
-		couponDBDAO.removeExpiredCoupons();
-		
 		System.out.println("Thread id: "
-				+ Thread.currentThread().getId() +  " performed expiration task. Now it goes sleeping till the next day.");
-		
-		Thread.sleep(1000*60*60*24);
-		
-         }
-         catch (InterruptedException e) {
-        	   System.err.println(e.getMessage());
-        	   e.printStackTrace();
-	}
-         catch (CouponNotFoundException e) {
-      	   System.err.println(e.getMessage());
-      	   //e.printStackTrace();
+				+ Thread.currentThread().getId() +  " performed expiration task in " + lastDurationMillis + " ms.");
 	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DailyExpirationTask [runs=" + runs + ", errors=" + errors + ", couponsRemoved=" + couponsRemoved
+				+ ", purchasesRemoved=" + purchasesRemoved + ", lastRunAt=" + lastRunAt + ", lastDurationMillis="
+				+ lastDurationMillis + ", lastError=" + lastError + "]";
 	}
-}
+
 }
@@ -0,0 +1,96 @@
+package com.jb.couponsystem.tasks;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class holds the settings of the removal of expired coupons,
+ * bound from the coupon.expiration.* entries of application.properties.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+@ConfigurationProperties(prefix = "coupon.expiration")
+public class ExpirationProperties {
+
+	//Attributes
+	// false in order not to schedule the task at all (for example in the application tests)
+	private boolean enabled = true;
+
+	// when the task runs - a Spring cron expression: second, minute, hour, day of month, month, day of week
+	private String cron = "0 0 3 * * *";
+
+	// maximal random delay added to each run in milliseconds, so several servers do not purge at the same moment
+	private long jitterMs = 600000;
+
+	// true in order to run the task once when the system starts, catching up a run missed while it was down
+	private boolean runOnStartup = true;
+
+	//Getters and setters
+	/**
+	 * @return the enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param enabled the enabled to set
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return the cron
+	 */
+	public String getCron() {
+		return cron;
+	}
+
+	/**
+	 * @param cron the cron to set
+	 */
+	public void setCron(String cron) {
+		this.cron = cron;
+	}
+
+	/**
+	 * @return the jitterMs
+	 */
+	public long getJitterMs() {
+		return jitterMs;
+	}
+
+	/**
+	 * @param jitterMs the jitterMs to set
+	 */
+	public void setJitterMs(long jitterMs) {
+		this.jitterMs = jitterMs;
+	}
+
+	/**
+	 * @return the runOnStartup
+	 */
+	public boolean isRunOnStartup() {
+		return runOnStartup;
+	}
+
+	/**
+	 * @param runOnStartup the runOnStartup to set
+	 */
+	public void setRunOnStartup(boolean runOnStartup) {
+		this.runOnStartup = runOnStartup;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ExpirationProperties [enabled=" + enabled + ", cron=" + cron + ", jitterMs=" + jitterMs
+				+ ", runOnStartup=" + runOnStartup + "]";
+	}
+
+}
@@ -0,0 +1,182 @@
+package com.jb.couponsystem.tasks;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+import org.springframework.stereotype.Component;
+
+/**
+ * This class runs the daily expiration task on its own thread,
+ * at the times of the cron expression of the coupon.expiration.* settings plus a random jitter.
+ * It can also run the task once when the system starts, to catch up a run missed while the system was down.
+ * Only one run is performed at a time: a run requested while another is running is skipped.
+ * On shutdown a running task is interrupted, so it stops after its current chunk.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+@Component
+public class ExpirationScheduler implements InitializingBean, DisposableBean {
+
+	//Attributes
+	// maximal time to wait for a running task on shutdown in seconds
+	private static final int SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+	private final ExpirationProperties properties;
+
+	private final DailyExpirationTask task;
+
+	// true while the task is running
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	private volatile ScheduledExecutorService executor;
+
+	private volatile CronSequenceGenerator cron;
+
+	//CTORS
+	@Autowired
+	public ExpirationScheduler(ApplicationContext ctx, ExpirationProperties properties) {
+		this(new DailyExpirationTask(ctx), properties);
+	}
+
+	// creates the scheduler of the given task
+	ExpirationScheduler(DailyExpirationTask task, ExpirationProperties properties) {
+		this.task = task;
+		this.properties = properties;
+	}
+
+	//Getters
+	/**
+	 * @return the task, with the metrics of its runs
+	 */
+	public DailyExpirationTask getTask() {
+		return task;
+	}
+
+	/**
+	 * @return true while the task is running
+	 */
+	public boolean isRunning() {
+		return running.get();
+	}
+
+	//Methods
+	/**
+	 * This method starts the scheduler when the bean is created, unless it is disabled by the settings.
+	 *
+	 * @see org.springframework.beans.factory.InitializingBean#afterPropertiesSet()
+	 */
+	@Override
+	public void afterPropertiesSet() {
+		if (properties.isEnabled()) {
+			start();
+		}
+	}
+
+	/**
+	 * This method starts the thread of the scheduler and schedules the first run.
+	 */
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		cron = new CronSequenceGenerator(properties.getCron());
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "coupon-expiration");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (properties.isRunOnStartup()) {
+			executor.execute(this::runNow);
+		}
+		scheduleNext();
+		System.out.println("Expiration task scheduled: " + properties);
+	}
+
+	/**
+	 * This method runs the task on the current thread, unless it is already running.
+	 *
+	 * @return true if the task ran, false if it was skipped because another run was not finished
+	 */
+	public boolean runNow() {
+		if (!running.compareAndSet(false, true)) {
+			System.err.println("Expiration task is already running - this run is skipped.");
+			return false;
+		}
+		try {
+			task.run();
+			return true;
+		}
+		finally {
+			running.set(false);
+		}
+	}
+
+	/**
+	 * This method computes the time until the next run: the next time of the cron expression plus the jitter.
+	 *
+	 * @param now the present time
+	 * @return the delay in milliseconds
+	 */
+	long nextDelayMillis(Date now) {
+		long jitter = properties.getJitterMs() > 0 ? ThreadLocalRandom.current().nextLong(properties.getJitterMs() + 1) : 0;
+		return cron.next(now).getTime() - now.getTime() + jitter;
+	}
+
+	/**
+	 * This method cancels the scheduled runs and interrupts a running task,
+	 * waiting a short time for it to stop.
+	 */
+	public synchronized void shutdown() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdownNow();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				System.err.println("Expiration task did not stop in " + SHUTDOWN_TIMEOUT_SECONDS + " seconds.");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor = null;
+		System.out.println("Expiration task stopped: " + task);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.springframework.beans.factory.DisposableBean#destroy()
+	 */
+	@Override
+	public void destroy() {
+		shutdown();
+	}
+
+	// schedules the next run, which schedules the one after it
+	private void scheduleNext() {
+		ScheduledExecutorService current = executor;
+		if (current == null) {
+			return;
+		}
+		try {
+			current.schedule(() -> {
+				runNow();
+				scheduleNext();
+			}, nextDelayMillis(new Date()), TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e) {
+			//The scheduler was shut down meanwhile
+		}
+	}
+
+}
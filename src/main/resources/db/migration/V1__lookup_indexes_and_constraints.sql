@@ -0,0 +1,33 @@
+-- Indexes and unique constraints of the lookups of CouponRepo, CompanyRepo and CustomerRepo (PostgreSQL).
+-- The same indexes and constraints are declared on the entities, so a schema created by
+-- spring.jpa.hibernate.ddl-auto=create already has them. This migration adds them to a database
+-- created before, and is meant to be run once by a migration tool (its name follows the Flyway convention)
+-- or by hand. Rows which violate a new unique constraint have to be removed first.
+
+-- COUPONS: existsByTitle, findByTitle, findCouponByTitle; refuses a second coupon with the same title
+ALTER TABLE coupons ADD CONSTRAINT uk_coupons_title UNIQUE (title);
+
+-- COUPONS: findCouponByCompanyId, findCouponByTypeAndCompanyId, removal of the coupons of a company
+CREATE INDEX IF NOT EXISTS ix_coupons_company_type ON coupons (company_id, type);
+
+-- COUPONS: findByMaxPriceAndCompanyId
+CREATE INDEX IF NOT EXISTS ix_coupons_company_price ON coupons (company_id, price);
+
+-- COUPONS: findByMaxEndDateAndCompanyId
+CREATE INDEX IF NOT EXISTS ix_coupons_company_end_date ON coupons (company_id, end_date);
+
+-- COUPONS: removal of expired coupons (end_date < today ORDER BY id LIMIT chunk), activation of expired hot coupons
+CREATE INDEX IF NOT EXISTS ix_coupons_end_date ON coupons (end_date);
+
+-- COMPANIES: existsByCompanyName, findByName, findCompanyByCompanyName, findLoginPrincipal
+ALTER TABLE companies ADD CONSTRAINT uk_companies_company_name UNIQUE (company_name);
+
+-- CUSTOMERS: existsByCustomerName, findByName, findCustomerByCustomerName, findLoginPrincipal
+ALTER TABLE customers ADD CONSTRAINT uk_customers_customer_name UNIQUE (customer_name);
+
+-- CUSTOMER_COUPON: findCustomerCouponIds, existsCustomerCoupon, the owned coupons of a cart purchase;
+-- a customer owns a coupon once, also when two purchases are made at the same time
+ALTER TABLE customer_coupon ADD CONSTRAINT uk_customer_coupon UNIQUE (customer_id, coupon_id);
+
+-- CUSTOMER_COUPON: removal of the purchases of removed and expired coupons, buyers of a hot coupon
+CREATE INDEX IF NOT EXISTS ix_customer_coupon_coupon ON customer_coupon (coupon_id);
@@ -0,0 +1,7 @@
+-- Index of the keyset pages of the coupons of a company (PostgreSQL).
+-- The same index is declared on the Coupon entity, so a schema created by
+-- spring.jpa.hibernate.ddl-auto=create already has it.
+
+-- COUPONS: findPageByCompanyId and the other pages of company's coupons
+-- (company_id = :companyId AND id > :afterId ORDER BY id LIMIT :size), read in the order of the index
+CREATE INDEX IF NOT EXISTS ix_coupons_company_id ON coupons (company_id, id);
@@ -1,15 +1,37 @@
 package com.jb.couponsystem;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.Assert;
 import org.junit.FixMethodOrder;
 import org.junit.Ignore;
@@ -19,17 +41,26 @@ import org.junit.runners.MethodSorters;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.ApplicationContext;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.junit4.SpringRunner;
 
+import com.jb.couponsystem.cache.CouponCatalogCache;
+import com.jb.couponsystem.cache.PurchaseFilter;
+import com.jb.couponsystem.cache.PurchasedCouponIndex;
 import com.jb.couponsystem.dao.*;
 import com.jb.couponsystem.dbdao.CompanyDBDAO;
 import com.jb.couponsystem.dbdao.CouponDBDAO;
+import com.jb.couponsystem.dbdao.PurgeReport;
 import com.jb.couponsystem.entities.*;
 import com.jb.couponsystem.entry.CouponSystem;
 import com.jb.couponsystem.enums.ClientType;
+import com.jb.couponsystem.enums.CouponSort;
 import com.jb.couponsystem.enums.CouponType;
+import com.jb.couponsystem.enums.PurchaseOutcome;
 //import com.jb.couponsystem.exceptions.CouponAlreadyExistsException;
-//import com.jb.couponsystem.exceptions.UserAlreadyExistsException;
+//import com.jb.couponsystem.exceptions.SessionNotFoundException;
+import com.jb.couponsystem.exceptions.UserAlreadyExistsException;
 //import com.jb.couponsystem.exceptions.UserNotFoundException;
 //import com.jb.couponsystem.exceptions.WrongPasswordException;
 import com.jb.couponsystem.exceptions.*;
@@ -39,6 +70,8 @@ import com.jb.couponsystem.facades.CustomerFacade;
 import com.jb.couponsystem.repo.CompanyRepo;
 import com.jb.couponsystem.repo.CouponRepo;
 import com.jb.couponsystem.repo.CustomerRepo;
+import com.jb.couponsystem.security.PasswordHasher;
+import com.jb.couponsystem.stock.HotCouponStock;
 
 /**
  * This class contains Spring Boot tests for the Coupon System application.
@@ -50,7 +83,8 @@ import com.jb.couponsystem.repo.CustomerRepo;
  */
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 @RunWith(SpringRunner.class)
-@SpringBootTest
+@SpringBootTest(properties = {"coupon.expiration.enabled=false", "spring.jpa.properties.hibernate.generate_statistics=true",
+		"coupon.security.hash-iterations=1000"})
 public class ProjectApplicationTests {
 
 	//Attributes	
@@ -58,6 +92,9 @@ public class ProjectApplicationTests {
 	@Autowired
 	ApplicationContext ctx;
 
+	@Autowired
+	EntityManagerFactory entityManagerFactory;
+
 	@Autowired
 	CouponRepo couponRepo;
 
@@ -67,12 +104,30 @@ public class ProjectApplicationTests {
 	@Autowired
 	CustomerRepo customerRepo;
 
+	@Autowired
+	PasswordHasher passwordHasher;
+
+	@Autowired
+	CouponCatalogCache catalogCache;
+
+	@Autowired
+	PurchasedCouponIndex purchasedIndex;
+
+	@Autowired
+	PurchaseFilter purchaseFilter;
+
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
 	@Autowired
 	CouponDBDAO couponDBDAO;
 	
 	@Autowired
 	CompanyDBDAO companyDBDAO;
 
+	@Autowired
+	HotCouponStock hotCouponStock;
+
 	private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
 
 	//Tests
@@ -315,7 +370,8 @@ public class ProjectApplicationTests {
 		adminFacade.updateCompany(comp);
 
 		String updated= companyRepo.findByName("AMDOCS").getPassword();
-		Assert.assertEquals("456", updated);
+		Assert.assertNotEquals("456", updated);
+		Assert.assertTrue(passwordHasher.matches("456", updated));
 
 	}	
 
@@ -573,7 +629,9 @@ public class ProjectApplicationTests {
 		cust.setPassword("444");
 		adminFacade.updateCustomer(cust);
 
-		Assert.assertEquals("444", customerRepo.findByName("Gabi").getPassword());
+		String updated = customerRepo.findByName("Gabi").getPassword();
+		Assert.assertNotEquals("444", updated);
+		Assert.assertTrue(passwordHasher.matches("444", updated));
 
 
 	}	
@@ -1751,4 +1809,1139 @@ public class ProjectApplicationTests {
 	}
 
 
+	//4. Test concurrent sessions
+	/**
+	 * Test for concurrent sessions of customers.
+	 * Many customers are logged in at the same time, each in its own thread, 
+	 * and each purchases its own coupon. Every customer must find in its session
+	 * only its own name and only the coupon it purchased, and in the database every coupon
+	 * must belong to the customer who purchased it.
+	 * 
+	 * @throws CouponAlreadyExistsException if the coupon exists in the database
+	 * @throws InterruptedException if the thread was interrupted 
+	 */
+	@Test
+	public void test_083_concurrentCustomerSessions() throws CouponAlreadyExistsException, InterruptedException {
+
+		final int sessions = 20;
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		AdminFacade adminFacade = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+		adminFacade.createCompany(new Company("SESSIONS", "999", "sessions@gmail.com"));
+		for (int i = 0; i < sessions; i++) {
+			adminFacade.createCustomer(new Customer("Session customer " + i, "s" + i));
+		}
+
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		for (int i = 0; i < sessions; i++) {
+			Coupon coupon = new Coupon();
+			coupon.setTitle("Session coupon " + i);
+			coupon.setMessage("Coupon of session " + i);
+			coupon.setAmount(1);
+			coupon.setType(CouponType.FOOD);
+			coupon.setPrice(10 + i);
+			coupon.setStartDate("2017-01-01");
+			coupon.setEndDate("2099-12-31");
+			coupon.setImage("My image");
+			company.createCoupon(coupon);
+		}
+
+		final CyclicBarrier allLoggedIn = new CyclicBarrier(sessions);
+		final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+		ExecutorService executor = Executors.newFixedThreadPool(sessions);
+
+		for (int i = 0; i < sessions; i++) {
+			final int session = i;
+			executor.execute(() -> {
+				try {
+					String name = "Session customer " + session;
+					CustomerFacade customer = (CustomerFacade) couponsystem.login(name, "s" + session, ClientType.CUSTOMER);
+
+					// all the customers are logged in before anyone purchases
+					allLoggedIn.await(30, TimeUnit.SECONDS);
+
+					customer.purchaseCoupon(couponRepo.findByTitle("Session coupon " + session));
+					Assert.assertEquals(name, customer.getLoginCustomer().getCustomerName());
+
+					Collection<Coupon> purchased = customer.getAllPurchasedCouponsByPrice(1000);
+					Assert.assertEquals(1, purchased.size());
+					Assert.assertEquals("Session coupon " + session, purchased.iterator().next().getTitle());
+				}
+				catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+		}
+
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(120, TimeUnit.SECONDS));
+		Assert.assertTrue("Errors in sessions: " + errors, errors.isEmpty());
+
+		for (int i = 0; i < sessions; i++) {
+			long customerId = customerRepo.findByName("Session customer " + i).getId();
+			long couponId = couponRepo.findByTitle("Session coupon " + i).getId();
+			Assert.assertNotNull(couponRepo.findCustomerCoupon(customerId, couponId));
+			Assert.assertEquals(1, couponRepo.findCustomerCouponsByMaxPrice(customerId, 1000).size());
+		}
+	}
+
+	/**
+	 * Stress test for purchaseCoupon method of CustomerFacade.
+	 * Many more customers than the coupons in stock try to purchase the same coupon at the same time.
+	 * Exactly as many purchases as the amount in stock must succeed, all the others must fail 
+	 * with CouponOutOfStockException, and the amount and the customers of the coupon in the database
+	 * must agree with the successful purchases.
+	 * 
+	 * @throws CouponAlreadyExistsException if the coupon exists in the database
+	 * @throws InterruptedException if the thread was interrupted 
+	 */
+	@Test
+	public void test_084_concurrentPurchaseDoesNotOversell() throws CouponAlreadyExistsException, InterruptedException {
+
+		final int buyers = 120;
+		final int stock = 50;
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		AdminFacade adminFacade = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+		for (int i = 0; i < buyers; i++) {
+			adminFacade.createCustomer(new Customer("Buyer " + i, "b" + i));
+		}
+
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		Coupon coupon = new Coupon();
+		coupon.setTitle("Flash sale");
+		coupon.setMessage("Only for the fastest");
+		coupon.setAmount(stock);
+		coupon.setType(CouponType.ELECTRICITY);
+		coupon.setPrice(1);
+		coupon.setStartDate("2017-01-01");
+		coupon.setEndDate("2099-12-31");
+		coupon.setImage("My image");
+		company.createCoupon(coupon);
+		final Coupon flashSale = couponRepo.findByTitle("Flash sale");
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger purchased = new AtomicInteger();
+		final AtomicInteger outOfStock = new AtomicInteger();
+		final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+		ExecutorService executor = Executors.newFixedThreadPool(buyers);
+
+		for (int i = 0; i < buyers; i++) {
+			final int buyer = i;
+			executor.execute(() -> {
+				try {
+					CustomerFacade customer = (CustomerFacade) couponsystem.login("Buyer " + buyer, "b" + buyer, ClientType.CUSTOMER);
+					start.await();
+					customer.purchaseCoupon(flashSale);
+					purchased.incrementAndGet();
+				}
+				catch (CouponOutOfStockException e) {
+					outOfStock.incrementAndGet();
+				}
+				catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+		}
+
+		start.countDown();
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(120, TimeUnit.SECONDS));
+		Assert.assertTrue("Errors in purchases: " + errors, errors.isEmpty());
+
+		Assert.assertEquals(stock, purchased.get());
+		Assert.assertEquals(buyers - stock, outOfStock.get());
+
+		Assert.assertEquals(0, couponRepo.findOne(flashSale.getId()).getAmount());
+		Assert.assertEquals(stock, (int) jdbcTemplate.queryForObject(
+				"SELECT COUNT(*) FROM customer_coupon WHERE coupon_id = ?", Integer.class, flashSale.getId()));
+	}
+
+	/**
+	 * A coupon in a flash sale is sold from memory: concurrent buyers never get more coupons than the amount,
+	 * a customer cannot buy it twice, and when the sale ends all the purchases are in the database.
+	 *
+	 * @throws CouponAlreadyExistsException if the coupon already exists
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_085_hotCouponSaleIsWrittenBehind() throws CouponAlreadyExistsException, InterruptedException {
+
+		final int buyers = 120;
+		final int stock = 50;
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		AdminFacade adminFacade = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		Coupon coupon = new Coupon();
+		coupon.setTitle("Hot sale");
+		coupon.setMessage("Sold from memory");
+		coupon.setAmount(stock);
+		coupon.setType(CouponType.ELECTRICITY);
+		coupon.setPrice(1);
+		coupon.setStartDate("2017-01-01");
+		coupon.setEndDate("2099-12-31");
+		coupon.setImage("My image");
+		company.createCoupon(coupon);
+		final Coupon hotSale = couponRepo.findByTitle("Hot sale");
+
+		adminFacade.startHotSale(hotSale.getId());
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final ConcurrentLinkedQueue<Integer> purchased = new ConcurrentLinkedQueue<>();
+		final AtomicInteger outOfStock = new AtomicInteger();
+		final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+		ExecutorService executor = Executors.newFixedThreadPool(buyers);
+
+		for (int i = 0; i < buyers; i++) {
+			final int buyer = i;
+			executor.execute(() -> {
+				try {
+					CustomerFacade customer = (CustomerFacade) couponsystem.login("Buyer " + buyer, "b" + buyer, ClientType.CUSTOMER);
+					start.await();
+					customer.purchaseCoupon(hotSale);
+					purchased.add(buyer);
+				}
+				catch (CouponOutOfStockException e) {
+					outOfStock.incrementAndGet();
+				}
+				catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+		}
+
+		start.countDown();
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(120, TimeUnit.SECONDS));
+		Assert.assertTrue("Errors in purchases: " + errors, errors.isEmpty());
+
+		Assert.assertEquals(stock, purchased.size());
+		Assert.assertEquals(buyers - stock, outOfStock.get());
+
+		int buyer = purchased.peek();
+		CustomerFacade customer = (CustomerFacade) couponsystem.login("Buyer " + buyer, "b" + buyer, ClientType.CUSTOMER);
+		try {
+			customer.purchaseCoupon(hotSale);
+			Assert.fail("A hot coupon was purchased twice by the same customer");
+		}
+		catch (CouponAlreadyPurchasedException e) {
+			//expected - the buyers of a hot coupon are kept in memory
+		}
+
+		adminFacade.endHotSale(hotSale.getId());
+
+		Assert.assertEquals(0, couponRepo.findOne(hotSale.getId()).getAmount());
+		Assert.assertEquals(stock, (int) jdbcTemplate.queryForObject(
+				"SELECT COUNT(*) FROM customer_coupon WHERE coupon_id = ?", Integer.class, hotSale.getId()));
+	}
+
+	/**
+	 * A cart of coupons is purchased at once: the coupons which can be purchased are purchased,
+	 * and the outcome of every other coupon is returned instead of an exception.
+	 *
+	 * @throws CouponAlreadyExistsException if a coupon already exists
+	 */
+	@Test
+	public void test_086_purchaseCart() throws CouponAlreadyExistsException {
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		AdminFacade adminFacade = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+		adminFacade.createCustomer(new Customer("Cart customer", "cart"));
+
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		String[][] cart = {{"Cart coupon 1", "2099-12-31"}, {"Cart coupon 2", "2099-12-31"},
+				{"Cart coupon 3", "2099-12-31"}, {"Cart expired", "2018-01-01"}};
+		for (String[] item : cart) {
+			Coupon coupon = new Coupon();
+			coupon.setTitle(item[0]);
+			coupon.setMessage("In the cart");
+			coupon.setAmount(5);
+			coupon.setType(CouponType.FOOD);
+			coupon.setPrice(10);
+			coupon.setStartDate("2017-01-01");
+			coupon.setEndDate(item[1]);
+			coupon.setImage("My image");
+			company.createCoupon(coupon);
+		}
+
+		CustomerFacade customer = (CustomerFacade) couponsystem.login("Cart customer", "cart", ClientType.CUSTOMER);
+		customer.purchaseCoupon(couponRepo.findByTitle("Cart coupon 1"));
+
+		Coupon missing = couponRepo.findByTitle("Cart coupon 3");
+		missing.setId(987654321);
+
+		List<Coupon> coupons = new ArrayList<>();
+		coupons.add(couponRepo.findByTitle("Cart coupon 1"));
+		coupons.add(couponRepo.findByTitle("Cart coupon 2"));
+		coupons.add(couponRepo.findByTitle("Cart coupon 2"));
+		coupons.add(couponRepo.findByTitle("Cart coupon 3"));
+		coupons.add(couponRepo.findByTitle("Cart expired"));
+		coupons.add(couponRepo.findByTitle("Flash sale"));
+		coupons.add(missing);
+
+		Map<Coupon, PurchaseOutcome> outcomes = customer.purchaseCoupons(coupons);
+
+		List<PurchaseOutcome> expected = new ArrayList<>();
+		expected.add(PurchaseOutcome.ALREADY_PURCHASED);
+		expected.add(PurchaseOutcome.PURCHASED);
+		expected.add(PurchaseOutcome.ALREADY_PURCHASED);
+		expected.add(PurchaseOutcome.PURCHASED);
+		expected.add(PurchaseOutcome.EXPIRED);
+		expected.add(PurchaseOutcome.OUT_OF_STOCK);
+		expected.add(PurchaseOutcome.NOT_FOUND);
+		Assert.assertEquals(expected, new ArrayList<>(outcomes.values()));
+
+		Assert.assertEquals(4, couponRepo.findByTitle("Cart coupon 1").getAmount());
+		Assert.assertEquals(4, couponRepo.findByTitle("Cart coupon 2").getAmount());
+		Assert.assertEquals(4, couponRepo.findByTitle("Cart coupon 3").getAmount());
+		Assert.assertEquals(5, couponRepo.findByTitle("Cart expired").getAmount());
+		Assert.assertEquals(3, customerRepo.findWithCouponsById(customerRepo.findByName("Cart customer").getId()).getCoupons().size());
+	}
+
+	/**
+	 * Expired coupons and their purchases are removed in chunks, the coupons which have not expired are kept,
+	 * and running the removal again finds nothing to remove.
+	 *
+	 * @throws CouponAlreadyExistsException if a coupon already exists
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_087_purgeExpiredCouponsInChunks() throws CouponAlreadyExistsException, InterruptedException {
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		for (int i = 0; i < 5; i++) {
+			Coupon coupon = new Coupon();
+			coupon.setTitle("Purge " + i);
+			coupon.setMessage("Expired long ago");
+			coupon.setAmount(5);
+			coupon.setType(CouponType.FOOD);
+			coupon.setPrice(10);
+			coupon.setStartDate("2016-01-01");
+			coupon.setEndDate("2016-12-31");
+			coupon.setImage("My image");
+			company.createCoupon(coupon);
+		}
+		Customer customer = customerRepo.findByName("Cart customer");
+		couponRepo.addCustomerCoupon(couponRepo.findByTitle("Purge 0").getId(), customer.getId());
+		couponRepo.addCustomerCoupon(couponRepo.findByTitle("Purge 1").getId(), customer.getId());
+
+		PurgeReport report = couponDBDAO.removeExpiredCoupons(2);
+
+		Assert.assertTrue(report.getCouponsRemoved() >= 5);
+		Assert.assertTrue(report.getPurchasesRemoved() >= 2);
+		Assert.assertTrue(report.getChunks() >= 3);
+		Assert.assertEquals(report.getChunks(), report.getChunkMillis().size());
+
+		Date today = new Date();
+		for (Coupon c : couponRepo.findAll()) {
+			Assert.assertFalse("Expired coupon " + c.getTitle() + " was not removed", c.getEndDate().before(today));
+		}
+		Assert.assertNull(couponRepo.findByTitle("Purge 0"));
+		Assert.assertNotNull(couponRepo.findByTitle("Cart coupon 1"));
+		Assert.assertEquals(3, customerRepo.findWithCouponsById(customerRepo.findByName("Cart customer").getId()).getCoupons().size());
+
+		Assert.assertEquals(0, couponDBDAO.removeExpiredCoupons(2).getCouponsRemoved());
+	}
+
+	/**
+	 * Login, coupon lists and purchase history load only what they need:
+	 * each facade method runs one SQL statement, however many coupons and customers are related.
+	 */
+	@Test
+	public void test_088_facadeMethodsLoadOnlyWhatTheyNeed() {
+
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		catalogCache.clear();
+
+		statistics.clear();
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		Assert.assertEquals(1, statistics.getPrepareStatementCount());
+
+		statistics.clear();
+		Assert.assertFalse(company.getAllCoupons().isEmpty());
+		Assert.assertEquals(1, statistics.getPrepareStatementCount());
+
+		//The login also loads the ids of the customer's coupons
+		purchasedIndex.clear();
+		statistics.clear();
+		CustomerFacade customer = (CustomerFacade) couponsystem.login("Cart customer", "cart", ClientType.CUSTOMER);
+		Assert.assertEquals(2, statistics.getPrepareStatementCount());
+
+		statistics.clear();
+		Assert.assertEquals(3, customer.getAllPurchasedCoupons().size());
+		Assert.assertEquals(1, statistics.getPrepareStatementCount());
+
+		statistics.clear();
+		Assert.assertEquals(3, customer.getAllPurchasedCouponsByType(CouponType.FOOD).size());
+		Assert.assertEquals(0, statistics.getPrepareStatementCount());
+	}
+
+	/**
+	 * A session opened by a login gives the facade of the logged in client without asking the database,
+	 * until it is closed by a logout.
+	 */
+	@Test
+	public void test_089_sessionResolvesWithoutDatabase() {
+
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		CouponSystem couponsystem = new CouponSystem(ctx);
+
+		String token = couponsystem.openSession("Cart customer", "cart", ClientType.CUSTOMER);
+		Assert.assertNotNull(token);
+
+		statistics.clear();
+		CustomerFacade customer = (CustomerFacade) couponsystem.getFacade(token);
+		Assert.assertEquals(0, statistics.getPrepareStatementCount());
+		Assert.assertEquals("Cart customer", customer.getLoginCustomer().getCustomerName());
+		Assert.assertEquals(3, customer.getAllPurchasedCoupons().size());
+
+		String adminToken = couponsystem.openSession("admin", "1234", ClientType.ADMIN);
+		Assert.assertTrue(couponsystem.getFacade(adminToken) instanceof AdminFacade);
+
+		Assert.assertTrue(couponsystem.logout(token));
+		Assert.assertFalse(couponsystem.logout(token));
+		try {
+			couponsystem.getFacade(token);
+			Assert.fail("A closed session was resolved");
+		}
+		catch (SessionNotFoundException e) {
+			//expected
+		}
+	}
+
+	/**
+	 * The coupons of a company are read from the catalog cache after the first query,
+	 * and an update of a coupon is seen by the next read.
+	 */
+	@Test
+	public void test_090_catalogCacheIsInvalidatedByUpdates() {
+
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		catalogCache.clear();
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+
+		int count = company.getAllCoupons().size();
+		long hits = catalogCache.getCompanies().getHits();
+		statistics.clear();
+		Assert.assertEquals(count, company.getAllCoupons().size());
+		Assert.assertFalse(company.getCouponsByPrice(Double.MAX_VALUE).isEmpty());
+		Assert.assertEquals(0, statistics.getPrepareStatementCount());
+		Assert.assertEquals(hits + 2, catalogCache.getCompanies().getHits());
+
+		//A coupon changed by the caller does not change the cached coupon
+		Coupon coupon = company.getAllCoupons().iterator().next();
+		long id = coupon.getId();
+		double price = coupon.getPrice();
+		coupon.setPrice(price + 1);
+		Assert.assertEquals(price, company.getCoupon(id).getPrice(), 0);
+
+		//An update is seen by the next read
+		company.updateCoupon(coupon);
+		Assert.assertEquals(price + 1, company.getCoupon(id).getPrice(), 0);
+		for (Coupon c : company.getAllCoupons()) {
+			if (c.getId() == id) {
+				Assert.assertEquals(price + 1, c.getPrice(), 0);
+			}
+		}
+	}
+
+	/**
+	 * The purchased coupons of a customer are resolved from the purchased coupon index and the catalog cache,
+	 * and a purchase is added to the index without reloading it.
+	 */
+	@Test
+	public void test_091_purchasedCouponIndexIsUpdatedByPurchases() throws CouponAlreadyExistsException, InterruptedException {
+
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		CustomerFacade customer = (CustomerFacade) couponsystem.login("Cart customer", "cart", ClientType.CUSTOMER);
+		int count = customer.getAllPurchasedCoupons().size();
+		long loads = purchasedIndex.getCustomers().getLoads();
+
+		//Purchase a new coupon
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		Coupon newCoupon = new Coupon();
+		newCoupon.setTitle("Indexed coupon");
+		newCoupon.setMessage("Found without a subquery");
+		newCoupon.setAmount(5);
+		newCoupon.setType(CouponType.HEALTH);
+		newCoupon.setPrice(7);
+		newCoupon.setStartDate("2017-01-01");
+		newCoupon.setEndDate("2099-12-31");
+		newCoupon.setImage("My image");
+		company.createCoupon(newCoupon);
+		final Coupon coupon = couponRepo.findByTitle("Indexed coupon");
+		customer.purchaseCoupon(coupon);
+
+		//Only the purchased coupon, the amount of which was changed, is read again
+		statistics.clear();
+		Assert.assertEquals(count + 1, customer.getAllPurchasedCoupons().size());
+		Assert.assertEquals(1, statistics.getPrepareStatementCount());
+		Assert.assertEquals(loads, purchasedIndex.getCustomers().getLoads());
+		Assert.assertEquals(coupon.getAmount() - 1, customer.getAllPurchasedCouponsByPrice(coupon.getPrice()).stream()
+				.filter(c -> c.getId() == coupon.getId()).findFirst().get().getAmount());
+	}
+
+	/**
+	 * A coupon purchased again is refused from memory, without a statement and without changing its amount,
+	 * and a purchase of a coupon never purchased by the customer is ruled out by the purchase filter.
+	 */
+	@Test
+	public void test_092_repeatedPurchaseIsRefusedFromMemory() {
+
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		CustomerFacade customer = (CustomerFacade) couponsystem.login("Cart customer", "cart", ClientType.CUSTOMER);
+		long customerId = customer.getLoginCustomer().getId();
+		Coupon coupon = couponRepo.findByTitle("Indexed coupon");
+		Assert.assertTrue(purchaseFilter.mightContain(coupon.getId(), customerId));
+
+		statistics.clear();
+		try {
+			customer.purchaseCoupon(coupon);
+			Assert.fail("The coupon was purchased twice.");
+		}
+		catch (CouponAlreadyPurchasedException e) {
+			// expected
+		}
+		Assert.assertEquals(0, statistics.getPrepareStatementCount());
+		Assert.assertEquals(coupon.getAmount(), couponRepo.findByTitle("Indexed coupon").getAmount());
+
+		Assert.assertFalse(purchaseFilter.mightContain(coupon.getId(), Long.MAX_VALUE));
+	}
+
+	/**
+	 * The schema has the indexes of the repository lookups, and the database itself refuses
+	 * a second coupon with the same title and a second purchase of the same coupon.
+	 *
+	 * @throws SQLException if the metadata of the database cannot be read
+	 */
+	@Test
+	public void test_093_schemaHasLookupIndexesAndConstraints() throws SQLException {
+
+		Set<String> indexes = new HashSet<>();
+		jdbcTemplate.execute((Connection connection) -> {
+			for (String table : new String[] {"coupons", "companies", "customers", "customer_coupon"}) {
+				for (String name : new String[] {table, table.toUpperCase()}) {
+					try (ResultSet rs = connection.getMetaData().getIndexInfo(null, null, name, false, false)) {
+						while (rs.next()) {
+							if (rs.getString("INDEX_NAME") != null) {
+								indexes.add(rs.getString("INDEX_NAME").toLowerCase());
+							}
+						}
+					}
+				}
+			}
+			return null;
+		});
+		for (String index : new String[] {"ix_coupons_company_type", "ix_coupons_company_price", "ix_coupons_company_end_date",
+				"ix_coupons_end_date", "ix_customer_coupon_coupon"}) {
+			Assert.assertTrue("Missing index " + index + " in " + indexes, indexes.stream().anyMatch(i -> i.startsWith(index)));
+		}
+		for (String constraint : new String[] {Coupon.TITLE_CONSTRAINT, Company.NAME_CONSTRAINT,
+				Customer.NAME_CONSTRAINT, Customer.PURCHASE_CONSTRAINT}) {
+			Assert.assertTrue("Missing constraint " + constraint + " in " + indexes,
+					indexes.stream().anyMatch(i -> i.startsWith(constraint)));
+		}
+
+		Coupon coupon = couponRepo.findByTitle("Indexed coupon");
+		long customerId = customerRepo.findByName("Cart customer").getId();
+		try {
+			jdbcTemplate.update("INSERT INTO customer_coupon (coupon_id, customer_id) VALUES (?, ?)", coupon.getId(), customerId);
+			Assert.fail("The coupon was purchased twice.");
+		}
+		catch (DataIntegrityViolationException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * The keyset pages of a company's coupons hold all its coupons once, in the order of their IDs,
+	 * and the streams of companies, customers and coupons return the same objects as the collections.
+	 */
+	@Test
+	public void test_094_keysetPagesAndStreams() {
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		List<Long> expected = company.getAllCoupons().stream().map(Coupon::getId).sorted().collect(Collectors.toList());
+
+		//Read the coupons by pages of 2
+		List<Long> paged = new ArrayList<>();
+		long afterId = KeysetPage.FIRST;
+		KeysetPage<Coupon> page;
+		do {
+			page = company.getCouponsPage(afterId, 2);
+			Assert.assertTrue(page.getItems().size() <= 2);
+			page.getItems().forEach(c -> paged.add(c.getId()));
+			afterId = page.getNextAfterId();
+		} while (page.hasNext());
+		Assert.assertEquals(expected, paged);
+		Assert.assertTrue(company.getCouponsPage(afterId, 2).getItems().isEmpty());
+
+		//The streams return the same coupons as the collections
+		Assert.assertEquals(expected, company.streamAllCoupons().map(Coupon::getId).collect(Collectors.toList()));
+		Assert.assertEquals(company.getCouponsByPrice(Double.MAX_VALUE).size(), company.streamCouponsByPrice(Double.MAX_VALUE).count());
+		CouponType type = company.getAllCoupons().iterator().next().getType();
+		Assert.assertEquals(company.getCouponsByType(type).size(), company.streamCouponsByType(type).count());
+		Assert.assertEquals(company.getCouponsByEndDate(new Date(Long.MAX_VALUE)).size(),
+				company.streamCouponsByEndDate(new Date(Long.MAX_VALUE)).count());
+
+		AdminFacade admin = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+		Assert.assertEquals(admin.getAllCompanies().stream().map(Company::getId).sorted().collect(Collectors.toList()),
+				admin.streamAllCompanies().map(Company::getId).collect(Collectors.toList()));
+		Assert.assertEquals(admin.getAllCustomers().stream().map(Customer::getId).sorted().collect(Collectors.toList()),
+				admin.streamAllCustomers().map(Customer::getId).collect(Collectors.toList()));
+		Assert.assertEquals(1, admin.getCustomersPage(KeysetPage.FIRST, 1).getItems().size());
+		Assert.assertEquals(KeysetPage.MAX_SIZE, KeysetPage.size(Integer.MAX_VALUE));
+	}
+
+	/**
+	 * A coupon search combines its filters in one query, and its keyset pages follow the sort attribute.
+	 */
+	@Test
+	public void test_095_couponSearchCombinesFiltersInOneQuery() {
+
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		Collection<Coupon> all = company.getAllCoupons();
+		Coupon sample = all.iterator().next();
+
+		//Types, price range and stock in one statement
+		CouponQuery query = new CouponQuery();
+		query.setTypes(EnumSet.of(sample.getType(), CouponType.HEALTH));
+		query.setMaxPrice(sample.getPrice());
+		query.setInStockOnly(true);
+		statistics.clear();
+		List<Long> found = company.searchCoupons(query).stream().map(Coupon::getId).collect(Collectors.toList());
+		Assert.assertEquals(1, statistics.getPrepareStatementCount());
+		List<Long> expected = all.stream()
+				.filter(c -> query.getTypes().contains(c.getType()) && c.getPrice() <= sample.getPrice() && c.getAmount() > 0)
+				.map(Coupon::getId).sorted().collect(Collectors.toList());
+		Assert.assertEquals(expected, found);
+		Assert.assertNull(query.getCompanyId());
+
+		//Pages of one coupon sorted by price, highest first
+		List<Long> byPrice = all.stream().sorted(Comparator.comparing(Coupon::getPrice).thenComparing(Coupon::getId).reversed())
+				.map(Coupon::getId).collect(Collectors.toList());
+		CouponQuery pages = new CouponQuery();
+		pages.setSort(CouponSort.PRICE);
+		pages.setDescending(true);
+		pages.setSize(1);
+		List<Long> paged = new ArrayList<>();
+		List<Coupon> page;
+		while (!(page = company.searchCoupons(pages)).isEmpty()) {
+			Assert.assertEquals(1, page.size());
+			paged.add(page.get(0).getId());
+			pages.setAfter(page.get(0));
+		}
+		Assert.assertEquals(byPrice, paged);
+
+		//Beginning of the title, with the wildcards matched as written
+		CouponQuery title = new CouponQuery();
+		title.setTitlePrefix("Indexed");
+		Assert.assertEquals("Indexed coupon", company.searchCoupons(title).get(0).getTitle());
+		title.setTitlePrefix("Indexed%");
+		Assert.assertTrue(company.searchCoupons(title).isEmpty());
+
+		//A page sorted by title cannot continue after a coupon without a title
+		CouponQuery untitled = new CouponQuery();
+		untitled.setSort(CouponSort.TITLE);
+		untitled.setAfter(new Coupon());
+		try {
+			company.searchCoupons(untitled);
+			Assert.fail("A page continued after a coupon without a title");
+		}
+		catch (IllegalArgumentException e) {
+			//expected
+		}
+
+		//The coupons purchased by a customer
+		CustomerFacade customer = (CustomerFacade) couponsystem.login("Cart customer", "cart", ClientType.CUSTOMER);
+		CouponQuery purchased = new CouponQuery();
+		purchased.setTitlePrefix("Indexed");
+		purchased.setTypes(EnumSet.of(CouponType.HEALTH));
+		Assert.assertEquals(1, customer.searchPurchasedCoupons(purchased).size());
+		purchased.setTypes(EnumSet.complementOf(EnumSet.of(CouponType.HEALTH)));
+		Assert.assertTrue(customer.searchPurchasedCoupons(purchased).isEmpty());
+	}
+
+	/**
+	 * The marketplace of all the active coupons is browsed from memory, and follows the coupons created and purchased.
+	 */
+	@Test
+	public void test_096_marketplaceBrowseIsServedFromMemory() throws CouponAlreadyExistsException {
+
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		CustomerFacade customer = (CustomerFacade) couponsystem.login("Cart customer", "cart", ClientType.CUSTOMER);
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+
+		//A new coupon of the company is browsed by price, without a statement
+		Coupon newCoupon = new Coupon();
+		newCoupon.setTitle("Marketplace coupon");
+		newCoupon.setMessage("Browsed from memory");
+		newCoupon.setAmount(2);
+		newCoupon.setType(CouponType.TRAVELLING);
+		newCoupon.setPrice(123456);
+		newCoupon.setStartDate("2017-01-01");
+		newCoupon.setEndDate("2099-12-31");
+		newCoupon.setImage("My image");
+		company.createCoupon(newCoupon);
+		Coupon coupon = couponRepo.findByTitle("Marketplace coupon");
+
+		CouponQuery query = new CouponQuery();
+		query.setTypes(EnumSet.of(CouponType.TRAVELLING));
+		query.setMinPrice(123456.0);
+		statistics.clear();
+		List<Coupon> found = customer.browseCoupons(query);
+		Assert.assertEquals(0, statistics.getPrepareStatementCount());
+		Assert.assertEquals(1, found.size());
+		Assert.assertEquals(coupon.getId(), found.get(0).getId());
+		Assert.assertEquals("SESSIONS", found.get(0).getCompany().getCompanyName());
+		Assert.assertNull(query.getCustomerId());
+
+		//The purchase takes one coupon out of stock
+		customer.purchaseCoupon(coupon);
+		Assert.assertEquals(1, customer.browseCoupons(query).get(0).getAmount());
+
+		//Every browsed coupon is active, in the order of price
+		List<Coupon> all = customer.browseCoupons(new CouponQuery());
+		Assert.assertFalse(all.isEmpty());
+		for (int i = 0; i < all.size(); i++) {
+			Assert.assertTrue(all.get(i).getAmount() > 0);
+			Assert.assertFalse(all.get(i).getEndDate().before(new Date()));
+			if (i > 0) {
+				Assert.assertTrue(all.get(i - 1).getPrice() <= all.get(i).getPrice());
+			}
+		}
+	}
+
+	/**
+	 * The coupons are found by keywords of their title and message, ranked, with spelling mistakes,
+	 * and the text index follows the coupons created and removed.
+	 */
+	@Test
+	public void test_097_keywordSearchUsesTheTextIndex() throws CouponAlreadyExistsException {
+
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		CustomerFacade customer = (CustomerFacade) couponsystem.login("Cart customer", "cart", ClientType.CUSTOMER);
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+
+		Coupon newCoupon = new Coupon();
+		newCoupon.setTitle("Homemade lasagna");
+		newCoupon.setMessage("Lasagna for the whole family");
+		newCoupon.setAmount(5);
+		newCoupon.setType(CouponType.FOOD);
+		newCoupon.setPrice(40);
+		newCoupon.setStartDate("2017-01-01");
+		newCoupon.setEndDate("2099-12-31");
+		newCoupon.setImage("My image");
+		company.createCoupon(newCoupon);
+		Coupon coupon = couponRepo.findByTitle("Homemade lasagna");
+
+		//A spelling mistake and the beginning of a word, read with one statement
+		statistics.clear();
+		List<Coupon> found = customer.searchCouponsByKeywords("LASAGNE home", new CouponQuery());
+		Assert.assertEquals(1, statistics.getPrepareStatementCount());
+		Assert.assertEquals(1, found.size());
+		Assert.assertEquals(coupon.getId(), found.get(0).getId());
+		Assert.assertEquals(1, company.searchCouponsByKeywords("lasag", new CouponQuery()).size());
+
+		//The filters, and the scope of the company
+		CouponQuery query = new CouponQuery();
+		query.setTypes(EnumSet.of(CouponType.HEALTH));
+		Assert.assertTrue(customer.searchCouponsByKeywords("lasagna", query).isEmpty());
+		query.setTypes(null);
+		query.setCompanyId(-1L);
+		Assert.assertEquals(1, company.searchCouponsByKeywords("lasagna", query).size());
+
+		//Nothing to read for no match
+		statistics.clear();
+		Assert.assertTrue(customer.searchCouponsByKeywords("lasagna sushi", new CouponQuery()).isEmpty());
+		Assert.assertEquals(0, statistics.getPrepareStatementCount());
+
+		//A removed coupon is not found
+		company.removeCoupon(coupon);
+		Assert.assertTrue(customer.searchCouponsByKeywords("lasagna", new CouponQuery()).isEmpty());
+	}
+
+	/**
+	 * The existence checks of the repositories find existing and missing rows.
+	 */
+	@Test
+	public void test_098_existenceProbes() {
+
+		Coupon coupon = couponRepo.findByTitle("Indexed coupon");
+		Customer customer = customerRepo.findByName("Cart customer");
+		Company company = companyRepo.findByName("SESSIONS");
+		Assert.assertTrue(couponRepo.anyCouponsExist());
+		Assert.assertTrue(couponRepo.existsByTitle("Indexed coupon"));
+		Assert.assertFalse(couponRepo.existsByTitle("No such coupon"));
+		Assert.assertTrue(couponRepo.existsByIdAndCompanyId(coupon.getId(), company.getId()));
+		Assert.assertFalse(couponRepo.existsByIdAndCompanyId(coupon.getId(), company.getId() + 1000));
+		Assert.assertTrue(couponRepo.existsCustomerCoupon(customer.getId(), coupon.getId()));
+		Assert.assertFalse(couponRepo.existsCustomerCoupon(customer.getId() + 1000, coupon.getId()));
+		Assert.assertTrue(companyRepo.existsByCompanyName("SESSIONS"));
+		Assert.assertFalse(companyRepo.existsByCompanyName("No such company"));
+		Assert.assertTrue(customerRepo.existsByCustomerName("Cart customer"));
+		Assert.assertFalse(customerRepo.existsByCustomerName("No such customer"));
+	}
+
+	/**
+	 * A single company, customer or coupon is read with one statement, found or not.
+	 *
+	 * @throws CouponAlreadyExistsException if the coupon exists in the database
+	 */
+	@Test
+	public void test_099_singleEntityReadsTakeOneStatement() throws CouponAlreadyExistsException {
+
+		Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		AdminFacade admin = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		long companyId = companyRepo.findByName("SESSIONS").getId();
+		long customerId = customerRepo.findByName("Cart customer").getId();
+
+		//Company
+		statistics.clear();
+		Assert.assertEquals("SESSIONS", admin.getCompany(companyId).getCompanyName());
+		Assert.assertEquals(1, statistics.getPrepareStatementCount());
+		statistics.clear();
+		try {
+			admin.getCompany(-1);
+			Assert.fail("A missing company was found");
+		}
+		catch (UserNotFoundException e) {
+			Assert.assertEquals(1, statistics.getPrepareStatementCount());
+		}
+
+		//Customer
+		statistics.clear();
+		Assert.assertEquals("Cart customer", admin.getCustomer(customerId).getCustomerName());
+		Assert.assertEquals(1, statistics.getPrepareStatementCount());
+		statistics.clear();
+		try {
+			admin.getCustomer(-1);
+			Assert.fail("A missing customer was found");
+		}
+		catch (UserNotFoundException e) {
+			Assert.assertEquals(1, statistics.getPrepareStatementCount());
+		}
+
+		//Coupon - loaded once, and then read from the catalog cache
+		Coupon newCoupon = new Coupon();
+		newCoupon.setTitle("One statement coupon");
+		newCoupon.setMessage("Read with one statement");
+		newCoupon.setAmount(5);
+		newCoupon.setType(CouponType.SPORTS);
+		newCoupon.setPrice(15);
+		newCoupon.setStartDate("2017-01-01");
+		newCoupon.setEndDate("2099-12-31");
+		newCoupon.setImage("My image");
+		company.createCoupon(newCoupon);
+		long couponId = couponRepo.findByTitle("One statement coupon").getId();
+		statistics.clear();
+		Assert.assertEquals(couponId, company.getCoupon(couponId).getId());
+		Assert.assertEquals(1, statistics.getPrepareStatementCount());
+		statistics.clear();
+		Assert.assertEquals(couponId, company.getCoupon(couponId).getId());
+		Assert.assertEquals(0, statistics.getPrepareStatementCount());
+		statistics.clear();
+		try {
+			company.getCoupon(-1);
+			Assert.fail("A missing coupon was found");
+		}
+		catch (CouponNotFoundException e) {
+			Assert.assertEquals(1, statistics.getPrepareStatementCount());
+		}
+	}
+
+	/**
+	 * A coupon made hot counts the purchases already made in the database, sells the rest from memory,
+	 * and when the sale ends the database has every purchase and sells no more than the amount.
+	 *
+	 * @throws Exception if a purchase fails unexpectedly
+	 */
+	@Test
+	public void test_100_hotSaleCountsDatabasePurchases() throws Exception {
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		AdminFacade adminFacade = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		Coupon coupon = new Coupon();
+		coupon.setTitle("Warm sale");
+		coupon.setMessage("Sold in the database, then from memory");
+		coupon.setAmount(3);
+		coupon.setType(CouponType.ELECTRICITY);
+		coupon.setPrice(1);
+		coupon.setStartDate("2017-01-01");
+		coupon.setEndDate("2099-12-31");
+		coupon.setImage("My image");
+		company.createCoupon(coupon);
+		Coupon warmSale = couponRepo.findByTitle("Warm sale");
+
+		CustomerFacade cartCustomer = (CustomerFacade) couponsystem.login("Cart customer", "cart", ClientType.CUSTOMER);
+		cartCustomer.purchaseCoupon(warmSale);
+
+		adminFacade.startHotSale(warmSale.getId());
+		try {
+			cartCustomer.purchaseCoupon(warmSale);
+			Assert.fail("A coupon purchased in the database was purchased again from memory");
+		}
+		catch (CouponAlreadyPurchasedException e) {
+			//expected - the buyers are loaded when the coupon becomes hot
+		}
+
+		((CustomerFacade) couponsystem.login("Buyer 0", "b0", ClientType.CUSTOMER)).purchaseCoupon(warmSale);
+		CustomerFacade buyer = (CustomerFacade) couponsystem.login("Buyer 1", "b1", ClientType.CUSTOMER);
+		Assert.assertEquals(PurchaseOutcome.PURCHASED,
+				buyer.purchaseCoupons(Collections.singletonList(warmSale)).get(warmSale));
+		adminFacade.endHotSale(warmSale.getId());
+
+		buyer = (CustomerFacade) couponsystem.login("Buyer 2", "b2", ClientType.CUSTOMER);
+		Assert.assertEquals(PurchaseOutcome.OUT_OF_STOCK,
+				buyer.purchaseCoupons(Collections.singletonList(warmSale)).get(warmSale));
+
+		Assert.assertEquals(0, couponRepo.findOne(warmSale.getId()).getAmount());
+		Assert.assertEquals(3, (int) jdbcTemplate.queryForObject(
+				"SELECT COUNT(*) FROM customer_coupon WHERE coupon_id = ?", Integer.class, warmSale.getId()));
+	}
+
+	/**
+	 * Carts with the same coupons in opposite orders, purchased at the same time, do not deadlock:
+	 * every cart gets the outcome of each of its coupons, and the coupons are not oversold.
+	 *
+	 * @throws Exception if a coupon cannot be created
+	 */
+	@Test
+	public void test_101_cartsInOppositeOrders() throws Exception {
+
+		final int buyers = 20;
+		final int stock = 10;
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		for (String title : new String[] {"Crossed cart 1", "Crossed cart 2"}) {
+			Coupon coupon = new Coupon();
+			coupon.setTitle(title);
+			coupon.setMessage("In two carts");
+			coupon.setAmount(stock);
+			coupon.setType(CouponType.FOOD);
+			coupon.setPrice(5);
+			coupon.setStartDate("2017-01-01");
+			coupon.setEndDate("2099-12-31");
+			coupon.setImage("My image");
+			company.createCoupon(coupon);
+		}
+		Coupon first = couponRepo.findByTitle("Crossed cart 1");
+		Coupon second = couponRepo.findByTitle("Crossed cart 2");
+
+		final CyclicBarrier barrier = new CyclicBarrier(buyers);
+		final ConcurrentLinkedQueue<PurchaseOutcome> outcomes = new ConcurrentLinkedQueue<>();
+		final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+		ExecutorService executor = Executors.newFixedThreadPool(buyers);
+		for (int i = 0; i < buyers; i++) {
+			final int buyer = i;
+			executor.execute(() -> {
+				try {
+					CustomerFacade customer = (CustomerFacade) couponsystem.login("Buyer " + buyer, "b" + buyer, ClientType.CUSTOMER);
+					barrier.await();
+					outcomes.addAll(customer.purchaseCoupons(buyer % 2 == 0
+							? Arrays.asList(first, second) : Arrays.asList(second, first)).values());
+				}
+				catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+		}
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(120, TimeUnit.SECONDS));
+		Assert.assertTrue("Errors in purchases: " + errors, errors.isEmpty());
+
+		Assert.assertEquals(2 * buyers, outcomes.size());
+		Assert.assertEquals(2 * stock, outcomes.stream().filter(o -> o == PurchaseOutcome.PURCHASED).count());
+		Assert.assertEquals(0, couponRepo.findByTitle("Crossed cart 1").getAmount());
+		Assert.assertEquals(0, couponRepo.findByTitle("Crossed cart 2").getAmount());
+	}
+
+	/**
+	 * The company, customer and coupon read by the facades can be used after the session is closed:
+	 * the company with its coupons, the customer with his/her coupons and their companies,
+	 * and the coupon with its company.
+	 */
+	@Test
+	public void test_102_readEntitiesAreLoaded() {
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		AdminFacade adminFacade = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+
+		Company companyInDb = adminFacade.getCompany(companyRepo.findByName("SESSIONS").getId());
+		Assert.assertTrue(companyInDb.getCoupons().stream().anyMatch(c -> c.getTitle().equals("Hot sale")));
+
+		Coupon hotSale = company.getCoupon(couponRepo.findByTitle("Hot sale").getId());
+		Assert.assertEquals("SESSIONS", hotSale.getCompany().getCompanyName());
+
+		Customer customer = adminFacade.getCustomer(customerRepo.findByName("Cart customer").getId());
+		Assert.assertFalse(customer.getCoupons().isEmpty());
+		for (Coupon c : customer.getCoupons()) {
+			Assert.assertNotNull(c.getCompany().getCompanyName());
+		}
+	}
+
+	/**
+	 * A password which has the form of a hash is hashed like any other password,
+	 * and an update which sends back the stored hash keeps it.
+	 */
+	@Test
+	public void test_103_passwordShapedLikeHashIsHashed() {
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		AdminFacade adminFacade = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+		String chosen = new PasswordHasher(1).hash("weak");
+		adminFacade.createCustomer(new Customer("Hash shaped", chosen));
+
+		Customer customer = customerRepo.findByName("Hash shaped");
+		String stored = customer.getPassword();
+		Assert.assertNotEquals(chosen, stored);
+		Assert.assertTrue(passwordHasher.matches(chosen, stored));
+		Assert.assertNotNull(couponsystem.login("Hash shaped", chosen, ClientType.CUSTOMER));
+
+		adminFacade.updateCustomer(customer);
+		Assert.assertEquals(stored, customerRepo.findByName("Hash shaped").getPassword());
+	}
+
+	/**
+	 * A purchase of a hot coupon is in the database when it returns,
+	 * and a purchase the database rejects fails and gives its unit back to the stock in memory.
+	 *
+	 * @throws Exception if a purchase fails unexpectedly
+	 */
+	@Test
+	public void test_104_hotPurchaseIsCommittedBeforeItReturns() throws Exception {
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		AdminFacade adminFacade = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		Coupon coupon = new Coupon();
+		coupon.setTitle("Confirmed sale");
+		coupon.setMessage("Written before the buyer is told");
+		coupon.setAmount(3);
+		coupon.setType(CouponType.ELECTRICITY);
+		coupon.setPrice(1);
+		coupon.setStartDate("2017-01-01");
+		coupon.setEndDate("2099-12-31");
+		coupon.setImage("My image");
+		company.createCoupon(coupon);
+		Coupon confirmedSale = couponRepo.findByTitle("Confirmed sale");
+		adminFacade.startHotSale(confirmedSale.getId());
+
+		CustomerFacade buyer = (CustomerFacade) couponsystem.login("Buyer 3", "b3", ClientType.CUSTOMER);
+		buyer.purchaseCoupon(confirmedSale);
+		Assert.assertNotNull(couponRepo.findCustomerCoupon(buyer.getLoginCustomer().getId(), confirmedSale.getId()));
+		Assert.assertEquals(2, couponRepo.findOne(confirmedSale.getId()).getAmount());
+		Assert.assertEquals(2, hotCouponStock.getRemaining(confirmedSale.getId()));
+
+		//A purchase written to the database behind the back of the stock in memory
+		buyer = (CustomerFacade) couponsystem.login("Buyer 4", "b4", ClientType.CUSTOMER);
+		jdbcTemplate.update("INSERT INTO customer_coupon (coupon_id, customer_id) VALUES (?, ?)",
+				confirmedSale.getId(), buyer.getLoginCustomer().getId());
+		try {
+			buyer.purchaseCoupon(confirmedSale);
+			Assert.fail("A purchase rejected by the database was confirmed");
+		}
+		catch (CouponAlreadyPurchasedException e) {
+			//expected - the unit was not taken
+		}
+		Assert.assertEquals(2, couponRepo.findOne(confirmedSale.getId()).getAmount());
+		Assert.assertEquals(2, hotCouponStock.getRemaining(confirmedSale.getId()));
+
+		adminFacade.endHotSale(confirmedSale.getId());
+		Assert.assertEquals(2, couponRepo.findOne(confirmedSale.getId()).getAmount());
+	}
+
+	/**
+	 * A company cannot end the flash sale of a coupon of another company by trying to remove it.
+	 *
+	 * @throws CouponAlreadyExistsException if the coupon exists in the database
+	 */
+	@Test
+	public void test_105_otherCompanyCannotRemoveHotCoupon() throws CouponAlreadyExistsException {
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		AdminFacade adminFacade = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		Coupon coupon = new Coupon();
+		coupon.setTitle("Guarded sale");
+		coupon.setMessage("Removed only by its company");
+		coupon.setAmount(3);
+		coupon.setType(CouponType.ELECTRICITY);
+		coupon.setPrice(1);
+		coupon.setStartDate("2017-01-01");
+		coupon.setEndDate("2099-12-31");
+		coupon.setImage("My image");
+		company.createCoupon(coupon);
+		Coupon guardedSale = couponRepo.findByTitle("Guarded sale");
+		adminFacade.startHotSale(guardedSale.getId());
+
+		CompanyFacade amdocs = (CompanyFacade) couponsystem.login("AMDOCS", "456", ClientType.COMPANY);
+		try {
+			amdocs.removeCoupon(guardedSale);
+			Assert.fail("A coupon of another company was removed");
+		}
+		catch (CouponNotFoundException e) {
+			//expected
+		}
+		Assert.assertTrue(hotCouponStock.isHot(guardedSale.getId()));
+
+		company.removeCoupon(guardedSale);
+		Assert.assertFalse(hotCouponStock.isHot(guardedSale.getId()));
+		Assert.assertFalse(couponRepo.existsByTitle("Guarded sale"));
+	}
+
+	/**
+	 * The flash sales of a company end together, with their purchases in the database,
+	 * as when the company is removed.
+	 *
+	 * @throws CouponAlreadyExistsException if the coupon exists in the database
+	 */
+	@Test
+	public void test_106_companyHotSalesEndTogether() throws CouponAlreadyExistsException {
+
+		CouponSystem couponsystem = new CouponSystem(ctx);
+		AdminFacade adminFacade = (AdminFacade) couponsystem.login("admin", "1234", ClientType.ADMIN);
+
+		CompanyFacade company = (CompanyFacade) couponsystem.login("SESSIONS", "999", ClientType.COMPANY);
+		Coupon coupon = new Coupon();
+		coupon.setTitle("Company sale");
+		coupon.setMessage("Sold until its company ends its sales");
+		coupon.setAmount(3);
+		coupon.setType(CouponType.ELECTRICITY);
+		coupon.setPrice(1);
+		coupon.setStartDate("2017-01-01");
+		coupon.setEndDate("2099-12-31");
+		coupon.setImage("My image");
+		company.createCoupon(coupon);
+		Coupon companySale = couponRepo.findByTitle("Company sale");
+		adminFacade.startHotSale(companySale.getId());
+		((CustomerFacade) couponsystem.login("Buyer 5", "b5", ClientType.CUSTOMER)).purchaseCoupon(companySale);
+
+		hotCouponStock.deactivateCompany(companyRepo.findByName("AMDOCS").getId());
+		Assert.assertTrue(hotCouponStock.isHot(companySale.getId()));
+
+		hotCouponStock.deactivateCompany(companyRepo.findByName("SESSIONS").getId());
+		Assert.assertFalse(hotCouponStock.isHot(companySale.getId()));
+		Assert.assertEquals(2, couponRepo.findOne(companySale.getId()).getAmount());
+	}
 }
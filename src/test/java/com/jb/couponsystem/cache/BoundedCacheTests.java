@@ -0,0 +1,155 @@
+package com.jb.couponsystem.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * This class contains unit tests for the BoundedCache class.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class BoundedCacheTests {
+
+	/**
+	 * Threads asking for a missing key at the same time wait for a single load.
+	 *
+	 * @throws Exception if a thread failed
+	 */
+	@Test (timeout = 10000)
+	public void test_001_concurrentMissesLoadOnce() throws Exception {
+		BoundedCache<Long, String> cache = new BoundedCache<>("test", 10, 60000);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger loads = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] futures = new Future<?>[4];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = executor.submit(() -> cache.get(1L, () -> {
+					loads.incrementAndGet();
+					release.await();
+					return "one";
+				}));
+			}
+			//Let the other threads reach the running load before it finishes
+			Thread.sleep(200);
+			release.countDown();
+			for (Future<?> future : futures) {
+				Assert.assertEquals("one", future.get());
+			}
+		}
+		finally {
+			executor.shutdownNow();
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		}
+
+		Assert.assertEquals(1, loads.get());
+		Assert.assertEquals("one", cache.get(1L, () -> "other"));
+		Assert.assertEquals(1, cache.getHits());
+	}
+
+	/**
+	 * The least recently used value is evicted when the cache is full.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_002_leastRecentlyUsedIsEvicted() throws InterruptedException {
+		BoundedCache<Long, String> cache = new BoundedCache<>("test", 2, 60000);
+		cache.get(1L, () -> "one");
+		cache.get(2L, () -> "two");
+		cache.get(1L, () -> "other");
+		cache.get(3L, () -> "three");
+
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertEquals("one", cache.get(1L, () -> "other"));
+		Assert.assertEquals("other", cache.get(2L, () -> "other"));
+		Assert.assertEquals(2, cache.getHits());
+		Assert.assertEquals(4, cache.getMisses());
+	}
+
+	/**
+	 * A value loaded while its key was invalidated is returned, but not kept,
+	 * since it may have been read before the change that caused the invalidation.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_003_valueRacedByInvalidationIsNotKept() throws InterruptedException {
+		BoundedCache<Long, String> cache = new BoundedCache<>("test", 10, 60000);
+
+		Assert.assertEquals("old", cache.get(1L, () -> {
+			cache.invalidate(1L);
+			return "old";
+		}));
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals("new", cache.get(1L, () -> "new"));
+		Assert.assertEquals(1, cache.size());
+	}
+
+	/**
+	 * An invalidation of one key does not stop the value of another key loaded at the same time from being kept.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_004_invalidationOfOtherKeyKeepsValue() throws InterruptedException {
+		BoundedCache<Long, String> cache = new BoundedCache<>("test", 10, 60000);
+
+		Assert.assertEquals("one", cache.get(1L, () -> {
+			cache.invalidate(2L);
+			return "one";
+		}));
+		Map<Long, String> values = cache.getAll(Arrays.asList(2L, 3L), keys -> {
+			cache.invalidate(2L);
+			Map<Long, String> loaded = new HashMap<>();
+			loaded.put(2L, "two");
+			loaded.put(3L, "three");
+			return loaded;
+		});
+
+		Assert.assertEquals("two", values.get(2L));
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals("one", cache.getIfPresent(1L));
+		Assert.assertNull(cache.getIfPresent(2L));
+		Assert.assertEquals("three", cache.getIfPresent(3L));
+	}
+
+	/**
+	 * A value which is not used is evicted wherever it is in the map, not only when it is among the first values.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_005_evictionSamplesAllValues() throws InterruptedException {
+		BoundedCache<Long, String> cache = new BoundedCache<>("test", 64, 60000);
+		for (long key = 0; key < 64; key++) {
+			cache.get(key, () -> "value");
+		}
+
+		//Every value but the last one is used after each new value
+		for (long key = 100; key < 104; key++) {
+			cache.get(key, () -> "value");
+			for (long used = 0; used < 63; used++) {
+				if (cache.getIfPresent(used) != null) {
+					cache.get(used, () -> "value");
+				}
+			}
+		}
+
+		Assert.assertEquals(64, cache.size());
+		Assert.assertNull(cache.getIfPresent(63L));
+	}
+
+}
@@ -0,0 +1,113 @@
+package com.jb.couponsystem.cache;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.jb.couponsystem.dao.CouponQuery;
+import com.jb.couponsystem.entities.Coupon;
+import com.jb.couponsystem.enums.CouponType;
+
+/**
+ * This class contains unit tests for the CouponTextIndex class, without a database.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class CouponTextIndexTests {
+
+	/**
+	 * Keywords match exact words, beginnings of words and words with a spelling mistake,
+	 * all the keywords have to match, and a title match ranks above a message match.
+	 */
+	@Test
+	public void test_001_matchAndRank() {
+		CouponTextIndex index = index();
+
+		Assert.assertEquals(Arrays.asList(1L, 3L), index.search("PIZZA", new CouponQuery()));
+		Assert.assertEquals(Arrays.asList(1L, 3L), index.search("piz", new CouponQuery()));
+		Assert.assertEquals(Arrays.asList(1L, 3L), index.search("pizzs", new CouponQuery()));
+		Assert.assertEquals(Arrays.asList(2L), index.search("restaurnt", new CouponQuery()));
+		Assert.assertEquals(Arrays.asList(3L), index.search("pizza, spa!", new CouponQuery()));
+		Assert.assertTrue(index.search("pizza sushi", new CouponQuery()).isEmpty());
+		Assert.assertTrue(index.search(" ,. ", new CouponQuery()).isEmpty());
+
+		//A word of the title ranks above a word of the message, and an exact word above a beginning
+		Assert.assertEquals(Arrays.asList(2L, 1L), index.search("family", new CouponQuery()));
+		index.put(coupon(4, "Spaghetti", "Pasta", CouponType.FOOD, 10), 1);
+		Assert.assertEquals(Arrays.asList(3L, 4L), index.search("spa", new CouponQuery()));
+	}
+
+	/**
+	 * The filters by type, price and company, and the size of the query, are applied.
+	 */
+	@Test
+	public void test_002_filters() {
+		CouponTextIndex index = index();
+
+		CouponQuery query = new CouponQuery();
+		query.setTypes(EnumSet.of(CouponType.HEALTH));
+		Assert.assertEquals(Arrays.asList(3L), index.search("pizza", query));
+		query = new CouponQuery();
+		query.setMaxPrice(15.0);
+		Assert.assertEquals(Arrays.asList(1L), index.search("pizza", query));
+		query = new CouponQuery();
+		query.setCompanyId(2L);
+		Assert.assertEquals(Arrays.asList(3L), index.search("pizza", query));
+		query = new CouponQuery();
+		query.setSize(1);
+		Assert.assertEquals(Arrays.asList(1L), index.search("pizza", query));
+	}
+
+	/**
+	 * An updated coupon is found by its new words, and removed coupons are not found.
+	 */
+	@Test
+	public void test_003_updates() {
+		CouponTextIndex index = index();
+
+		index.put(coupon(1, "Sushi night", "Rolls for two", CouponType.FOOD, 10), 1);
+		Assert.assertEquals(Arrays.asList(3L), index.search("pizza", new CouponQuery()));
+		Assert.assertEquals(Arrays.asList(1L), index.search("sushi", new CouponQuery()));
+
+		index.removeCompany(2);
+		Assert.assertTrue(index.search("pizza", new CouponQuery()).isEmpty());
+		index.removeAll(Arrays.asList(1L));
+		index.remove(2);
+		Assert.assertEquals(0, index.size());
+		Assert.assertTrue(index.search("sushi", new CouponQuery()).isEmpty());
+		Assert.assertTrue(index.toString().contains("words=0"));
+	}
+
+	/**
+	 * The edit distance stops at the given maximum.
+	 */
+	@Test
+	public void test_004_distance() {
+		Assert.assertEquals(1, CouponTextIndex.distance("pizza", "pizaa", 2));
+		Assert.assertEquals(2, CouponTextIndex.distance("restaurant", "restarnt", 2));
+		Assert.assertEquals(2, CouponTextIndex.distance("abcdef", "uvwxyz", 1));
+		Assert.assertEquals(Arrays.asList("happy", "hour", "2", "for", "1"), CouponTextIndex.terms("Happy-hour: 2 for 1, happy!"));
+	}
+
+	private static CouponTextIndex index() {
+		CouponTextIndex index = new CouponTextIndex();
+		index.put(coupon(1, "Pizza lunch", "A family meal", CouponType.FOOD, 10), 1);
+		index.put(coupon(2, "Family restaurant", "Dinner for two", CouponType.RESTAURANTS, 20), 1);
+		index.put(coupon(3, "Spa day", "With a free pizza", CouponType.HEALTH, 30), 2);
+		return index;
+	}
+
+	private static Coupon coupon(long id, String title, String message, CouponType type, double price) {
+		Coupon c = new Coupon();
+		c.setId(id);
+		c.setTitle(title);
+		c.setMessage(message);
+		c.setType(type);
+		c.setPrice(price);
+		return c;
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.jb.couponsystem.cache;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * This class contains unit tests for the LongHashSet class.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class LongHashSetTests {
+
+	/**
+	 * Values are added once, found, and removed, including zero.
+	 */
+	@Test
+	public void test_001_addContainsRemove() {
+		LongHashSet set = new LongHashSet();
+
+		Assert.assertTrue(set.add(0));
+		Assert.assertTrue(set.add(7));
+		Assert.assertFalse(set.add(7));
+		Assert.assertEquals(2, set.size());
+		Assert.assertTrue(set.contains(0));
+		Assert.assertTrue(set.contains(7));
+		Assert.assertFalse(set.contains(8));
+
+		Assert.assertTrue(set.remove(0));
+		Assert.assertFalse(set.remove(0));
+		Assert.assertTrue(set.remove(7));
+		Assert.assertTrue(set.isEmpty());
+		Assert.assertEquals(0, set.toArray().length);
+	}
+
+	/**
+	 * The set grows past its first capacity and keeps all the values.
+	 */
+	@Test
+	public void test_002_growKeepsValues() {
+		LongHashSet set = new LongHashSet(Arrays.asList(1L, 2L, 3L));
+		for (long id = 4; id <= 10000; id++) {
+			set.add(id);
+		}
+
+		Assert.assertEquals(10000, set.size());
+		for (long id = 1; id <= 10000; id++) {
+			Assert.assertTrue(set.contains(id));
+		}
+		long[] values = set.toArray();
+		Arrays.sort(values);
+		Assert.assertEquals(1, values[0]);
+		Assert.assertEquals(10000, values[values.length - 1]);
+	}
+
+	/**
+	 * Random adds and removes give the same values as a HashSet,
+	 * so a removal never hides a value that was moved by a collision.
+	 */
+	@Test
+	public void test_003_matchesHashSet() {
+		Random random = new Random(17);
+		LongHashSet set = new LongHashSet();
+		Set<Long> expected = new HashSet<>();
+
+		for (int i = 0; i < 100000; i++) {
+			long value = random.nextInt(2000);
+			if (random.nextBoolean()) {
+				Assert.assertEquals(expected.add(value), set.add(value));
+			}
+			else {
+				Assert.assertEquals(expected.remove(value), set.remove(value));
+			}
+		}
+
+		Assert.assertEquals(expected.size(), set.size());
+		for (long value = 0; value < 2000; value++) {
+			Assert.assertEquals(expected.contains(value), set.contains(value));
+		}
+	}
+
+}
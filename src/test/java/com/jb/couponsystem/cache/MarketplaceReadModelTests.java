@@ -0,0 +1,180 @@
+package com.jb.couponsystem.cache;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import com.jb.couponsystem.dao.CouponQuery;
+import com.jb.couponsystem.entities.Company;
+import com.jb.couponsystem.entities.Coupon;
+import com.jb.couponsystem.enums.CouponType;
+
+/**
+ * This class contains unit tests for the MarketplaceReadModel class, without a database.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class MarketplaceReadModelTests {
+
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * The coupons of the chosen types and price range are merged in the order of price and id, by keyset pages,
+	 * ascending and descending.
+	 */
+	@Test
+	public void test_001_browseByTypeAndPriceInPages() {
+		MarketplaceReadModel model = new MarketplaceReadModel();
+		Company company = company(1, "Shop");
+		Random random = new Random(3);
+		List<Coupon> all = new ArrayList<>();
+		for (long id = 1; id <= 300; id++) {
+			Coupon c = coupon(id, CouponType.values()[random.nextInt(CouponType.values().length)], random.nextInt(50), 5, DAY);
+			model.put(c, company);
+			all.add(c);
+		}
+
+		CouponQuery query = new CouponQuery();
+		query.setTypes(EnumSet.of(CouponType.FOOD, CouponType.HEALTH));
+		query.setMinPrice(10.0);
+		query.setMaxPrice(30.0);
+		List<Long> expected = all.stream()
+				.filter(c -> query.getTypes().contains(c.getType()) && c.getPrice() >= 10 && c.getPrice() <= 30)
+				.sorted((a, b) -> a.getPrice() != b.getPrice() ? Double.compare(a.getPrice(), b.getPrice()) : Long.compare(a.getId(), b.getId()))
+				.map(Coupon::getId).collect(Collectors.toList());
+		Assert.assertFalse(expected.isEmpty());
+
+		for (boolean descending : new boolean[] {false, true}) {
+			query.setDescending(descending);
+			query.setSize(7);
+			query.setAfter(null);
+			List<Long> paged = new ArrayList<>();
+			List<Coupon> page;
+			while (!(page = model.browse(query)).isEmpty()) {
+				Assert.assertTrue(page.size() <= 7);
+				page.forEach(c -> paged.add(c.getId()));
+				query.setAfter(page.get(page.size() - 1));
+			}
+			List<Long> order = new ArrayList<>(expected);
+			if (descending) {
+				Collections.reverse(order);
+			}
+			Assert.assertEquals(order, paged);
+		}
+	}
+
+	/**
+	 * A sold out coupon, an expired coupon and the coupons of a removed company are not browsed,
+	 * and an update moves a coupon to its new price.
+	 */
+	@Test
+	public void test_002_incrementalUpdates() {
+		MarketplaceReadModel model = new MarketplaceReadModel();
+		model.put(coupon(1, CouponType.SPORTS, 10, 2, DAY), company(1, "Gym"));
+		model.put(coupon(2, CouponType.SPORTS, 20, 1, DAY), company(1, "Gym"));
+		model.put(coupon(3, CouponType.SPORTS, 30, 1, DAY), company(2, "Pool"));
+		model.put(coupon(4, CouponType.SPORTS, 40, 1, -DAY), company(2, "Pool"));
+		Assert.assertEquals(3, model.size());
+		Assert.assertEquals(Arrays.asList(1L, 2L, 3L), ids(model));
+		Assert.assertEquals("Pool", model.browse(new CouponQuery()).get(2).getCompany().getCompanyName());
+
+		model.purchased(2, 1);
+		model.purchased(1, 1);
+		Assert.assertEquals(Arrays.asList(1L, 3L), ids(model));
+		Assert.assertEquals(1, model.browse(new CouponQuery()).get(0).getAmount());
+
+		model.put(coupon(1, CouponType.SPORTS, 50, 1, DAY), company(1, "Gym"));
+		Assert.assertEquals(Arrays.asList(3L, 1L), ids(model));
+
+		model.removeCompany(2);
+		Assert.assertEquals(Arrays.asList(1L), ids(model));
+		model.removeAll(Arrays.asList(1L));
+		Assert.assertEquals(0, model.size());
+	}
+
+	/**
+	 * The purchases made while the model is built are applied to the new listings,
+	 * and a coupon they sold out is not browsed.
+	 *
+	 * @throws InterruptedException if the thread was interrupted while waiting for connection
+	 */
+	@Test
+	public void test_003_purchasesDuringRebuildAreKept() throws InterruptedException {
+		MarketplaceReadModel model = new MarketplaceReadModel();
+		model.put(coupon(1, CouponType.FOOD, 10, 5, DAY), company(1, "Shop"));
+		model.put(coupon(2, CouponType.FOOD, 20, 1, DAY), company(1, "Shop"));
+
+		//The purchases are reported while the rows, which do not include them, are read
+		model.jdbcTemplate = new JdbcTemplate() {
+			@Override
+			public void query(String sql, RowCallbackHandler handler, Object... args) throws DataAccessException {
+				model.purchased(1, 2);
+				model.purchased(2, 1);
+				try {
+					handler.processRow(row(1, 10, 5));
+					handler.processRow(row(2, 20, 1));
+				}
+				catch (SQLException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		model.rebuild();
+
+		Assert.assertEquals(Arrays.asList(1L), ids(model));
+		Assert.assertEquals(3, model.browse(new CouponQuery()).get(0).getAmount());
+		model.purchased(1, 1);
+		Assert.assertEquals(2, model.browse(new CouponQuery()).get(0).getAmount());
+	}
+
+	// a row of the query of the rebuild, of a food coupon of company 1
+	private static ResultSet row(long id, double price, int amount) {
+		Timestamp end = new Timestamp(System.currentTimeMillis() + DAY);
+		Object[] columns = {id, "Coupon " + id, new Timestamp(System.currentTimeMillis()), end, amount,
+				CouponType.FOOD.ordinal(), "message", price, "image", 1L, "Shop"};
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+				(proxy, method, args) -> columns[(Integer) args[0] - 1]);
+	}
+
+	private static List<Long> ids(MarketplaceReadModel model) {
+		return model.browse(new CouponQuery()).stream().map(Coupon::getId).collect(Collectors.toList());
+	}
+
+	private static Company company(long id, String name) {
+		Company company = new Company();
+		company.setId(id);
+		company.setCompanyName(name);
+		return company;
+	}
+
+	private static Coupon coupon(long id, CouponType type, double price, int amount, long endsIn) {
+		Coupon c = new Coupon();
+		c.setId(id);
+		c.setTitle("Coupon " + id);
+		c.setType(type);
+		c.setPrice(price);
+		c.setAmount(amount);
+		c.setStartDate(new Date());
+		c.setEndDate(new Date(System.currentTimeMillis() + endsIn));
+		c.setMessage("message");
+		c.setImage("image");
+		return c;
+	}
+
+}
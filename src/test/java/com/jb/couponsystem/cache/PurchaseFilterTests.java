@@ -0,0 +1,61 @@
+package com.jb.couponsystem.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * This class contains unit tests for the PurchaseFilter class, without a database.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class PurchaseFilterTests {
+
+	/**
+	 * Every purchase added is found, and the purchases not added are mostly ruled out
+	 * at the rate of false positives of the settings.
+	 */
+	@Test
+	public void test_001_noFalseNegativesAndFewFalsePositives() {
+		CatalogCacheProperties properties = new CatalogCacheProperties();
+		properties.setFilterExpectedPurchases(100000);
+		properties.setFilterFalsePositiveRate(0.01);
+		PurchaseFilter filter = new PurchaseFilter(properties);
+
+		//1000 coupons with 100 buyers each
+		for (long coupon = 1; coupon <= 1000; coupon++) {
+			for (long customer = 1; customer <= 100; customer++) {
+				filter.add(coupon, customer);
+			}
+		}
+
+		for (long coupon = 1; coupon <= 1000; coupon++) {
+			for (long customer = 1; customer <= 100; customer++) {
+				Assert.assertTrue(filter.mightContain(coupon, customer));
+			}
+		}
+		int falsePositives = 0;
+		for (long coupon = 1; coupon <= 1000; coupon++) {
+			for (long customer = 101; customer <= 200; customer++) {
+				if (filter.mightContain(coupon, customer)) {
+					falsePositives++;
+				}
+			}
+		}
+		Assert.assertEquals(100000, filter.getCount());
+		Assert.assertTrue("False positives: " + falsePositives, falsePositives < 2000);
+	}
+
+	/**
+	 * The coupon and the customer of a purchase are not interchangeable.
+	 */
+	@Test
+	public void test_002_pairIsOrdered() {
+		PurchaseFilter filter = new PurchaseFilter(new CatalogCacheProperties());
+		filter.add(3, 5);
+
+		Assert.assertTrue(filter.mightContain(3, 5));
+		Assert.assertFalse(filter.mightContain(5, 3));
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.jb.couponsystem.connection;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures the throughput of the connection pool under contention,
+ * comparing the current pool with the previous monitor-based implementation
+ * (ArrayList with wait/notify, kept here as LegacyConnectionPool).
+ * It is not a unit test and is not run by the build. Run it with:
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=com.jb.couponsystem.connection.ConnectionPoolBenchmark
+ *
+ * Each operation holds the connection for a short busy-wait, standing for the repo call.
+ * For every run the throughput and the longest time a single thread waited for a connection
+ * are printed: the legacy pool lets the returning thread take the connection straight back,
+ * so some threads starve, while the current pool hands it to the longest waiting thread.
+ * The legacy pool is measured without its System.out calls, which only makes it look better
+ * than it was in production.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class ConnectionPoolBenchmark {
+
+	private static final int CONNECTIONS = 5;
+	private static final int OPERATIONS_PER_THREAD = 20_000;
+	private static final int[] THREADS = {1, 4, 16, 64};
+	// simulated time a DAO method holds its connection
+	private static final long HOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+
+	/**
+	 * The pool as it was implemented before: synchronized methods,
+	 * ArrayList.remove(0) and wait/notify.
+	 */
+	static class LegacyConnectionPool {
+
+		private final ArrayList<DbConnection> connections = new ArrayList<>();
+
+		LegacyConnectionPool(int numberOfConnections) {
+			for (int i = 0; i < numberOfConnections; i++) {
+				connections.add(new DbConnection());
+			}
+		}
+
+		synchronized DbConnection getConnection() throws InterruptedException {
+			while (connections.size() == 0) {
+				wait();
+			}
+			return connections.remove(0);
+		}
+
+		synchronized void returnConnection(DbConnection connection) {
+			connections.add(connection);
+			notify();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		System.out.printf("%-8s %15s %15s %18s %18s%n",
+				"threads", "legacy ops/ms", "current ops/ms", "legacy max wait us", "current max wait us");
+
+		for (int threads : THREADS) {
+
+			LegacyConnectionPool legacy = new LegacyConnectionPool(CONNECTIONS);
+			ConnectionPool current = new ConnectionPool(CONNECTIONS);
+
+			// warm up both pools
+			run(threads, legacy::getConnection, legacy::returnConnection);
+			run(threads, current::getConnection, current::returnConnection);
+
+			long[] legacyResult = run(threads, legacy::getConnection, legacy::returnConnection);
+			long[] currentResult = run(threads, current::getConnection, current::returnConnection);
+
+			System.out.printf("%-8d %15d %15d %18d %18d%n", threads,
+					legacyResult[0], currentResult[0],
+					TimeUnit.NANOSECONDS.toMicros(legacyResult[1]),
+					TimeUnit.NANOSECONDS.toMicros(currentResult[1]));
+		}
+	}
+
+	private interface Getter {
+		DbConnection get() throws InterruptedException;
+	}
+
+	private interface Putter {
+		void put(DbConnection connection);
+	}
+
+	// Runs get/return cycles on the given number of threads.
+	// Returns the throughput in operations per millisecond and the longest single wait in nanoseconds.
+	private static long[] run(int threads, Getter getter, Putter putter) throws InterruptedException {
+
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		AtomicLong maxWait = new AtomicLong();
+
+		for (int t = 0; t < threads; t++) {
+			Thread worker = new Thread(() -> {
+				try {
+					start.await();
+					long longest = 0;
+					for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+						long requested = System.nanoTime();
+						DbConnection connection = getter.get();
+						long acquired = System.nanoTime();
+						longest = Math.max(longest, acquired - requested);
+						while (System.nanoTime() - acquired < HOLD_NANOS) {
+							// busy-wait standing for the repo call
+						}
+						putter.put(connection);
+					}
+					long observed = longest;
+					maxWait.accumulateAndGet(observed, Math::max);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finally {
+					done.countDown();
+				}
+			});
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		long opsPerMilli = (long) threads * OPERATIONS_PER_THREAD / Math.max(TimeUnit.NANOSECONDS.toMillis(elapsed), 1);
+		return new long[] {opsPerMilli, maxWait.get()};
+	}
+}
@@ -0,0 +1,293 @@
+package com.jb.couponsystem.connection;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.jb.couponsystem.enums.PoolOverflowPolicy;
+import com.jb.couponsystem.exceptions.ConnectionPoolExhaustedException;
+
+/**
+ * This class contains unit tests for the ConnectionPool class.
+ * Each test creates its own pool, so the singleton instance used by the system is not touched.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class ConnectionPoolTests {
+
+	/**
+	 * All the connections of the pool can be taken, and after they are returned
+	 * the pool has the same number of idle connections.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_001_takeAndReturnAll() throws InterruptedException {
+		ConnectionPool pool = new ConnectionPool(5);
+		List<DbConnection> taken = new ArrayList<>();
+
+		for (int i = 0; i < 5; i++) {
+			taken.add(pool.getConnection());
+		}
+		Assert.assertEquals(0, pool.getAvailableConnections());
+
+		for (DbConnection connection : taken) {
+			Assert.assertNotNull(connection);
+			pool.returnConnection(connection);
+		}
+		Assert.assertEquals(5, pool.getAvailableConnections());
+	}
+
+	/**
+	 * When no connection is idle, tryAcquire gives up after the timeout and returns null.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_002_tryAcquireTimesOut() throws InterruptedException {
+		ConnectionPool pool = new ConnectionPool(1);
+		DbConnection connection = pool.tryAcquire(Duration.ofMillis(10));
+		Assert.assertNotNull(connection);
+
+		long start = System.nanoTime();
+		Assert.assertNull(pool.tryAcquire(Duration.ofMillis(50)));
+		Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+		pool.returnConnection(connection);
+		Assert.assertNotNull(pool.tryAcquire(Duration.ofMillis(10)));
+	}
+
+	/**
+	 * Under contention no connection is ever given to two threads at the same time,
+	 * and all connections are back in the pool at the end.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_003_noDoubleHandOffUnderContention() throws InterruptedException {
+		final ConnectionPool pool = new ConnectionPool(3);
+		final AtomicInteger inUse = new AtomicInteger();
+		final AtomicInteger violations = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(16);
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+
+		for (int t = 0; t < 16; t++) {
+			executor.execute(() -> {
+				try {
+					for (int i = 0; i < 2000; i++) {
+						DbConnection connection = pool.getConnection();
+						if (inUse.incrementAndGet() > 3) {
+							violations.incrementAndGet();
+						}
+						inUse.decrementAndGet();
+						pool.returnConnection(connection);
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finally {
+					done.countDown();
+				}
+			});
+		}
+
+		Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+		executor.shutdown();
+
+		Assert.assertEquals(0, violations.get());
+		Assert.assertEquals(3, pool.getAvailableConnections());
+	}
+
+	/**
+	 * With the BLOCK policy and an acquire timeout, a thread that does not get a connection in time
+	 * receives ConnectionPoolExhaustedException instead of waiting forever.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test (expected = ConnectionPoolExhaustedException.class)
+	public void test_004_blockTimesOut() throws InterruptedException {
+		ConnectionPool pool = new ConnectionPool(1, 1, 20, PoolOverflowPolicy.BLOCK);
+		pool.getConnection();
+		pool.getConnection();
+	}
+
+	/**
+	 * With the FAIL_FAST policy a thread does not wait when all the connections are in use.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test (expected = ConnectionPoolExhaustedException.class)
+	public void test_005_failFast() throws InterruptedException {
+		ConnectionPool pool = new ConnectionPool(1, 0, 0, PoolOverflowPolicy.FAIL_FAST);
+		pool.getConnection();
+		pool.getConnection();
+	}
+
+	/**
+	 * With the GROW policy extra connections are created when all the connections are in use,
+	 * and they are discarded when returned. The gauges follow the state of the pool.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_006_growAndGauges() throws InterruptedException {
+		ConnectionPool pool = new ConnectionPool(2, 0, 0, PoolOverflowPolicy.GROW);
+		Assert.assertEquals(0, pool.getIdleCount());
+
+		DbConnection first = pool.getConnection();
+		DbConnection second = pool.getConnection();
+		DbConnection extra = pool.getConnection();
+
+		Assert.assertEquals(3, pool.getInUseCount());
+		Assert.assertEquals(1, pool.getOverflowCount());
+		Assert.assertEquals(0, pool.getAvailableConnections());
+
+		pool.returnConnection(extra);
+		pool.returnConnection(second);
+		pool.returnConnection(first);
+
+		Assert.assertEquals(0, pool.getInUseCount());
+		Assert.assertEquals(0, pool.getOverflowCount());
+		Assert.assertEquals(2, pool.getIdleCount());
+		Assert.assertEquals(0, pool.getWaitingCount());
+		Assert.assertEquals(2, pool.getMaxSize());
+	}
+
+	/**
+	 * A connection that was idle for a while is validated before it is given,
+	 * and a broken one is closed and replaced by a new physical connection.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_007_brokenConnectionIsReplacedOnBorrow() throws InterruptedException {
+		FakeDatabase database = new FakeDatabase();
+		ConnectionPool pool = new ConnectionPool(1, 1, 0, PoolOverflowPolicy.BLOCK, 0, 0, database.dataSource());
+		Assert.assertEquals(1, database.opened.get());
+
+		Connection first = pool.getConnection().getConnection();
+		pool.returnConnection(pool.getCurrentConnection());
+
+		database.valid.set(false);
+		Thread.sleep(600);
+		DbConnection second = pool.getConnection();
+
+		Assert.assertNotSame(first, second.getConnection());
+		Assert.assertEquals(2, database.opened.get());
+		Assert.assertEquals(1, database.closed.get());
+		Assert.assertEquals(1, pool.getDiscardCount());
+		pool.returnConnection(second);
+	}
+
+	/**
+	 * Connections idle longer than the idle timeout are closed,
+	 * but not below the minimal number of idle connections.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_008_idleConnectionsAreEvicted() throws InterruptedException {
+		FakeDatabase database = new FakeDatabase();
+		ConnectionPool pool = new ConnectionPool(3, 1, 0, PoolOverflowPolicy.BLOCK, 20, 0, database.dataSource());
+
+		List<DbConnection> taken = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			taken.add(pool.getConnection());
+		}
+		for (DbConnection connection : taken) {
+			pool.returnConnection(connection);
+		}
+		Assert.assertEquals(3, pool.getIdleCount());
+
+		Thread.sleep(50);
+		pool.housekeep();
+
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertEquals(2, database.closed.get());
+		Assert.assertEquals(3, pool.getAvailableConnections());
+		pool.closeAllConnections();
+	}
+
+	/**
+	 * A connection held longer than the leak detection threshold is reported once,
+	 * and the connection held by the thread is known to the pool until it is returned.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_009_leakIsReported() throws InterruptedException {
+		FakeDatabase database = new FakeDatabase();
+		ConnectionPool pool = new ConnectionPool(2, 0, 0, PoolOverflowPolicy.BLOCK, 0, 10000, database.dataSource());
+
+		DbConnection connection = pool.getConnection();
+		Assert.assertSame(connection, pool.getCurrentConnection());
+		Assert.assertNotNull(connection.getLeaseTrace());
+
+		pool.housekeep();
+		Assert.assertFalse(connection.isLeakReported());
+
+		pool = new ConnectionPool(2, 0, 0, PoolOverflowPolicy.BLOCK, 0, 1, database.dataSource());
+		connection = pool.getConnection();
+		Thread.sleep(10);
+		pool.housekeep();
+		Assert.assertTrue(connection.isLeakReported());
+
+		pool.returnConnection(connection);
+		Assert.assertNull(pool.getCurrentConnection());
+		pool.closeAllConnections();
+	}
+
+	// A data source of fake physical connections, counting the connections opened and closed
+	private static class FakeDatabase {
+
+		final AtomicInteger opened = new AtomicInteger();
+		final AtomicInteger closed = new AtomicInteger();
+		final AtomicBoolean valid = new AtomicBoolean(true);
+
+		DataSource dataSource() {
+			return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {DataSource.class},
+					(proxy, method, args) -> {
+						if (method.getName().equals("getConnection")) {
+							opened.incrementAndGet();
+							return connection();
+						}
+						throw new UnsupportedOperationException(method.getName());
+					});
+		}
+
+		private Connection connection() {
+			return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+					(proxy, method, args) -> {
+						switch (method.getName()) {
+						case "isValid":
+							return valid.get();
+						case "close":
+							closed.incrementAndGet();
+							return null;
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						case "equals":
+							return proxy == args[0];
+						default:
+							return null;
+						}
+					});
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package com.jb.couponsystem.dbdao;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import com.jb.couponsystem.cache.CatalogCacheProperties;
+import com.jb.couponsystem.cache.CouponCatalogCache;
+import com.jb.couponsystem.cache.PurchaseFilter;
+import com.jb.couponsystem.cache.PurchasedCouponIndex;
+import com.jb.couponsystem.connection.ConnectionLease;
+import com.jb.couponsystem.connection.ConnectionPool;
+import com.jb.couponsystem.entities.Company;
+import com.jb.couponsystem.entities.Coupon;
+import com.jb.couponsystem.entities.Customer;
+import com.jb.couponsystem.enums.CouponType;
+import com.jb.couponsystem.repo.CompanyRepo;
+import com.jb.couponsystem.repo.CouponRepo;
+import com.jb.couponsystem.repo.CustomerRepo;
+import com.jb.couponsystem.stock.HotCouponStock;
+
+/**
+ * This class checks that the DBDAO methods return their connection to the pool
+ * when the repository throws an exception.
+ * The repositories are replaced by proxies that fail on every call, and each method is called
+ * more times than the pool has connections: a single lost connection would make the pool shrink,
+ * and a few would block the test.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class ConnectionLeaseTests {
+
+	private ConnectionPool pool;
+	private int available;
+	private int rounds;
+
+	@Before
+	public void setUp() {
+		pool = ConnectionPool.getInstance();
+		available = pool.getAvailableConnections();
+		rounds = pool.getMaxSize() * 3;
+	}
+
+	/**
+	 * Closing a lease returns the connection once, even if it is closed again.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_001_closeIsIdempotent() throws InterruptedException {
+		ConnectionLease lease = pool.lease();
+		Assert.assertEquals(available - 1, pool.getAvailableConnections());
+
+		lease.close();
+		lease.close();
+
+		Assert.assertTrue(lease.isClosed());
+		Assert.assertEquals(available, pool.getAvailableConnections());
+	}
+
+	/**
+	 * The company DBDAO returns its connections when the repository fails.
+	 *
+	 * @throws Exception if a DBDAO method throws an unexpected exception
+	 */
+	@Test (timeout = 10000)
+	public void test_002_companyDbdaoDoesNotLeak() throws Exception {
+		CompanyDBDAO dao = new CompanyDBDAO();
+		dao.companyRepo = failing(CompanyRepo.class);
+		Company company = new Company("Teva", "123", "teva@gmail.com");
+
+		for (int i = 0; i < rounds; i++) {
+			expectFailure(() -> dao.createCompany(company));
+			expectFailure(() -> dao.removeCompany(company));
+			expectFailure(() -> dao.updateCompany(company));
+			expectFailure(() -> dao.getCompany(1));
+			expectFailure(() -> dao.getAllCompanies());
+			expectFailure(() -> dao.login("Teva", "123"));
+		}
+
+		Assert.assertEquals(available, pool.getAvailableConnections());
+	}
+
+	/**
+	 * The customer DBDAO returns its connections when the repository fails.
+	 *
+	 * @throws Exception if a DBDAO method throws an unexpected exception
+	 */
+	@Test (timeout = 10000)
+	public void test_003_customerDbdaoDoesNotLeak() throws Exception {
+		CustomerDBDAO dao = new CustomerDBDAO();
+		dao.customerRepo = failing(CustomerRepo.class);
+		Customer customer = new Customer("Avi", "123");
+
+		for (int i = 0; i < rounds; i++) {
+			expectFailure(() -> dao.createCustomer(customer));
+			expectFailure(() -> dao.removeCustomer(customer));
+			expectFailure(() -> dao.updateCustomer(customer));
+			expectFailure(() -> dao.getCustomer(1));
+			expectFailure(() -> dao.getAllCustomers());
+			expectFailure(() -> dao.login("Avi", "123"));
+		}
+
+		Assert.assertEquals(available, pool.getAvailableConnections());
+	}
+
+	/**
+	 * The coupon DBDAO returns its connections when the repository fails.
+	 *
+	 * @throws Exception if a DBDAO method throws an unexpected exception
+	 */
+	@Test (timeout = 10000)
+	public void test_004_couponDbdaoDoesNotLeak() throws Exception {
+		CouponDBDAO dao = new CouponDBDAO();
+		dao.couponRepo = failing(CouponRepo.class);
+		dao.transactionManager = new PlatformTransactionManager() {
+			@Override
+			public TransactionStatus getTransaction(TransactionDefinition definition) {
+				return new SimpleTransactionStatus();
+			}
+			@Override
+			public void commit(TransactionStatus status) {
+			}
+			@Override
+			public void rollback(TransactionStatus status) {
+			}
+		};
+		// no coupon is hot, so every purchase goes to the repository
+		dao.hotCouponStock = new HotCouponStock();
+		dao.catalogCache = new CouponCatalogCache(new CatalogCacheProperties());
+		dao.purchasedIndex = new PurchasedCouponIndex(new CatalogCacheProperties());
+		dao.purchaseFilter = new PurchaseFilter(new CatalogCacheProperties());
+		Company company = new Company("Teva", "123", "teva@gmail.com");
+		Customer customer = new Customer("Avi", "123");
+		Coupon coupon = new Coupon("Pizza", new Date(), new Date(), 10, CouponType.FOOD, "Pizza", 10, "pizza.jpg", new ArrayList<>());
+
+		for (int i = 0; i < rounds; i++) {
+			expectFailure(() -> dao.createCoupon(coupon));
+			expectFailure(() -> dao.removeCoupon(coupon, company));
+			expectFailure(() -> dao.updateCoupon(coupon, company));
+			expectFailure(() -> dao.getCoupon(1, company));
+			expectFailure(() -> dao.getAllCoupons(company));
+			expectFailure(() -> dao.getCouponsByType(CouponType.FOOD, company));
+			expectFailure(() -> dao.getCouponsByPrice(100, company));
+			expectFailure(() -> dao.getCouponsByEndDate(new Date(), company));
+			expectFailure(() -> dao.purchaseCoupon(coupon, customer));
+			expectFailure(() -> dao.getAllPurchasedCouponsByType(CouponType.FOOD, customer));
+			expectFailure(() -> dao.getAllPurchasedCouponsByPrice(100, customer));
+		}
+
+		Assert.assertEquals(available, pool.getAvailableConnections());
+	}
+
+	private interface DaoCall {
+		void run() throws Exception;
+	}
+
+	// Runs the call and checks that it failed with the exception thrown by the repository
+	private static void expectFailure(DaoCall call) throws Exception {
+		try {
+			call.run();
+			Assert.fail("The repository failure was not propagated.");
+		}
+		catch (DataIntegrityViolationException e) {
+			// expected
+		}
+	}
+
+	// Returns a repository whose every method throws an exception, as a constraint violation would
+	@SuppressWarnings("unchecked")
+	private static <T> T failing(Class<T> repoType) {
+		return (T) Proxy.newProxyInstance(repoType.getClassLoader(), new Class<?>[] {repoType},
+				(proxy, method, args) -> {
+					throw new DataIntegrityViolationException("Injected failure in " + method.getName());
+				});
+	}
+
+}
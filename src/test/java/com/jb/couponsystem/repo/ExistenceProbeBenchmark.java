@@ -0,0 +1,144 @@
+package com.jb.couponsystem.repo;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.IntFunction;
+
+/**
+ * This class prints the time of the existence checks of the repositories in their former form,
+ * which counts every matching row (SELECT CASE WHEN COUNT(*) > 0), and in their current form,
+ * which stops at the first matching row (SELECT EXISTS (SELECT 1 ...)).
+ * <p>
+ * It creates a table of coupons (BENCH_COUPONS) with the indexes of COUPONS in an embedded H2 database (in PostgreSQL mode),
+ * fills it with a million coupons of a thousand companies, and runs every check many times after a warm up.
+ * Another database can be given by its url, user and password; the table is dropped at the end.
+ * It is not a unit test and is not run by the build. Run it with:
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=com.jb.couponsystem.repo.ExistenceProbeBenchmark
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class ExistenceProbeBenchmark {
+
+	private static final int COUPONS = 1_000_000;
+	private static final int COMPANIES = 1_000;
+	private static final int WARM_UP = 20;
+	private static final int RUNS = 200;
+
+	// name, counting form and probing form of each check, with the value of its parameter for the run i
+	private static final Check[] CHECKS = {
+		// id > a negative value - the whole table, as in the repository
+		new Check("CouponRepo.anyCouponsExist",
+			"SELECT CASE WHEN COUNT(*) > 0 THEN TRUE ELSE FALSE END FROM bench_coupons WHERE id > ?",
+			"SELECT EXISTS (SELECT 1 FROM bench_coupons WHERE id > ?)",
+			i -> (long) -i),
+		new Check("CouponRepo.existsByTitle",
+			"SELECT CASE WHEN COUNT(*) > 0 THEN TRUE ELSE FALSE END FROM bench_coupons WHERE title = ?",
+			"SELECT EXISTS (SELECT 1 FROM bench_coupons WHERE title = ?)",
+			i -> "Coupon " + (i * 7919 % COUPONS + 1)),
+		new Check("CouponRepo.existsByIdAndCompanyId",
+			"SELECT CASE WHEN COUNT(*) > 0 THEN TRUE ELSE FALSE END FROM bench_coupons WHERE id = ? AND company_id = id % 1000 + 1",
+			"SELECT EXISTS (SELECT 1 FROM bench_coupons WHERE id = ? AND company_id = id % 1000 + 1)",
+			i -> (long) (i * 7919 % COUPONS + 1)),
+		new Check("coupons of a company (a thousand rows)",
+			"SELECT CASE WHEN COUNT(*) > 0 THEN TRUE ELSE FALSE END FROM bench_coupons WHERE company_id = ?",
+			"SELECT EXISTS (SELECT 1 FROM bench_coupons WHERE company_id = ?)",
+			i -> (long) (i % COMPANIES + 1)),
+	};
+
+	public static void main(String[] args) throws SQLException {
+		String url = args.length > 0 ? args[0] : "jdbc:h2:mem:probes;MODE=PostgreSQL";
+		String user = args.length > 1 ? args[1] : "sa";
+		String password = args.length > 2 ? args[2] : "";
+
+		try (Connection connection = DriverManager.getConnection(url, user, password);
+				Statement statement = connection.createStatement()) {
+			try {
+				fill(connection, statement);
+				for (Check check : CHECKS) {
+					System.out.printf("%-42s COUNT %8.1f us   EXISTS %8.1f us%n", check.name,
+							time(connection, check.counting, check.value), time(connection, check.probing, check.value));
+				}
+			}
+			finally {
+				statement.execute("DROP TABLE IF EXISTS bench_coupons");
+			}
+		}
+	}
+
+	// creates the table with the unique title and the index by company of the schema, and fills it
+	private static void fill(Connection connection, Statement statement) throws SQLException {
+		long start = System.nanoTime();
+		statement.execute("DROP TABLE IF EXISTS bench_coupons");
+		statement.execute("CREATE TABLE bench_coupons (id BIGINT PRIMARY KEY, title VARCHAR(255) NOT NULL, company_id BIGINT NOT NULL)");
+		statement.execute("CREATE UNIQUE INDEX uk_bench_coupons_title ON bench_coupons (title)");
+		statement.execute("CREATE INDEX ix_bench_coupons_company_id ON bench_coupons (company_id, id)");
+
+		connection.setAutoCommit(false);
+		try (PreparedStatement insert = connection.prepareStatement(
+				"INSERT INTO bench_coupons (id, title, company_id) VALUES (?, ?, ?)")) {
+			for (int i = 1; i <= COUPONS; i++) {
+				insert.setLong(1, i);
+				insert.setString(2, "Coupon " + i);
+				insert.setLong(3, i % COMPANIES + 1);
+				insert.addBatch();
+				if (i % 10_000 == 0) {
+					insert.executeBatch();
+				}
+			}
+		}
+		connection.commit();
+		connection.setAutoCommit(true);
+		System.out.printf("Filled the table with %d coupons in %d ms%n", COUPONS, (System.nanoTime() - start) / 1_000_000);
+	}
+
+	// the average time of a check, in microseconds - every run has another value, so no result is reused
+	private static double time(Connection connection, String sql, IntFunction<Object> value) throws SQLException {
+		try (PreparedStatement check = connection.prepareStatement(sql)) {
+			for (int i = 0; i < WARM_UP; i++) {
+				run(check, value.apply(RUNS + i));
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < RUNS; i++) {
+				run(check, value.apply(i));
+			}
+			return (System.nanoTime() - start) / 1_000.0 / RUNS;
+		}
+	}
+
+	private static boolean run(PreparedStatement check, Object value) throws SQLException {
+		check.setObject(1, value);
+		try (ResultSet rs = check.executeQuery()) {
+			rs.next();
+			return rs.getBoolean(1);
+		}
+	}
+
+	/**
+	 * An existence check in its two forms.
+	 */
+	private static final class Check {
+
+		final String name;
+
+		final String counting;
+
+		final String probing;
+
+		final IntFunction<Object> value;
+
+		Check(String name, String counting, String probing, IntFunction<Object> value) {
+			this.name = name;
+			this.counting = counting;
+			this.probing = probing;
+			this.value = value;
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.jb.couponsystem.repo;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+
+/**
+ * This class prints the PostgreSQL plan and time of the lookups of the repositories
+ * with and without the indexes and unique constraints of the schema (db/migration).
+ * <p>
+ * It fills the tables of an empty schema created by the application with generated rows,
+ * runs EXPLAIN ANALYZE for every lookup, drops the indexes and constraints and runs it again.
+ * Everything is done in one transaction which is rolled back at the end, so the schema and its data are not changed.
+ * It is not a unit test and is not run by the build. Run it with:
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=com.jb.couponsystem.repo.QueryPlanBenchmark
+ *     -Dexec.args="jdbc:postgresql://localhost:5432/postgres postgres password"
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class QueryPlanBenchmark {
+
+	private static final int COMPANIES = 1_000;
+	private static final int COUPONS_PER_COMPANY = 200;
+	private static final int CUSTOMERS = 50_000;
+	private static final int PURCHASES_PER_CUSTOMER = 10;
+
+	// name and SQL of each lookup, as generated for the repository methods
+	private static final String[][] LOOKUPS = {
+		{"CouponRepo.findByTitle", "SELECT * FROM coupons WHERE title = 'Coupon 777'"},
+		{"CouponRepo.findCouponByCompanyId", "SELECT * FROM coupons WHERE company_id = 77"},
+		{"CouponRepo.findPageByCompanyId", "SELECT * FROM coupons WHERE company_id = 77 AND id > 50000 ORDER BY id LIMIT 100"},
+		{"CouponRepo.findCouponByTypeAndCompanyId", "SELECT * FROM coupons WHERE type = 3 AND company_id = 77"},
+		{"CouponRepo.findByMaxPriceAndCompanyId", "SELECT * FROM coupons WHERE price <= 50 AND company_id = 77"},
+		{"CouponRepo.findByMaxEndDateAndCompanyId", "SELECT * FROM coupons WHERE end_date <= now() AND company_id = 77"},
+		{"CouponDBDAO.removeExpiredCoupons", "SELECT id FROM coupons WHERE end_date < now() ORDER BY id LIMIT 1000"},
+		{"CompanyRepo.findLoginPrincipal", "SELECT id, company_name, password FROM companies WHERE company_name = 'Company 777'"},
+		{"CustomerRepo.findLoginPrincipal", "SELECT id, customer_name, password FROM customers WHERE customer_name = 'Customer 777'"},
+		{"CouponRepo.findCustomerCouponIds", "SELECT coupon_id FROM customer_coupon WHERE customer_id = 777"},
+		{"CouponRepo.existsCustomerCoupon", "SELECT 1 FROM customer_coupon WHERE customer_id = 777 AND coupon_id = 7777"},
+		{"HotCouponStock.activate (buyers)", "SELECT customer_id FROM customer_coupon WHERE coupon_id = 7777"},
+	};
+
+	// statements which remove the indexes and constraints of the schema
+	private static final String[] DROP = {
+		"ALTER TABLE coupons DROP CONSTRAINT IF EXISTS uk_coupons_title",
+		"DROP INDEX IF EXISTS ix_coupons_company_id",
+		"DROP INDEX IF EXISTS ix_coupons_company_type",
+		"DROP INDEX IF EXISTS ix_coupons_company_price",
+		"DROP INDEX IF EXISTS ix_coupons_company_end_date",
+		"DROP INDEX IF EXISTS ix_coupons_end_date",
+		"ALTER TABLE companies DROP CONSTRAINT IF EXISTS uk_companies_company_name",
+		"ALTER TABLE customers DROP CONSTRAINT IF EXISTS uk_customers_customer_name",
+		"ALTER TABLE customer_coupon DROP CONSTRAINT IF EXISTS uk_customer_coupon",
+		"DROP INDEX IF EXISTS ix_customer_coupon_coupon",
+	};
+
+	public static void main(String[] args) throws SQLException {
+		String url = args.length > 0 ? args[0] : "jdbc:postgresql://localhost:5432/postgres";
+		String user = args.length > 1 ? args[1] : "postgres";
+		String password = args.length > 2 ? args[2] : "";
+
+		try (Connection connection = DriverManager.getConnection(url, user, password);
+				Statement statement = connection.createStatement()) {
+			connection.setAutoCommit(false);
+			try {
+				fill(statement);
+
+				System.out.println("===== With the indexes and constraints =====");
+				explainAll(statement);
+
+				Savepoint withIndexes = connection.setSavepoint();
+				for (String drop : DROP) {
+					statement.execute(drop);
+				}
+				statement.execute("ANALYZE");
+				System.out.println("===== Without the indexes and constraints =====");
+				explainAll(statement);
+				connection.rollback(withIndexes);
+			}
+			finally {
+				connection.rollback();
+			}
+		}
+	}
+
+	// fills the tables with generated rows: every company has coupons of every type, half of them expired
+	private static void fill(Statement statement) throws SQLException {
+		long start = System.nanoTime();
+		statement.execute("INSERT INTO companies (company_name, password, email) "
+				+ "SELECT 'Company ' || i, 'x', 'company' || i || '@mail.com' FROM generate_series(1, " + COMPANIES + ") i");
+		statement.execute("INSERT INTO coupons (title, start_date, end_date, amount, type, message, price, image, company_id) "
+				+ "SELECT 'Coupon ' || i, now() - interval '30 days', now() + ((i % 2) * 2 - 1) * interval '10 days', "
+				+ "100, i % 7, 'message', i % 100, 'image', c.id "
+				+ "FROM generate_series(1, " + COMPANIES * COUPONS_PER_COMPANY + ") i "
+				+ "JOIN companies c ON c.company_name = 'Company ' || (i % " + COMPANIES + " + 1)");
+		statement.execute("INSERT INTO customers (customer_name, password) "
+				+ "SELECT 'Customer ' || i, 'x' FROM generate_series(1, " + CUSTOMERS + ") i");
+		statement.execute("INSERT INTO customer_coupon (customer_id, coupon_id) "
+				+ "SELECT cu.id, co.id FROM customers cu "
+				+ "CROSS JOIN generate_series(1, " + PURCHASES_PER_CUSTOMER + ") p "
+				+ "JOIN coupons co ON co.title = 'Coupon ' || ((cu.id * 7919 + p * 104729) % "
+				+ COMPANIES * COUPONS_PER_COMPANY + " + 1)");
+		statement.execute("ANALYZE");
+		System.out.printf("Filled the tables in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+	}
+
+	// prints the plan and the execution time of every lookup
+	private static void explainAll(Statement statement) throws SQLException {
+		for (String[] lookup : LOOKUPS) {
+			System.out.println("--- " + lookup[0]);
+			try (ResultSet rs = statement.executeQuery("EXPLAIN ANALYZE " + lookup[1])) {
+				while (rs.next()) {
+					System.out.println("    " + rs.getString(1));
+				}
+			}
+		}
+	}
+
+}
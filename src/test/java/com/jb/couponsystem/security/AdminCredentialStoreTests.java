@@ -0,0 +1,84 @@
+package com.jb.couponsystem.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * This class contains unit tests for the AdminCredentialStore class.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class AdminCredentialStoreTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final PasswordHasher hasher = new PasswordHasher(1000);
+
+	/**
+	 * Without a file the bundled credentials are loaded.
+	 *
+	 * @throws IOException if the store cannot be created
+	 */
+	@Test
+	public void test_001_bundledCredentials() throws IOException {
+		AdminCredentialStore store = store(new File(folder.getRoot(), "missing.properties"), false);
+
+		Assert.assertEquals(1, store.size());
+		Assert.assertTrue(hasher.matches("1234", store.findPasswordHash("admin")));
+		Assert.assertNotNull(store.findPasswordHash("ADMIN"));
+		Assert.assertNull(store.findPasswordHash("root"));
+	}
+
+	/**
+	 * The operators are loaded from the file, ignoring a password that is not hashed,
+	 * and loaded again when the file changes.
+	 *
+	 * @throws Exception if the file cannot be written
+	 */
+	@Test (timeout = 30000)
+	public void test_002_fileIsReloadedWhenChanged() throws Exception {
+		File file = folder.newFile("admins.properties");
+		write(file, "alice=" + hasher.hash("a1"), "bob=plain");
+		AdminCredentialStore store = store(file, true);
+		try {
+			Assert.assertEquals(1, store.size());
+			Assert.assertTrue(hasher.matches("a1", store.findPasswordHash("Alice")));
+			Assert.assertNull(store.findPasswordHash("bob"));
+
+			write(file, "alice=" + hasher.hash("a1"), "bob=" + hasher.hash("b2"));
+			while (store.findPasswordHash("bob") == null) {
+				Thread.sleep(50);
+			}
+			Assert.assertTrue(hasher.matches("b2", store.findPasswordHash("bob")));
+		}
+		finally {
+			store.destroy();
+		}
+	}
+
+	// creates and starts a store of the given file
+	private AdminCredentialStore store(File file, boolean watch) throws IOException {
+		AdminProperties properties = new AdminProperties();
+		properties.setCredentialsFile(file.getPath());
+		properties.setWatch(watch);
+		AdminCredentialStore store = new AdminCredentialStore(properties, hasher);
+		store.afterPropertiesSet();
+		return store;
+	}
+
+	// writes the lines to the file
+	private static void write(File file, String... lines) throws IOException {
+		Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.ISO_8859_1);
+	}
+
+}
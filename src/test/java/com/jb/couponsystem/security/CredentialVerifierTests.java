@@ -0,0 +1,146 @@
+package com.jb.couponsystem.security;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.jb.couponsystem.enums.ClientType;
+import com.jb.couponsystem.exceptions.LoginRejectedException;
+
+/**
+ * This class contains unit tests for the PasswordHasher and CredentialVerifier classes.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class CredentialVerifierTests {
+
+	/**
+	 * A password is hashed with a random salt, and only the right password fits the hash.
+	 */
+	@Test
+	public void test_001_hashIsSaltedAndVerified() {
+		PasswordHasher hasher = new PasswordHasher(1000);
+		String first = hasher.hash("1234");
+		String second = hasher.hash("1234");
+
+		Assert.assertNotEquals(first, second);
+		Assert.assertTrue(hasher.isHash(first));
+		Assert.assertFalse(hasher.isHash("1234"));
+		Assert.assertTrue(hasher.matches("1234", first));
+		Assert.assertFalse(hasher.matches("4321", first));
+		Assert.assertFalse(hasher.matches("1234", "1234"));
+
+		//A malformed stored hash matches no password instead of failing the login
+		Assert.assertFalse(hasher.matches("1234", "pbkdf2-sha256$many$AAAA$AAAA"));
+		Assert.assertFalse(hasher.matches("1234", "pbkdf2-sha256$0$AAAA$AAAA"));
+		Assert.assertFalse(hasher.matches("1234", "pbkdf2-sha256$1000$not base64$AAAA"));
+	}
+
+	/**
+	 * A successful verification is cached, a failed one and a changed hash are not,
+	 * and the login of an unknown user is checked against a hash as well.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_002_successfulVerificationIsCached() throws InterruptedException {
+		AtomicInteger checks = new AtomicInteger();
+		PasswordHasher hasher = new PasswordHasher(1000) {
+			@Override
+			public boolean matches(String password, String storedHash) {
+				checks.incrementAndGet();
+				return super.matches(password, storedHash);
+			}
+		};
+		CredentialVerifier verifier = new CredentialVerifier(hasher, properties(1, 10));
+		String hash = hasher.hash("1234");
+
+		Assert.assertTrue(verifier.verify(ClientType.CUSTOMER, "Avi", "1234", hash));
+		Assert.assertTrue(verifier.verify(ClientType.CUSTOMER, "Avi", "1234", hash));
+		Assert.assertEquals(1, checks.get());
+
+		Assert.assertFalse(verifier.verify(ClientType.CUSTOMER, "Avi", "4321", hash));
+		Assert.assertFalse(verifier.verify(ClientType.CUSTOMER, "Avi", "4321", hash));
+		Assert.assertEquals(3, checks.get());
+
+		Assert.assertTrue(verifier.verify(ClientType.CUSTOMER, "Avi", "1234", hasher.hash("1234")));
+		Assert.assertEquals(4, checks.get());
+
+		//The login of an unknown user pays for a hash too, every time
+		verifier.verifyUnknown(ClientType.ADMIN, "nobody", "1234");
+		verifier.verifyUnknown(ClientType.ADMIN, "nobody", "1234");
+		Assert.assertEquals(6, checks.get());
+		verifier.destroy();
+	}
+
+	/**
+	 * A login is rejected when the verifying thread is busy and its queue is full.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test (timeout = 10000)
+	public void test_003_loginStormIsRejected() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		PasswordHasher hasher = new PasswordHasher(1000) {
+			@Override
+			public boolean matches(String password, String storedHash) {
+				started.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return false;
+			}
+		};
+		CredentialVerifier verifier = new CredentialVerifier(hasher, properties(1, 1));
+		String hash = hasher.hash("1234");
+
+		Thread busy = new Thread(() -> verifyQuietly(verifier, hash));
+		busy.start();
+		started.await();
+		Thread queued = new Thread(() -> verifyQuietly(verifier, hash));
+		queued.start();
+		while (queued.getState() != Thread.State.WAITING) {
+			Thread.yield();
+		}
+
+		try {
+			verifier.verify(ClientType.COMPANY, "Teva", "1234", hash);
+			Assert.fail("A login was accepted while the queue of the verifier was full");
+		}
+		catch (LoginRejectedException e) {
+			//expected
+		}
+		finally {
+			release.countDown();
+			busy.join();
+			queued.join();
+			verifier.destroy();
+		}
+	}
+
+	// settings of a verifier with the given number of threads and queue size
+	private static SecurityProperties properties(int threads, int queueSize) {
+		SecurityProperties properties = new SecurityProperties();
+		properties.setVerifyThreads(threads);
+		properties.setVerifyQueueSize(queueSize);
+		return properties;
+	}
+
+	// verifies a login, ignoring the result
+	private static void verifyQuietly(CredentialVerifier verifier, String hash) {
+		try {
+			verifier.verify(ClientType.COMPANY, "Teva", "1234", hash);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+package com.jb.couponsystem.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.jb.couponsystem.enums.ClientType;
+
+/**
+ * This class contains unit tests for the SessionStore class.
+ * The time is given by a fake clock, so the timeouts are tested without waiting.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class SessionStoreTests {
+
+	private final AtomicLong now = new AtomicLong(1000);
+
+	/**
+	 * A session is resolved to the identity of its client until it is closed.
+	 */
+	@Test
+	public void test_001_openResolveInvalidate() {
+		SessionStore store = new SessionStore(properties(10), now::get);
+		ClientContext context = new ClientContext(ClientType.COMPANY, 7, "Teva");
+
+		String token = store.open(context);
+		String other = store.open(context);
+
+		Assert.assertNotEquals(token, other);
+		Assert.assertSame(context, store.resolve(token));
+		Assert.assertNull(store.resolve("no such token"));
+
+		Assert.assertTrue(store.invalidate(token));
+		Assert.assertNull(store.resolve(token));
+		Assert.assertSame(context, store.resolve(other));
+
+		Assert.assertEquals(1, store.invalidateAll(ClientType.COMPANY, 7));
+		Assert.assertEquals(0, store.size());
+	}
+
+	/**
+	 * A session expires when it is not used for the idle timeout,
+	 * and after the absolute timeout even if it is used.
+	 */
+	@Test
+	public void test_002_idleAndAbsoluteTimeouts() {
+		SessionStore store = new SessionStore(properties(10), now::get);
+		String idle = store.open(new ClientContext(ClientType.CUSTOMER, 1, "Avi"));
+		String used = store.open(new ClientContext(ClientType.CUSTOMER, 2, "Benny"));
+
+		for (int i = 0; i < 5; i++) {
+			now.addAndGet(600);
+			Assert.assertNotNull(store.resolve(used));
+		}
+		Assert.assertNull(store.resolve(idle));
+
+		now.addAndGet(2000);
+		Assert.assertEquals(1, store.removeExpired());
+		Assert.assertNull(store.resolve(used));
+	}
+
+	/**
+	 * Above the limit the least recently used session is closed.
+	 */
+	@Test
+	public void test_003_leastRecentlyUsedIsEvicted() {
+		SessionStore store = new SessionStore(properties(2), now::get);
+		String first = store.open(new ClientContext(ClientType.CUSTOMER, 1, "Avi"));
+		String second = store.open(new ClientContext(ClientType.CUSTOMER, 2, "Benny"));
+
+		Assert.assertNotNull(store.resolve(first));
+		String third = store.open(new ClientContext(ClientType.CUSTOMER, 3, "Gabi"));
+
+		Assert.assertEquals(2, store.size());
+		Assert.assertNotNull(store.resolve(first));
+		Assert.assertNull(store.resolve(second));
+		Assert.assertNotNull(store.resolve(third));
+	}
+
+	/**
+	 * The expired sessions are removed by the background thread, without being resolved.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test (timeout = 10000)
+	public void test_004_expiredSessionsAreRemovedInBackground() throws InterruptedException {
+		SessionProperties properties = properties(10);
+		properties.setCleanupIntervalMs(10);
+		SessionStore store = new SessionStore(properties, now::get);
+		store.afterPropertiesSet();
+		try {
+			store.open(new ClientContext(ClientType.CUSTOMER, 1, "Avi"));
+			store.open(new ClientContext(ClientType.CUSTOMER, 2, "Benny"));
+			now.addAndGet(2000);
+			while (store.size() > 0) {
+				Thread.sleep(10);
+			}
+		}
+		finally {
+			store.destroy();
+		}
+	}
+
+	/**
+	 * A session which is not used is closed above the limit wherever it is in the map,
+	 * not only when it is among the first sessions.
+	 */
+	@Test
+	public void test_005_evictionSamplesAllSessions() {
+
+		//The tokens are random, so the unused session is in another place of the map in every store
+		for (int round = 0; round < 10; round++) {
+			SessionStore store = new SessionStore(properties(64), now::get);
+			String unused = store.open(new ClientContext(ClientType.CUSTOMER, 0, "Idle"));
+			List<String> used = new ArrayList<>();
+			for (int i = 1; i < 64; i++) {
+				used.add(store.open(new ClientContext(ClientType.CUSTOMER, i, "Buyer " + i)));
+			}
+
+			//Every session but the first one is used after each new session
+			for (int i = 64; i < 72; i++) {
+				used.add(store.open(new ClientContext(ClientType.CUSTOMER, i, "Buyer " + i)));
+				for (String token : used) {
+					store.resolve(token);
+				}
+			}
+
+			Assert.assertEquals(64, store.size());
+			Assert.assertNull(store.resolve(unused));
+		}
+	}
+
+	// settings with an idle timeout of 1 second and an absolute timeout of 4 seconds
+	private static SessionProperties properties(int maxSessions) {
+		SessionProperties properties = new SessionProperties();
+		properties.setMaxSessions(maxSessions);
+		properties.setIdleTimeoutMs(1000);
+		properties.setAbsoluteTimeoutMs(4000);
+		return properties;
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.jb.couponsystem.stock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures how many units of a single coupon can be reserved per second,
+ * comparing the striped stock with one shared counter decreased by compare-and-set,
+ * which is what every purchase competes on when the amount is kept in one place.
+ * Both are far above the purchases per second a single coupon row in the database can take;
+ * the shared counter falls behind only when many cores reserve at the same time,
+ * so on a machine with few cores the striped stock can be the slower of the two.
+ * It is not a unit test and is not run by the build. Run it with:
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=com.jb.couponsystem.stock.StripedStockBenchmark
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class StripedStockBenchmark {
+
+	private static final long AMOUNT = 20_000_000;
+	private static final int STRIPES = 16;
+	private static final int[] THREADS = {1, 4, 16, 64};
+
+	// a reservation of one unit of the stock
+	interface Reservation {
+		boolean tryReserve();
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		for (int threads : THREADS) {
+			final AtomicLong shared = new AtomicLong(AMOUNT);
+			double single = run(threads, () -> {
+				long left = shared.get();
+				while (left > 0) {
+					if (shared.compareAndSet(left, left - 1)) {
+						return true;
+					}
+					left = shared.get();
+				}
+				return false;
+			});
+			double striped = run(threads, new StripedStock(AMOUNT, STRIPES)::tryReserve);
+
+			System.out.printf("threads=%3d  single counter: %,12.0f reservations/s  striped: %,12.0f reservations/s%n",
+					threads, single, striped);
+		}
+	}
+
+	// reserves the whole amount with the given number of threads and returns the reservations per second
+	private static double run(int threads, Reservation reservation) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread(() -> {
+				try {
+					start.await();
+					while (reservation.tryReserve()) {
+						// reserve until the stock is empty
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		return AMOUNT / ((System.nanoTime() - begin) / 1e9);
+	}
+
+}
@@ -0,0 +1,83 @@
+package com.jb.couponsystem.stock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * This class contains unit tests for the StripedStock class.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class StripedStockTests {
+
+	/**
+	 * The amount is divided between the stripes without losing units,
+	 * also when it is smaller than the number of stripes.
+	 */
+	@Test
+	public void test_001_amountIsDividedExactly() {
+		Assert.assertEquals(1003, new StripedStock(1003, 16).remaining());
+		Assert.assertEquals(3, new StripedStock(3, 16).remaining());
+		Assert.assertEquals(0, new StripedStock(0, 16).remaining());
+	}
+
+	/**
+	 * A single thread can take every unit, also the ones in the stripes of other threads,
+	 * and nothing after the stock is empty. A released unit can be taken again.
+	 */
+	@Test
+	public void test_002_singleThreadTakesAllUnits() {
+		StripedStock stock = new StripedStock(10, 4);
+		for (int i = 0; i < 10; i++) {
+			Assert.assertTrue(stock.tryReserve());
+		}
+		Assert.assertFalse(stock.tryReserve());
+
+		stock.release();
+		Assert.assertEquals(1, stock.remaining());
+		Assert.assertTrue(stock.tryReserve());
+		Assert.assertFalse(stock.tryReserve());
+	}
+
+	/**
+	 * Under contention exactly the amount is reserved - never more and never less.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test
+	public void test_003_noOversellUnderContention() throws InterruptedException {
+		final StripedStock stock = new StripedStock(50_000, 8);
+		final AtomicInteger reserved = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(32);
+
+		for (int t = 0; t < 32; t++) {
+			executor.execute(() -> {
+				try {
+					start.await();
+					while (stock.tryReserve()) {
+						reserved.incrementAndGet();
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+
+		start.countDown();
+		executor.shutdown();
+		Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+		Assert.assertEquals(50_000, reserved.get());
+		Assert.assertEquals(0, stock.remaining());
+	}
+
+}
@@ -0,0 +1,146 @@
+package com.jb.couponsystem.tasks;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.jb.couponsystem.dbdao.CouponDBDAO;
+import com.jb.couponsystem.dbdao.PurgeReport;
+
+/**
+ * This class contains unit tests for the ExpirationScheduler and DailyExpirationTask classes.
+ * The removal of the coupons is replaced by a fake DBDAO, so no database is needed.
+ *
+ * @author Alexander Zablotsky
+ *
+ */
+public class ExpirationSchedulerTests {
+
+	/**
+	 * A run requested while another run is not finished is skipped.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test (timeout = 10000)
+	public void test_001_overlappingRunIsSkipped() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExpirationScheduler scheduler = new ExpirationScheduler(new DailyExpirationTask(new CouponDBDAO() {
+			@Override
+			public PurgeReport removeExpiredCoupons() throws InterruptedException {
+				started.countDown();
+				release.await();
+				return new PurgeReport();
+			}
+		}), disabled());
+
+		Thread first = new Thread(scheduler::runNow);
+		first.start();
+		started.await();
+
+		Assert.assertTrue(scheduler.isRunning());
+		Assert.assertFalse(scheduler.runNow());
+
+		release.countDown();
+		first.join();
+		Assert.assertFalse(scheduler.isRunning());
+		Assert.assertEquals(1, scheduler.getTask().getRuns());
+	}
+
+	/**
+	 * Shutdown interrupts the task running on startup, and the cancelled run is counted as an error.
+	 *
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	@Test (timeout = 10000)
+	public void test_002_shutdownCancelsRunningTask() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		AtomicBoolean interrupted = new AtomicBoolean();
+		ExpirationProperties properties = disabled();
+		properties.setRunOnStartup(true);
+		ExpirationScheduler scheduler = new ExpirationScheduler(new DailyExpirationTask(new CouponDBDAO() {
+			@Override
+			public PurgeReport removeExpiredCoupons() throws InterruptedException {
+				started.countDown();
+				try {
+					Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+				}
+				catch (InterruptedException e) {
+					interrupted.set(true);
+					throw e;
+				}
+				return new PurgeReport();
+			}
+		}), properties);
+
+		scheduler.start();
+		started.await();
+
+		long start = System.nanoTime();
+		scheduler.shutdown();
+
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		Assert.assertTrue(interrupted.get());
+		Assert.assertEquals(1, scheduler.getTask().getRuns());
+		Assert.assertEquals(1, scheduler.getTask().getErrors());
+		Assert.assertEquals("cancelled", scheduler.getTask().getLastError());
+	}
+
+	/**
+	 * The metrics of the runs count the failed runs and keep the error of the last run.
+	 */
+	@Test
+	public void test_003_failedRunIsRecorded() {
+		DailyExpirationTask task = new DailyExpirationTask(new CouponDBDAO() {
+			@Override
+			public PurgeReport removeExpiredCoupons() {
+				throw new IllegalStateException("Database is down");
+			}
+		});
+
+		task.run();
+		task.run();
+
+		Assert.assertEquals(2, task.getRuns());
+		Assert.assertEquals(2, task.getErrors());
+		Assert.assertTrue(task.getLastError().contains("Database is down"));
+		Assert.assertNotNull(task.getLastRunAt());
+		Assert.assertEquals(0, task.getCouponsRemoved());
+	}
+
+	/**
+	 * The next run is at the next time of the cron expression, delayed by at most the jitter.
+	 */
+	@Test
+	public void test_004_nextRunFollowsCronWithJitter() {
+		ExpirationProperties properties = disabled();
+		properties.setCron("0 0 3 * * *");
+		properties.setJitterMs(60000);
+		ExpirationScheduler scheduler = new ExpirationScheduler(new DailyExpirationTask(new CouponDBDAO()), properties);
+		scheduler.start();
+		scheduler.shutdown();
+
+		// 2:00 - the next run is at 3:00 of the same day
+		Date now = new GregorianCalendar(2018, 0, 1, 2, 0, 0).getTime();
+		for (int i = 0; i < 100; i++) {
+			long delay = scheduler.nextDelayMillis(now);
+			Assert.assertTrue(delay >= TimeUnit.HOURS.toMillis(1));
+			Assert.assertTrue(delay <= TimeUnit.HOURS.toMillis(1) + 60000);
+		}
+	}
+
+	// settings which do not run anything by themselves
+	private static ExpirationProperties disabled() {
+		ExpirationProperties properties = new ExpirationProperties();
+		properties.setEnabled(false);
+		properties.setRunOnStartup(false);
+		properties.setJitterMs(0);
+		return properties;
+	}
+
+}